@@ -1,8 +1,16 @@
 package eu.iv4xr.framework.environments;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
 import eu.iv4xr.framework.exception.Iv4xrError;
 import eu.iv4xr.framework.mainConcepts.Iv4xrEnvironment;
+import eu.iv4xr.framework.mainConcepts.WorldEntity;
 import eu.iv4xr.framework.mainConcepts.WorldModel;
+import eu.iv4xr.framework.mainConcepts.WorldModelDelta;
 import eu.iv4xr.framework.spatial.Vec3;
 import eu.iv4xr.framework.spatial.meshes.Mesh;
 import nl.uu.cs.aplib.utils.Pair;
@@ -13,6 +21,12 @@ import nl.uu.cs.aplib.utils.Pair;
  * of such an environment are 3D games or simulators.
  * This class provides only a partial implementation of Iv4xrEnvironment.
  * You still need to implement the method {@link #sendCommand_(EnvOperation)}.
+ * To let the asynchronous variants of the commands (e.g.
+ * {@link #interactAsync(String, String, String)}) pipeline their requests,
+ * also override {@link #sendCommandAsync_(EnvOperation)}.
+ * The real environment may reply to a command with the Json encoding of the
+ * expected WorldModel, WorldModelDelta, or Mesh, as a String; such replies are
+ * decoded with {@link WorldModelJsonCodec}.
  * 
  * @author Wish
  *
@@ -21,8 +35,29 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
 
     static public String LOADWORLD_CMDNAME = "LoadWorld";
     static public String OBSERVE_CMDNAME = "Observe";
+    static public String OBSERVEDELTA_CMDNAME = "ObserveDelta";
     static public String MOVETOWARD_CMDNAME = "Move";
 
+    /**
+     * Decodes the replies that are sent as Json strings.
+     */
+    static final Gson GSON = WorldModelJsonCodec.registerTypeAdapters(new GsonBuilder()).create();
+
+    /**
+     * True if a subclass overrides {@link #observe(String)}; then
+     * {@link #observeInto(String, WorldModel)} has to use it.
+     */
+    private final boolean observeOverridden;
+
+    public W3DEnvironment() {
+        try {
+            observeOverridden = getClass().getMethod("observe", String.class)
+                    .getDeclaringClass() != W3DEnvironment.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     /**
      * A polygon-mesh describing the navigable surface of the 3D-world represented
      * by this environment.
@@ -57,7 +92,7 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
      */
     @Override
     public WorldModel interact(String agentId, String targetId, String interactionType) {
-        return (WorldModel) sendCommand(agentId, targetId, interactionType, null, WorldModel.class);
+        return decode(sendCommand(agentId, targetId, interactionType, null, WorldModel.class), WorldModel.class);
     }
 
     /**
@@ -72,7 +107,36 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
      */
     @Override
     public WorldModel observe(String agentId) {
-        return (WorldModel) sendCommand(agentId, null, OBSERVE_CMDNAME, null, WorldModel.class);
+        return decode(sendCommand(agentId, null, OBSERVE_CMDNAME, null, WorldModel.class), WorldModel.class);
+    }
+
+    /**
+     * Send the same command as {@link #observe(String)}, and merge the observation
+     * into the given WorldModel. If the real environment replies with a Json
+     * string, the observation is merged while it is decoded, with
+     * {@link WorldModelJsonCodec#mergeInto(WorldModel, String)}.
+     */
+    @Override
+    public List<WorldEntity> observeInto(String agentId, WorldModel target) {
+        if (observeOverridden)
+            return super.observeInto(agentId, target);
+        var obs = sendCommand(agentId, null, OBSERVE_CMDNAME, null, WorldModel.class);
+        if (obs instanceof String)
+            return WorldModelJsonCodec.mergeInto(target, (String) obs);
+        return target.mergeNewObservation((WorldModel) obs);
+    }
+
+    /**
+     * Send a command to the real environment that will cause it to send back what
+     * the agent of the given id observes, as a delta with respect to the
+     * observation at the given timestamp. The argument of the command is the
+     * timestamp. Note that {@link #supportsDeltaObservation()} still returns
+     * false; override it if the real environment understands this command.
+     */
+    @Override
+    public WorldModelDelta observeDelta(String agentId, long sinceTimestamp) {
+        return decode(sendCommand(agentId, null, OBSERVEDELTA_CMDNAME, sinceTimestamp, WorldModelDelta.class),
+                WorldModelDelta.class);
     }
 
     /**
@@ -91,8 +155,36 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
      */
     @Override
     public WorldModel moveToward(String agentId, Vec3 agentLocation, Vec3 targetLocation) {
-        return (WorldModel) sendCommand(agentId, null, MOVETOWARD_CMDNAME, new Pair<Vec3,Vec3>(agentLocation, targetLocation),
-                WorldModel.class);
+        return decode(sendCommand(agentId, null, MOVETOWARD_CMDNAME, new Pair<Vec3,Vec3>(agentLocation, targetLocation),
+                WorldModel.class), WorldModel.class);
+    }
+
+    /**
+     * The asynchronous version of {@link #interact(String, String, String)}. This
+     * allows an agent to send several interactions, and e.g. an observation, without
+     * waiting for the reply of each before sending the next. They are still
+     * executed by the real environment in the order they are sent.
+     */
+    public CompletableFuture<WorldModel> interactAsync(String agentId, String targetId, String interactionType) {
+        return sendCommandAsync(agentId, targetId, interactionType, null, WorldModel.class)
+                .thenApply(obs -> decode(obs, WorldModel.class));
+    }
+
+    /**
+     * The asynchronous version of {@link #observe(String)}.
+     */
+    public CompletableFuture<WorldModel> observeAsync(String agentId) {
+        return sendCommandAsync(agentId, null, OBSERVE_CMDNAME, null, WorldModel.class)
+                .thenApply(obs -> decode(obs, WorldModel.class));
+    }
+
+    /**
+     * The asynchronous version of {@link #moveToward(String, Vec3, Vec3)}.
+     */
+    public CompletableFuture<WorldModel> moveTowardAsync(String agentId, Vec3 agentLocation, Vec3 targetLocation) {
+        return sendCommandAsync(agentId, null, MOVETOWARD_CMDNAME,
+                new Pair<Vec3, Vec3>(agentLocation, targetLocation), WorldModel.class)
+                .thenApply(obs -> decode(obs, WorldModel.class));
     }
 
     /**
@@ -102,7 +194,7 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
      */
     @Override
     public void loadWorld() {
-        worldNavigableMesh = (Mesh) sendCommand(null, null, LOADWORLD_CMDNAME, null, Mesh.class);
+        worldNavigableMesh = decode(sendCommand(null, null, LOADWORLD_CMDNAME, null, Mesh.class), Mesh.class);
         if (worldNavigableMesh == null)
             throw new Iv4xrError("Fail to load the navgation-graph of the world");
     }
@@ -113,11 +205,18 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
      * 
      * cmd.command is LOADWORLD_CMDNAME: this should ask the real-environment to
      * send back an navigation-mesh. This method should package it as an instance of
-     * Mesh and return it.
+     * Mesh and return it, or return its Json encoding.
      * 
      * cmd.command is OBSERVE_CMDNAME: this should ask the real-environment to send
      * over the observation of agent cmd.invokerId. This method should package the
-     * result as an instance of WorldModel and return it.
+     * result as an instance of WorldModel and return it, or return its Json
+     * encoding, which is then decoded while it is merged into the agent's
+     * WorldModel (see {@link #observeInto(String, WorldModel)}).
+     * 
+     * cmd.command is OBSERVEDELTA_CMDNAME: optional; this should ask the
+     * real-environment to send over the change in the observation of agent
+     * cmd.invokerId since the time given in cmd.arg. This method should package
+     * the result as an instance of WorldModelDelta and return it.
      * 
      * cmd.command is MOVETOWARD_CMDNAME: this should ask the real-environment to
      * move its entity/agent cmd.invokerId in the direction specified by cmd.arg.
@@ -136,4 +235,14 @@ public class W3DEnvironment extends Iv4xrEnvironment implements IW3DEnvironment
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Return the given reply of the real environment as an instance of the given
+     * type, decoding it first if it is a Json string.
+     */
+    static <T> T decode(Object reply, Class<T> type) {
+        if (reply instanceof String)
+            return GSON.fromJson((String) reply, type);
+        return type.cast(reply);
+    }
+
 }
@@ -0,0 +1,811 @@
+package eu.iv4xr.framework.environments;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Serializable;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import eu.iv4xr.framework.mainConcepts.WorldEntity;
+import eu.iv4xr.framework.mainConcepts.WorldModel;
+import eu.iv4xr.framework.mainConcepts.WorldModelDelta;
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+import eu.iv4xr.framework.spatial.meshes.Face;
+import eu.iv4xr.framework.spatial.meshes.Mesh;
+
+/**
+ * Hand-written Gson type-adapters for {@link WorldModel}, {@link WorldEntity},
+ * {@link WorldModelDelta}, {@link Vec3}, and {@link Mesh}. They read and write the same Json format as
+ * Gson's reflection-based default, that is, objects whose fields are named
+ * after the fields of the corresponding classes (e.g. a Vec3 is written as
+ * <code>{"x":1.0,"y":2.0,"z":0.0}</code>, and the elements of a WorldModel as an
+ * object mapping entity-ids to entities). Unknown fields are skipped. The
+ * adapters work directly on the token stream, so they avoid reflection. Also,
+ * unlike the default, they can decode the values of
+ * {@link WorldEntity#properties}: Json booleans and strings become Boolean and
+ * String, numbers become Integer if they are integral (Long if they do not fit
+ * an int) and Double otherwise, arrays become ArrayList, and objects HashMap.
+ *
+ * <p>
+ * The default Gson of {@link nl.uu.cs.aplib.environments.JsonEnvironment} has
+ * these adapters registered, and {@link W3DEnvironment} uses them to decode
+ * replies that the real environment sends as Json strings. To use them with
+ * another Gson, register them with {@link #registerTypeAdapters(GsonBuilder)}.
+ *
+ * <p>
+ * Additionally, {@link #mergeInto(WorldModel, JsonReader)} decodes an
+ * observation and merges it into an existing WorldModel (as
+ * {@link WorldModel#mergeNewObservation(WorldModel)} does), without first
+ * building a WorldModel for the observation.
+ */
+public class WorldModelJsonCodec {
+
+    public static final TypeAdapter<Vec3> VEC3_ADAPTER = new TypeAdapter<Vec3>() {
+        @Override
+        public void write(JsonWriter out, Vec3 v) throws IOException {
+            writeVec3(out, v);
+        }
+
+        @Override
+        public Vec3 read(JsonReader in) throws IOException {
+            return readVec3(in);
+        }
+    };
+
+    public static final TypeAdapter<WorldEntity> WORLDENTITY_ADAPTER = new TypeAdapter<WorldEntity>() {
+        @Override
+        public void write(JsonWriter out, WorldEntity e) throws IOException {
+            writeEntity(out, e);
+        }
+
+        @Override
+        public WorldEntity read(JsonReader in) throws IOException {
+            return readEntity(in);
+        }
+    };
+
+    public static final TypeAdapter<WorldModel> WORLDMODEL_ADAPTER = new TypeAdapter<WorldModel>() {
+        @Override
+        public void write(JsonWriter out, WorldModel wom) throws IOException {
+            writeWorldModel(out, wom);
+        }
+
+        @Override
+        public WorldModel read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            var wom = new WorldModel();
+            readWorldModel(in, wom);
+            return wom;
+        }
+    };
+
+    public static final TypeAdapter<WorldModelDelta> WORLDMODELDELTA_ADAPTER = new TypeAdapter<WorldModelDelta>() {
+        @Override
+        public void write(JsonWriter out, WorldModelDelta delta) throws IOException {
+            writeDelta(out, delta);
+        }
+
+        @Override
+        public WorldModelDelta read(JsonReader in) throws IOException {
+            return readDelta(in);
+        }
+    };
+
+    public static final TypeAdapter<Mesh> MESH_ADAPTER = new TypeAdapter<Mesh>() {
+        @Override
+        public void write(JsonWriter out, Mesh mesh) throws IOException {
+            writeMesh(out, mesh);
+        }
+
+        @Override
+        public Mesh read(JsonReader in) throws IOException {
+            return readMesh(in);
+        }
+    };
+
+    /**
+     * Register the adapters of this class to the given GsonBuilder. The method
+     * returns the builder, so that it can be used in the Fluent Interface style.
+     */
+    public static GsonBuilder registerTypeAdapters(GsonBuilder builder) {
+        return builder.registerTypeAdapter(Vec3.class, VEC3_ADAPTER)
+                .registerTypeAdapter(WorldEntity.class, WORLDENTITY_ADAPTER)
+                .registerTypeAdapter(WorldModel.class, WORLDMODEL_ADAPTER)
+                .registerTypeAdapter(WorldModelDelta.class, WORLDMODELDELTA_ADAPTER)
+                .registerTypeAdapter(Mesh.class, MESH_ADAPTER);
+    }
+
+    /**
+     * Decode the given Json string as a WorldModel.
+     */
+    public static WorldModel decodeWorldModel(String json) {
+        return decodeWorldModel(new StringReader(json));
+    }
+
+    public static WorldModel decodeWorldModel(Reader json) {
+        try {
+            return WORLDMODEL_ADAPTER.read(new JsonReader(json));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * Decode the given Json string as a WorldModelDelta.
+     */
+    public static WorldModelDelta decodeDelta(String json) {
+        try {
+            return readDelta(new JsonReader(new StringReader(json)));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * Decode the given Json string as a Mesh.
+     */
+    public static Mesh decodeMesh(String json) {
+        try {
+            return readMesh(new JsonReader(new StringReader(json)));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * Encode the given WorldModel as a Json string.
+     */
+    public static String encode(WorldModel wom) {
+        return WORLDMODEL_ADAPTER.toJson(wom);
+    }
+
+    /**
+     * Encode the given WorldModelDelta as a Json string.
+     */
+    public static String encode(WorldModelDelta delta) {
+        return WORLDMODELDELTA_ADAPTER.toJson(delta);
+    }
+
+    /**
+     * Encode the given Mesh as a Json string.
+     */
+    public static String encode(Mesh mesh) {
+        return MESH_ADAPTER.toJson(mesh);
+    }
+
+    /**
+     * Decode a Json-encoded observation from the given reader, and merge it into
+     * the given WorldModel. The result is the same as decoding the observation to
+     * a WorldModel, and then passing it to
+     * {@link WorldModel#mergeNewObservation(WorldModel)}: it returns the list of
+     * entities that change the state of the target WorldModel. However, each
+     * entity is merged as soon as it is decoded, see
+     * {@link WorldModel#beginObservation(long)}. This requires the observation's
+     * timestamp to precede its elements, as it does in the Json written by this
+     * class and by Gson's default; otherwise the entities are first collected.
+     */
+    public static List<WorldEntity> mergeInto(WorldModel target, JsonReader in) throws IOException {
+        var buffers = BUFFERS.get();
+        Vec3 position = null;
+        Vec3 velocity = null;
+        Vec3 extent = null;
+        long timestamp = -1;
+        boolean hasTimestamp = false;
+        WorldModel.ObservationMerge merge = null;
+        List<WorldEntity> early = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "position":
+                position = readVec3(in);
+                break;
+            case "velocity":
+                velocity = readVec3(in);
+                break;
+            case "extent":
+                extent = readVec3(in);
+                break;
+            case "timestamp":
+                timestamp = in.nextLong();
+                hasTimestamp = true;
+                break;
+            case "elements":
+                if (hasTimestamp) {
+                    // checks the timestamp before anything is merged:
+                    if (merge == null)
+                        merge = target.beginObservation(timestamp);
+                    // as mergeNewObservation, update the agent's info first:
+                    target.position = position;
+                    target.velocity = velocity;
+                    target.extent = extent;
+                    readElements(in, buffers, 0, merge::add);
+                } else {
+                    // the entities can only be merged once the timestamp is known:
+                    if (early == null)
+                        early = new ArrayList<>();
+                    readElements(in, buffers, 0, early::add);
+                }
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        if (merge == null)
+            merge = target.beginObservation(timestamp);
+        target.position = position;
+        target.velocity = velocity;
+        target.extent = extent;
+        if (early != null) {
+            for (var e : early)
+                merge.add(e);
+        }
+        return merge.finish();
+    }
+
+    public static List<WorldEntity> mergeInto(WorldModel target, String json) {
+        try {
+            return mergeInto(target, new JsonReader(new StringReader(json)));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * The maps and lists in which the properties and the sub-entities of an entity
+     * are collected until the entity itself can be created, one for each level of
+     * nesting. They are reused for all entities that a thread decodes.
+     */
+    private static class Buffers {
+        final List<Map<String, Serializable>> properties = new ArrayList<>();
+        final List<List<WorldEntity>> elements = new ArrayList<>();
+
+        Map<String, Serializable> properties(int depth) {
+            while (properties.size() <= depth)
+                properties.add(new HashMap<>());
+            var map = properties.get(depth);
+            map.clear();
+            return map;
+        }
+
+        List<WorldEntity> elements(int depth) {
+            while (elements.size() <= depth)
+                elements.add(new ArrayList<>());
+            var list = elements.get(depth);
+            list.clear();
+            return list;
+        }
+    }
+
+    private static final ThreadLocal<Buffers> BUFFERS = ThreadLocal.withInitial(Buffers::new);
+
+    // ---- readers
+
+    static Vec3 readVec3(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        float x = 0, y = 0, z = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "x":
+                x = (float) in.nextDouble();
+                break;
+            case "y":
+                y = (float) in.nextDouble();
+                break;
+            case "z":
+                z = (float) in.nextDouble();
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Vec3(x, y, z);
+    }
+
+    static WorldEntity readEntity(JsonReader in) throws IOException {
+        return readEntity(in, BUFFERS.get(), 0);
+    }
+
+    static WorldEntity readEntity(JsonReader in, Buffers buffers, int depth) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        String id = null;
+        String type = null;
+        boolean dynamic = false;
+        long timestamp = -1;
+        long lastStutterTimestamp = -1;
+        Vec3 position = null;
+        Vec3 extent = null;
+        Vec3 velocity = null;
+        var properties = buffers.properties(depth);
+        var elements = buffers.elements(depth);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "id":
+                id = readString(in);
+                break;
+            case "type":
+                type = readString(in);
+                break;
+            case "dynamic":
+                dynamic = in.nextBoolean();
+                break;
+            case "timestamp":
+                timestamp = in.nextLong();
+                break;
+            case "lastStutterTimestamp":
+                lastStutterTimestamp = in.nextLong();
+                break;
+            case "position":
+                position = readVec3(in);
+                break;
+            case "extent":
+                extent = readVec3(in);
+                break;
+            case "velocity":
+                velocity = readVec3(in);
+                break;
+            case "properties":
+                readProperties(in, properties);
+                break;
+            case "elements":
+                readElements(in, buffers, depth + 1, elements::add);
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        // id, type, and dynamic are final, so the entity can only be created now:
+        var e = new WorldEntity(id, type, dynamic);
+        e.timestamp = timestamp;
+        e.lastStutterTimestamp = lastStutterTimestamp;
+        e.position = position;
+        e.extent = extent;
+        e.velocity = velocity;
+        if (!properties.isEmpty()) {
+            // keep the entity's own map, which maintains its fingerprint:
+            e.properties.putAll(properties);
+            properties.clear();
+        }
+        if (!elements.isEmpty()) {
+            for (var child : elements)
+                e.elements.put(child.id, child);
+            elements.clear();
+        }
+        return e;
+    }
+
+    /**
+     * Read a Json object that maps ids to entities, passing the entities to the
+     * given consumer as they are read.
+     */
+    static void readElements(JsonReader in, Buffers buffers, int depth, Consumer<WorldEntity> entities)
+            throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            in.nextName();
+            var e = readEntity(in, buffers, depth);
+            if (e != null)
+                entities.accept(e);
+        }
+        in.endObject();
+    }
+
+    /**
+     * Read the fields of a WorldModel into the given WorldModel.
+     */
+    static void readWorldModel(JsonReader in, WorldModel wom) throws IOException {
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "agentId":
+                wom.agentId = readString(in);
+                break;
+            case "position":
+                wom.position = readVec3(in);
+                break;
+            case "velocity":
+                wom.velocity = readVec3(in);
+                break;
+            case "extent":
+                wom.extent = readVec3(in);
+                break;
+            case "timestamp":
+                wom.timestamp = in.nextLong();
+                break;
+            case "elements":
+                readElements(in, BUFFERS.get(), 0, e -> wom.elements.put(e.id, e));
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+    }
+
+    static WorldModelDelta readDelta(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        var delta = new WorldModelDelta();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "agentId":
+                delta.agentId = readString(in);
+                break;
+            case "position":
+                delta.position = readVec3(in);
+                break;
+            case "velocity":
+                delta.velocity = readVec3(in);
+                break;
+            case "extent":
+                delta.extent = readVec3(in);
+                break;
+            case "sinceTimestamp":
+                delta.sinceTimestamp = in.nextLong();
+                break;
+            case "timestamp":
+                delta.timestamp = in.nextLong();
+                break;
+            case "changed":
+                readElements(in, BUFFERS.get(), 0, e -> delta.changed.put(e.id, e));
+                break;
+            case "unchanged":
+                readIds(in, delta.unchanged);
+                break;
+            case "removed":
+                readIds(in, delta.removed);
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return delta;
+    }
+
+    static void readIds(JsonReader in, Set<String> ids) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+        in.beginArray();
+        while (in.hasNext())
+            ids.add(in.nextString());
+        in.endArray();
+    }
+
+    static void readProperties(JsonReader in, Map<String, Serializable> properties) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return;
+        }
+        in.beginObject();
+        while (in.hasNext()) {
+            var name = in.nextName();
+            properties.put(name, readValue(in));
+        }
+        in.endObject();
+    }
+
+    static Serializable readValue(JsonReader in) throws IOException {
+        switch (in.peek()) {
+        case NULL:
+            in.nextNull();
+            return null;
+        case BOOLEAN:
+            return in.nextBoolean();
+        case STRING:
+            return in.nextString();
+        case NUMBER:
+            var s = in.nextString();
+            if (s.indexOf('.') < 0 && s.indexOf('e') < 0 && s.indexOf('E') < 0) {
+                try {
+                    long v = Long.parseLong(s);
+                    if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE)
+                        return (int) v;
+                    return v;
+                } catch (NumberFormatException e) {
+                    // too big even for a long; fall through
+                }
+            }
+            return Double.parseDouble(s);
+        case BEGIN_ARRAY:
+            var list = new ArrayList<Serializable>();
+            in.beginArray();
+            while (in.hasNext())
+                list.add(readValue(in));
+            in.endArray();
+            return list;
+        case BEGIN_OBJECT:
+            var map = new HashMap<String, Serializable>();
+            in.beginObject();
+            while (in.hasNext()) {
+                var name = in.nextName();
+                map.put(name, readValue(in));
+            }
+            in.endObject();
+            return map;
+        default:
+            throw new JsonParseException("Unexpected token " + in.peek() + " at " + in.getPath());
+        }
+    }
+
+    static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    static Mesh readMesh(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        var mesh = new Mesh();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "vertices":
+                in.beginArray();
+                while (in.hasNext())
+                    mesh.vertices.add(readVec3(in));
+                in.endArray();
+                break;
+            case "edges":
+                in.beginArray();
+                while (in.hasNext())
+                    mesh.edges.add(readEdge(in));
+                in.endArray();
+                break;
+            case "faces":
+                in.beginArray();
+                while (in.hasNext())
+                    mesh.faces.add(readFace(in));
+                in.endArray();
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return mesh;
+    }
+
+    static Edge readEdge(JsonReader in) throws IOException {
+        int i = 0, j = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+            case "i":
+                i = in.nextInt();
+                break;
+            case "j":
+                j = in.nextInt();
+                break;
+            default:
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Edge(i, j);
+    }
+
+    static Face readFace(JsonReader in) throws IOException {
+        int[] vertices = new int[4];
+        int n = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (in.nextName().equals("vertices")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    if (n == vertices.length)
+                        vertices = Arrays.copyOf(vertices, 2 * n);
+                    vertices[n++] = in.nextInt();
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Face(n == vertices.length ? vertices : Arrays.copyOf(vertices, n));
+    }
+
+    // ---- writers
+
+    static void writeVec3(JsonWriter out, Vec3 v) throws IOException {
+        if (v == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        // write them as floats, e.g. 0.1 rather than 0.10000000149011612:
+        out.name("x").value((Number) v.x);
+        out.name("y").value((Number) v.y);
+        out.name("z").value((Number) v.z);
+        out.endObject();
+    }
+
+    static void writeEntity(JsonWriter out, WorldEntity e) throws IOException {
+        if (e == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("id").value(e.id);
+        out.name("type").value(e.type);
+        out.name("timestamp").value(e.timestamp);
+        out.name("lastStutterTimestamp").value(e.lastStutterTimestamp);
+        out.name("position");
+        writeVec3(out, e.position);
+        out.name("extent");
+        writeVec3(out, e.extent);
+        out.name("velocity");
+        writeVec3(out, e.velocity);
+        out.name("dynamic").value(e.dynamic);
+        out.name("properties");
+        out.beginObject();
+        for (var P : e.properties.entrySet()) {
+            out.name(P.getKey());
+            writeValue(out, P.getValue());
+        }
+        out.endObject();
+        out.name("elements");
+        writeElements(out, e.elements);
+        out.endObject();
+    }
+
+    static void writeElements(JsonWriter out, Map<String, WorldEntity> elements) throws IOException {
+        out.beginObject();
+        for (var E : elements.entrySet()) {
+            out.name(E.getKey());
+            writeEntity(out, E.getValue());
+        }
+        out.endObject();
+    }
+
+    static void writeValue(JsonWriter out, Object v) throws IOException {
+        if (v == null)
+            out.nullValue();
+        else if (v instanceof Boolean)
+            out.value((Boolean) v);
+        else if (v instanceof Number)
+            out.value((Number) v);
+        else if (v instanceof Iterable) {
+            out.beginArray();
+            for (var x : (Iterable<?>) v)
+                writeValue(out, x);
+            out.endArray();
+        } else if (v instanceof Map) {
+            out.beginObject();
+            for (var P : ((Map<?, ?>) v).entrySet()) {
+                out.name(P.getKey().toString());
+                writeValue(out, P.getValue());
+            }
+            out.endObject();
+        } else
+            out.value(v.toString());
+    }
+
+    static void writeWorldModel(JsonWriter out, WorldModel wom) throws IOException {
+        if (wom == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("agentId").value(wom.agentId);
+        out.name("position");
+        writeVec3(out, wom.position);
+        out.name("velocity");
+        writeVec3(out, wom.velocity);
+        out.name("extent");
+        writeVec3(out, wom.extent);
+        out.name("timestamp").value(wom.timestamp);
+        out.name("elements");
+        writeElements(out, wom.elements);
+        out.endObject();
+    }
+
+    static void writeDelta(JsonWriter out, WorldModelDelta delta) throws IOException {
+        if (delta == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("agentId").value(delta.agentId);
+        out.name("position");
+        writeVec3(out, delta.position);
+        out.name("velocity");
+        writeVec3(out, delta.velocity);
+        out.name("extent");
+        writeVec3(out, delta.extent);
+        out.name("sinceTimestamp").value(delta.sinceTimestamp);
+        out.name("timestamp").value(delta.timestamp);
+        out.name("changed");
+        writeElements(out, delta.changed);
+        out.name("unchanged");
+        writeIds(out, delta.unchanged);
+        out.name("removed");
+        writeIds(out, delta.removed);
+        out.endObject();
+    }
+
+    static void writeIds(JsonWriter out, Set<String> ids) throws IOException {
+        out.beginArray();
+        for (var id : ids)
+            out.value(id);
+        out.endArray();
+    }
+
+    static void writeMesh(JsonWriter out, Mesh mesh) throws IOException {
+        if (mesh == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("vertices");
+        out.beginArray();
+        for (var v : mesh.vertices)
+            writeVec3(out, v);
+        out.endArray();
+        out.name("edges");
+        out.beginArray();
+        for (var e : mesh.edges) {
+            out.beginObject();
+            out.name("i").value(e.i);
+            out.name("j").value(e.j);
+            out.endObject();
+        }
+        out.endArray();
+        out.name("faces");
+        out.beginArray();
+        for (var f : mesh.faces) {
+            out.beginObject();
+            out.name("vertices");
+            out.beginArray();
+            for (int v : f.vertices)
+                out.value(v);
+            out.endArray();
+            out.endObject();
+        }
+        out.endArray();
+        out.endObject();
+    }
+
+}
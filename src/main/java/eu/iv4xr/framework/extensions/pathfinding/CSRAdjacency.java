@@ -0,0 +1,170 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.IntPredicate;
+
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.EdgeMap;
+
+/**
+ * An immutable, compressed sparse row (CSR) representation of the edges of a
+ * navigation graph. The neighbours of vertex i are
+ * targets[offsets[i]] .. targets[offsets[i+1]-1], in increasing order, and
+ * lengths[k] is the geometric length of the edge to targets[k]. So the
+ * neighbours of a vertex can be enumerated without allocating anything:
+ *
+ * <pre>
+ * for (int k = csr.begin(i); k &lt; csr.end(i); k++) {
+ *     int j = csr.target(k);
+ *     ...
+ * }
+ * </pre>
+ *
+ * See {@link SimpleNavGraph#freeze()}.
+ */
+public class CSRAdjacency {
+
+    final int[] offsets;
+    final int[] targets;
+    final float[] lengths;
+
+    private CSRAdjacency(int[] offsets, int[] targets, float[] lengths) {
+        this.offsets = offsets;
+        this.targets = targets;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Build the CSR representation of the given edges. The vertices give the
+     * positions of the vertices, to calculate the lengths of the edges.
+     */
+    public static CSRAdjacency of(EdgeMap edges, List<Vec3> vertices) {
+        int n = vertices.size();
+        for (var i : edges.keySet())
+            n = Math.max(n, i + 1);
+        var offsets = new int[n + 1];
+        for (var E : edges.entrySet())
+            offsets[E.getKey() + 1] = E.getValue().size();
+        for (int i = 0; i < n; i++)
+            offsets[i + 1] += offsets[i];
+        var targets = new int[offsets[n]];
+        var lengths = new float[offsets[n]];
+        for (var E : edges.entrySet()) {
+            int i = E.getKey();
+            int k = offsets[i];
+            for (int j : E.getValue())
+                targets[k++] = j;
+            Arrays.sort(targets, offsets[i], k);
+            for (k = offsets[i]; k < offsets[i + 1]; k++)
+                lengths[k] = Vec3.dist(vertices.get(i), vertices.get(targets[k]));
+        }
+        return new CSRAdjacency(offsets, targets, lengths);
+    }
+
+    public int numberOfVertices() {
+        return offsets.length - 1;
+    }
+
+    public int numberOfEdges() {
+        // every edge is stored in both directions:
+        return targets.length / 2;
+    }
+
+    /**
+     * The index of the first edge of vertex i.
+     */
+    public int begin(int i) {
+        return offsets[i];
+    }
+
+    /**
+     * One past the index of the last edge of vertex i.
+     */
+    public int end(int i) {
+        return offsets[i + 1];
+    }
+
+    public int degree(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    /**
+     * The vertex that edge k leads to.
+     */
+    public int target(int k) {
+        return targets[k];
+    }
+
+    /**
+     * The length of edge k.
+     */
+    public float length(int k) {
+        return lengths[k];
+    }
+
+    /**
+     * A read-only view on the neighbours of vertex i that satisfy the given
+     * filter (all neighbours if it is null). Unlike the int-based methods, this
+     * boxes the vertex ids; it is meant for clients of {@link Navigatable}. For
+     * compatibility with the neighbour-sets of {@link EdgeMap} it is a
+     * Collection, but its size() is computed by traversing the edges.
+     */
+    public Collection<Integer> neighbours(int i, IntPredicate filter) {
+        return new AbstractCollection<Integer>() {
+            @Override
+            public Iterator<Integer> iterator() {
+                return new Iterator<Integer>() {
+                    int k = skip(offsets[i]);
+
+                    int skip(int k) {
+                        int end = offsets[i + 1];
+                        while (k < end && filter != null && !filter.test(targets[k]))
+                            k++;
+                        return k;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return k < offsets[i + 1];
+                    }
+
+                    @Override
+                    public Integer next() {
+                        if (!hasNext())
+                            throw new NoSuchElementException();
+                        int j = targets[k];
+                        k = skip(k + 1);
+                        return j;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                if (filter == null)
+                    return degree(i);
+                int count = 0;
+                for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                    if (filter.test(targets[k]))
+                        count++;
+                }
+                return count;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                if (!(o instanceof Integer))
+                    return false;
+                int j = (Integer) o;
+                return Arrays.binarySearch(targets, offsets[i], offsets[i + 1], j) >= 0
+                        && (filter == null || filter.test(j));
+            }
+        };
+    }
+
+}
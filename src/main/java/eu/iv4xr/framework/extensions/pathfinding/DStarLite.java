@@ -0,0 +1,298 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import eu.iv4xr.framework.model.utils.IndexMinPQ;
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * An incremental pathfinder for {@link SimpleNavGraph} and
+ * {@link SurfaceNavGraph}, implementing the D* Lite algorithm of Koenig and
+ * Likhachev. It searches backwards, from the goal, and keeps the result of the
+ * search between calls. When it is asked for a path to the same goal again,
+ * possibly from a different start (e.g. because the agent has moved along the
+ * previous path), it only repairs the part of the search that is affected by
+ * the changes of the graph since the previous call: obstacles that were
+ * toggled, added, or removed, and vertices that became seen. These changes are
+ * obtained from the graph, see {@link SimpleNavGraph#changesSince(long)}.
+ * Changes that bypass the methods of the graph, such as setting the blocking
+ * state of an obstacle or {@link SurfaceNavGraph#perfect_memory_pathfinding}
+ * directly, are not noticed; call {@link #reset()} after such changes.
+ *
+ * <p>
+ * It finds paths of the lowest cost, like {@link AStar} does without a travel
+ * preference. A different goal, or a different
+ * graph, starts a new search. For graphs other than SimpleNavGraph, it falls
+ * back to {@link IntAStar}. To use it:
+ *
+ * <pre>
+ * graph.setPathFinder(new DStarLite());
+ * </pre>
+ *
+ * <p>
+ * The counters {@link #getLastExpansions()}, {@link #getTotalExpansions()},
+ * {@link #getNumberOfFullSearches()}, and {@link #getNumberOfRepairs()} show
+ * how much work the searches took, e.g. to compare with
+ * {@link IntAStar#getLastExpansions()}.
+ */
+public class DStarLite implements Pathfinder<Integer> {
+
+    /**
+     * The priority of a vertex in the open set; compared lexicographically.
+     */
+    static class Key implements Comparable<Key> {
+        final float k1;
+        final float k2;
+
+        Key(float k1, float k2) {
+            this.k1 = k1;
+            this.k2 = k2;
+        }
+
+        @Override
+        public int compareTo(Key o) {
+            int c = Float.compare(k1, o.k1);
+            return c != 0 ? c : Float.compare(k2, o.k2);
+        }
+    }
+
+    SimpleNavGraph graph;
+    int goal = -1;
+    int lastStart = -1;
+    float km;
+
+    /**
+     * g[v] is the cost of the cheapest path from v to the goal found so far, and
+     * rhs[v] the one-step lookahead of it, based on the g-values of the
+     * successors of v.
+     */
+    float[] g = new float[0];
+    float[] rhs = new float[0];
+    IndexMinPQ<Key> open;
+
+    /**
+     * The number of changes of the graph that have been processed; see
+     * {@link SimpleNavGraph#numberOfChanges()}.
+     */
+    long processedChanges;
+
+    int lastExpansions;
+    long totalExpansions;
+    int fullSearches;
+    int repairs;
+
+    IntAStar fallback = new IntAStar();
+
+    /**
+     * Forget the state of the search, so that the next call does a full search.
+     */
+    public void reset() {
+        graph = null;
+    }
+
+    /**
+     * The number of vertices expanded by the last call of findPath.
+     */
+    public int getLastExpansions() {
+        return lastExpansions;
+    }
+
+    /**
+     * The number of vertices expanded by all calls of findPath so far.
+     */
+    public long getTotalExpansions() {
+        return totalExpansions;
+    }
+
+    /**
+     * The number of calls of findPath that searched from scratch.
+     */
+    public int getNumberOfFullSearches() {
+        return fullSearches;
+    }
+
+    /**
+     * The number of calls of findPath that repaired the previous search.
+     */
+    public int getNumberOfRepairs() {
+        return repairs;
+    }
+
+    @Override
+    public ArrayList<Integer> findPath(Navigatable<Integer> graph, Integer start, Integer goal) {
+        if (!(graph instanceof SimpleNavGraph))
+            return fallback.findPath(graph, start, goal);
+        var G = (SimpleNavGraph) graph;
+        int n = G.vertices.size();
+        if (start < 0 || start >= n || goal < 0 || goal >= n)
+            throw new IllegalArgumentException("Node ids should be vertices of the graph.");
+        // bring the obstacle index up to date first; rebuilding it discards the
+        // change log of the graph:
+        G.obstacleIndex.sync();
+        int[] changes = null;
+        if (G == this.graph && goal == this.goal && n == g.length)
+            changes = G.changesSince(processedChanges);
+        processedChanges = G.numberOfChanges();
+        lastExpansions = 0;
+        if (changes == null) {
+            initialize(G, start, goal);
+            fullSearches++;
+        } else {
+            if (start != lastStart) {
+                km += heuristic(lastStart, start);
+                lastStart = start;
+            }
+            for (int v : changes) {
+                updateVertex(v);
+                updateNeighbours(v);
+            }
+            repairs++;
+        }
+        computeShortestPath(start);
+        totalExpansions += lastExpansions;
+        return extractPath(start);
+    }
+
+    private void initialize(SimpleNavGraph G, int start, int goal) {
+        int n = G.vertices.size();
+        graph = G;
+        this.goal = goal;
+        lastStart = start;
+        km = 0;
+        if (g.length != n) {
+            g = new float[n];
+            rhs = new float[n];
+            open = new IndexMinPQ<>(n);
+        } else {
+            open.clear();
+        }
+        Arrays.fill(g, Float.POSITIVE_INFINITY);
+        Arrays.fill(rhs, Float.POSITIVE_INFINITY);
+        rhs[goal] = 0;
+        open.insert(goal, new Key(heuristic(start, goal), 0));
+    }
+
+    /**
+     * The geometric distance. The heuristic of the graph is not used, because the
+     * travel preferences of {@link SurfaceNavGraph} make it inconsistent, which
+     * D* Lite does not tolerate.
+     */
+    private float heuristic(int from, int to) {
+        return Vec3.dist(graph.vertices.get(from), graph.vertices.get(to));
+    }
+
+    private Key key(int s) {
+        float k2 = Math.min(g[s], rhs[s]);
+        return new Key(k2 + heuristic(lastStart, s) + km, k2);
+    }
+
+    /**
+     * The cost of the edge from u to v, where v is the target of the given edge
+     * of the frozen graph, or -1 if the graph is not frozen.
+     */
+    private float cost(int u, int v, int edge) {
+        if (!graph.admits(v))
+            return Float.POSITIVE_INFINITY;
+        return edge >= 0 ? graph.edgeDistance(u, edge) : graph.distance(u, v);
+    }
+
+    private void updateVertex(int u) {
+        if (u != goal) {
+            float best = Float.POSITIVE_INFINITY;
+            var csr = graph.adjacency();
+            if (csr != null) {
+                for (int k = csr.begin(u); k < csr.end(u); k++) {
+                    int s = csr.target(k);
+                    best = Math.min(best, cost(u, s, k) + g[s]);
+                }
+            } else {
+                for (int s : graph.edges.neighbours(u))
+                    best = Math.min(best, cost(u, s, -1) + g[s]);
+            }
+            rhs[u] = best;
+        }
+        if (open.contains(u))
+            open.delete(u);
+        if (g[u] != rhs[u])
+            open.insert(u, key(u));
+    }
+
+    /**
+     * Update the vertices that have an edge to u. Since the edges of the graph are
+     * undirected, these are the neighbours of u, although their edges to u may be
+     * unusable (e.g. if u is not seen yet).
+     */
+    private void updateNeighbours(int u) {
+        var csr = graph.adjacency();
+        if (csr != null) {
+            for (int k = csr.begin(u); k < csr.end(u); k++)
+                updateVertex(csr.target(k));
+        } else {
+            for (int s : graph.edges.neighbours(u))
+                updateVertex(s);
+        }
+    }
+
+    private void computeShortestPath(int start) {
+        while (!open.isEmpty() && (open.minKey().compareTo(key(start)) < 0 || rhs[start] != g[start])) {
+            var kOld = open.minKey();
+            int u = open.delMin();
+            var kNew = key(u);
+            if (kOld.compareTo(kNew) < 0) {
+                open.insert(u, kNew);
+            } else if (g[u] > rhs[u]) {
+                lastExpansions++;
+                g[u] = rhs[u];
+                updateNeighbours(u);
+            } else {
+                lastExpansions++;
+                g[u] = Float.POSITIVE_INFINITY;
+                updateVertex(u);
+                updateNeighbours(u);
+            }
+        }
+    }
+
+    /**
+     * Follow the cheapest edges from start to the goal, or return null if the
+     * goal cannot be reached.
+     */
+    private ArrayList<Integer> extractPath(int start) {
+        if (g[start] == Float.POSITIVE_INFINITY)
+            return null;
+        var path = new ArrayList<Integer>();
+        path.add(start);
+        int u = start;
+        var csr = graph.adjacency();
+        while (u != goal) {
+            int next = -1;
+            float best = Float.POSITIVE_INFINITY;
+            if (csr != null) {
+                for (int k = csr.begin(u); k < csr.end(u); k++) {
+                    int s = csr.target(k);
+                    float d = cost(u, s, k) + g[s];
+                    if (d < best) {
+                        best = d;
+                        next = s;
+                    }
+                }
+            } else {
+                for (int s : graph.edges.neighbours(u)) {
+                    float d = cost(u, s, -1) + g[s];
+                    if (d < best) {
+                        best = d;
+                        next = s;
+                    }
+                }
+            }
+            // a cycle would mean the g-values are inconsistent; should not happen:
+            if (next < 0 || path.size() > g.length)
+                return null;
+            path.add(next);
+            u = next;
+        }
+        return path;
+    }
+
+}
@@ -0,0 +1,118 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The frontier of the explored part of a {@link SurfaceNavGraph}: the seen
+ * vertices that have an unseen neighbour that can be reached without being
+ * blocked by an obstacle. Rather than being recalculated from all vertices,
+ * it is kept up to date with the change log of the graph (see
+ * {@link SimpleNavGraph#changesSince(long)}), which records the vertices that
+ * became seen and the end points of the edges whose blocking state changed.
+ * Only those vertices and their neighbours are checked again. If the log is
+ * discarded (e.g. by {@link SurfaceNavGraph#wipeOutMemory()}), the frontier is
+ * recalculated from scratch.
+ *
+ * <p>
+ * The frontier vertices are also kept in a list of their own, so enumerating
+ * them does not have to look at all vertices.
+ */
+class Frontier {
+
+    final SurfaceNavGraph graph;
+
+    /**
+     * For every vertex v on the frontier, an unseen and unblocked neighbour of v;
+     * -1 for the other vertices.
+     */
+    int[] unseenNeighbour = new int[0];
+
+    /**
+     * The frontier vertices, in no particular order, in members[0..size).
+     * position[v] is the index of v in members, if v is on the frontier.
+     */
+    private int[] members = new int[0];
+    private int[] position = new int[0];
+    private int size = 0;
+
+    private boolean valid = false;
+    private long processedChanges;
+
+    Frontier(SurfaceNavGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Bring the frontier up to date with the changes of the graph.
+     */
+    void sync() {
+        graph.obstacleIndex.sync();
+        int n = graph.vertices.size();
+        int[] changes = null;
+        if (valid && unseenNeighbour.length == n)
+            changes = graph.changesSince(processedChanges);
+        if (changes == null) {
+            unseenNeighbour = new int[n];
+            Arrays.fill(unseenNeighbour, -1);
+            members = new int[n];
+            position = new int[n];
+            size = 0;
+            for (int v = 0; v < n; v++)
+                update(v);
+            valid = true;
+        } else {
+            for (int v : changes) {
+                update(v);
+                for (int z : graph.edges.neighbours(v))
+                    update(z);
+            }
+        }
+        processedChanges = graph.numberOfChanges();
+    }
+
+    private void update(int v) {
+        int z = unseenNeighbourOf(v);
+        int old = unseenNeighbour[v];
+        unseenNeighbour[v] = z;
+        if (old >= 0 && z < 0) {
+            int last = members[--size];
+            members[position[v]] = last;
+            position[last] = position[v];
+        } else if (old < 0 && z >= 0) {
+            members[size] = v;
+            position[v] = size++;
+        }
+    }
+
+    private int unseenNeighbourOf(int v) {
+        if (!graph.seenVertices.get(v))
+            return -1;
+        for (int z : graph.edges.neighbours(v)) {
+            if (!graph.seenVertices.get(z) && !graph.obstacleIndex.isBlocked(v, z))
+                return z;
+        }
+        return -1;
+    }
+
+    /**
+     * The number of frontier vertices.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * The frontier vertices, in increasing order.
+     */
+    List<Integer> vertices() {
+        int[] sorted = Arrays.copyOf(members, size);
+        Arrays.sort(sorted);
+        var result = new ArrayList<Integer>(size);
+        for (int v : sorted)
+            result.add(v);
+        return result;
+    }
+
+}
@@ -0,0 +1,572 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * A hierarchical pathfinder for large {@link SimpleNavGraph}s and
+ * {@link SurfaceNavGraph}s, in the style of HPA* (Botea, Müller, and
+ * Schaeffer). The vertices are partitioned into clusters, by the square cell of
+ * the (x,z) plane they lie in; for a SurfaceNavGraph this groups the faces of
+ * the mesh by where their centers are. Where two clusters border each other,
+ * the edges crossing the border are grouped into entrances, and for each
+ * entrance one crossing edge is chosen as its representative. The end points of
+ * the representatives are the portals of the clusters. For every cluster, the
+ * distances between its portals, staying inside the cluster, are calculated.
+ *
+ * <p>
+ * A path is then found by searching the much smaller graph of portals, plus the
+ * start and the goal, and by refining every step between two portals of the
+ * same cluster with a search inside that cluster. The distances between the
+ * portals of a cluster are only calculated when a search first needs them, and
+ * refined steps are remembered.
+ *
+ * <p>
+ * When obstacles are toggled, added, or removed, or vertices become seen (see
+ * {@link SimpleNavGraph#changesSince(long)}), only the clusters containing the
+ * affected vertices are invalidated, and recalculated when needed. Changes
+ * that bypass the methods of the graph, and changes of its edges, are not
+ * noticed; call {@link #reset()} after such changes.
+ *
+ * <p>
+ * The paths found are not always the shortest, since they go through the
+ * representatives of the entrances; typically they are only slightly longer.
+ * Between a start and a goal less than a cluster apart, it simply uses
+ * {@link IntAStar}. If no path is found over the portals, which can happen
+ * when an obstacle cuts off a portal but not the rest of its entrance, it falls
+ * back to a full search with IntAStar, so it only returns null if the goal is
+ * really unreachable. For graphs other than SimpleNavGraph, it uses IntAStar.
+ * To use it:
+ *
+ * <pre>
+ * graph.setPathFinder(new HierarchicalPathfinder(10));
+ * </pre>
+ */
+public class HierarchicalPathfinder implements Pathfinder<Integer> {
+
+    /**
+     * The edges crossing from cluster a to cluster b (a &lt; b) in one stretch of
+     * their border. The i-th edge goes from us[i] in a to vs[i] in b.
+     */
+    static class Entrance {
+        final int a;
+        final int b;
+        int[] us = new int[4];
+        int[] vs = new int[4];
+        int size = 0;
+        Vec3 center;
+        int representative = -1;
+
+        Entrance(int a, int b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        void add(int u, int v) {
+            if (size == us.length) {
+                us = Arrays.copyOf(us, 2 * size);
+                vs = Arrays.copyOf(vs, 2 * size);
+            }
+            us[size] = u;
+            vs[size] = v;
+            size++;
+        }
+    }
+
+    static class Cluster {
+        final int id;
+        /**
+         * The vertices of the cluster; a vertex v is vertices[localIndex[v]].
+         */
+        int[] vertices;
+        /**
+         * The edges between vertices of the cluster, in CSR form over local indices;
+         * edge[k] is the index of the edge in the frozen graph, or -1.
+         */
+        int[] begin;
+        int[] target;
+        int[] edge;
+        List<Entrance> entrances = new ArrayList<>();
+
+        int[] portals = new int[0];
+        /**
+         * The vertices in other clusters that each portal has an edge to.
+         */
+        int[][] partners = new int[0][];
+        Map<Integer, Integer> portalIndex = new HashMap<>();
+        /**
+         * dist[i][j] is the distance from portals[i] to portals[j] inside the cluster;
+         * null if it has to be recalculated.
+         */
+        float[][] dist = null;
+        Map<Long, int[]> refined = new HashMap<>();
+
+        Cluster(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * An entry of the open set of the search over portals.
+     */
+    static class Node implements Comparable<Node> {
+        final int vertex;
+        final float g;
+        final float f;
+
+        Node(int vertex, float g, float f) {
+            this.vertex = vertex;
+            this.g = g;
+            this.f = f;
+        }
+
+        @Override
+        public int compareTo(Node o) {
+            return Float.compare(f, o.f);
+        }
+    }
+
+    /**
+     * The width of the square cells that define the clusters.
+     */
+    public final float clusterSize;
+
+    /**
+     * The length of border that one entrance covers; a cluster has about
+     * clusterSize/entranceWidth portals per side.
+     */
+    public float entranceWidth;
+
+    SimpleNavGraph graph;
+    CSRAdjacency builtFrom;
+    int builtNumberOfVertices;
+    long processedChanges;
+    int[] clusterOf;
+    int[] localIndex;
+    List<Cluster> clusters = new ArrayList<>();
+
+    IntAStar fallback = new IntAStar();
+
+    int lastExpansions;
+    int clusterUpdates;
+    int fallbacks;
+
+    public HierarchicalPathfinder(float clusterSize) {
+        if (clusterSize <= 0)
+            throw new IllegalArgumentException("The cluster size should be positive.");
+        this.clusterSize = clusterSize;
+        this.entranceWidth = clusterSize / 2;
+    }
+
+    /**
+     * Discard the clusters, so that they are rebuilt on the next call.
+     */
+    public void reset() {
+        graph = null;
+    }
+
+    public int getNumberOfClusters() {
+        return clusters.size();
+    }
+
+    /**
+     * The number of vertices expanded by the last call of findPath, in the search
+     * over portals and in the searches inside clusters (including calculating the
+     * distances between portals, when needed).
+     */
+    public int getLastExpansions() {
+        return lastExpansions;
+    }
+
+    /**
+     * The number of times the distances between the portals of a cluster were
+     * calculated.
+     */
+    public int getNumberOfClusterUpdates() {
+        return clusterUpdates;
+    }
+
+    /**
+     * The number of times no path was found over the portals, and a full search
+     * was done.
+     */
+    public int getNumberOfFallbacks() {
+        return fallbacks;
+    }
+
+    @Override
+    public ArrayList<Integer> findPath(Navigatable<Integer> graph, Integer start, Integer goal) {
+        if (!(graph instanceof SimpleNavGraph))
+            return fallback.findPath(graph, start, goal);
+        var G = (SimpleNavGraph) graph;
+        int n = G.vertices.size();
+        if (start < 0 || start >= n || goal < 0 || goal >= n)
+            throw new IllegalArgumentException("Node ids should be vertices of the graph.");
+        lastExpansions = 0;
+        G.obstacleIndex.sync();
+        int[] changes = null;
+        if (G == this.graph && n == builtNumberOfVertices && G.adjacency() == builtFrom)
+            changes = G.changesSince(processedChanges);
+        if (changes == null)
+            build(G);
+        else
+            invalidate(changes);
+        processedChanges = G.numberOfChanges();
+
+        // nearby, going through portals mostly makes detours:
+        if (heuristic(start, goal) <= clusterSize) {
+            var path = fallback.findPath(graph, start, goal);
+            lastExpansions += fallback.getLastExpansions();
+            return path;
+        }
+        var path = abstractPath(start, goal);
+        if (path == null) {
+            fallbacks++;
+            path = fallback.findPath(graph, start, goal);
+            lastExpansions += fallback.getLastExpansions();
+            return path;
+        }
+        return refine(path);
+    }
+
+    private float cost(int u, int v, int edge) {
+        if (!graph.admits(v))
+            return Float.POSITIVE_INFINITY;
+        return edge >= 0 ? graph.edgeDistance(u, edge) : graph.distance(u, v);
+    }
+
+    private float heuristic(int from, int to) {
+        return Vec3.dist(graph.vertices.get(from), graph.vertices.get(to));
+    }
+
+    private long cell(float x, float size) {
+        return (long) Math.floor(x / size);
+    }
+
+    private void build(SimpleNavGraph G) {
+        graph = G;
+        builtFrom = G.adjacency();
+        int n = G.vertices.size();
+        builtNumberOfVertices = n;
+        clusterOf = new int[n];
+        localIndex = new int[n];
+        clusters.clear();
+
+        var cells = new HashMap<Long, Cluster>();
+        var members = new ArrayList<List<Integer>>();
+        for (int v = 0; v < n; v++) {
+            var p = G.vertices.get(v);
+            long key = (cell(p.x, clusterSize) << 32) ^ (cell(p.z, clusterSize) & 0xffffffffL);
+            var c = cells.get(key);
+            if (c == null) {
+                c = new Cluster(clusters.size());
+                cells.put(key, c);
+                clusters.add(c);
+                members.add(new ArrayList<>());
+            }
+            var vs = members.get(c.id);
+            clusterOf[v] = c.id;
+            localIndex[v] = vs.size();
+            vs.add(v);
+        }
+
+        var entrances = new HashMap<List<Long>, Entrance>();
+        for (var c : clusters) {
+            var vs = members.get(c.id);
+            c.vertices = vs.stream().mapToInt(Integer::intValue).toArray();
+            c.begin = new int[vs.size() + 1];
+            var target = new ArrayList<Integer>();
+            var edge = new ArrayList<Integer>();
+            for (int i = 0; i < c.vertices.length; i++) {
+                int u = c.vertices[i];
+                if (builtFrom != null) {
+                    for (int k = builtFrom.begin(u); k < builtFrom.end(u); k++)
+                        addEdge(c, u, builtFrom.target(k), k, target, edge, entrances);
+                } else {
+                    for (int v : G.edges.neighbours(u))
+                        addEdge(c, u, v, -1, target, edge, entrances);
+                }
+                c.begin[i + 1] = target.size();
+            }
+            c.target = target.stream().mapToInt(Integer::intValue).toArray();
+            c.edge = edge.stream().mapToInt(Integer::intValue).toArray();
+        }
+        for (var e : entrances.values()) {
+            float x = 0, y = 0, z = 0;
+            for (int i = 0; i < e.size; i++) {
+                var m = Vec3.add(G.vertices.get(e.us[i]), G.vertices.get(e.vs[i]));
+                x += m.x;
+                y += m.y;
+                z += m.z;
+            }
+            e.center = new Vec3(x / (2 * e.size), y / (2 * e.size), z / (2 * e.size));
+            chooseRepresentative(e);
+            clusters.get(e.a).entrances.add(e);
+            clusters.get(e.b).entrances.add(e);
+        }
+        for (var c : clusters)
+            updatePortals(c);
+    }
+
+    private void addEdge(Cluster c, int u, int v, int k, List<Integer> target, List<Integer> edge,
+            Map<List<Long>, Entrance> entrances) {
+        int d = clusterOf[v];
+        if (d == c.id) {
+            target.add(localIndex[v]);
+            edge.add(k);
+            return;
+        }
+        // every undirected edge once, from the cluster with the lower id:
+        if (d < c.id)
+            return;
+        var m = Vec3.mul(Vec3.add(graph.vertices.get(u), graph.vertices.get(v)), 0.5f);
+        var key = List.of((long) c.id, (long) d, cell(m.x, entranceWidth), cell(m.z, entranceWidth));
+        entrances.computeIfAbsent(key, q -> new Entrance(c.id, d)).add(u, v);
+    }
+
+    /**
+     * Choose the crossing edge of the entrance that is closest to its center and
+     * can be traversed both ways; or else one way. Return true if the choice
+     * changed.
+     */
+    private boolean chooseRepresentative(Entrance e) {
+        int best = -1;
+        int bestRank = 2;
+        float bestDist = 0;
+        for (int i = 0; i < e.size; i++) {
+            int rank = (Float.isFinite(cost(e.us[i], e.vs[i], -1)) ? 0 : 1)
+                    + (Float.isFinite(cost(e.vs[i], e.us[i], -1)) ? 0 : 1);
+            if (rank == 2)
+                continue;
+            var m = Vec3.mul(Vec3.add(graph.vertices.get(e.us[i]), graph.vertices.get(e.vs[i])), 0.5f);
+            float dist = Vec3.distSq(m, e.center);
+            if (rank < bestRank || (rank == bestRank && dist < bestDist)) {
+                best = i;
+                bestRank = rank;
+                bestDist = dist;
+            }
+        }
+        boolean changed = best != e.representative;
+        e.representative = best;
+        return changed;
+    }
+
+    private void updatePortals(Cluster c) {
+        var partners = new HashMap<Integer, List<Integer>>();
+        var portals = new ArrayList<Integer>();
+        for (var e : c.entrances) {
+            if (e.representative < 0)
+                continue;
+            int u = e.us[e.representative];
+            int v = e.vs[e.representative];
+            int p = e.a == c.id ? u : v;
+            if (!partners.containsKey(p)) {
+                portals.add(p);
+                partners.put(p, new ArrayList<>());
+            }
+            partners.get(p).add(p == u ? v : u);
+        }
+        c.portals = portals.stream().mapToInt(Integer::intValue).toArray();
+        c.partners = new int[c.portals.length][];
+        c.portalIndex.clear();
+        for (int i = 0; i < c.portals.length; i++) {
+            c.portalIndex.put(c.portals[i], i);
+            c.partners[i] = partners.get(c.portals[i]).stream().mapToInt(Integer::intValue).toArray();
+        }
+        c.dist = null;
+        c.refined.clear();
+    }
+
+    /**
+     * Invalidate the clusters containing the given changed vertices, and choose
+     * new representatives for their entrances.
+     */
+    private void invalidate(int[] changes) {
+        var touched = new boolean[clusters.size()];
+        var portalsChanged = new boolean[clusters.size()];
+        for (int v : changes) {
+            int c = clusterOf[v];
+            if (touched[c])
+                continue;
+            touched[c] = true;
+            var C = clusters.get(c);
+            C.dist = null;
+            C.refined.clear();
+            for (var e : C.entrances) {
+                if (chooseRepresentative(e)) {
+                    portalsChanged[e.a] = true;
+                    portalsChanged[e.b] = true;
+                }
+            }
+        }
+        for (int c = 0; c < clusters.size(); c++) {
+            if (portalsChanged[c])
+                updatePortals(clusters.get(c));
+        }
+    }
+
+    /**
+     * Dijkstra inside cluster c, from the vertex with the given local index;
+     * following edges backwards if so specified. It stops when the target (a local
+     * index) is reached, unless it is -1. Returns the distances by local index, and
+     * fills in the parent (by local index) of every vertex reached, if not null.
+     */
+    private float[] search(Cluster c, int source, boolean backward, int target, int[] parent) {
+        int m = c.vertices.length;
+        var dist = new float[m];
+        Arrays.fill(dist, Float.POSITIVE_INFINITY);
+        var open = new IndexMinFloatPQ(m);
+        dist[source] = 0;
+        open.insert(source, 0f);
+        while (!open.isEmpty()) {
+            int i = open.delMin();
+            lastExpansions++;
+            if (i == target)
+                break;
+            int u = c.vertices[i];
+            for (int k = c.begin[i]; k < c.begin[i + 1]; k++) {
+                int j = c.target[k];
+                int v = c.vertices[j];
+                float d = dist[i] + (backward ? cost(v, u, -1) : cost(u, v, c.edge[k]));
+                if (d < dist[j]) {
+                    dist[j] = d;
+                    if (parent != null)
+                        parent[j] = i;
+                    if (open.contains(j))
+                        open.decreaseKey(j, d);
+                    else
+                        open.insert(j, d);
+                }
+            }
+        }
+        return dist;
+    }
+
+    private float[][] distances(Cluster c) {
+        if (c.dist == null) {
+            clusterUpdates++;
+            int P = c.portals.length;
+            c.dist = new float[P][P];
+            for (int i = 0; i < P; i++) {
+                var d = search(c, localIndex[c.portals[i]], false, -1, null);
+                for (int j = 0; j < P; j++)
+                    c.dist[i][j] = d[localIndex[c.portals[j]]];
+            }
+        }
+        return c.dist;
+    }
+
+    /**
+     * A* over the portals, the start, and the goal. Returns the sequence of these
+     * that the path passes, or null if none was found.
+     */
+    private ArrayList<Integer> abstractPath(int start, int goal) {
+        if (start == goal)
+            return new ArrayList<>(List.of(start));
+        var cs = clusters.get(clusterOf[start]);
+        var cg = clusters.get(clusterOf[goal]);
+        var fromStart = search(cs, localIndex[start], false, -1, null);
+        var toGoal = search(cg, localIndex[goal], true, -1, null);
+
+        var g = new HashMap<Integer, Float>();
+        var parent = new HashMap<Integer, Integer>();
+        var open = new PriorityQueue<Node>();
+        g.put(start, 0f);
+        open.add(new Node(start, 0, heuristic(start, goal)));
+        while (!open.isEmpty()) {
+            var node = open.poll();
+            int x = node.vertex;
+            if (node.g > g.get(x))
+                continue;
+            if (x == goal) {
+                var path = new ArrayList<Integer>();
+                for (Integer y = goal; y != null; y = parent.get(y))
+                    path.add(y);
+                Collections.reverse(path);
+                return path;
+            }
+            lastExpansions++;
+            var c = clusters.get(clusterOf[x]);
+            Integer i = c.portalIndex.get(x);
+            if (x == start) {
+                for (int q : c.portals)
+                    relax(x, q, fromStart[localIndex[q]], goal, g, parent, open);
+                if (c == cg)
+                    relax(x, goal, fromStart[localIndex[goal]], goal, g, parent, open);
+            } else if (i != null) {
+                var dist = distances(c);
+                for (int j = 0; j < c.portals.length; j++)
+                    relax(x, c.portals[j], dist[i][j], goal, g, parent, open);
+                if (c == cg)
+                    relax(x, goal, toGoal[localIndex[x]], goal, g, parent, open);
+            }
+            if (i != null) {
+                for (int v : c.partners[i])
+                    relax(x, v, cost(x, v, -1), goal, g, parent, open);
+            }
+        }
+        return null;
+    }
+
+    private void relax(int x, int y, float d, int goal, Map<Integer, Float> g, Map<Integer, Integer> parent,
+            PriorityQueue<Node> open) {
+        if (d == Float.POSITIVE_INFINITY || x == y)
+            return;
+        float gy = g.get(x) + d;
+        var known = g.get(y);
+        if (known != null && known <= gy)
+            return;
+        g.put(y, gy);
+        parent.put(y, x);
+        open.add(new Node(y, gy, gy + heuristic(y, goal)));
+    }
+
+    /**
+     * Turn the sequence of portals into a path over the vertices of the graph, by
+     * searching inside the clusters between consecutive portals of the same
+     * cluster.
+     */
+    private ArrayList<Integer> refine(ArrayList<Integer> abstractPath) {
+        var path = new ArrayList<Integer>();
+        path.add(abstractPath.get(0));
+        for (int k = 1; k < abstractPath.size(); k++) {
+            int a = abstractPath.get(k - 1);
+            int b = abstractPath.get(k);
+            if (clusterOf[a] != clusterOf[b]) {
+                // an edge between two clusters:
+                path.add(b);
+                continue;
+            }
+            var c = clusters.get(clusterOf[a]);
+            // only steps between portals are worth remembering:
+            boolean betweenPortals = c.portalIndex.containsKey(a) && c.portalIndex.containsKey(b);
+            long key = ((long) a << 32) | b;
+            var segment = betweenPortals ? c.refined.get(key) : null;
+            if (segment == null) {
+                var parent = new int[c.vertices.length];
+                int source = localIndex[a];
+                int target = localIndex[b];
+                search(c, source, false, target, parent);
+                int length = 0;
+                for (int i = target; i != source; i = parent[i])
+                    length++;
+                segment = new int[length];
+                for (int i = target; i != source; i = parent[i])
+                    segment[--length] = c.vertices[i];
+                if (betweenPortals)
+                    c.refined.put(key, segment);
+            }
+            for (int v : segment)
+                path.add(v);
+        }
+        return path;
+    }
+
+}
@@ -0,0 +1,143 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import eu.iv4xr.framework.model.utils.IndexMinPQ;
+
+/**
+ * An indexed priority queue with float keys, for the indices 0..capacity-1.
+ * It is the same binary heap as {@link IndexMinPQ}, but keeps the keys in a
+ * float array rather than as boxed Floats, so inserting a key or decreasing it
+ * does not allocate. It can also grow without being rebuilt. Used as the open
+ * set of {@link IntAStar} and of the searches of {@link HierarchicalPathfinder}.
+ */
+class IndexMinFloatPQ {
+
+    private int n = 0;
+    // binary heap using 1-based indexing:
+    private int[] pq;
+    // inverse of pq: qp[pq[i]] = pq[qp[i]] = i; -1 if not in the queue:
+    private int[] qp;
+    private float[] keys;
+
+    IndexMinFloatPQ(int capacity) {
+        pq = new int[capacity + 1];
+        qp = new int[capacity];
+        keys = new float[capacity];
+        Arrays.fill(qp, -1);
+    }
+
+    int capacity() {
+        return qp.length;
+    }
+
+    /**
+     * Make room for the indices 0..capacity-1, keeping the current contents.
+     */
+    void grow(int capacity) {
+        int old = qp.length;
+        if (capacity <= old)
+            return;
+        pq = Arrays.copyOf(pq, capacity + 1);
+        qp = Arrays.copyOf(qp, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        Arrays.fill(qp, old, capacity, -1);
+    }
+
+    boolean isEmpty() {
+        return n == 0;
+    }
+
+    int size() {
+        return n;
+    }
+
+    boolean contains(int i) {
+        return qp[i] != -1;
+    }
+
+    void insert(int i, float key) {
+        if (contains(i))
+            throw new IllegalArgumentException("index is already in the priority queue");
+        n++;
+        qp[i] = n;
+        pq[n] = i;
+        keys[i] = key;
+        swim(n);
+    }
+
+    float keyOf(int i) {
+        if (!contains(i))
+            throw new NoSuchElementException("index is not in the priority queue");
+        return keys[i];
+    }
+
+    /**
+     * Remove a minimum key and return its index.
+     */
+    int delMin() {
+        if (n == 0)
+            throw new NoSuchElementException("Priority queue underflow");
+        int min = pq[1];
+        exch(1, n--);
+        sink(1);
+        qp[min] = -1;
+        return min;
+    }
+
+    /**
+     * Decrease the key of index i, which should be in the queue, to the given
+     * key, which should not be greater than its current key.
+     */
+    void decreaseKey(int i, float key) {
+        if (!contains(i))
+            throw new NoSuchElementException("index is not in the priority queue");
+        if (key > keys[i])
+            throw new IllegalArgumentException("Calling decreaseKey() with a key greater than the key in the priority queue");
+        keys[i] = key;
+        swim(qp[i]);
+    }
+
+    /**
+     * Remove all keys, in time proportional to their number rather than to the
+     * capacity.
+     */
+    void clear() {
+        for (int k = 1; k <= n; k++)
+            qp[pq[k]] = -1;
+        n = 0;
+    }
+
+    private boolean greater(int i, int j) {
+        return keys[pq[i]] > keys[pq[j]];
+    }
+
+    private void exch(int i, int j) {
+        int swap = pq[i];
+        pq[i] = pq[j];
+        pq[j] = swap;
+        qp[pq[i]] = i;
+        qp[pq[j]] = j;
+    }
+
+    private void swim(int k) {
+        while (k > 1 && greater(k / 2, k)) {
+            exch(k, k / 2);
+            k = k / 2;
+        }
+    }
+
+    private void sink(int k) {
+        while (2 * k <= n) {
+            int j = 2 * k;
+            if (j < n && greater(j, j + 1))
+                j++;
+            if (!greater(k, j))
+                break;
+            exch(k, j);
+            k = j;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.IntPredicate;
+
+/**
+ * A variant of {@link AStar} for navigation graphs whose nodes are numbered by
+ * dense, non-negative ints, such as {@link SimpleNavGraph} and
+ * {@link SurfaceNavGraph}. It finds the same (lowest cost) paths, and supports
+ * the same search modes and heuristic-override, but rather than hash maps it
+ * keeps the distances and the path-tree in arrays indexed by node id, and it
+ * uses an {@link IndexMinFloatPQ} as the open set, so that a node that is reached
+ * by a shorter route gets its priority decreased instead of being searched for
+ * in, and added again to, the open set.
+ *
+ * <p>
+ * The arrays are reused across calls, per thread, so a search does not
+ * allocate memory in proportion to the size of the graph, except when the
+ * graph has grown. An IntAStar itself keeps no state of a search, so several
+ * threads can use the same one; whether they can search the same graph at the
+ * same time depends on the graph. To use it with a SurfaceNavGraph:
+ *
+ * <pre>
+ * graph.setPathFinder(new IntAStar());
+ * </pre>
+ *
+ * <p>
+ * If the graph is a frozen {@link SimpleNavGraph} (see
+ * {@link SimpleNavGraph#freeze()}), the search walks its {@link CSRAdjacency}
+ * directly, using the precomputed edge lengths.
+ */
+public class IntAStar extends AStar<Integer> {
+
+    /**
+     * The arrays used by a search. An entry of dist and parent is only valid if
+     * the corresponding entry of visited equals the current generation, so that
+     * the arrays do not have to be cleared between searches.
+     */
+    static class Scratch {
+        float[] dist = new float[0];
+        int[] parent = new int[0];
+        int[] visited = new int[0];
+        int generation = 0;
+        IndexMinFloatPQ open = new IndexMinFloatPQ(0);
+        boolean inUse = false;
+
+        /**
+         * The number of nodes expanded by the search using these arrays, and, in
+         * the arrays of the thread, by the last search of the thread that finished.
+         */
+        int expansions = 0;
+
+        /**
+         * Prepare for a new search over nodes 0..n-1.
+         */
+        void start(int n) {
+            if (n > dist.length) {
+                int capacity = Math.max(n, dist.length + dist.length / 2);
+                dist = new float[capacity];
+                parent = new int[capacity];
+                visited = new int[capacity];
+                open = new IndexMinFloatPQ(capacity);
+                generation = 0;
+            } else {
+                open.clear();
+            }
+            generation++;
+            if (generation == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * Make room for node i, during a search.
+         */
+        void ensure(int i) {
+            if (i < dist.length)
+                return;
+            int capacity = Math.max(i + 1, dist.length + dist.length / 2);
+            dist = Arrays.copyOf(dist, capacity);
+            parent = Arrays.copyOf(parent, capacity);
+            visited = Arrays.copyOf(visited, capacity);
+            open.grow(capacity);
+        }
+
+        boolean isVisited(int i) {
+            return visited[i] == generation;
+        }
+
+        void visit(int i, float d, int from) {
+            visited[i] = generation;
+            dist[i] = d;
+            parent[i] = from;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    /**
+     * The number of nodes of the graph, if it is known, else 0.
+     */
+    static int numberOfNodes(Navigatable<Integer> graph) {
+        if (graph instanceof SimpleNavGraph)
+            return ((SimpleNavGraph) graph).vertices.size();
+        return 0;
+    }
+
+    /**
+     * The number of nodes taken from the open set by the last call of findPath
+     * (or findPathToNearest) on the calling thread, including the goal. This is
+     * kept per thread rather than per IntAStar, so searches on other threads do
+     * not interfere.
+     */
+    public int getLastExpansions() {
+        return scratch.get().expansions;
+    }
+
+    @Override
+    public ArrayList<Integer> findPath(Navigatable<Integer> graph, Integer start, Integer goal) {
+        var sc = scratch.get();
+        // a search started from within a search (e.g. by a heuristic) gets its own
+        // arrays:
+        if (sc.inUse)
+            sc = new Scratch();
+        sc.inUse = true;
+        try {
+            return findPath(graph, start, goal, sc);
+        } finally {
+            sc.inUse = false;
+            scratch.get().expansions = sc.expansions;
+        }
+    }
+
+    /**
+     * Search from the start for the nearest node, in terms of path cost, that
+     * satisfies isGoal, and return the path to it; or null if no such node can be
+     * reached. So, unlike trying the candidate goals one after another, this
+     * searches the graph only once. The search is a Dijkstra search, regardless of
+     * the search mode.
+     */
+    public ArrayList<Integer> findPathToNearest(Navigatable<Integer> graph, int start, IntPredicate isGoal) {
+        var sc = scratch.get();
+        if (sc.inUse)
+            sc = new Scratch();
+        sc.inUse = true;
+        try {
+            return findPath(graph, start, -1, isGoal, sc);
+        } finally {
+            sc.inUse = false;
+            scratch.get().expansions = sc.expansions;
+        }
+    }
+
+    private ArrayList<Integer> findPath(Navigatable<Integer> graph, int start, int goal, Scratch sc) {
+        if (goal < 0)
+            throw new IllegalArgumentException("Node ids should be non-negative.");
+        return findPath(graph, start, goal, null, sc);
+    }
+
+    /**
+     * Search for a path to the goal, or, if isGoal is not null, to the nearest node
+     * satisfying it; the goal is then ignored.
+     */
+    private ArrayList<Integer> findPath(Navigatable<Integer> graph, int start, int goal, IntPredicate isGoal,
+            Scratch sc) {
+        if (start < 0)
+            throw new IllegalArgumentException("Node ids should be non-negative.");
+        sc.start(Math.max(numberOfNodes(graph), Math.max(start, goal) + 1));
+        sc.visit(start, 0, -1);
+        // as in AStar, the priority of the start node does not matter:
+        sc.open.insert(start, 0f);
+        Integer goal_ = isGoal == null ? goal : null;
+        sc.expansions = 0;
+
+        while (!sc.open.isEmpty()) {
+            int current = sc.open.delMin();
+            sc.expansions++;
+            if (isGoal == null ? current == goal : isGoal.test(current)) {
+                goal = current;
+                var path = new ArrayList<Integer>();
+                for (int node = goal; node != -1; node = sc.parent[node])
+                    path.add(node);
+                Collections.reverse(path);
+                return path;
+            }
+            float distToCurrent = sc.dist[current];
+            var csr = graph instanceof SimpleNavGraph ? ((SimpleNavGraph) graph).adjacency() : null;
+            if (csr != null && current < csr.numberOfVertices()) {
+                // a frozen graph; no need to go through the boxed neighbours:
+                var g = (SimpleNavGraph) graph;
+                for (int k = csr.begin(current); k < csr.end(current); k++) {
+                    int next = csr.target(k);
+                    if (g.admits(next))
+                        relax(graph, current, distToCurrent, next, g.edgeDistance(current, k), goal_, sc);
+                }
+                continue;
+            }
+            Integer current_ = current;
+            for (Integer next_ : graph.neighbours(current_)) {
+                relax(graph, current, distToCurrent, next_, graph.distance(current_, next_), goal_, sc);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Update the distance of next, if going there from current via an edge of
+     * length dn is shorter than what is known so far. If the goal is null, the
+     * search is a Dijkstra search.
+     */
+    private void relax(Navigatable<Integer> graph, int current, float distToCurrent, int next, float dn,
+            Integer goal, Scratch sc) {
+        if (dn == Float.POSITIVE_INFINITY)
+            return;
+        float distToNext = distToCurrent + dn;
+        if (distToNext < 0)
+            distToNext = 0;
+        sc.ensure(next);
+        if (sc.isVisited(next) && distToNext >= sc.dist[next])
+            return;
+        sc.visit(next, distToNext, current);
+        if (Float.isInfinite(distToNext))
+            return;
+        float fDistance;
+        switch (goal == null ? SearchMode.DIJKSTRA : searchMode) {
+        case DIJKSTRA:
+            fDistance = distToNext;
+            break;
+        case GREEDY:
+            fDistance = getHeuristicDistance(graph, next, goal);
+            break;
+        default:
+            fDistance = distToNext + getHeuristicDistance(graph, next, goal);
+        }
+        if (!sc.open.contains(next))
+            sc.open.insert(next, fDistance);
+        else if (sc.open.keyOf(next) > fDistance)
+            sc.open.decreaseKey(next, fDistance);
+    }
+
+}
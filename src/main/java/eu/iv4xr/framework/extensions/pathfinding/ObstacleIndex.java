@@ -0,0 +1,404 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.iv4xr.framework.spatial.Line;
+import eu.iv4xr.framework.spatial.LineIntersectable;
+import eu.iv4xr.framework.spatial.Obstacle;
+import eu.iv4xr.framework.spatial.QuadTree;
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * An index over the obstacles of a {@link SimpleNavGraph}, to quickly check if
+ * a line segment is blocked. Obstacles are kept in a {@link QuadTree} by their
+ * bounding boxes ({@link LineIntersectable#boundingBox()}), so a segment is
+ * only checked against the obstacles whose bounding box it hits. Obstacles
+ * without a bounding box are checked against every segment.
+ *
+ * <p>
+ * Additionally, if the graph is frozen (see {@link SimpleNavGraph#freeze()}),
+ * for every edge that has been checked the index remembers which obstacles
+ * cross the edge, whether they are blocking or not, in an array indexed like
+ * the edges of the {@link CSRAdjacency}. Whether the edge is blocked is then
+ * decided by looking at just these obstacles, so toggling an obstacle on or off
+ * does not invalidate anything. Adding or removing an obstacle only updates the
+ * edges that it crosses; to find these, the vertices of the graph are kept in a
+ * second {@link QuadTree}. Changes that affect the cost of edges are logged in
+ * the graph, for incremental pathfinders such as {@link DStarLite}. For a graph
+ * that is not frozen nothing is cached, and changing the obstacles discards the
+ * change log of the graph.
+ *
+ * <p>
+ * The index assumes that obstacles do not move or change shape, and that the
+ * vertices of the graph do not move. See {@link SimpleNavGraph#updateObstacle}
+ * and {@link SimpleNavGraph#freeze()}.
+ *
+ * <p>
+ * Checking an edge fills in the caches above, so the methods of the index are
+ * synchronized: threads searching the same graph share the caches.
+ */
+class ObstacleIndex {
+
+    /**
+     * Added to the bounding boxes, to be on the safe side of the margins used
+     * when checking an intersection.
+     */
+    static final float MARGIN = 0.001f;
+
+    private static final Obstacle<?>[] NONE = {};
+
+    final SimpleNavGraph graph;
+    final QuadTree<Obstacle<LineIntersectable>> tree = new QuadTree<>();
+    final List<Obstacle<LineIntersectable>> unbounded = new ArrayList<>();
+
+    /**
+     * Maps every obstacle to its wrapper in the obstacle list of the graph; the
+     * first one, if it is in the list more than once.
+     */
+    final Map<LineIntersectable, Obstacle<LineIntersectable>> wrappers = new IdentityHashMap<>();
+
+    /**
+     * The frozen edges that {@link #crossing} and {@link #vertexTree} are about,
+     * or null.
+     */
+    private CSRAdjacency frozen;
+
+    /**
+     * The obstacles crossing edge k of {@link #frozen}, or null if the edge was not
+     * checked yet. The edges are directed, because not every
+     * {@link LineIntersectable} gives the same answer for a line segment and its
+     * reverse.
+     */
+    Obstacle<?>[][] crossing = new Obstacle<?>[0][];
+
+    /**
+     * The reverse of {@link #crossing}: the edges that each obstacle crosses, as
+     * far as they are in {@link #crossing}.
+     */
+    final Map<Obstacle<?>, EdgeList> edgesOf = new HashMap<>();
+
+    /**
+     * The vertices of {@link #frozen} by their position, and the length of its
+     * longest edge; built when first needed.
+     */
+    private QuadTree<Integer> vertexTree;
+    private float maxEdgeLength;
+
+    // the obstacle list the index was built from, and its size at the time; used
+    // to notice changes of the list that did not go through the graph:
+    private List<Obstacle<LineIntersectable>> source;
+    private int sourceSize;
+
+    /**
+     * A growable list of edge indices.
+     */
+    static class EdgeList {
+        int[] edges = new int[4];
+        int size = 0;
+
+        void add(int k) {
+            if (size == edges.length)
+                edges = Arrays.copyOf(edges, 2 * size);
+            edges[size++] = k;
+        }
+    }
+
+    ObstacleIndex(SimpleNavGraph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Rebuild the index if the obstacle list of the graph was replaced or changed
+     * in size behind its back.
+     */
+    synchronized void sync() {
+        var obstacles = graph.obstacles;
+        if (obstacles == source && (obstacles == null || obstacles.size() == sourceSize))
+            return;
+        tree.clear();
+        unbounded.clear();
+        wrappers.clear();
+        clearEdges();
+        source = obstacles;
+        sourceSize = 0;
+        if (obstacles != null) {
+            for (var o : obstacles)
+                insert(o);
+            sourceSize = obstacles.size();
+        }
+    }
+
+    private void insert(Obstacle<LineIntersectable> o) {
+        wrappers.putIfAbsent(o.obstacle, o);
+        var box = o.obstacle.boundingBox();
+        if (box == null) {
+            unbounded.add(o);
+            return;
+        }
+        var extent = new Vec3(box.width.x / 2 + MARGIN, box.width.y / 2 + MARGIN, box.width.z / 2 + MARGIN);
+        tree.put(o, box.center, extent);
+    }
+
+    /**
+     * Return the frozen edges of the graph, or null if it is not frozen. If these
+     * are not the edges the cache is about, the cache is emptied first.
+     */
+    private CSRAdjacency frozenEdges() {
+        var csr = graph.adjacency();
+        if (csr != frozen) {
+            frozen = csr;
+            crossing = new Obstacle<?>[csr == null ? 0 : csr.targets.length][];
+            edgesOf.clear();
+            vertexTree = null;
+        }
+        return csr;
+    }
+
+    /**
+     * To be called after o was added to the obstacle list of the graph.
+     */
+    synchronized void added(Obstacle<LineIntersectable> o) {
+        if (source != graph.obstacles || source.size() != sourceSize + 1) {
+            sync();
+            return;
+        }
+        insert(o);
+        if (sourceSize++ == 0) {
+            // without obstacles, the edges were not checked, so it is not known which
+            // ones this obstacle affects:
+            clearEdges();
+            return;
+        }
+        var csr = frozenEdges();
+        if (csr == null) {
+            if (o.isBlocking)
+                graph.forgetChanges();
+            return;
+        }
+        var edges = new EdgeList();
+        for (int i : candidateVertices(csr, o)) {
+            for (int k = csr.begin(i); k < csr.end(i); k++) {
+                var obs = crossing[k];
+                if (obs == null)
+                    continue;
+                var a = graph.vertices.get(i);
+                var b = graph.vertices.get(csr.target(k));
+                if (o.obstacle.intersects(new Line(a, b))) {
+                    var more = Arrays.copyOf(obs, obs.length + 1);
+                    more[obs.length] = o;
+                    crossing[k] = more;
+                    edges.add(k);
+                }
+            }
+        }
+        if (edges.size > 0)
+            edgesOf.put(o, edges);
+        if (o.isBlocking)
+            logEdgesOf(o);
+    }
+
+    /**
+     * The vertices of the frozen graph that may have an edge crossed by o: those
+     * within the length of the longest edge of the bounding box of o, or all
+     * vertices if o has no bounding box.
+     */
+    private List<Integer> candidateVertices(CSRAdjacency csr, Obstacle<LineIntersectable> o) {
+        var box = o.obstacle.boundingBox();
+        int n = csr.numberOfVertices();
+        if (box == null) {
+            var all = new ArrayList<Integer>(n);
+            for (int i = 0; i < n; i++)
+                all.add(i);
+            return all;
+        }
+        if (vertexTree == null) {
+            vertexTree = new QuadTree<>();
+            for (int i = 0; i < n; i++)
+                vertexTree.put(i, graph.vertices.get(i), Vec3.zero());
+            maxEdgeLength = 0;
+            for (int k = 0; k < csr.targets.length; k++)
+                maxEdgeLength = Math.max(maxEdgeLength, csr.length(k));
+        }
+        // a point of an edge inside the box is at most half the diagonal of the box
+        // from its center, and the end points of the edge are at most its length
+        // from that point:
+        float radius = box.width.length() / 2 + MARGIN + maxEdgeLength;
+        return vertexTree.within(box.center, radius * 1.001f + MARGIN);
+    }
+
+    /**
+     * To be called after o was removed from the obstacle list of the graph.
+     */
+    synchronized void removed(Obstacle<LineIntersectable> o) {
+        if (source != graph.obstacles || source.size() != sourceSize - 1) {
+            sync();
+            return;
+        }
+        sourceSize--;
+        if (!tree.remove(o))
+            unbounded.remove(o);
+        if (wrappers.get(o.obstacle) == o) {
+            wrappers.remove(o.obstacle);
+            // it may be in the list again:
+            for (var p : source) {
+                if (p.obstacle == o.obstacle) {
+                    wrappers.put(p.obstacle, p);
+                    break;
+                }
+            }
+        }
+        if (o.isBlocking)
+            logEdgesOf(o);
+        var edges = edgesOf.remove(o);
+        if (edges == null)
+            return;
+        for (int e = 0; e < edges.size; e++) {
+            int k = edges.edges[e];
+            var obs = crossing[k];
+            for (int i = 0; i < obs.length; i++) {
+                if (obs[i] == o) {
+                    var less = new Obstacle<?>[obs.length - 1];
+                    System.arraycopy(obs, 0, less, 0, i);
+                    System.arraycopy(obs, i + 1, less, i, obs.length - i - 1);
+                    crossing[k] = less.length == 0 ? NONE : less;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * To be called after the blocking state of o was changed.
+     */
+    synchronized void toggled(Obstacle<LineIntersectable> o) {
+        logEdgesOf(o);
+    }
+
+    /**
+     * Log the end points of the edges crossed by o as changed, see
+     * {@link SimpleNavGraph#changesSince(long)}. If the graph is frozen, the edges
+     * whose cost may have been calculated are exactly those in {@link #crossing};
+     * otherwise it is not known which edges are affected.
+     */
+    private void logEdgesOf(Obstacle<?> o) {
+        var csr = frozenEdges();
+        if (csr == null) {
+            graph.forgetChanges();
+            return;
+        }
+        var edges = edgesOf.get(o);
+        if (edges == null)
+            return;
+        for (int e = 0; e < edges.size; e++) {
+            int k = edges.edges[e];
+            graph.logChange(origin(csr, k));
+            graph.logChange(csr.target(k));
+        }
+    }
+
+    /**
+     * The vertex that edge k of the frozen graph starts from.
+     */
+    private static int origin(CSRAdjacency csr, int k) {
+        int i = Arrays.binarySearch(csr.offsets, k);
+        if (i < 0)
+            return -i - 2;
+        // skip vertices without edges:
+        while (csr.offsets[i + 1] == k)
+            i++;
+        return i;
+    }
+
+    /**
+     * Return the wrapper of the given obstacle in the obstacle list of the graph,
+     * or null if it is not there.
+     */
+    synchronized Obstacle<LineIntersectable> wrapperOf(LineIntersectable obstacle) {
+        sync();
+        return wrappers.get(obstacle);
+    }
+
+    /**
+     * Forget which obstacles cross which edges, e.g. because vertices have moved.
+     * Since it is then no longer known which edges an obstacle affects, this also
+     * discards the change log of the graph.
+     */
+    synchronized void clearEdges() {
+        frozen = null;
+        crossing = new Obstacle<?>[0][];
+        edgesOf.clear();
+        vertexTree = null;
+        graph.forgetChanges();
+    }
+
+    /**
+     * True if the line segment from a to b intersects a blocking obstacle.
+     */
+    synchronized boolean isBlocked(Vec3 a, Vec3 b) {
+        sync();
+        if (source == null || source.isEmpty())
+            return false;
+        var l = new Line(a, b);
+        for (var o : unbounded) {
+            if (o.isBlocking && o.obstacle.intersects(l))
+                return true;
+        }
+        return !tree.alongRay(a, b, o -> o.isBlocking && o.obstacle.intersects(l)).isEmpty();
+    }
+
+    /**
+     * True if the edge from vertex i to j is crossed by an obstacle that is
+     * currently blocking.
+     */
+    synchronized boolean isBlocked(int i, int j) {
+        sync();
+        if (source == null || source.isEmpty())
+            return false;
+        var csr = frozenEdges();
+        if (csr != null && i < csr.numberOfVertices()) {
+            int k = Arrays.binarySearch(csr.targets, csr.begin(i), csr.end(i), j);
+            if (k >= 0)
+                return isBlockedEdge(i, k);
+        }
+        return isBlocked(graph.vertices.get(i), graph.vertices.get(j));
+    }
+
+    /**
+     * True if edge k of the frozen graph, which starts at vertex i, is crossed by
+     * an obstacle that is currently blocking.
+     */
+    synchronized boolean isBlockedEdge(int i, int k) {
+        sync();
+        if (source == null || source.isEmpty())
+            return false;
+        frozenEdges();
+        var obs = crossing[k];
+        if (obs == null) {
+            obs = crossingObstacles(graph.vertices.get(i), graph.vertices.get(frozen.target(k)));
+            crossing[k] = obs;
+            for (var o : obs)
+                edgesOf.computeIfAbsent(o, key -> new EdgeList()).add(k);
+        }
+        for (var o : obs) {
+            if (o.isBlocking)
+                return true;
+        }
+        return false;
+    }
+
+    private Obstacle<?>[] crossingObstacles(Vec3 a, Vec3 b) {
+        var l = new Line(a, b);
+        var found = tree.alongRay(a, b, o -> o.obstacle.intersects(l));
+        for (var o : unbounded) {
+            if (o.obstacle.intersects(l))
+                found.add(o);
+        }
+        return found.isEmpty() ? NONE : found.toArray(new Obstacle<?>[found.size()]);
+    }
+
+}
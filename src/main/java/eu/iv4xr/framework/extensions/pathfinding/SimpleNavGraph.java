@@ -1,6 +1,7 @@
 package eu.iv4xr.framework.extensions.pathfinding;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import eu.iv4xr.framework.spatial.*;
 import eu.iv4xr.framework.spatial.meshes.*;
@@ -29,6 +30,13 @@ import eu.iv4xr.framework.spatial.meshes.*;
  * faces they belong to are adjacent. Travel is assumed to be possible by
  * following such edges.
  * 
+ * <p>
+ * Several threads may query the graph at the same time, e.g. to search paths
+ * with {@link IntAStar}; the caches that queries fill in are guarded. But the
+ * graph must not be changed while it is queried: adding vertices, edges, or
+ * obstacles, toggling or removing obstacles, and freezing are not synchronized
+ * with queries.
+ * 
  * @author Naraenda
  */
 public class SimpleNavGraph implements Navigatable<Integer> {
@@ -45,14 +53,25 @@ public class SimpleNavGraph implements Navigatable<Integer> {
 	 */
 	public EdgeMap edges;
 
-	// TODO: Use a more optimal datastructure for better performance
+	/**
+	 * The obstacles in the graph. Add and remove obstacles through the methods
+	 * below, rather than by changing this list directly; otherwise the index over
+	 * the obstacles has to be rebuilt.
+	 */
 	public ArrayList<Obstacle<LineIntersectable>> obstacles;
 
+	/**
+	 * Spatial index over the obstacles, and the obstacles crossing each edge.
+	 */
+	final ObstacleIndex obstacleIndex = new ObstacleIndex(this);
+
 	/**
 	 * Add the obstacle to this navgraph. The obstacle is set as non-blocking.
 	 */
 	public void addObstacle(LineIntersectable obstacle) {
-		obstacles.add(new Obstacle<LineIntersectable>(obstacle));
+		var o = new Obstacle<LineIntersectable>(obstacle);
+		obstacles.add(o);
+		obstacleIndex.added(o);
 	}
 
 	/**
@@ -62,35 +81,44 @@ public class SimpleNavGraph implements Navigatable<Integer> {
 		var o = new Obstacle<LineIntersectable>(obstacle);
 		o.isBlocking = true;
 		obstacles.add(o);
+		obstacleIndex.added(o);
 	}
 
 	public void removeObstacle(LineIntersectable tobeRemoved) {
-		Obstacle<LineIntersectable> q = null;
-		for (var o : obstacles) {
-			if (o.obstacle == tobeRemoved) {
-				q = o;
-				break;
-			}
+		var q = obstacleIndex.wrapperOf(tobeRemoved);
+		if (q != null) {
+			obstacles.remove(q);
+			obstacleIndex.removed(q);
 		}
-		if (q != null)
+	}
+
+	/**
+	 * Obstacles are assumed to keep their position and shape. If an obstacle does
+	 * change, call this method afterwards. Its blocking state is kept.
+	 */
+	public void updateObstacle(LineIntersectable obstacle) {
+		var q = obstacleIndex.wrapperOf(obstacle);
+		if (q != null) {
 			obstacles.remove(q);
+			obstacleIndex.removed(q);
+			obstacles.add(q);
+			obstacleIndex.added(q);
+		}
 	}
 
 	public void toggleBlockingOn(LineIntersectable obstacle) {
-		for (var o : obstacles) {
-			if (o.obstacle == obstacle) {
-				o.isBlocking = true;
-				break;
-			}
+		var o = obstacleIndex.wrapperOf(obstacle);
+		if (o != null && !o.isBlocking) {
+			o.isBlocking = true;
+			obstacleIndex.toggled(o);
 		}
 	}
 
 	public void toggleBlockingOff(LineIntersectable obstacle) {
-		for (var o : obstacles) {
-			if (o.obstacle == obstacle) {
-				o.isBlocking = false;
-				break;
-			}
+		var o = obstacleIndex.wrapperOf(obstacle);
+		if (o != null && o.isBlocking) {
+			o.isBlocking = false;
+			obstacleIndex.toggled(o);
 		}
 	}
 
@@ -99,12 +127,16 @@ public class SimpleNavGraph implements Navigatable<Integer> {
 	 * or non-blocking (false). Return null of the said obstacle is not known.
 	 */
 	public Boolean getBlockingStatus(LineIntersectable obstacle) {
-		for (var o : obstacles) {
-			if (o.obstacle == obstacle) {
-				return o.isBlocking;
-			}
-		}
-		return null;
+		var o = obstacleIndex.wrapperOf(obstacle);
+		return o == null ? null : o.isBlocking;
+	}
+
+	/**
+	 * True if the line segment from a to b is blocked by an obstacle that is
+	 * currently blocking.
+	 */
+	public boolean isBlocked(Vec3 a, Vec3 b) {
+		return obstacleIndex.isBlocked(a, b);
 	}
 
 	public SimpleNavGraph(EdgeMap edges, ArrayList<Vec3> vertices, ArrayList<Obstacle<LineIntersectable>> obstacles) {
@@ -119,8 +151,150 @@ public class SimpleNavGraph implements Navigatable<Integer> {
 		this.obstacles = new ArrayList<Obstacle<LineIntersectable>>();
 	}
 
+	/**
+	 * A log of the vertices whose edges may have changed in cost, e.g. because an
+	 * obstacle was toggled, for incremental pathfinders such as {@link DStarLite}.
+	 * Only the most recent changes are kept; changeLogStart is the number of
+	 * changes that were discarded.
+	 */
+	private int[] changeLog = new int[16];
+	private int changeLogSize = 0;
+	private long changeLogStart = 0;
+
+	static final int MAX_CHANGE_LOG = 1 << 16;
+
+	/**
+	 * Log that the cost of some edges of the given vertex, incoming or outgoing,
+	 * may have changed.
+	 */
+	protected void logChange(int vertex) {
+		if (changeLogSize == MAX_CHANGE_LOG)
+			forgetChanges();
+		if (changeLogSize == changeLog.length)
+			changeLog = Arrays.copyOf(changeLog, 2 * changeLogSize);
+		changeLog[changeLogSize++] = vertex;
+	}
+
+	/**
+	 * Discard the change log, e.g. because it is not known what changed.
+	 * Incremental pathfinders will then search from scratch.
+	 */
+	protected void forgetChanges() {
+		// the +1 makes the log discontinuous even if it was empty:
+		changeLogStart += changeLogSize + 1;
+		changeLogSize = 0;
+	}
+
+	/**
+	 * The number of changes logged so far; see {@link #changesSince(long)}.
+	 */
+	public long numberOfChanges() {
+		return changeLogStart + changeLogSize;
+	}
+
+	/**
+	 * Return the vertices whose edges may have changed in cost since the given
+	 * number of changes (a value obtained from {@link #numberOfChanges()}), or null
+	 * if these changes are no longer known. Changes through the methods of this
+	 * class are logged (toggling, adding, removing obstacles, and in
+	 * {@link SurfaceNavGraph} marking vertices as seen); changes that bypass them,
+	 * such as setting the blocking state of an obstacle directly, are not.
+	 */
+	public int[] changesSince(long since) {
+		if (since < changeLogStart || since > numberOfChanges())
+			return null;
+		return Arrays.copyOfRange(changeLog, (int) (since - changeLogStart), changeLogSize);
+	}
+
+	/**
+	 * If not null, the edges frozen in CSR form; see {@link #freeze()}.
+	 */
+	CSRAdjacency adjacency = null;
+	private int frozenNumberOfVertices;
+
+	/**
+	 * Freeze the current edges into a compact, immutable representation
+	 * ({@link CSRAdjacency}), with the lengths of the edges precomputed. This is
+	 * typically done once, after the graph is constructed. Afterwards neighbours()
+	 * and pathfinders such as {@link IntAStar} use this representation, which can
+	 * be traversed without allocating memory.
+	 *
+	 * <p>
+	 * Adding vertices discards the frozen representation. Changing the edges or
+	 * moving vertices is not detected; call freeze() again afterwards (this also
+	 * makes the graph recheck which obstacles cross the edges), or
+	 * {@link #unfreeze()}. A subclass that redefines neighbours() or distance()
+	 * should redefine {@link #admits(int)} or {@link #edgeDistance(int, int)}
+	 * accordingly; otherwise the frozen representation is not used for it, see
+	 * {@link #adjacency()}.
+	 */
+	public void freeze() {
+		obstacleIndex.clearEdges();
+		adjacency = CSRAdjacency.of(edges, vertices);
+		frozenNumberOfVertices = vertices.size();
+	}
+
+	public void unfreeze() {
+		adjacency = null;
+	}
+
+	/**
+	 * True if the class of this graph redefines neighbours() without redefining
+	 * admits() as well (in the same class or below it), or distance() without
+	 * edgeDistance().
+	 */
+	private final boolean redefinesEdges = !declaringClass("neighbours", Integer.class)
+			.isAssignableFrom(declaringClass("admits", int.class))
+			|| !declaringClass("distance", Integer.class, Integer.class)
+					.isAssignableFrom(declaringClass("edgeDistance", int.class, int.class));
+
+	private Class<?> declaringClass(String method, Class<?>... parameterTypes) {
+		try {
+			return getClass().getMethod(method, parameterTypes).getDeclaringClass();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Return the frozen CSR representation of the edges, or null if the graph is
+	 * not frozen (see {@link #freeze()}). It is also null if the class of this
+	 * graph redefines neighbours() or distance(), but not the methods that
+	 * pathfinders use instead of them on the frozen representation, namely
+	 * {@link #admits(int)} and {@link #edgeDistance(int, int)}.
+	 */
+	public CSRAdjacency adjacency() {
+		if (redefinesEdges)
+			return null;
+		if (adjacency != null && vertices.size() != frozenNumberOfVertices)
+			adjacency = null;
+		return adjacency;
+	}
+
+	/**
+	 * True if navigation may pass through the given vertex. In this class this is
+	 * always true; see {@link SurfaceNavGraph}.
+	 */
+	public boolean admits(int vertex) {
+		return true;
+	}
+
+	/**
+	 * The same as {@link #distance(Integer, Integer)}, for the edge with the given
+	 * index in the frozen representation, which starts at the given vertex. If the
+	 * edge is not blocked, this is the precomputed length of the edge.
+	 */
+	public float edgeDistance(int from, int edge) {
+		if (obstacleIndex.isBlockedEdge(from, edge))
+			return Float.POSITIVE_INFINITY;
+		return adjacency.lengths[edge];
+	}
+
 	@Override
 	public Iterable<Integer> neighbours(Integer id) {
+		var csr = adjacency();
+		if (csr != null)
+			return id < csr.numberOfVertices() ? csr.neighbours(id, null) : edges.neighbours(id);
 		return edges.neighbours(id);
 	}
 
@@ -143,17 +317,12 @@ public class SimpleNavGraph implements Navigatable<Integer> {
 	 */
 	@Override
 	public float distance(Integer from, Integer to) {
-		Vec3 a = vertices.get(from);
-		Vec3 b = vertices.get(to);
-
 		// Check if there is a collision on path
-		Line l = new Line(a, b);
-
-		if (obstacles != null && obstacles.stream().filter(o -> o.isBlocking).anyMatch(o -> o.obstacle.intersects(l))) {
+		if (obstacleIndex.isBlocked(from, to)) {
 			return Float.POSITIVE_INFINITY;
 		}
 
-		return Vec3.dist(a, b);
+		return Vec3.dist(vertices.get(from), vertices.get(to));
 	}
 
 	/**
@@ -178,13 +347,10 @@ public class SimpleNavGraph implements Navigatable<Integer> {
 		}
 
 		// Connect common edges in faces to create dual map
-		for (int i = 0; i < faces.size(); i++) {
-			for (int j = 0; j < i; j++) {
-				if (Face.isConnected(faces.get(i), faces.get(j))) {
-					edgeMap.put(new Edge(i, j));
-				}
-			}
+		for (int[] pair : Face.connectedPairs(faces)) {
+			edgeMap.put(new Edge(pair[0], pair[1]));
 		}
+		g.freeze();
 		return g;
 	}
 }
\ No newline at end of file
@@ -3,6 +3,7 @@ package eu.iv4xr.framework.extensions.pathfinding;
 import java.util.*;
 
 import eu.iv4xr.framework.spatial.Line;
+import eu.iv4xr.framework.spatial.QuadTree;
 import eu.iv4xr.framework.spatial.Vec3;
 import eu.iv4xr.framework.spatial.meshes.*;
 import nl.uu.cs.aplib.utils.Pair;
@@ -45,6 +46,12 @@ import nl.uu.cs.aplib.utils.Pair;
  * 
  * </ul>
  * 
+ * <p>As for {@link SimpleNavGraph}, several threads may search the graph at
+ * the same time, as long as it is not changed meanwhile; marking vertices as
+ * seen is a change. The default pathfinder can be shared by these threads,
+ * but {@link DStarLite} and {@link HierarchicalPathfinder} keep the state of
+ * their searches and cannot.
+ * 
  * @author Wish
  *
  */
@@ -147,18 +154,24 @@ public class SurfaceNavGraph extends SimpleNavGraph {
         for (int k = 0; k < numberOfBaseVertices; k++) {
             verticesType.add(VertexType.OTHER);
         }
+        // count, for every edge of a Face, how many Faces it belongs to:
+        var countMembership = new HashMap<Long, Integer>();
+        for (Face face : mesh.faces) {
+            int N = face.vertices.length;
+            for (int k = 0; k < N; k++) {
+                long key = Face.pairKey(face.vertices[k], face.vertices[(k + 1) % N]);
+                // count the Face once, even if the edge occurs twice in it:
+                boolean counted = false;
+                for (int m = 0; m < k && !counted; m++)
+                    counted = key == Face.pairKey(face.vertices[m], face.vertices[m + 1]);
+                if (!counted)
+                    countMembership.merge(key, 1, Integer::sum);
+            }
+        }
         //Set<Integer> borderVertices;
         for (Edge e : mesh.edges) {
-            int countMembership = 0;
-            for (Face face : mesh.faces) {
-                if (face.containsEdge(e))
-                    countMembership++;
-                if (countMembership >= 2) {
-                    // ok so the edge e is shared, and hence not a border edge
-                    break;
-                }
-            }
-            if (countMembership == 1) {
+            // if the edge e is shared by two or more Faces, it is not a border edge
+            if (countMembership.getOrDefault(Face.pairKey(e.i, e.j), 0) == 1) {
                 // e is a border edge:
                 verticesType.set(e.i, VertexType.BORDER);
                 verticesType.set(e.j, VertexType.BORDER);
@@ -189,25 +202,21 @@ public class SurfaceNavGraph extends SimpleNavGraph {
         }
 
         // We will also connect the centers of connected Faces:
-        for (int i = 0; i < faces.size(); i++) {
-            for (int j = 0; j < i; j++) {
-                var face1 = faces.get(i);
-                var face2 = faces.get(j);
-                if (Face.isConnected(face1, face2)) {
-                    var center1 = faceToCenterIdMap.get(face1);
-                    var center2 = faceToCenterIdMap.get(face2);
-                    if (center1 != null && center2 != null)
-                        edges.put(new Edge(center1, center2));
-                }
-            }
+        for (int[] pair : Face.connectedPairs(faces)) {
+            var center1 = faceToCenterIdMap.get(faces.get(pair[0]));
+            var center2 = faceToCenterIdMap.get(faces.get(pair[1]));
+            if (center1 != null && center2 != null)
+                edges.put(new Edge(center1, center2));
         }
 
         // By default we will mark all vertices as "unseen"
         seenVertices = new ArrayList<>();
         wipeOutMemory();
 
-        // setting A* as the default pathfinder:
-        pathfinder = new AStar<Integer>();
+        // setting A* as the default pathfinder; the variant for int node-ids:
+        pathfinder = new IntAStar();
+
+        freeze();
     }
 
     /**
@@ -219,8 +228,14 @@ public class SurfaceNavGraph extends SimpleNavGraph {
         for (int k = 0; k < N; k++) {
             seenVertices.add(false);
         }
+        forgetChanges();
     }
 
+    /**
+     * Set the pathfinder used by the findPath-methods of this navigation graph. The
+     * default is {@link IntAStar}; a plain {@link AStar} finds paths of the same
+     * cost, but is slower on large graphs.
+     */
     public void setPathFinder(Pathfinder<Integer> pf) {
         pathfinder = pf;
     }
@@ -236,7 +251,7 @@ public class SurfaceNavGraph extends SimpleNavGraph {
     public void markAsSeen(List<Integer> seen) {
         for (Integer v : seen) {
             // mark v as seen:
-            seenVertices.set(v, true);
+            setSeen(v);
             // additionally, if v is not a center, then mark the center connected to
             // it as "seen".
             if (verticesType.get(v) != VertexType.CENTRE) {
@@ -248,12 +263,20 @@ public class SurfaceNavGraph extends SimpleNavGraph {
                     if (verticesType.get(z) == VertexType.CENTRE
                     // || Vec3.dist(vloc,zloc) <= 0.4
                     )
-                        seenVertices.set(z, true);
+                        setSeen(z);
                 }
             }
         }
     }
 
+    private void setSeen(int v) {
+        if (!seenVertices.get(v)) {
+            seenVertices.set(v, true);
+            // the edges into v are no longer filtered out:
+            logChange(v);
+        }
+    }
+
     public void markAsSeen(int... seen) {
         List<Integer> seen_ = new LinkedList<>();
         for (int k : seen) {
@@ -267,16 +290,60 @@ public class SurfaceNavGraph extends SimpleNavGraph {
     }
 
     /**
-     * Check if the line from x to y is blocked by any of the blocking obstacles.
+     * Spatial index over the faces, by their bounding boxes; the items are the
+     * indices of the faces. It is built when first needed, and rebuilt if the
+     * list of faces changes in size.
      */
-    boolean isBlocked(Vec3 x, Vec3 y) {
-        for (var obs : obstacles) {
-            if (obs.isBlocking && obs.obstacle.intersects(new Line(x, y))) {
-            	//System.out.println("in the isBlocked: " + ((WorldEntity) obs.obstacle).id + ((WorldEntity) obs.obstacle).extent + ((WorldEntity) obs.obstacle).position);
-                return true;
+    QuadTree<Integer> faceIndex;
+    private List<Face> indexedFaces;
+    private int indexedFacesSize;
+
+    /**
+     * Added to the face-distance threshold when looking up faces in the index,
+     * to be on the safe side of rounding errors.
+     */
+    static final float FACE_INDEX_MARGIN = 0.001f;
+
+    synchronized QuadTree<Integer> faceIndex() {
+        if (faceIndex != null && indexedFaces == faces && indexedFacesSize == faces.size())
+            return faceIndex;
+        faceIndex = new QuadTree<>();
+        for (int i = 0; i < faces.size(); i++) {
+            var corners = faces.get(i).vertices;
+            var first = vertices.get(corners[0]);
+            float minX = first.x, minY = first.y, minZ = first.z;
+            float maxX = minX, maxY = minY, maxZ = minZ;
+            for (int c : corners) {
+                var p = vertices.get(c);
+                minX = Math.min(minX, p.x);
+                minY = Math.min(minY, p.y);
+                minZ = Math.min(minZ, p.z);
+                maxX = Math.max(maxX, p.x);
+                maxY = Math.max(maxY, p.y);
+                maxZ = Math.max(maxZ, p.z);
             }
+            faceIndex.put(i, new Vec3((minX + maxX) / 2, (minY + maxY) / 2, (minZ + maxZ) / 2),
+                    new Vec3((maxX - minX) / 2, (maxY - minY) / 2, (maxZ - minZ) / 2));
+        }
+        indexedFaces = faces;
+        indexedFacesSize = faces.size();
+        return faceIndex;
+    }
+
+    /**
+     * Return the first face, in the order of {@link #faces}, whose distance to the
+     * given location is at most the given threshold; or null if there is none.
+     * Only the faces whose bounding box is close enough are checked.
+     */
+    Face findFace(Vec3 location, float faceDistThreshold) {
+        var candidates = faceIndex().overlapping(location, faceDistThreshold + FACE_INDEX_MARGIN);
+        Collections.sort(candidates);
+        for (int i : candidates) {
+            var f = faces.get(i);
+            if (f.distFromPoint(location, vertices) <= faceDistThreshold)
+                return f;
         }
-        return false;
+        return null;
     }
 
     /**
@@ -297,25 +364,7 @@ public class SurfaceNavGraph extends SimpleNavGraph {
     public Integer getNearestUnblockedVertex(Vec3 location, float faceDistThreshold) {
         // first find a face that contains the location:
         // System.out.println(">> anchor location: " + location) ;
-        Face face = null;
-        // float bestDistanceSofar = Float.MAX_VALUE ;
-        int k = 0;
-       // System.out.println(">> Face ????? " + location) ;
-        for (Face f : faces) {
-            var dist = f.distFromPoint(location, vertices);
-
-            // System.out.println(">> Face " + k + "," + f + ", distance: " + dist) ;
-            /*
-             * for (var corner : f.vertices) { System.out.println("    " +
-             * vertices.get(corner)) ; }
-             */
-            if (dist <= faceDistThreshold) {
-                // found one ... we'll grab it:
-                face = f;
-                break;
-            }
-            k++;
-        }
+        Face face = findFace(location, faceDistThreshold);
         if (face == null) {
             // well... then the location is not even in the mesh:
             System.out.println(">> cannot find any face close enough!");
@@ -367,6 +416,11 @@ public class SurfaceNavGraph extends SimpleNavGraph {
      */
     @Override
     public Iterable<Integer> neighbours(Integer id) {
+        var csr = adjacency();
+        if (csr != null && id < csr.numberOfVertices()) {
+            // a filtered view, rather than a copy:
+            return csr.neighbours(id, this::admits);
+        }
         // clone the neigbor-set to prevent side effect when we next filter it:
         HashSet<Integer> neighbors = new HashSet<>();
         for (var v : edges.neighbours(id)) {
@@ -379,6 +433,15 @@ public class SurfaceNavGraph extends SimpleNavGraph {
         return neighbors;
     }
 
+    /**
+     * True if the vertex is marked as seen, or if {@link #perfect_memory_pathfinding}
+     * is turned on.
+     */
+    @Override
+    public boolean admits(int vertex) {
+        return perfect_memory_pathfinding || seenVertices.get(vertex);
+    }
+
     /**
      * Defining the distance between two NEIGHBORING vertices.
      */
@@ -447,6 +510,16 @@ public class SurfaceNavGraph extends SimpleNavGraph {
         return findPath(startNode, goalNode);
     }
 
+    /**
+     * The frontier of the seen part of this graph, kept up to date incrementally.
+     */
+    final Frontier frontier = new Frontier(this);
+
+    /**
+     * The search used by {@link #explore(int)}.
+     */
+    final IntAStar explorer = new IntAStar();
+
     /**
      * This returns the set of frontier-vertices. A vertex is a frontier vertex if
      * it is a seen/explored vertex and it has at least one unexplored and unblocked
@@ -454,6 +527,10 @@ public class SurfaceNavGraph extends SimpleNavGraph {
      * 
      * The method returns pairs of (v,z) where v is a frontier and z is one of its
      * unexplored and unblocked neighbor.
+     * 
+     * The frontier is maintained incrementally, from the changes made through
+     * {@link #markAsSeen(List)}, the obstacle methods, and {@link #wipeOutMemory()};
+     * see {@link Frontier}.
      */
     List<Pair<Integer, Integer>> getFrontierVertices() {
         var frontiers = new LinkedList<Pair<Integer, Integer>>();
@@ -462,24 +539,15 @@ public class SurfaceNavGraph extends SimpleNavGraph {
             // so, there is no frontiers either.
             return frontiers;
         }
-        int N = vertices.size();
-        for (int v = 0; v < N; v++) {
-            Vec3 vloc = vertices.get(v);
-            if (seenVertices.get(v)) {
-                for (Integer z : edges.neighbours(v)) {
-                    if (!seenVertices.get(z) && !isBlocked(vloc, vertices.get(z))) {
-                        frontiers.add(new Pair<Integer, Integer>(v, z));
-                        break;
-                    }
-                }
-            }
-        }
+        frontier.sync();
+        for (int v : frontier.vertices())
+            frontiers.add(new Pair<Integer, Integer>(v, frontier.unseenNeighbour[v]));
         return frontiers;
     }
 
     /**
      * Find a path to an unexplored and unblocked vertex w which is the
-     * geometrically 'closest' to the given the given start location. Note that the
+     * 'closest' to the given the given start location, along the graph. Note that the
      * path ends in that unexplored vertex.
      * 
      * More precisely, we first look an explored vertex v in the vicinity of the
@@ -499,40 +567,33 @@ public class SurfaceNavGraph extends SimpleNavGraph {
     }
 
     /**
-     * Find a path to an unexplored and unblocked vertex which is the geometrically
-     * closest to the given starting vertex. Note that the path ends in that
-     * unexplored vertex.
+     * Find a path to an unexplored and unblocked vertex which is the nearest to
+     * the given starting vertex, in terms of the length of the path. Note that the
+     * path ends in that unexplored vertex.
+     * 
+     * More precisely, the path goes over seen vertices to the nearest frontier
+     * vertex (see {@link #getFrontierVertices()}), and then to an unexplored and
+     * unblocked neighbor of it. All frontier vertices are searched for at once,
+     * with a single Dijkstra search, rather than with a search per frontier
+     * vertex.
      * 
      * If no no such path can be found, the method returns null.
      */
     public List<Integer> explore(int startVertex) {
-
-        var frontiers = getFrontierVertices();
-        
-        if (frontiers.isEmpty())
+        if (perfect_memory_pathfinding)
             return null;
-        // sort the frontiers ascendingly, by their geometric distance to the
-        // start-vertex:
-        Vec3 startLocation = vertices.get(startVertex);
-        frontiers.sort((p1, p2) -> Float.compare(Vec3.distSq(vertices.get(p1.fst), startLocation),
-                Vec3.distSq(vertices.get(p2.fst), startLocation)));
-
-        for (var front : frontiers) {
-            var path = findPath(startVertex, front.fst);
-           // System.out.println("frontier path " + path +" frontier vertices: "+ front.fst);
-            if (path != null) {
-                // ok, so reaching the frontier front.fst is possible;
-                // we will also add the unexplored and unblocked neighbor of
-                // front.fst to the path:
-                path.add(front.snd);
-                return path;
-            }
-        }
-        //System.out.println("original explore second one");
-        return null;
+        frontier.sync();
+        if (frontier.size() == 0)
+            return null;
+        var path = explorer.findPathToNearest(this, startVertex, v -> frontier.unseenNeighbour[v] >= 0);
+        if (path == null)
+            return null;
+        // we will also add the unexplored and unblocked neighbor of
+        // the frontier to the path:
+        path.add(frontier.unseenNeighbour[path.get(path.size() - 1)]);
+        return path;
     }
 
-    
     /**
      * This variant of explore will try to find an already seen and reachable vertex w,
      * which is closest to some target location t. This target t is usually a location that
@@ -782,26 +843,7 @@ public class SurfaceNavGraph extends SimpleNavGraph {
     public List<Integer> getNearestUnblockedVertices(Vec3 location, float faceDistThreshold) {
         // first find a face that contains the location:
         // System.out.println(">> anchor location: " + location) ;
-        Face face = null;  
-        //float minDist = Float.MAX_VALUE ;
-        int k = 0;     
-        for (Face f : faces) {
-            var dist = f.distFromPoint(location, vertices);
-
-            // System.out.println(">> Face " + k + "," + f + ", distance: " + dist) ;
-            /*
-             * for (var corner : f.vertices) { System.out.println("    " +
-             * vertices.get(corner)) ; }
-             */
-            if (dist <= faceDistThreshold /* && dist < minDist */) {
-                // found one ... we'll grab it:
-                face = f;
-                //minDist = dist ;
-                // don't break ... as we want the face with minimum distance
-                break;
-            }
-            k++;
-        }
+        Face face = findFace(location, faceDistThreshold);
         if (face == null) {
             // well... then the location is not even in the mesh:
             System.out.println(">> cannot find any face close enough!");
@@ -0,0 +1,180 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The map used for {@link WorldEntity#elements}. Most entities have no or only
+ * a few sub-entities, so up to {@link #MAX_INLINE} of them are kept in two small
+ * arrays, searched linearly, in the order they were added. Beyond that the map
+ * switches to a HashMap.
+ */
+class ElementMap extends AbstractMap<String, WorldEntity> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int MAX_INLINE = 8;
+
+    private String[] keys = null;
+    private WorldEntity[] values = null;
+    private int size = 0;
+
+    /**
+     * If not null, the entries are kept here instead of in the arrays.
+     */
+    private HashMap<String, WorldEntity> large = null;
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == key)
+                return i;
+        }
+        if (key == null)
+            return -1;
+        for (int i = 0; i < size; i++) {
+            if (key.equals(keys[i]))
+                return i;
+        }
+        return -1;
+    }
+
+    @Override
+    public int size() {
+        return large != null ? large.size() : size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return large != null ? large.containsKey(key) : indexOf(key) >= 0;
+    }
+
+    @Override
+    public WorldEntity get(Object key) {
+        if (large != null)
+            return large.get(key);
+        int i = indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public WorldEntity put(String key, WorldEntity value) {
+        if (large != null)
+            return large.put(key, value);
+        int i = indexOf(key);
+        if (i >= 0) {
+            var old = values[i];
+            values[i] = value;
+            return old;
+        }
+        if (size == MAX_INLINE) {
+            large = new HashMap<>();
+            for (int k = 0; k < size; k++)
+                large.put(keys[k], values[k]);
+            keys = null;
+            values = null;
+            size = 0;
+            return large.put(key, value);
+        }
+        if (keys == null) {
+            keys = new String[2];
+            values = new WorldEntity[2];
+        } else if (size == keys.length) {
+            keys = Arrays.copyOf(keys, 2 * size);
+            values = Arrays.copyOf(values, 2 * size);
+        }
+        keys[size] = key;
+        values[size] = value;
+        size++;
+        return null;
+    }
+
+    @Override
+    public WorldEntity remove(Object key) {
+        if (large != null)
+            return large.remove(key);
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        var old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+        System.arraycopy(values, i + 1, values, i, size - i - 1);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+    }
+
+    @Override
+    public void clear() {
+        keys = null;
+        values = null;
+        size = 0;
+        large = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, WorldEntity>> entrySet() {
+        if (large != null)
+            return large.entrySet();
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, WorldEntity>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, WorldEntity>> {
+
+        int next = 0;
+        int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, WorldEntity> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            last = next++;
+            int i = last;
+            return new AbstractMap.SimpleEntry<>(keys[i], values[i]) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public WorldEntity setValue(WorldEntity value) {
+                    values[i] = value;
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0)
+                throw new IllegalStateException();
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+}
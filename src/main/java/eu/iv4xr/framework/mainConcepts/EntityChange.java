@@ -0,0 +1,83 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.Objects;
+
+/**
+ * Describes a change of an entity in a {@link WorldModel}, as it is passed to
+ * the listeners that subscribed to such changes (see
+ * {@link WorldModel#onChangeOf(String, java.util.function.Consumer)} and the
+ * related methods).
+ */
+public class EntityChange {
+
+    public enum Kind {
+        /**
+         * The entity was not in the WorldModel before.
+         */
+        ADDED,
+        /**
+         * The entity got a new state.
+         */
+        CHANGED,
+        /**
+         * The entity was removed from the WorldModel.
+         */
+        REMOVED
+    }
+
+    public final Kind kind;
+
+    public final String id;
+
+    /**
+     * The new state of the entity; null if it was removed.
+     */
+    public final WorldEntity entity;
+
+    /**
+     * The state of the entity before the change; null if it was added.
+     */
+    public final WorldEntity previous;
+
+    /**
+     * The time of the change.
+     */
+    public final long timestamp;
+
+    EntityChange(Kind kind, String id, WorldEntity entity, WorldEntity previous, long timestamp) {
+        this.kind = kind;
+        this.id = id;
+        this.entity = entity;
+        this.previous = previous;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * The type of the entity.
+     */
+    public String type() {
+        return entity != null ? entity.type : previous.type;
+    }
+
+    /**
+     * True if the given property has a different value (or presence) after the
+     * change than before.
+     */
+    public boolean propertyChanged(String propertyName) {
+        return propertyChanged(entity, previous, propertyName);
+    }
+
+    static boolean propertyChanged(WorldEntity entity, WorldEntity previous, String propertyName) {
+        boolean had = previous != null && previous.properties.containsKey(propertyName);
+        boolean has = entity != null && entity.properties.containsKey(propertyName);
+        if (had != has)
+            return true;
+        return has && !Objects.equals(entity.properties.get(propertyName), previous.properties.get(propertyName));
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + id + " at t=" + timestamp;
+    }
+
+}
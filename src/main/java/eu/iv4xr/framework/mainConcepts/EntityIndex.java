@@ -0,0 +1,67 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import eu.iv4xr.framework.spatial.QuadTree;
+
+/**
+ * The indices that a {@link WorldModel} maintains over its (top-level)
+ * entities: a {@link QuadTree} over their positions and extents, and their ids
+ * grouped by type.
+ */
+class EntityIndex {
+
+    QuadTree<String> spatial = new QuadTree<>();
+    Map<String, Set<String>> byType = new HashMap<>();
+    // the type under which each id is indexed:
+    Map<String, String> types = new HashMap<>();
+
+    /**
+     * The elements-map the index was built for, to detect that it was replaced.
+     */
+    Map<String, WorldEntity> indexedElements;
+
+    EntityIndex(Map<String, WorldEntity> elements) {
+        indexedElements = elements;
+        for (var e : elements.values())
+            put(e);
+    }
+
+    /**
+     * Add or update the given entity.
+     */
+    void put(WorldEntity e) {
+        var oldType = types.put(e.id, e.type);
+        if (oldType == null || !oldType.equals(e.type)) {
+            if (oldType != null)
+                removeFromType(e.id, oldType);
+            byType.computeIfAbsent(e.type, t -> new HashSet<>()).add(e.id);
+        }
+        if (e.position != null)
+            spatial.put(e.id, e.position, e.extent);
+        else
+            spatial.remove(e.id);
+    }
+
+    void remove(String id) {
+        var type = types.remove(id);
+        if (type != null)
+            removeFromType(id, type);
+        spatial.remove(id);
+    }
+
+    private void removeFromType(String id, String type) {
+        var ids = byType.get(type);
+        ids.remove(id);
+        if (ids.isEmpty())
+            byType.remove(type);
+    }
+
+    int size() {
+        return types.size();
+    }
+
+}
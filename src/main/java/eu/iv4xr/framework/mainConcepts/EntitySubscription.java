@@ -0,0 +1,60 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.function.Consumer;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * A subscription of a listener to changes of entities in a {@link WorldModel};
+ * it is returned by {@link WorldModel#onChangeOf(String, Consumer)} and the
+ * related methods. It stays active until it is cancelled.
+ */
+public class EntitySubscription {
+
+    final Consumer<EntityChange> listener;
+
+    // at most one of these is set; none for a subscription to all changes:
+    final String id;
+    final String type;
+    final String property;
+    final Vec3 center;
+    final float radius;
+    final float radiusSq;
+
+    EntitySubscriptions registry;
+
+    EntitySubscription(Consumer<EntityChange> listener, String id, String type, String property, Vec3 center,
+            float radius) {
+        if (listener == null)
+            throw new IllegalArgumentException("A listener cannot be null.");
+        this.listener = listener;
+        this.id = id;
+        this.type = type;
+        this.property = property;
+        this.center = center;
+        this.radius = radius;
+        this.radiusSq = radius * radius;
+    }
+
+    /**
+     * True if the given entity (possibly null) is positioned in the region of
+     * this subscription.
+     */
+    boolean inRegion(WorldEntity e) {
+        return e != null && e.position != null && Vec3.distSq(e.position, center) <= radiusSq;
+    }
+
+    /**
+     * Stop this subscription; its listener will no longer be invoked.
+     */
+    public void cancel() {
+        if (registry != null)
+            registry.remove(this);
+        registry = null;
+    }
+
+    public boolean isActive() {
+        return registry != null;
+    }
+
+}
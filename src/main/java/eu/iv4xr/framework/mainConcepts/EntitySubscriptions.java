@@ -0,0 +1,164 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.iv4xr.framework.spatial.QuadTree;
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * The subscriptions to entity changes of a {@link WorldModel}, indexed such
+ * that dispatching a change only looks at the subscriptions to the entity's id,
+ * its type, and its properties (only the subscribed properties are compared),
+ * and at the region subscriptions whose region contains the entity's old or new
+ * position (found through a {@link QuadTree}); unrelated subscriptions cost
+ * nothing.
+ *
+ * <p>
+ * Listeners may cancel subscriptions, or make new ones, while a change is
+ * dispatched. The lists of subscriptions are then replaced by changed copies,
+ * so that the dispatch in progress is not affected; otherwise they are changed
+ * in place.
+ */
+class EntitySubscriptions {
+
+    Map<String, List<EntitySubscription>> byId = new HashMap<>();
+    Map<String, List<EntitySubscription>> byType = new HashMap<>();
+    Map<String, List<EntitySubscription>> byProperty = new HashMap<>();
+    QuadTree<EntitySubscription> byRegion = new QuadTree<>();
+    List<EntitySubscription> all = new ArrayList<>();
+
+    /**
+     * The number of dispatches in progress.
+     */
+    private int dispatching = 0;
+
+    EntitySubscription add(EntitySubscription s) {
+        if (s.id != null)
+            addTo(byId, s.id, s);
+        else if (s.type != null)
+            addTo(byType, s.type, s);
+        else if (s.property != null)
+            addTo(byProperty, s.property, s);
+        else if (s.center != null) {
+            float r = Math.abs(s.radius);
+            byRegion.put(s, s.center, new Vec3(r, r, r));
+        } else
+            all = with(all, s);
+        s.registry = this;
+        return s;
+    }
+
+    void remove(EntitySubscription s) {
+        if (s.id != null)
+            removeFrom(byId, s.id, s);
+        else if (s.type != null)
+            removeFrom(byType, s.type, s);
+        else if (s.property != null)
+            removeFrom(byProperty, s.property, s);
+        else if (s.center != null)
+            byRegion.remove(s);
+        else
+            all = without(all, s);
+    }
+
+    private void addTo(Map<String, List<EntitySubscription>> map, String key, EntitySubscription s) {
+        var list = map.get(key);
+        map.put(key, with(list == null ? new ArrayList<>() : list, s));
+    }
+
+    private void removeFrom(Map<String, List<EntitySubscription>> map, String key, EntitySubscription s) {
+        var list = map.get(key);
+        if (list == null)
+            return;
+        list = without(list, s);
+        if (list.isEmpty())
+            map.remove(key);
+        else
+            map.put(key, list);
+    }
+
+    private List<EntitySubscription> with(List<EntitySubscription> list, EntitySubscription s) {
+        if (dispatching > 0)
+            list = new ArrayList<>(list);
+        list.add(s);
+        return list;
+    }
+
+    private List<EntitySubscription> without(List<EntitySubscription> list, EntitySubscription s) {
+        if (dispatching > 0)
+            list = new ArrayList<>(list);
+        list.remove(s);
+        return list;
+    }
+
+    boolean isEmpty() {
+        return byId.isEmpty() && byType.isEmpty() && byProperty.isEmpty() && byRegion.size() == 0 && all.isEmpty();
+    }
+
+    /**
+     * Invoke the listeners of the subscriptions that the given change matches.
+     * The event is only created if there is such a subscription.
+     */
+    void dispatch(EntityChange.Kind kind, WorldEntity entity, WorldEntity previous, long timestamp) {
+        var e = entity != null ? entity : previous;
+        dispatching++;
+        try {
+            EntityChange change = null;
+            change = notify(byId.get(e.id), kind, entity, previous, timestamp, change);
+            change = notify(byType.get(e.type), kind, entity, previous, timestamp, change);
+            if (!byProperty.isEmpty()) {
+                // the properties that the entity has now, and those that it had and lost:
+                if (entity != null) {
+                    for (var property : entity.properties.keySet()) {
+                        var subscribed = byProperty.get(property);
+                        if (subscribed != null && EntityChange.propertyChanged(entity, previous, property))
+                            change = notify(subscribed, kind, entity, previous, timestamp, change);
+                    }
+                }
+                if (previous != null) {
+                    for (var property : previous.properties.keySet()) {
+                        var subscribed = byProperty.get(property);
+                        if (subscribed != null && (entity == null || !entity.properties.containsKey(property)))
+                            change = notify(subscribed, kind, entity, previous, timestamp, change);
+                    }
+                }
+            }
+            if (byRegion.size() > 0) {
+                // entering, leaving, or changing within the region:
+                var p = entity != null ? entity.position : null;
+                var q = previous != null ? previous.position : null;
+                if (p != null)
+                    change = notify(byRegion.overlapping(p, 0, s -> s.inRegion(entity)), kind, entity, previous,
+                            timestamp, change);
+                if (q != null && !q.equals(p))
+                    change = notify(byRegion.overlapping(q, 0, s -> s.inRegion(previous) && !s.inRegion(entity)),
+                            kind, entity, previous, timestamp, change);
+            }
+            notify(all, kind, entity, previous, timestamp, change);
+        } finally {
+            dispatching--;
+        }
+    }
+
+    private static EntityChange notify(List<EntitySubscription> subscriptions, EntityChange.Kind kind,
+            WorldEntity entity, WorldEntity previous, long timestamp, EntityChange change) {
+        if (subscriptions == null || subscriptions.isEmpty())
+            return change;
+        if (change == null) {
+            var e = entity != null ? entity : previous;
+            change = new EntityChange(kind, e.id, entity, previous, timestamp);
+        }
+        // the list is not changed during the dispatch, but a listener may cancel
+        // subscriptions that are still to come:
+        for (int i = 0; i < subscriptions.size(); i++) {
+            var s = subscriptions.get(i);
+            if (s.registry != null)
+                s.listener.accept(change);
+        }
+        return change;
+    }
+
+}
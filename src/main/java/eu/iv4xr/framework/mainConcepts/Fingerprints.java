@@ -0,0 +1,176 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * The 64-bit hash functions behind {@link WorldEntity#fingerprint()}. A
+ * fingerprint is a sum of independently mixed terms, one per field and one per
+ * property or sub-entity, so that a single term can be replaced without
+ * recalculating the others, and so that the order of the entries of a map does
+ * not matter.
+ */
+class Fingerprints {
+
+    private static final long NULL_HASH = 0x9E3779B97F4A7C15L;
+    private static final long STRING_TAG = 0x1L;
+    private static final long BOOLEAN_TAG = 0x2L;
+    private static final long INT_TAG = 0x3L;
+    private static final long LONG_TAG = 0x4L;
+    private static final long FLOAT_TAG = 0x5L;
+    private static final long DOUBLE_TAG = 0x6L;
+    private static final long SHORT_TAG = 0x7L;
+    private static final long BYTE_TAG = 0x8L;
+    private static final long CHAR_TAG = 0x9L;
+    private static final long VEC3_TAG = 0xAL;
+    private static final long LIST_TAG = 0xBL;
+    private static final long SET_TAG = 0xCL;
+    private static final long MAP_TAG = 0xDL;
+    private static final long OTHER_TAG = 0xEL;
+
+    private static final long PROPERTY_SALT = 0xC2B2AE3D27D4EB4FL;
+    private static final long ELEMENT_SALT = 0x165667B19E3779F9L;
+    private static final long[] VECTOR_SALTS = { 0x27D4EB2F165667C5L, 0x85EBCA77C2B2AE63L, 0xFF51AFD7ED558CCDL };
+
+    /**
+     * The finalizer of SplitMix64; it spreads every input bit over all output
+     * bits.
+     */
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 64-bit FNV-1a over the characters of s.
+     */
+    static long hash(String s) {
+        if (s == null)
+            return NULL_HASH;
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        return h;
+    }
+
+    static long tagged(long tag, long value) {
+        return mix(value + tag * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * A 64-bit hash of v, consistent with v.equals().
+     */
+    static long hashValue(Object v) {
+        if (v == null)
+            return NULL_HASH;
+        if (v instanceof String)
+            return tagged(STRING_TAG, hash((String) v));
+        if (v instanceof Boolean)
+            return tagged(BOOLEAN_TAG, (Boolean) v ? 1 : 0);
+        if (v instanceof Integer)
+            return tagged(INT_TAG, (Integer) v);
+        if (v instanceof Long)
+            return tagged(LONG_TAG, (Long) v);
+        if (v instanceof Float)
+            return tagged(FLOAT_TAG, Float.floatToIntBits((Float) v));
+        if (v instanceof Double)
+            return tagged(DOUBLE_TAG, Double.doubleToLongBits((Double) v));
+        if (v instanceof Short)
+            return tagged(SHORT_TAG, (Short) v);
+        if (v instanceof Byte)
+            return tagged(BYTE_TAG, (Byte) v);
+        if (v instanceof Character)
+            return tagged(CHAR_TAG, (Character) v);
+        if (v instanceof Vec3)
+            return tagged(VEC3_TAG, hashVec3((Vec3) v));
+        if (v instanceof List) {
+            long h = LIST_TAG;
+            for (var x : (List<?>) v)
+                h = mix(h * 31 + hashValue(x));
+            return h;
+        }
+        if (v instanceof Set) {
+            long h = 0;
+            for (var x : (Set<?>) v)
+                h += hashValue(x);
+            return tagged(SET_TAG, h);
+        }
+        if (v instanceof Map) {
+            long h = 0;
+            for (var E : ((Map<?, ?>) v).entrySet())
+                h += mix(hashValue(E.getKey()) * 31 + hashValue(E.getValue()));
+            return tagged(MAP_TAG, h);
+        }
+        return tagged(OTHER_TAG, v.hashCode());
+    }
+
+    /**
+     * True if, for values v and w that {@link #hashValue(Object)} both calls exact,
+     * equal hashes mean (up to a 64-bit collision) that v.equals(w). This is not
+     * the case for values hashed through their 32-bit hashCode(), nor for Vec3s
+     * with a NaN component, which are not equal to themselves.
+     */
+    static boolean isExact(Object v) {
+        if (v == null || v instanceof String || v instanceof Boolean || v instanceof Integer || v instanceof Long
+                || v instanceof Float || v instanceof Double || v instanceof Short || v instanceof Byte
+                || v instanceof Character)
+            return true;
+        if (v instanceof Vec3)
+            return isExact((Vec3) v);
+        if (v instanceof List || v instanceof Set) {
+            for (var x : (Iterable<?>) v) {
+                if (!isExact(x))
+                    return false;
+            }
+            return true;
+        }
+        if (v instanceof Map) {
+            for (var E : ((Map<?, ?>) v).entrySet()) {
+                if (!isExact(E.getKey()) || !isExact(E.getValue()))
+                    return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    static boolean isExact(Vec3 v) {
+        return v == null || !(Float.isNaN(v.x) || Float.isNaN(v.y) || Float.isNaN(v.z));
+    }
+
+    /**
+     * Vec3.equals compares with ==, under which 0.0 and -0.0 are equal, so they
+     * must get the same hash.
+     */
+    static long hashVec3(Vec3 v) {
+        long xy = ((long) Float.floatToIntBits(v.x + 0.0f) << 32) | (Float.floatToIntBits(v.y + 0.0f) & 0xFFFFFFFFL);
+        return mix(xy) + Float.floatToIntBits(v.z + 0.0f);
+    }
+
+    /**
+     * The term for the position (slot 0), extent (1), or velocity (2) of an
+     * entity.
+     */
+    static long vectorTerm(int slot, Vec3 v) {
+        return mix(VECTOR_SALTS[slot] + (v == null ? NULL_HASH : hashVec3(v)));
+    }
+
+    static long vectorTerms(Vec3 position, Vec3 extent, Vec3 velocity) {
+        return vectorTerm(0, position) + vectorTerm(1, extent) + vectorTerm(2, velocity);
+    }
+
+    static long propertyTerm(String key, Object value) {
+        return mix(PROPERTY_SALT + hash(key) * 31 + hashValue(value));
+    }
+
+    static long elementTerm(String id, long fingerprint) {
+        return mix(ELEMENT_SALT + hash(id) * 31 + fingerprint);
+    }
+
+}
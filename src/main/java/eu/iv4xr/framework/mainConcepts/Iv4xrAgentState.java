@@ -53,6 +53,12 @@ public class Iv4xrAgentState<NavgraphNode> extends State {
 	 */
 	Navigatable<NavgraphNode> worldNavigation;
 
+	/**
+	 * If true, and if the environment supports it, {@link #updateState(String)}
+	 * asks the environment for a delta observation rather than a full one.
+	 */
+	boolean useDeltaObservation = false ;
+
 	@Override
 	public Iv4xrEnvironment env() {
 		return (Iv4xrEnvironment) super.env();
@@ -79,6 +85,18 @@ public class Iv4xrAgentState<NavgraphNode> extends State {
 		return this ;
 	}
 
+	/**
+	 * Let {@link #updateState(String)} use the delta protocol: if the environment
+	 * supports it (see {@link Iv4xrEnvironment#supportsDeltaObservation()}), only
+	 * the change since the last observation is requested, and merged with
+	 * {@link WorldModel#mergeDelta(WorldModelDelta)}. The method returns the state
+	 * itself so that it can be used in the Fluent Interface style.
+	 */
+	public Iv4xrAgentState<NavgraphNode> setUseDeltaObservation(boolean flag) {
+		this.useDeltaObservation = flag ;
+		return this ;
+	}
+
 	/**
 	 * Link the given environment to this State. An instance of
 	 * {@link Iv4xrEnvironment} is needed as the environment. 
@@ -99,17 +117,24 @@ public class Iv4xrAgentState<NavgraphNode> extends State {
 	 * This will call the observe() method of the environment attached to this state
 	 * to obtain a fresh observation, and then uses it to update this state. If
 	 * {@link #worldmodel} exists, this new observation will be merged into the
-	 * {@link #worldmodel}.
+	 * {@link #worldmodel}, see
+	 * {@link Iv4xrEnvironment#observeInto(String, WorldModel)}. If the delta protocol is turned on (see
+	 * {@link #setUseDeltaObservation(boolean)}), the environment is asked for the
+	 * change since the timestamp of the {@link #worldmodel} instead.
 	 */
 	@Override
 	public void updateState(String agentId) {
 		// note: intentionally NOT calling super.updateState()
-		var newObs = env().observe(agentId);
+		var env = env() ;
+		if (worldmodel != null && useDeltaObservation && env.supportsDeltaObservation()) {
+			worldmodel.mergeDelta(env.observeDelta(agentId, worldmodel.timestamp));
+			return ;
+		}
 		if (worldmodel != null) {
-			worldmodel.mergeNewObservation(newObs);
+			env.observeInto(agentId, worldmodel);
 		}
 		else {
-			worldmodel = newObs ;
+			worldmodel = env.observe(agentId) ;
 		}
 	}
 
@@ -1,5 +1,7 @@
 package eu.iv4xr.framework.mainConcepts;
 
+import java.util.List;
+
 import eu.iv4xr.framework.spatial.meshes.Mesh;
 import nl.uu.cs.aplib.mainConcepts.Environment;
 
@@ -60,4 +62,42 @@ public class Iv4xrEnvironment extends Environment  {
     	throw new UnsupportedOperationException();
     }
 
+    /**
+     * Obtain a fresh observation of the agent of the given id, and merge it into
+     * the given WorldModel, see {@link WorldModel#mergeNewObservation(WorldModel)}.
+     * The method returns the entities that change the state of the WorldModel.
+     * By default the observation is obtained with {@link #observe(String)};
+     * override this if the observation can be merged while it is received.
+     */
+    public List<WorldEntity> observeInto(String agentId, WorldModel target) {
+    	return target.mergeNewObservation(observe(agentId));
+    }
+
+    /**
+     * True if this environment can send observations as deltas, see
+     * {@link #observeDelta(String, long)}. The default is false; override this
+     * along with observeDelta.
+     */
+    public boolean supportsDeltaObservation() {
+    	return false ;
+    }
+
+    /**
+     * You should implement this method if the real environment supports the delta
+     * protocol (and then also override {@link #supportsDeltaObservation()}).
+     * 
+     * <p>
+     * Like {@link #observe(String)}, but instead of the full observation, this
+     * method returns only the change since the observation at the given time: the
+     * entities that were created or changed, and the ids of the entities that are
+     * unchanged or removed; see {@link WorldModelDelta}. An agent can merge it
+     * into its WorldModel with {@link WorldModel#mergeDelta(WorldModelDelta)}.
+     * 
+     * @param agentId        The id of the agent whose observation is requested.
+     * @param sinceTimestamp The timestamp of the agent's current WorldModel.
+     */
+    public WorldModelDelta observeDelta(String agentId, long sinceTimestamp) {
+    	throw new UnsupportedOperationException();
+    }
+
 }
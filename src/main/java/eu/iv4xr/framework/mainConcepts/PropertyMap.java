@@ -0,0 +1,452 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * The map used for {@link WorldEntity#properties}. Rather than a hash table per
+ * entity, the property names are kept once per entity type, in a
+ * {@link Schema} that assigns every name a slot number. The map itself only
+ * holds an array of slots: int, float, and boolean values are stored unboxed in
+ * an int[], other values in an Object[], which is only allocated when needed.
+ * The arrays are as long as the highest slot the entity uses, so this is
+ * compact as long as the entities of a type use mostly the same property names.
+ * A schema has at most {@link Schema#MAX_SLOTS} names; names that do not fit,
+ * e.g. names that are generated per entity, are kept in an ordinary hash map of
+ * the entity instead, so they do not make the arrays of other entities grow.
+ *
+ * <p>
+ * Values that are stored unboxed are boxed again when they are read through the
+ * Map interface (as equal, but not the same, objects); the typed getters of
+ * {@link WorldEntity} read them directly.
+ *
+ * <p>
+ * Every change, also through the map's views, goes through
+ * {@link #put(String, Serializable)}, {@link #remove(Object)}, or
+ * {@link #clear()}, which keep the fingerprint of the owner up to date.
+ */
+class PropertyMap extends AbstractMap<String, Serializable> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final byte ABSENT = 0;
+    static final byte OBJECT = 1;
+    static final byte INT = 2;
+    static final byte FLOAT = 3;
+    static final byte BOOLEAN = 4;
+
+    private static final byte[] NO_SLOTS = new byte[0];
+
+    /**
+     * The property names of an entity type, each with its own slot number.
+     * Names are only added, never removed, so slot numbers are stable. Schemas
+     * are shared by all WorldModels, so the number of names is bounded.
+     */
+    static class Schema {
+
+        static final int MAX_SLOTS = 64;
+
+        private static final Map<String, Schema> schemas = new ConcurrentHashMap<>();
+
+        final String type;
+        private final Map<String, Integer> slots = new ConcurrentHashMap<>();
+        private volatile String[] names = new String[4];
+        private int count = 0;
+
+        private Schema(String type) {
+            this.type = type;
+        }
+
+        /**
+         * Return the schema of the given type (null is allowed).
+         */
+        static Schema of(String type) {
+            return schemas.computeIfAbsent(type == null ? "" : type, Schema::new);
+        }
+
+        /**
+         * The slot of the given name, or -1 if the schema does not have it.
+         */
+        int slotOf(Object name) {
+            if (name == null)
+                return -1;
+            var slot = slots.get(name);
+            return slot == null ? -1 : slot;
+        }
+
+        /**
+         * The slot of the given name; it is added if the schema does not have it.
+         * Returns -1 if the name is not in the schema and the schema is full.
+         */
+        int slotOrAdd(String name) {
+            var slot = slots.get(name);
+            return slot != null ? slot : add(name);
+        }
+
+        private synchronized int add(String name) {
+            var slot = slots.get(name);
+            if (slot != null)
+                return slot;
+            if (count == MAX_SLOTS)
+                return -1;
+            if (count == names.length)
+                names = Arrays.copyOf(names, 2 * count);
+            // the name is written before the slot is published:
+            names[count] = name;
+            slots.put(name, count);
+            return count++;
+        }
+
+        String name(int slot) {
+            return names[slot];
+        }
+
+        synchronized int size() {
+            return count;
+        }
+    }
+
+    transient WorldEntity owner;
+    transient Schema schema;
+    private transient byte[] kinds = NO_SLOTS;
+    private transient int[] prims;
+    private transient Object[] refs;
+    /**
+     * The properties whose names did not fit in the schema; null if there are
+     * none.
+     */
+    private transient HashMap<String, Serializable> overflow;
+    private transient int size = 0;
+
+    PropertyMap(WorldEntity owner) {
+        this.owner = owner;
+        this.schema = Schema.of(owner.type);
+    }
+
+    /**
+     * Return a copy of this map for the given owner; the values are copied with
+     * {@link WorldEntity#copyValue(Serializable)}.
+     */
+    PropertyMap copyFor(WorldEntity newOwner) {
+        var copy = new PropertyMap(newOwner);
+        if (copy.schema != schema) {
+            forEach(copy::put);
+            return copy;
+        }
+        if (overflow != null) {
+            copy.overflow = new HashMap<>(overflow.size());
+            for (var P : overflow.entrySet())
+                copy.overflow.put(P.getKey(), WorldEntity.copyValue(P.getValue()));
+        }
+        copy.kinds = kinds.clone();
+        copy.size = size;
+        if (prims != null)
+            copy.prims = prims.clone();
+        if (refs != null) {
+            copy.refs = new Object[refs.length];
+            for (int i = 0; i < refs.length; i++) {
+                if (refs[i] != null)
+                    copy.refs[i] = WorldEntity.copyValue((Serializable) refs[i]);
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * The slot of the given property name, or -1 if the name is not in the
+     * schema of this type; the property may then still be in the overflow map.
+     */
+    int slotOf(Object key) {
+        return schema.slotOf(key);
+    }
+
+    /**
+     * The kind of value in the given slot (ABSENT, OBJECT, INT, FLOAT, or
+     * BOOLEAN).
+     */
+    byte kind(int slot) {
+        return slot < 0 || slot >= kinds.length ? ABSENT : kinds[slot];
+    }
+
+    /**
+     * The raw value of an INT, FLOAT, or BOOLEAN slot.
+     */
+    int primitive(int slot) {
+        return prims[slot];
+    }
+
+    private Serializable value(int slot) {
+        switch (kinds[slot]) {
+        case INT:
+            return prims[slot];
+        case FLOAT:
+            return Float.intBitsToFloat(prims[slot]);
+        case BOOLEAN:
+            return prims[slot] != 0;
+        case OBJECT:
+            return (Serializable) refs[slot];
+        default:
+            return null;
+        }
+    }
+
+    private void ensureSlots(int n) {
+        if (n <= kinds.length)
+            return;
+        // leave room for the names that the schema already has:
+        int len = Math.max(n, Math.min(schema.size(), 2 * n));
+        kinds = Arrays.copyOf(kinds, len);
+        if (prims != null)
+            prims = Arrays.copyOf(prims, len);
+        if (refs != null)
+            refs = Arrays.copyOf(refs, len);
+    }
+
+    private void store(int slot, Serializable value) {
+        ensureSlots(slot + 1);
+        byte kind;
+        int prim = 0;
+        if (value instanceof Integer) {
+            kind = INT;
+            prim = (Integer) value;
+        } else if (value instanceof Float) {
+            kind = FLOAT;
+            prim = Float.floatToRawIntBits((Float) value);
+        } else if (value instanceof Boolean) {
+            kind = BOOLEAN;
+            prim = (Boolean) value ? 1 : 0;
+        } else {
+            kind = OBJECT;
+        }
+        if (kind == OBJECT) {
+            if (refs == null)
+                refs = new Object[kinds.length];
+            refs[slot] = value;
+        } else {
+            if (prims == null)
+                prims = new int[kinds.length];
+            prims[slot] = prim;
+            if (refs != null)
+                refs[slot] = null;
+        }
+        kinds[slot] = kind;
+    }
+
+    private boolean tracked() {
+        return owner != null && owner.properties == this;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = slotOf(key);
+        if (slot < 0)
+            return overflow != null && overflow.containsKey(key);
+        return kind(slot) != ABSENT;
+    }
+
+    @Override
+    public Serializable get(Object key) {
+        int slot = slotOf(key);
+        if (slot < 0)
+            return overflow == null ? null : overflow.get(key);
+        return kind(slot) == ABSENT ? null : value(slot);
+    }
+
+    @Override
+    public Serializable put(String key, Serializable value) {
+        if (key == null)
+            throw new IllegalArgumentException("A property name cannot be null.");
+        int slot = schema.slotOrAdd(key);
+        boolean present;
+        Serializable old;
+        if (slot < 0) {
+            if (overflow == null)
+                overflow = new HashMap<>(4);
+            present = overflow.containsKey(key);
+            old = overflow.put(key, value);
+        } else {
+            present = kind(slot) != ABSENT;
+            old = present ? value(slot) : null;
+            store(slot, value);
+        }
+        if (!present)
+            size++;
+        if (tracked())
+            owner.propertyChanged(key, present, old, value);
+        return old;
+    }
+
+    @Override
+    public Serializable remove(Object key) {
+        int slot = slotOf(key);
+        Serializable old;
+        if (slot < 0) {
+            if (overflow == null || !overflow.containsKey(key))
+                return null;
+            old = overflow.remove(key);
+            if (overflow.isEmpty())
+                overflow = null;
+        } else {
+            if (kind(slot) == ABSENT)
+                return null;
+            old = value(slot);
+            kinds[slot] = ABSENT;
+            if (refs != null)
+                refs[slot] = null;
+        }
+        size--;
+        if (tracked())
+            owner.propertyRemoved((String) key, old);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        kinds = NO_SLOTS;
+        prims = null;
+        refs = null;
+        overflow = null;
+        size = 0;
+        if (tracked())
+            owner.invalidateFingerprint();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Serializable> action) {
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] != ABSENT)
+                action.accept(schema.name(i), value(i));
+        }
+        if (overflow != null)
+            overflow.forEach(action);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Serializable>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Serializable>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    /**
+     * An entry whose setValue writes through to the map.
+     */
+    private class Entry extends AbstractMap.SimpleEntry<String, Serializable> {
+
+        private static final long serialVersionUID = 1L;
+
+        Entry(String key, Serializable value) {
+            super(key, value);
+        }
+
+        @Override
+        public Serializable setValue(Serializable value) {
+            put(getKey(), value);
+            return super.setValue(value);
+        }
+    }
+
+    /**
+     * Iterates over the slots, and then over a snapshot of the overflow names.
+     */
+    private class EntryIterator implements Iterator<Map.Entry<String, Serializable>> {
+
+        int next = advance(0);
+        Iterator<String> overflowNames;
+        String lastName;
+
+        int advance(int i) {
+            while (i < kinds.length && kinds[i] == ABSENT)
+                i++;
+            return i;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next < kinds.length)
+                return true;
+            if (overflowNames == null)
+                overflowNames = overflow == null ? Collections.emptyIterator()
+                        : new ArrayList<>(overflow.keySet()).iterator();
+            return overflowNames.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Serializable> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            if (next < kinds.length) {
+                int slot = next;
+                next = advance(next + 1);
+                lastName = schema.name(slot);
+                return new Entry(lastName, value(slot));
+            }
+            lastName = overflowNames.next();
+            return new Entry(lastName, overflow.get(lastName));
+        }
+
+        @Override
+        public void remove() {
+            if (lastName == null)
+                throw new IllegalStateException();
+            PropertyMap.this.remove(lastName);
+            lastName = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(schema.type);
+        out.writeInt(size);
+        for (int i = 0; i < kinds.length; i++) {
+            if (kinds[i] != ABSENT) {
+                out.writeObject(schema.name(i));
+                out.writeObject(value(i));
+            }
+        }
+        if (overflow != null) {
+            for (var P : overflow.entrySet()) {
+                out.writeObject(P.getKey());
+                out.writeObject(P.getValue());
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        schema = Schema.of((String) in.readObject());
+        kinds = NO_SLOTS;
+        int n = in.readInt();
+        // the owner is attached afterwards, by the owner's readObject:
+        for (int i = 0; i < n; i++)
+            put((String) in.readObject(), (Serializable) in.readObject());
+    }
+
+}
@@ -215,6 +215,16 @@ public class TestAgent extends AutonomousBasicAgent {
     public TestAgent withCostFunction(CostFunction f) {
         return (TestAgent) super.withCostFunction(f);
     }
+
+    /**
+     * Turn on or off the evaluation of tactics through their compiled form. The
+     * method returns the agent itself so that it can be used in the Fluent
+     * Interface style.
+     */
+    @Override
+    public TestAgent useCompiledTactics(boolean flag) {
+        return (TestAgent) super.useCompiledTactics(flag);
+    }
     
 	/**
 	 * Attach an instrumentation function. This is a function can be used to
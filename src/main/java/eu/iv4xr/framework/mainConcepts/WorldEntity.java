@@ -3,6 +3,7 @@ package eu.iv4xr.framework.mainConcepts;
 import java.io.*;
 import java.util.*;
 
+import eu.iv4xr.framework.exception.Iv4xrError;
 import eu.iv4xr.framework.spatial.Vec3;
 
 public class WorldEntity implements Serializable {
@@ -48,14 +49,25 @@ public class WorldEntity implements Serializable {
      * velocity) to be dynamic.
      */
     public final boolean dynamic;
-    public Map<String, Serializable> properties = new HashMap<>();
+    /**
+     * The properties of this entity. Changes made through the map are tracked by
+     * the entity's fingerprint (see {@link #fingerprint()}). The map stores the
+     * property names once per entity type, and int, float, and boolean values
+     * unboxed; see {@link PropertyMap}.
+     */
+    public Map<String, Serializable> properties;
 
-    public Map<String, WorldEntity> elements = new HashMap<>();
+    /**
+     * The sub-entities of this entity. Small sets of sub-entities are kept in
+     * arrays rather than in a hash table; see {@link ElementMap}.
+     */
+    public Map<String, WorldEntity> elements = new ElementMap();
 
     public WorldEntity(String id, String type, boolean dynamic) {
         this.id = id;
         this.type = type;
         this.dynamic = dynamic;
+        this.properties = new PropertyMap(this);
     }
 
     /**
@@ -63,6 +75,25 @@ public class WorldEntity implements Serializable {
      */
     private WorldEntity previousState = null;
 
+    /**
+     * The cached fingerprint of the entity's own state (so, excluding its
+     * sub-entities), and the fields it was calculated from. The cache is used if
+     * these fields still refer to the same objects.
+     */
+    private transient long ownFingerprint;
+    private transient boolean ownFingerprintExact;
+    private transient boolean ownFingerprintValid = false;
+    private transient Vec3 fingerprintedPosition;
+    private transient Vec3 fingerprintedExtent;
+    private transient Vec3 fingerprintedVelocity;
+    private transient Map<String, Serializable> fingerprintedProperties;
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (properties instanceof PropertyMap)
+            ((PropertyMap) properties).owner = this;
+    }
+
     private boolean equal_(Object a, Object b) {
         if (a == null)
             return b == null;
@@ -74,11 +105,12 @@ public class WorldEntity implements Serializable {
      * same ID), but its state is possibly different than this entity. This method
      * checks if both entity have the same state.
      * 
-     * Dynamic entity is assumed not to change state. Else this method first check
-     * the hash-value of both entities. If they are the same, this method performs
-     * deep comparison of position, velocity, properties, and sub-entities. This
-     * might be a bit expensive; override this method if a faster implementation is
-     * wanted.
+     * Non-dynamic entity is assumed not to change state. Else this method first
+     * compares the fingerprints of both entities (see {@link #fingerprint()}). If
+     * they differ, the entities have different states. If they are the same, and
+     * both are exact (see {@link #hasExactFingerprint()}), the entities have the
+     * same state. Otherwise this method performs deep comparison of position,
+     * velocity, properties, and sub-entities.
      */
     public boolean hasSameState(WorldEntity old) {
 
@@ -86,8 +118,10 @@ public class WorldEntity implements Serializable {
         if (!this.dynamic)
             return true;
         // else:
-        if (this.hashCode() != old.hashCode())
+        if (this.fingerprint() != old.fingerprint())
             return false;
+        if (this.hasExactFingerprint() && old.hasExactFingerprint())
+            return true;
 
         if (!(equal_(position, old.position) && equal_(velocity, old.velocity)
                 && properties.size() == old.properties.size() && equal_(extent, old.extent)))
@@ -112,11 +146,153 @@ public class WorldEntity implements Serializable {
         return true;
     }
 
+    /**
+     * Return a 64-bit fingerprint of the state of this entity, that is, of its
+     * position, extent, velocity, properties, and sub-entities (the same fields
+     * that {@link #equals(Object)} compares). Entities with the same state have
+     * the same fingerprint. Entities with different states have, with very high
+     * probability, different fingerprints.
+     *
+     * <p>
+     * The fingerprint of the entity's own fields is cached, so checking it again
+     * costs O(1) plus a sum over the sub-entities, which cache their own. The
+     * cache is refreshed when a different Vec3 or map is assigned to one of the
+     * fields, and updated incrementally when a property is put or removed, and
+     * by {@link #setPosition(Vec3)}, {@link #setExtent(Vec3)}, and
+     * {@link #setVelocity(Vec3)}. A change that cannot be seen this way, e.g.
+     * changing the x of the position in place, or changing a List inside a
+     * property, must be followed by {@link #invalidateFingerprint()}.
+     */
+    public long fingerprint() {
+        validateOwnFingerprint();
+        long fp = ownFingerprint;
+        for (var E : elements.entrySet())
+            fp += Fingerprints.elementTerm(E.getKey(), E.getValue().fingerprint());
+        return fp;
+    }
+
+    /**
+     * True if equal fingerprints of this entity and another one mean that they
+     * have the same state. This is the case if the fingerprint is calculated from
+     * exact 64-bit hashes of all the values: strings, booleans, numbers,
+     * characters, Vec3s without NaN components, and lists, sets, and maps of
+     * those. Values of other types are hashed through their hashCode(); then
+     * {@link #hasSameState(WorldEntity)} does not trust equal fingerprints and
+     * performs a deep comparison.
+     */
+    public boolean hasExactFingerprint() {
+        validateOwnFingerprint();
+        if (!ownFingerprintExact)
+            return false;
+        for (var child : elements.values()) {
+            if (!child.hasExactFingerprint())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Discard the cached fingerprint of this entity, e.g. after changing its
+     * position in place. It will be recalculated when it is needed.
+     */
+    public void invalidateFingerprint() {
+        ownFingerprintValid = false;
+    }
+
+    private void validateOwnFingerprint() {
+        if (ownFingerprintValid && fingerprintedPosition == position && fingerprintedExtent == extent
+                && fingerprintedVelocity == velocity && fingerprintedProperties == properties
+                && properties instanceof PropertyMap && ((PropertyMap) properties).owner == this)
+            return;
+        long fp = Fingerprints.vectorTerms(position, extent, velocity);
+        boolean exact = Fingerprints.isExact(position) && Fingerprints.isExact(extent)
+                && Fingerprints.isExact(velocity);
+        for (var P : properties.entrySet()) {
+            fp += Fingerprints.propertyTerm(P.getKey(), P.getValue());
+            exact = exact && Fingerprints.isExact(P.getValue());
+        }
+        ownFingerprint = fp;
+        ownFingerprintExact = exact;
+        fingerprintedPosition = position;
+        fingerprintedExtent = extent;
+        fingerprintedVelocity = velocity;
+        fingerprintedProperties = properties;
+        ownFingerprintValid = true;
+    }
+
+    /**
+     * Called by {@link PropertyMap} when a property is put.
+     */
+    void propertyChanged(String key, boolean wasPresent, Serializable oldValue, Serializable newValue) {
+        if (!ownFingerprintValid)
+            return;
+        if (wasPresent)
+            ownFingerprint -= Fingerprints.propertyTerm(key, oldValue);
+        ownFingerprint += Fingerprints.propertyTerm(key, newValue);
+        // an inexact value that is replaced or removed is not tracked; the
+        // fingerprint stays inexact until it is recalculated:
+        ownFingerprintExact = ownFingerprintExact && Fingerprints.isExact(newValue);
+    }
+
+    /**
+     * Called by {@link PropertyMap} when a property is removed.
+     */
+    void propertyRemoved(String key, Serializable oldValue) {
+        if (ownFingerprintValid)
+            ownFingerprint -= Fingerprints.propertyTerm(key, oldValue);
+    }
+
+    /**
+     * Set the position of this entity, updating its fingerprint incrementally.
+     */
+    public void setPosition(Vec3 position) {
+        if (ownFingerprintValid && fingerprintedPosition == this.position) {
+            ownFingerprint += Fingerprints.vectorTerm(0, position) - Fingerprints.vectorTerm(0, this.position);
+            ownFingerprintExact = ownFingerprintExact && Fingerprints.isExact(position);
+            fingerprintedPosition = position;
+        }
+        this.position = position;
+    }
+
+    /**
+     * Set the extent of this entity, updating its fingerprint incrementally.
+     */
+    public void setExtent(Vec3 extent) {
+        if (ownFingerprintValid && fingerprintedExtent == this.extent) {
+            ownFingerprint += Fingerprints.vectorTerm(1, extent) - Fingerprints.vectorTerm(1, this.extent);
+            ownFingerprintExact = ownFingerprintExact && Fingerprints.isExact(extent);
+            fingerprintedExtent = extent;
+        }
+        this.extent = extent;
+    }
+
+    /**
+     * Set the velocity of this entity, updating its fingerprint incrementally.
+     */
+    public void setVelocity(Vec3 velocity) {
+        if (ownFingerprintValid && fingerprintedVelocity == this.velocity) {
+            ownFingerprint += Fingerprints.vectorTerm(2, velocity) - Fingerprints.vectorTerm(2, this.velocity);
+            ownFingerprintExact = ownFingerprintExact && Fingerprints.isExact(velocity);
+            fingerprintedVelocity = velocity;
+        }
+        this.velocity = velocity;
+    }
+
     public Serializable getProperty(String propertyName) {
         return properties.get(propertyName);
     }
 
     public boolean getBooleanProperty(String propertyName) {
+        if (properties instanceof PropertyMap) {
+            // read an unboxed value directly:
+            var props = (PropertyMap) properties;
+            int slot = props.slotOf(propertyName);
+            var kind = props.kind(slot);
+            if (kind == PropertyMap.BOOLEAN)
+                return props.primitive(slot) != 0;
+            if (kind == PropertyMap.ABSENT && slot >= 0)
+                return false;
+        }
         var V = getProperty(propertyName);
         if (V == null)
             return false;
@@ -133,12 +309,31 @@ public class WorldEntity implements Serializable {
     }
 
     public int getIntProperty(String propertyName) {
+        if (properties instanceof PropertyMap) {
+            var props = (PropertyMap) properties;
+            int slot = props.slotOf(propertyName);
+            if (props.kind(slot) == PropertyMap.INT)
+                return props.primitive(slot);
+        }
         var V = getProperty(propertyName);
         if (V == null || !(V instanceof Integer))
             throw new IllegalArgumentException(id + " has no integer property " + propertyName);
         return (int) V;
     }
 
+    public float getFloatProperty(String propertyName) {
+        if (properties instanceof PropertyMap) {
+            var props = (PropertyMap) properties;
+            int slot = props.slotOf(propertyName);
+            if (props.kind(slot) == PropertyMap.FLOAT)
+                return Float.intBitsToFloat(props.primitive(slot));
+        }
+        var V = getProperty(propertyName);
+        if (V == null || !(V instanceof Float))
+            throw new IllegalArgumentException(id + " has no float property " + propertyName);
+        return (float) V;
+    }
+
     /**
      * This will link e as the previous state of this Entity. The previous state of
      * e is cleared to null (we only want to track the history of past state up to
@@ -149,10 +344,29 @@ public class WorldEntity implements Serializable {
      */
     public void linkPreviousState(WorldEntity e) {
         this.previousState = e;
-        if (e != null)
+        if (e != null && e.previousState != null)
             e.previousState = null;
     }
 
+    /**
+     * Return an entity with the same state as this one, but without a previous
+     * state. Unlike {@link #deepcopy()} this costs O(1): the result shares the
+     * vectors, the properties, and the sub-entities of this entity, so neither may
+     * be changed afterwards. It is used to link an entity that is shared between
+     * WorldModels as the previous state of its successor, without changing it.
+     */
+    WorldEntity viewWithoutHistory() {
+        var view = new WorldEntity(id, type, dynamic);
+        view.timestamp = timestamp;
+        view.lastStutterTimestamp = lastStutterTimestamp;
+        view.position = position;
+        view.extent = extent;
+        view.velocity = velocity;
+        view.properties = properties;
+        view.elements = elements;
+        return view;
+    }
+
     /**
      * Return a WorldEntity representing this entity's previous state, if that is
      * tracked.
@@ -214,14 +428,104 @@ public class WorldEntity implements Serializable {
                 Objects.equals(elements, that.elements);
     }
 
+    /**
+     * Return a deep copy of this entity, including its previous state. This now
+     * uses {@link #deepcopy()}; the exceptions are never thrown, but remain in
+     * the signature for compatibility.
+     */
     public WorldEntity deepclone() throws IOException, ClassNotFoundException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(bos);
-        out.writeObject(this);
-        ByteArrayInputStream bis = new ByteArrayInputStream(bos.toByteArray());
-        ObjectInputStream in = new ObjectInputStream(bis);
-        var copied = (WorldEntity) in.readObject();
-        return copied;
+        return deepcopy();
+    }
+
+    /**
+     * Return a deep copy of this entity: its vectors, properties, sub-entities,
+     * and its previous state are copied as well. The result is the same as
+     * copying the entity through serialization, but it is much faster. Immutable
+     * property values (strings, boxed numbers, booleans, characters, and enums)
+     * are shared; Vec3s, ArrayLists, HashSets, and HashMaps are copied field by
+     * field, and other values through serialization.
+     */
+    public WorldEntity deepcopy() {
+        var copy = copyWithoutHistory();
+        if (previousState != null)
+            copy.previousState = previousState.copyWithoutHistory();
+        return copy;
+    }
+
+    private WorldEntity copyWithoutHistory() {
+        var copy = new WorldEntity(id, type, dynamic);
+        copy.timestamp = timestamp;
+        copy.lastStutterTimestamp = lastStutterTimestamp;
+        copy.position = copyVec3(position);
+        copy.extent = copyVec3(extent);
+        copy.velocity = copyVec3(velocity);
+        if (properties instanceof PropertyMap) {
+            copy.properties = ((PropertyMap) properties).copyFor(copy);
+        } else {
+            for (var P : properties.entrySet())
+                copy.properties.put(P.getKey(), copyValue(P.getValue()));
+        }
+        for (var E : elements.entrySet())
+            copy.elements.put(E.getKey(), E.getValue().copyWithoutHistory());
+        // the copy has the same fingerprint; take it over if it is known:
+        if (ownFingerprintValid && fingerprintedPosition == position && fingerprintedExtent == extent
+                && fingerprintedVelocity == velocity && fingerprintedProperties == properties
+                && properties instanceof PropertyMap) {
+            copy.ownFingerprint = ownFingerprint;
+            copy.ownFingerprintExact = ownFingerprintExact;
+            copy.fingerprintedPosition = copy.position;
+            copy.fingerprintedExtent = copy.extent;
+            copy.fingerprintedVelocity = copy.velocity;
+            copy.fingerprintedProperties = copy.properties;
+            copy.ownFingerprintValid = true;
+        }
+        return copy;
+    }
+
+    private static Vec3 copyVec3(Vec3 v) {
+        return v == null ? null : v.copy();
+    }
+
+    /**
+     * Deep copy of a property value.
+     */
+    @SuppressWarnings("unchecked")
+    static Serializable copyValue(Serializable v) {
+        if (v == null || v instanceof String || v instanceof Boolean || v instanceof Integer || v instanceof Long
+                || v instanceof Double || v instanceof Float || v instanceof Short || v instanceof Byte
+                || v instanceof Character || v instanceof Enum)
+            return v;
+        if (v.getClass() == Vec3.class)
+            return ((Vec3) v).copy();
+        if (v.getClass() == ArrayList.class) {
+            var list = (ArrayList<Serializable>) v;
+            var copy = new ArrayList<Serializable>(list.size());
+            for (var x : list)
+                copy.add(copyValue(x));
+            return copy;
+        }
+        if (v.getClass() == HashSet.class) {
+            var copy = new HashSet<Serializable>();
+            for (var x : (HashSet<Serializable>) v)
+                copy.add(copyValue(x));
+            return copy;
+        }
+        if (v.getClass() == HashMap.class) {
+            var copy = new HashMap<Serializable, Serializable>();
+            for (var E : ((HashMap<Serializable, Serializable>) v).entrySet())
+                copy.put(copyValue(E.getKey()), copyValue(E.getValue()));
+            return copy;
+        }
+        // anything else, e.g. arrays or the user's own classes:
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bos);
+            out.writeObject(v);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+            return (Serializable) in.readObject();
+        } catch (IOException | ClassNotFoundException e) {
+            throw new Iv4xrError("Cannot copy a property value of type " + v.getClass().getName() + ": " + e);
+        }
     }
 
 }
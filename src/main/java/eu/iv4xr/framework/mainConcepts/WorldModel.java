@@ -2,6 +2,7 @@ package eu.iv4xr.framework.mainConcepts;
 
 import java.io.Serializable;
 import java.util.*;
+import java.util.function.Consumer;
 
 import eu.iv4xr.framework.environments.W3DEnvironment;
 import eu.iv4xr.framework.spatial.Vec3;
@@ -41,9 +42,155 @@ public class WorldModel implements Serializable {
      */
     public Map<String, WorldEntity> elements = new HashMap<>();
 
+    /**
+     * If not null, this WorldModel shares entities with a copy made by
+     * {@link #copyOnWrite()}, and this set contains the ids of the entities that
+     * it does not share (it made its own copy, or they were added later). If
+     * null, the WorldModel owns all its entities.
+     */
+    private transient Set<String> ownedEntities = null;
+
+    /**
+     * A spatial index and an index by type over the elements; see
+     * {@link #getElementsWithin(Vec3, float)}. It is built when it is first
+     * needed, and then maintained by {@link #updateEntity(WorldEntity)} and the
+     * merge-methods.
+     */
+    private transient EntityIndex index = null;
+
+    /**
+     * If not null, the versions of the entities of this WorldModel are recorded
+     * here; see {@link #trackHistory(int)}.
+     */
+    private transient WorldModelHistory history = null;
+
+    /**
+     * The subscriptions to changes of the entities; see
+     * {@link #onChangeOf(String, Consumer)}.
+     */
+    private transient EntitySubscriptions subscriptions = null;
+
     public WorldModel() {
     }
 
+    /**
+     * Return a deep copy of this WorldModel; all its entities are copied with
+     * {@link WorldEntity#deepcopy()}.
+     */
+    public WorldModel deepcopy() {
+        var copy = new WorldModel();
+        copyAgentInfo(copy);
+        for (var E : elements.entrySet())
+            copy.elements.put(E.getKey(), E.getValue().deepcopy());
+        return copy;
+    }
+
+    /**
+     * Return a copy of this WorldModel that initially shares all its entities with
+     * this WorldModel, so making it only costs a copy of the map of elements. An
+     * entity is copied when it is about to be changed, by either WorldModel,
+     * through {@link #updateEntity(WorldEntity)} or the merge-methods, so that the
+     * change is not visible to the other. This is useful e.g. to simulate a plan
+     * on a copy of an agent's WorldModel.
+     *
+     * <p>
+     * To change a possibly shared entity in any other way, obtain it with
+     * {@link #getElementForUpdate(String)} rather than with
+     * {@link #getElement(String)}.
+     */
+    public WorldModel copyOnWrite() {
+        var copy = new WorldModel();
+        copyAgentInfo(copy);
+        copy.elements.putAll(elements);
+        copy.ownedEntities = new HashSet<>();
+        this.ownedEntities = new HashSet<>();
+        return copy;
+    }
+
+    private void copyAgentInfo(WorldModel copy) {
+        copy.agentId = agentId;
+        copy.position = position == null ? null : position.copy();
+        copy.velocity = velocity == null ? null : velocity.copy();
+        copy.extent = extent == null ? null : extent.copy();
+        copy.timestamp = timestamp;
+    }
+
+    /**
+     * Return the top-level entity with the given id, such that it can be changed
+     * without affecting WorldModels that this one shares entities with (see
+     * {@link #copyOnWrite()}). If the entity is shared, it is first replaced by a
+     * deep copy.
+     */
+    public WorldEntity getElementForUpdate(String id) {
+        var e = elements.get(id);
+        if (e == null || ownedEntities == null || ownedEntities.contains(id))
+            return e;
+        e = e.deepcopy();
+        elements.put(id, e);
+        ownedEntities.add(id);
+        return e;
+    }
+
+    private void own(String id) {
+        if (ownedEntities != null)
+            ownedEntities.add(id);
+    }
+
+    /**
+     * Mark all entities as shared, so that they are copied before they are
+     * changed.
+     */
+    void shareAll() {
+        if (ownedEntities == null)
+            ownedEntities = new HashSet<>();
+        else
+            ownedEntities.clear();
+    }
+
+    /**
+     * Start recording the history of the entities of this WorldModel, keeping at
+     * most maxVersions versions; see {@link WorldModelHistory}. The current
+     * entities form the first version. Afterwards, every merge with
+     * {@link #mergeNewObservation(WorldModel)} or
+     * {@link #mergeDelta(WorldModelDelta)} that changes some entities records a new
+     * version. If the history was already tracked, it is restarted.
+     *
+     * <p>
+     * Recorded entities are shared between the history and this WorldModel. As
+     * with {@link #copyOnWrite()}, the WorldModel copies such an entity before it
+     * changes it (this includes updating its timestamp), so entities that are to
+     * be changed in another way should be obtained with
+     * {@link #getElementForUpdate(String)}.
+     */
+    public WorldModelHistory trackHistory(int maxVersions) {
+        history = new WorldModelHistory(maxVersions);
+        shareAll();
+        history.record(timestamp, elements.values(), Collections.emptyList());
+        return history;
+    }
+
+    /**
+     * Return the history of this WorldModel, or null if it is not tracked.
+     */
+    public WorldModelHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Stop recording the history of this WorldModel, and discard it.
+     */
+    public void stopTrackingHistory() {
+        history = null;
+    }
+
+    private void recordHistory(Collection<WorldEntity> changed, Collection<String> removed) {
+        if (history == null)
+            return;
+        history.record(timestamp, changed, removed);
+        for (var e : changed)
+            ownedEntities.remove(e.id);
+    }
+
     /**
      * Increase the time stamp by one unit.
      */
@@ -92,25 +239,38 @@ public class WorldModel implements Serializable {
         if (current == null) {
             // e is new:
             elements.put(e.id, e);
+            own(e.id);
+            if (index != null)
+                index.put(e);
+            if (subscriptions != null)
+                subscriptions.dispatch(EntityChange.Kind.ADDED, e, null, e.timestamp);
             return e;
         } else {
             // case (1) e is at least as recent as "current":
             if (e.timestamp >= current.timestamp) {
                 // check first if there is a state change
                 if (e.hasSameState(current)) {
-                    var startTimeStutter = current.lastStutterTimestamp;
-                    if (startTimeStutter < 0)
-                        startTimeStutter = current.timestamp;
                     // keep current; just update its timestamp:
-                    current.assignTimeStamp(e.timestamp);
-                    // update the stutter-timestamp as well:
-                    current.lastStutterTimestamp = startTimeStutter;
+                    current = getElementForUpdate(e.id);
+                    stutter(current, e.timestamp);
                     return current;
                 } else {
                     // the entity has changes its state
                     // (its start-stutter-time should already be initialized to -1)
+                    boolean shared = ownedEntities != null && !ownedEntities.contains(e.id);
                     elements.put(e.id, e);
-                    e.linkPreviousState(current);
+                    own(e.id);
+                    if (index != null)
+                        index.put(e);
+                    // linking current as the previous state clears its own previous
+                    // state; if current is shared, link a view of it instead, unless
+                    // there is nothing to clear:
+                    if (shared && current.getPreviousState() != null)
+                        e.linkPreviousState(current.viewWithoutHistory());
+                    else
+                        e.linkPreviousState(current);
+                    if (subscriptions != null)
+                        subscriptions.dispatch(EntityChange.Kind.CHANGED, e, current, e.timestamp);
                     // System.out.println("%%% updating " + e.id) ;
                     return e;
                 }
@@ -119,8 +279,10 @@ public class WorldModel implements Serializable {
                 // System.out.println(">>> current: " + current.id + ", e: " + e.id
                 // + ", prev: " + prev) ;
                 if (prev == null || e.timestamp > prev.timestamp) {
-                    if (!e.hasSameState(current))
+                    if (!e.hasSameState(current)) {
+                        current = getElementForUpdate(e.id);
                         current.linkPreviousState(e);
+                    }
                 }
                 // System.out.println(">>> prev: " + current.getPreviousState()) ;
                 return current;
@@ -128,6 +290,20 @@ public class WorldModel implements Serializable {
         }
     }
 
+    /**
+     * Update the timestamp of the entity e to ts, registering that its state has
+     * not changed up to ts. If e was not already stuttering, its stutter period
+     * starts at its old timestamp.
+     */
+    private void stutter(WorldEntity e, long ts) {
+        var startTimeStutter = e.lastStutterTimestamp;
+        if (startTimeStutter < 0)
+            startTimeStutter = e.timestamp;
+        e.assignTimeStamp(ts);
+        // update the stutter-timestamp as well:
+        e.lastStutterTimestamp = startTimeStutter;
+    }
+
     /**
      * This will merge a sampled (and more recent) observation (represented as
      * another WorldModel) made by the agent into WorldModel.
@@ -169,31 +345,138 @@ public class WorldModel implements Serializable {
         // check if the observation is not null
         if (observation == null)
             throw new IllegalArgumentException("Null observation received");
-        if (observation.timestamp < this.timestamp)
-            throw new IllegalArgumentException("Cannot merge an older WorldModel into a newer one.");
+        return mergeNewObservation(observation, observation.elements.values());
+    }
+
+    /**
+     * As {@link #mergeNewObservation(WorldModel)}, but the observed entities are
+     * given separately; the elements of the given observation are ignored, and
+     * only its timestamp and the agent's info are used. To merge entities while
+     * they are being decoded, see {@link #beginObservation(long)}.
+     */
+    public List<WorldEntity> mergeNewObservation(WorldModel observation, Collection<WorldEntity> observedEntities) {
+        var merge = beginObservation(observation.timestamp);
 
         // update agent's info:
         this.position = observation.position;
         this.velocity = observation.velocity;
         this.extent = observation.extent;
 
-        // Add the newly seen entities, or incorporate their change. We will also
-        // maintain those entities that induce state change in this WorldModel.
-        List<WorldEntity> impactEntities = new LinkedList<>();
-        for (WorldEntity e : observation.elements.values()) {
-            var f = this.updateEntity(e);
+        for (WorldEntity e : observedEntities)
+            merge.add(e);
+        return merge.finish();
+    }
+
+    /**
+     * Start merging an observation with the given timestamp, whose entities are
+     * then passed one at a time to {@link ObservationMerge#add(WorldEntity)}, e.g.
+     * while the observation is being decoded. The agent's info (position etc.) of
+     * the observation should be assigned to this WorldModel directly. Calling
+     * {@link ObservationMerge#finish()} completes the merge; the result is the
+     * same as that of {@link #mergeNewObservation(WorldModel)}.
+     *
+     * <p>
+     * The method fails if the observation is older than this WorldModel.
+     */
+    public ObservationMerge beginObservation(long timestamp) {
+        if (timestamp < this.timestamp)
+            throw new IllegalArgumentException("Cannot merge an older WorldModel into a newer one.");
+        return new ObservationMerge(timestamp);
+    }
+
+    /**
+     * An observation that is being merged into this WorldModel, see
+     * {@link WorldModel#beginObservation(long)}.
+     */
+    public class ObservationMerge {
+
+        private final long timestamp;
+        private final List<WorldEntity> impactEntities = new ArrayList<>();
+
+        private ObservationMerge(long timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Add the newly seen entity e, or incorporate its change, see
+         * {@link WorldModel#updateEntity(WorldEntity)}.
+         */
+        public void add(WorldEntity e) {
+            var f = updateEntity(e);
             if (e == f) {
-                // System.out.println("%%% updating " + e.id) ;
                 // if they are equal, then e induces some state change in the WorldModel.
                 impactEntities.add(e);
             }
         }
 
-        // now update the time stamp of this WorldMap to that of the received
-        // observation:
-        this.timestamp = observation.timestamp;
+        /**
+         * Update the timestamp of the WorldModel to that of the observation, and
+         * return the entities that were identified as changing its state.
+         */
+        public List<WorldEntity> finish() {
+            WorldModel.this.timestamp = timestamp;
+            recordHistory(impactEntities, Collections.emptyList());
+            return impactEntities;
+        }
+    }
 
-        // System.out.println("%%% #impactEntities =" + impactEntities.size()) ;
+    /**
+     * This merges an observation that is described as a delta (see
+     * {@link WorldModelDelta}) into this WorldModel. The result is the same as
+     * merging the full observation with {@link #mergeNewObservation(WorldModel)},
+     * except that entities in delta.removed are removed from this WorldModel. But
+     * unlike mergeNewObservation, the work done is proportional to the size of the
+     * delta, rather than to the number of observed entities:
+     *
+     * <ul>
+     * <li>The entities in delta.changed are merged with {@link #updateEntity}, so
+     * their previous states are linked as usual.
+     * <li>The entities whose ids are in delta.unchanged only get their timestamp
+     * and stutter-timestamp updated; their states are not compared.
+     * <li>Entities not mentioned in the delta are left untouched.
+     * </ul>
+     *
+     * <p>
+     * The delta must be at least as recent as this WorldModel, and it must be
+     * relative to a state that is not more recent than this WorldModel (else some
+     * changes would have been missed). The method fails if this is not the case.
+     * It returns the list of entities that change the state of this WorldModel;
+     * removed entities are not included.
+     */
+    public List<WorldEntity> mergeDelta(WorldModelDelta delta) {
+        if (delta == null)
+            throw new IllegalArgumentException("Null delta received");
+        if (delta.timestamp < this.timestamp)
+            throw new IllegalArgumentException("Cannot merge an older delta into a newer WorldModel.");
+        if (delta.sinceTimestamp > this.timestamp)
+            throw new IllegalArgumentException("The delta is relative to a state (t=" + delta.sinceTimestamp
+                    + ") that is more recent than the WorldModel (t=" + this.timestamp + ").");
+
+        this.position = delta.position;
+        this.velocity = delta.velocity;
+        this.extent = delta.extent;
+
+        // removals first, so that an entity that is removed and then re-created
+        // is treated as a new entity:
+        for (var id : delta.removed) {
+            var removed = elements.remove(id);
+            if (index != null)
+                index.remove(id);
+            if (removed != null && subscriptions != null)
+                subscriptions.dispatch(EntityChange.Kind.REMOVED, null, removed, delta.timestamp);
+        }
+        List<WorldEntity> impactEntities = new ArrayList<>();
+        for (WorldEntity e : delta.changed.values()) {
+            if (this.updateEntity(e) == e)
+                impactEntities.add(e);
+        }
+        for (var id : delta.unchanged) {
+            var current = elements.get(id);
+            if (current != null && current.timestamp <= delta.timestamp)
+                stutter(getElementForUpdate(id), delta.timestamp);
+        }
+        this.timestamp = delta.timestamp;
+        recordHistory(impactEntities, delta.removed);
         return impactEntities;
     }
 
@@ -213,6 +496,168 @@ public class WorldModel implements Serializable {
         }
     }
 
+    private EntitySubscription subscribe(EntitySubscription s) {
+        if (subscriptions == null)
+            subscriptions = new EntitySubscriptions();
+        return subscriptions.add(s);
+    }
+
+    /**
+     * Subscribe the given listener to changes of the entity with the given id.
+     * The listener is invoked when the entity is added, gets a new state, or is
+     * removed, by {@link #updateEntity(WorldEntity)} or the merge-methods, while
+     * they are merging. So the WorldModel may not be fully merged yet (e.g. its
+     * timestamp is not updated yet), and the listener must not change it.
+     * Entities that are merged with the same state do not cause events.
+     *
+     * <p>
+     * Dispatching a change only involves the subscriptions that may match it, so
+     * guards can be driven by these events rather than by scanning the
+     * WorldModel after every merge. The returned subscription can be cancelled.
+     */
+    public EntitySubscription onChangeOf(String id, Consumer<EntityChange> listener) {
+        return subscribe(new EntitySubscription(listener, id, null, null, null, 0));
+    }
+
+    /**
+     * Subscribe the given listener to changes of entities of the given type; see
+     * {@link #onChangeOf(String, Consumer)}.
+     */
+    public EntitySubscription onChangeOfType(String type, Consumer<EntityChange> listener) {
+        return subscribe(new EntitySubscription(listener, null, type, null, null, 0));
+    }
+
+    /**
+     * Subscribe the given listener to changes of the given property, in any
+     * entity; see {@link #onChangeOf(String, Consumer)}. It is invoked when the
+     * value of the property differs before and after the change, or when the
+     * property appears or disappears (also when the entity is added or
+     * removed).
+     */
+    public EntitySubscription onChangeOfProperty(String propertyName, Consumer<EntityChange> listener) {
+        return subscribe(new EntitySubscription(listener, null, null, propertyName, null, 0));
+    }
+
+    /**
+     * Subscribe the given listener to changes of entities that are, before or
+     * after the change, within the given distance of the given center; so it
+     * also sees entities entering or leaving the region. See
+     * {@link #onChangeOf(String, Consumer)}.
+     */
+    public EntitySubscription onChangeWithin(Vec3 center, float radius, Consumer<EntityChange> listener) {
+        if (center == null)
+            throw new IllegalArgumentException("The center of the region cannot be null.");
+        return subscribe(new EntitySubscription(listener, null, null, null, center, radius));
+    }
+
+    /**
+     * Subscribe the given listener to all changes of entities; see
+     * {@link #onChangeOf(String, Consumer)}.
+     */
+    public EntitySubscription onAnyChange(Consumer<EntityChange> listener) {
+        return subscribe(new EntitySubscription(listener, null, null, null, null, 0));
+    }
+
+    /**
+     * Return the index over the elements, (re)building it if it does not exist
+     * yet, or if the elements were changed without going through the methods of
+     * this class in a way that can be detected.
+     */
+    private EntityIndex index() {
+        if (index == null || index.indexedElements != elements || index.size() != elements.size())
+            index = new EntityIndex(elements);
+        return index;
+    }
+
+    /**
+     * Discard the spatial and type index of this WorldModel; it will be rebuilt
+     * when it is next needed. The index is maintained by
+     * {@link #updateEntity(WorldEntity)} and the merge-methods, and entities that
+     * are added to or removed from {@link #elements} directly are detected. Call
+     * this method after changing the position, extent, or type of an entity in
+     * place, or after replacing an entity in {@link #elements} directly.
+     */
+    public void invalidateIndex() {
+        index = null;
+    }
+
+    private List<WorldEntity> toEntities(Collection<String> ids) {
+        var result = new ArrayList<WorldEntity>(ids.size());
+        for (var id : ids)
+            result.add(elements.get(id));
+        return result;
+    }
+
+    /**
+     * Return the top-level entities of the given type.
+     */
+    public List<WorldEntity> getElementsOfType(String type) {
+        var ids = index().byType.get(type);
+        return ids == null ? new ArrayList<>() : toEntities(ids);
+    }
+
+    /**
+     * Return the top-level entities whose position is within the given distance
+     * of the given point. Entities without a position are not included. This uses
+     * a spatial index ({@link eu.iv4xr.framework.spatial.QuadTree}), so it does
+     * not have to check every entity.
+     */
+    public List<WorldEntity> getElementsWithin(Vec3 center, float radius) {
+        return toEntities(index().spatial.within(center, radius));
+    }
+
+    /**
+     * Return the top-level entities of the given type whose position is within
+     * the given distance of the given point.
+     */
+    public List<WorldEntity> getElementsWithin(Vec3 center, float radius, String type) {
+        var idx = index();
+        var ids = idx.byType.get(type);
+        if (ids == null)
+            return new ArrayList<>();
+        // a rare type is quicker to check directly:
+        if (ids.size() * 8 < idx.size()) {
+            var result = new ArrayList<WorldEntity>();
+            float rSq = radius * radius;
+            for (var id : ids) {
+                var e = elements.get(id);
+                if (e.position != null && Vec3.distSq(e.position, center) <= rSq)
+                    result.add(e);
+            }
+            return result;
+        }
+        return toEntities(idx.spatial.within(center, radius, id -> ids.contains(id)));
+    }
+
+    /**
+     * Return the k top-level entities nearest to the given point, ordered by their
+     * distance to it.
+     */
+    public List<WorldEntity> getNearestElements(Vec3 p, int k) {
+        return toEntities(index().spatial.nearest(p, k));
+    }
+
+    /**
+     * Return the k top-level entities of the given type nearest to the given
+     * point, ordered by their distance to it.
+     */
+    public List<WorldEntity> getNearestElements(Vec3 p, int k, String type) {
+        var idx = index();
+        var ids = idx.byType.get(type);
+        if (ids == null)
+            return new ArrayList<>();
+        return toEntities(idx.spatial.nearest(p, k, id -> ids.contains(id)));
+    }
+
+    /**
+     * Return the top-level entities whose bounding boxes (position +/- extent)
+     * are hit by the line segment between the two given points, ordered by the
+     * distance from "from" to the hit.
+     */
+    public List<WorldEntity> getElementsAlongRay(Vec3 from, Vec3 to) {
+        return toEntities(index().spatial.alongRay(from, to));
+    }
+
     /**
      * A query method that checks whether the given entity can block movement. If
      * so, it returns true, and else false. This method should be implemented by the
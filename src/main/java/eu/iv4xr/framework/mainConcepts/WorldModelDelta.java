@@ -0,0 +1,122 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import eu.iv4xr.framework.spatial.Vec3;
+
+/**
+ * Describes an observation as a change with respect to an earlier observation,
+ * rather than as a full {@link WorldModel}. It is sent by an environment that
+ * supports the delta protocol, see
+ * {@link Iv4xrEnvironment#observeDelta(String, long)}, and applied with
+ * {@link WorldModel#mergeDelta(WorldModelDelta)}.
+ *
+ * <p>
+ * A delta is relative to {@link #sinceTimestamp}, and describes the observation
+ * at {@link #timestamp}. It consists of:
+ *
+ * <ul>
+ * <li>{@link #changed}: the entities that were created, or whose state changed,
+ * since sinceTimestamp. Only these are sent in full.
+ * <li>{@link #unchanged}: the ids of the entities that are observed at
+ * timestamp, but whose state is the same as at sinceTimestamp. An environment
+ * may leave this empty, but then the timestamps of these entities are not
+ * refreshed by the merge.
+ * <li>{@link #removed}: the ids of the entities that no longer exist.
+ * </ul>
+ */
+public class WorldModelDelta implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The id of the agent whose observation this delta describes.
+     */
+    public String agentId;
+
+    public Vec3 position; // agent's position
+    public Vec3 velocity; // agent's velocity
+    public Vec3 extent; // agent's dimension (x,y,z size/2)
+
+    /**
+     * The time of the earlier observation this delta is relative to. A value of -1
+     * means that the delta is relative to an empty WorldModel.
+     */
+    public long sinceTimestamp = -1;
+
+    /**
+     * The time of the observation described by this delta.
+     */
+    public long timestamp = -1;
+
+    /**
+     * The entities that were created, or whose state changed, since
+     * {@link #sinceTimestamp}.
+     */
+    public Map<String, WorldEntity> changed = new HashMap<>();
+
+    /**
+     * The ids of the entities that are observed at {@link #timestamp}, and whose
+     * state did not change since {@link #sinceTimestamp}.
+     */
+    public Set<String> unchanged = new HashSet<>();
+
+    /**
+     * The ids of the entities that were removed from the world since
+     * {@link #sinceTimestamp}.
+     */
+    public Set<String> removed = new HashSet<>();
+
+    public WorldModelDelta() {
+    }
+
+    /**
+     * True if the delta carries no entity, i.e. there is nothing to merge except
+     * the agent's own information and the timestamp.
+     */
+    public boolean isEmpty() {
+        return changed.isEmpty() && unchanged.isEmpty() && removed.isEmpty();
+    }
+
+    /**
+     * Calculate the delta from the WorldModel previous to the WorldModel current.
+     * This is meant to be used by an environment that keeps track of the last
+     * observation it sent to an agent. Entities in previous that are absent in
+     * current are reported as removed, so both should describe the same part of
+     * the world. The previous WorldModel may be null, in which case every entity in
+     * current is reported as created.
+     *
+     * <p>
+     * Note that this compares every entity; the saving of the delta protocol is on
+     * the side of the agent, which only has to merge the change.
+     */
+    public static WorldModelDelta between(WorldModel previous, WorldModel current) {
+        var delta = new WorldModelDelta();
+        delta.agentId = current.agentId;
+        delta.position = current.position;
+        delta.velocity = current.velocity;
+        delta.extent = current.extent;
+        delta.timestamp = current.timestamp;
+        if (previous != null)
+            delta.sinceTimestamp = previous.timestamp;
+        for (var e : current.elements.values()) {
+            var old = previous == null ? null : previous.elements.get(e.id);
+            if (old == null || !e.hasSameState(old))
+                delta.changed.put(e.id, e);
+            else
+                delta.unchanged.add(e.id);
+        }
+        if (previous != null) {
+            for (var id : previous.elements.keySet()) {
+                if (!current.elements.containsKey(id))
+                    delta.removed.add(id);
+            }
+        }
+        return delta;
+    }
+
+}
@@ -0,0 +1,178 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import nl.uu.cs.aplib.utils.PersistentMap;
+
+/**
+ * The history of the entities of a {@link WorldModel}, as a sequence of
+ * versions. A version is an immutable map from entity-ids to entities
+ * ({@link PersistentMap}), describing the entities as they were at the
+ * version's timestamp. A new version is recorded whenever an observation that
+ * changes some entities is merged into the WorldModel (see
+ * {@link WorldModel#trackHistory(int)}). The versions share the entities that
+ * did not change, and most of their map-structure, so that keeping many
+ * versions costs memory in proportion to the changes only.
+ *
+ * <p>
+ * The entity of a given id at a given time can be obtained with
+ * {@link #getEntity(String, long)}, in O(log n) time, where n is the number of
+ * versions. At most maxVersions versions are kept; older versions are discarded.
+ *
+ * <p>
+ * The entities in the history are shared with the WorldModel, and with each
+ * other. The WorldModel copies such an entity before it changes it (as with
+ * {@link WorldModel#copyOnWrite()}), but entities obtained from the history
+ * should not be changed in place.
+ */
+public class WorldModelHistory {
+
+    int maxVersions;
+
+    // the timestamps and the versions; the live part starts at index first:
+    private List<Long> timestamps = new ArrayList<>();
+    private List<PersistentMap<String, WorldEntity>> versions = new ArrayList<>();
+    private int first = 0;
+
+    WorldModelHistory(int maxVersions) {
+        if (maxVersions < 1)
+            throw new IllegalArgumentException("A history should keep at least one version.");
+        this.maxVersions = maxVersions;
+    }
+
+    /**
+     * Record a new version at the given timestamp, obtained from the latest version
+     * by adding/replacing the given entities and removing the entities of the given
+     * ids. If this changes nothing, no version is added. If the latest version has
+     * the same timestamp, it is replaced.
+     */
+    void record(long timestamp, Collection<WorldEntity> changed, Collection<String> removed) {
+        var latest = latest();
+        var version = latest;
+        for (var id : removed)
+            version = version.remove(id);
+        for (var e : changed)
+            version = version.put(e.id, e);
+        if (version == latest)
+            return;
+        int last = versions.size() - 1;
+        if (last >= first && timestamps.get(last) == timestamp) {
+            versions.set(last, version);
+            return;
+        }
+        timestamps.add(timestamp);
+        versions.add(version);
+        if (numberOfVersions() > maxVersions)
+            discardOldest(numberOfVersions() - maxVersions);
+    }
+
+    private void discardOldest(int k) {
+        for (int i = first; i < first + k; i++)
+            versions.set(i, null);
+        first += k;
+        // compact when the discarded part dominates:
+        if (first > versions.size() / 2) {
+            timestamps.subList(0, first).clear();
+            versions.subList(0, first).clear();
+            first = 0;
+        }
+    }
+
+    /**
+     * Set the maximum number of versions to keep; if there are currently more, the
+     * oldest are discarded. This returns the history itself so that it can be used
+     * in the Fluent Interface style.
+     */
+    public WorldModelHistory setMaxVersions(int maxVersions) {
+        if (maxVersions < 1)
+            throw new IllegalArgumentException("A history should keep at least one version.");
+        this.maxVersions = maxVersions;
+        if (numberOfVersions() > maxVersions)
+            discardOldest(numberOfVersions() - maxVersions);
+        return this;
+    }
+
+    public int getMaxVersions() {
+        return maxVersions;
+    }
+
+    public int numberOfVersions() {
+        return versions.size() - first;
+    }
+
+    /**
+     * The timestamp of the oldest version that is still kept, or -1 if there is
+     * none.
+     */
+    public long oldestTimestamp() {
+        return numberOfVersions() == 0 ? -1 : timestamps.get(first);
+    }
+
+    /**
+     * The timestamp of the latest version, or -1 if there is none.
+     */
+    public long latestTimestamp() {
+        return numberOfVersions() == 0 ? -1 : timestamps.get(versions.size() - 1);
+    }
+
+    /**
+     * The latest version.
+     */
+    public PersistentMap<String, WorldEntity> latest() {
+        return numberOfVersions() == 0 ? PersistentMap.empty() : versions.get(versions.size() - 1);
+    }
+
+    /**
+     * Return the version that describes the entities at time t; this is the most
+     * recent version whose timestamp is at most t. It returns null if t is before
+     * the oldest version that is kept.
+     */
+    public PersistentMap<String, WorldEntity> getVersion(long t) {
+        int lo = first;
+        int hi = versions.size() - 1;
+        int found = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timestamps.get(mid) <= t) {
+                found = mid;
+                lo = mid + 1;
+            } else
+                hi = mid - 1;
+        }
+        return found < 0 ? null : versions.get(found);
+    }
+
+    /**
+     * Return the state of the entity with the given id at time t, or null if the
+     * entity was not known at that time (or if t is before the oldest version that
+     * is kept). Note that the timestamp of the returned entity is the time when it
+     * was observed in that state; the entity may have been observed in the same
+     * state afterwards.
+     */
+    public WorldEntity getEntity(String id, long t) {
+        var version = getVersion(t);
+        return version == null ? null : version.get(id);
+    }
+
+    /**
+     * Return a WorldModel with the entities as they were at time t, or null if t is
+     * before the oldest version that is kept. Only the entities are tracked; the
+     * returned WorldModel has no information about the agent (position etc.). The
+     * entities are shared with the history, as in {@link WorldModel#copyOnWrite()},
+     * so that the WorldModel can be changed without affecting the history. This
+     * takes time linear in the number of entities.
+     */
+    public WorldModel getWorldModel(long t) {
+        var version = getVersion(t);
+        if (version == null)
+            return null;
+        var wom = new WorldModel();
+        wom.timestamp = t;
+        version.forEach(wom.elements::put);
+        wom.shareAll();
+        return wom;
+    }
+
+}
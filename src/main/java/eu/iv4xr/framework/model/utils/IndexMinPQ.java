@@ -256,6 +256,19 @@ public class IndexMinPQ<Key extends Comparable<Key>> implements Iterable<Integer
         qp[i] = -1;
     }
 
+    /**
+     * Removes all keys from this priority queue. This takes time proportional to
+     * the number of keys on the priority queue rather than to its capacity, so
+     * that a large queue can be reused cheaply.
+     */
+    public void clear() {
+        for (int k = 1; k <= n; k++) {
+            qp[pq[k]] = -1;
+            keys[pq[k]] = null;
+        }
+        n = 0;
+    }
+
     // throw an IllegalArgumentException if i is an invalid index
     private void validateIndex(int i) {
         if (i < 0) throw new IllegalArgumentException("index is negative: " + i);
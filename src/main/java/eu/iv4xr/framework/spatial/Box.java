@@ -116,6 +116,11 @@ public class Box implements LineIntersectable {
         return intersections;
     }
 
+    @Override
+    public Box boundingBox() {
+        return this;
+    }
+
     /**
      * Check if x is between the given lower and upperbound, with additional epsilon
      * as margin.
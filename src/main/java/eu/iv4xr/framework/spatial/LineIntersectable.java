@@ -25,4 +25,17 @@ public interface LineIntersectable {
     default Boolean intersects(Line l) {
         return intersect(l).size() > 0;
     }
+
+    /**
+     * Returns an axis-aligned box that contains the object, so that a line
+     * segment that misses the box cannot intersect the object. This is used to
+     * index obstacles spatially. The default returns null, meaning that the
+     * bounds are unknown; such an object has to be checked against every line
+     * segment.
+     * 
+     * @return a bounding box, or null.
+     */
+    default Box boundingBox() {
+        return null;
+    }
 }
\ No newline at end of file
@@ -1,47 +1,505 @@
 package eu.iv4xr.framework.spatial;
 
 import java.util.*;
-
-// TODO: everything is still WIP
+import java.util.function.Predicate;
 
 /**
- * WIP: A quad tree structure for quick 2D access.
- * 
- * @param <T> The type of the contained objects.
- * 
+ * A loose quadtree, for quick spatial access to a set of items that each have a
+ * position and an extent (an axis-aligned bounding box). The tree partitions the
+ * horizontal XZ-plane; the y-coordinate is only used when checking individual
+ * items, so queries are still answered with 3D distances and 3D boxes.
+ *
+ * <p>
+ * The tree is "loose": the bounds of every node are twice as large as its
+ * region in the partition, so that an item whose center lies in the region fits
+ * in the node as long as its extent is at most half the size of the region.
+ * Large items are therefore kept higher up in the tree rather than being split
+ * over several nodes, and an item can be moved or removed without restructuring
+ * the tree. The tree grows when an item is put outside its current bounds, so
+ * the size of the world does not have to be known beforehand.
+ *
+ * <p>
+ * Supported queries are: the items within a given distance of a point
+ * ({@link #within(Vec3, float)}), the items whose bounding box is within a
+ * given distance of a point ({@link #overlapping(Vec3, float)}), the k nearest
+ * items of a point ({@link #nearest(Vec3, int)}), and the items whose bounding
+ * box is hit by a line segment, ordered by the distance of the hit
+ * ({@link #alongRay(Vec3, Vec3)}).
+ *
+ * @param <T> The type of the contained objects. They are used as keys in a
+ *            HashMap, so they should implement equals and hashCode.
+ *
  * @author Naraenda
  */
-public abstract class QuadTree<T> {
-    public boolean isLeaf;
-}
+public class QuadTree<T> {
 
-class QuadTreeLeaf<T> extends QuadTree<T> {
-    public T item;
+    /**
+     * The number of items a node holds before it is split.
+     */
+    static final int MAX_ITEMS = 8;
+    static final int MAX_DEPTH = 20;
 
-    public QuadTreeLeaf(T item) {
-        this.isLeaf = true;
-        this.item = item;
+    static class Entry<T> {
+        T item;
+        float x, y, z;
+        // half-extents of the bounding box:
+        float ex, ey, ez;
+        Node<T> node;
+
+        float radius() {
+            return Math.max(ex, ez);
+        }
     }
-}
 
-enum QuadTreeSections {
-    NW, NE, SW, SE
-}
+    static class Node<T> {
+        // the center and the half-size of the node's region in the partition; its
+        // loose bounds are center +/- 2 * half
+        float cx, cz, half;
+        int depth;
+        Node<T> parent;
+        Node<T>[] children;
+        List<Entry<T>> items = new ArrayList<>(2);
+        // the number of items in this node and its descendants:
+        int count;
+
+        Node(float cx, float cz, float half, int depth, Node<T> parent) {
+            this.cx = cx;
+            this.cz = cz;
+            this.half = half;
+            this.depth = depth;
+            this.parent = parent;
+        }
+
+        int quadrant(float x, float z) {
+            return (x >= cx ? 1 : 0) + (z >= cz ? 2 : 0);
+        }
+
+        boolean inRegion(float x, float z) {
+            return Math.abs(x - cx) <= half && Math.abs(z - cz) <= half;
+        }
+
+        /**
+         * The squared distance in the XZ-plane from (x,z) to the region of this
+         * node. The positions of the items in the node and its descendants lie in
+         * this region, so this is a lower bound of the 3D distance to any of them.
+         */
+        double regionDistSq(float x, float z) {
+            double dx = Math.max(0, Math.abs(x - cx) - half);
+            double dz = Math.max(0, Math.abs(z - cz) - half);
+            return dx * dx + dz * dz;
+        }
+    }
+
+    Node<T> root;
+    Map<T, Entry<T>> entries = new HashMap<>();
+
+    public QuadTree() {
+    }
+
+    /**
+     * The number of items in this tree.
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    public boolean contains(T item) {
+        return entries.containsKey(item);
+    }
+
+    public void clear() {
+        root = null;
+        entries.clear();
+    }
+
+    /**
+     * Add the given item with the given position and extent (the half-size of its
+     * bounding box in each dimension; null means a point), or move it if it is
+     * already in the tree.
+     */
+    public void put(T item, Vec3 position, Vec3 extent) {
+        if (item == null || position == null)
+            throw new IllegalArgumentException();
+        var entry = entries.get(item);
+        if (entry != null) {
+            var node = entry.node;
+            float r = entry.radius();
+            setBox(entry, position, extent);
+            // fast path: the item can stay in its node
+            if (entry.radius() <= r && node.children == null && node.inRegion(entry.x, entry.z))
+                return;
+            detach(entry);
+        } else {
+            entry = new Entry<>();
+            entry.item = item;
+            setBox(entry, position, extent);
+            entries.put(item, entry);
+        }
+        insert(entry);
+    }
+
+    /**
+     * Remove the given item from the tree. It returns true if the item was in the
+     * tree.
+     */
+    public boolean remove(T item) {
+        var entry = entries.remove(item);
+        if (entry == null)
+            return false;
+        detach(entry);
+        return true;
+    }
+
+    private static void setBox(Entry<?> entry, Vec3 position, Vec3 extent) {
+        entry.x = position.x;
+        entry.y = position.y;
+        entry.z = position.z;
+        if (extent == null) {
+            entry.ex = entry.ey = entry.ez = 0;
+        } else {
+            entry.ex = Math.abs(extent.x);
+            entry.ey = Math.abs(extent.y);
+            entry.ez = Math.abs(extent.z);
+        }
+    }
+
+    private void detach(Entry<T> entry) {
+        var node = entry.node;
+        node.items.remove(entry);
+        entry.node = null;
+        for (var n = node; n != null; n = n.parent) {
+            n.count--;
+            // drop subtrees that became empty:
+            if (n.count == 0)
+                n.children = null;
+        }
+    }
+
+    private void insert(Entry<T> entry) {
+        float r = entry.radius();
+        if (root == null)
+            root = new Node<>(entry.x, entry.z, Math.max(1, 2 * r), 0, null);
+        while (!root.inRegion(entry.x, entry.z) || r > root.half)
+            grow(entry.x, entry.z);
+        var node = root;
+        while (node.children != null && r <= node.half / 2) {
+            node.count++;
+            node = node.children[node.quadrant(entry.x, entry.z)];
+        }
+        node.count++;
+        node.items.add(entry);
+        entry.node = node;
+        if (node.children == null && node.items.size() > MAX_ITEMS && node.depth < MAX_DEPTH)
+            split(node);
+    }
+
+    /**
+     * Replace the root by a node twice its size, that has the old root as one of
+     * its quadrants, extending towards (x,z).
+     */
+    private void grow(float x, float z) {
+        var old = root;
+        float h = old.half;
+        float cx = x >= old.cx ? old.cx + h : old.cx - h;
+        float cz = z >= old.cz ? old.cz + h : old.cz - h;
+        var newRoot = new Node<T>(cx, cz, 2 * h, 0, null);
+        newRoot.count = old.count;
+        if (old.count > 0) {
+            makeChildren(newRoot);
+            newRoot.children[newRoot.quadrant(old.cx, old.cz)] = old;
+            old.parent = newRoot;
+            incrementDepth(old);
+        }
+        root = newRoot;
+    }
+
+    private void incrementDepth(Node<T> node) {
+        node.depth++;
+        if (node.children != null)
+            for (var c : node.children)
+                incrementDepth(c);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void makeChildren(Node<T> node) {
+        float q = node.half / 2;
+        node.children = (Node<T>[]) new Node<?>[4];
+        for (int i = 0; i < 4; i++) {
+            float cx = (i & 1) == 0 ? node.cx - q : node.cx + q;
+            float cz = (i & 2) == 0 ? node.cz - q : node.cz + q;
+            node.children[i] = new Node<>(cx, cz, q, node.depth + 1, node);
+        }
+    }
+
+    private void split(Node<T> node) {
+        makeChildren(node);
+        var stay = new ArrayList<Entry<T>>(2);
+        for (var entry : node.items) {
+            if (entry.radius() <= node.half / 2) {
+                var child = node.children[node.quadrant(entry.x, entry.z)];
+                child.items.add(entry);
+                child.count++;
+                entry.node = child;
+            } else {
+                stay.add(entry);
+            }
+        }
+        node.items = stay;
+        for (var child : node.children) {
+            if (child.items.size() > MAX_ITEMS && child.depth < MAX_DEPTH)
+                split(child);
+        }
+    }
+
+    /**
+     * Return the items whose position is within the given distance of the given
+     * point.
+     */
+    public List<T> within(Vec3 center, float radius) {
+        return within(center, radius, null);
+    }
+
+    /**
+     * Return the items that satisfy the filter (if it is not null), and whose
+     * position is within the given distance of the given point.
+     */
+    public List<T> within(Vec3 center, float radius, Predicate<T> filter) {
+        var result = new ArrayList<T>();
+        if (root == null)
+            return result;
+        double rSq = (double) radius * radius;
+        var stack = new ArrayDeque<Node<T>>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            var node = stack.pop();
+            if (node.count == 0 || node.regionDistSq(center.x, center.z) > rSq)
+                continue;
+            for (var entry : node.items) {
+                if (distSq(entry, center) <= rSq && (filter == null || filter.test(entry.item)))
+                    result.add(entry.item);
+            }
+            if (node.children != null)
+                for (var c : node.children)
+                    stack.push(c);
+        }
+        return result;
+    }
+
+    /**
+     * Return the items whose bounding box is within the given distance of the
+     * given point; so, unlike {@link #within(Vec3, float)}, the extents of the
+     * items count.
+     */
+    public List<T> overlapping(Vec3 center, float radius) {
+        return overlapping(center, radius, null);
+    }
+
+    /**
+     * As {@link #overlapping(Vec3, float)}, but only returning the items that
+     * satisfy the filter (if it is not null).
+     */
+    public List<T> overlapping(Vec3 center, float radius, Predicate<T> filter) {
+        var result = new ArrayList<T>();
+        if (root == null)
+            return result;
+        double rSq = (double) radius * radius;
+        var stack = new ArrayDeque<Node<T>>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            var node = stack.pop();
+            if (node.count == 0)
+                continue;
+            // the boxes of the items lie within the loose bounds of the node:
+            double dx = Math.max(0, Math.abs(center.x - node.cx) - 2 * node.half);
+            double dz = Math.max(0, Math.abs(center.z - node.cz) - 2 * node.half);
+            if (dx * dx + dz * dz > rSq)
+                continue;
+            for (var entry : node.items) {
+                if (boxDistSq(entry, center) <= rSq && (filter == null || filter.test(entry.item)))
+                    result.add(entry.item);
+            }
+            if (node.children != null)
+                for (var c : node.children)
+                    stack.push(c);
+        }
+        return result;
+    }
+
+    private static double boxDistSq(Entry<?> entry, Vec3 p) {
+        double dx = Math.max(0, Math.abs(p.x - entry.x) - entry.ex);
+        double dy = Math.max(0, Math.abs(p.y - entry.y) - entry.ey);
+        double dz = Math.max(0, Math.abs(p.z - entry.z) - entry.ez);
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private static double distSq(Entry<?> entry, Vec3 p) {
+        double dx = entry.x - p.x;
+        double dy = entry.y - p.y;
+        double dz = entry.z - p.z;
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Return the k items whose positions are nearest to the given point, ordered
+     * by their distance.
+     */
+    public List<T> nearest(Vec3 p, int k) {
+        return nearest(p, k, null);
+    }
+
+    /**
+     * Return the k items, among those that satisfy the filter (if it is not
+     * null), whose positions are nearest to the given point, ordered by their
+     * distance.
+     */
+    public List<T> nearest(Vec3 p, int k, Predicate<T> filter) {
+        var result = new ArrayList<T>(Math.max(0, k));
+        if (root == null || k <= 0)
+            return result;
+        // best-first search over nodes and items, ordered by (a lower bound of)
+        // their distance to p:
+        var queue = new PriorityQueue<Candidate<T>>();
+        queue.add(new Candidate<>(root.regionDistSq(p.x, p.z), root, null));
+        while (!queue.isEmpty() && result.size() < k) {
+            var c = queue.poll();
+            if (c.entry != null) {
+                result.add(c.entry.item);
+                continue;
+            }
+            for (var entry : c.node.items) {
+                if (filter == null || filter.test(entry.item))
+                    queue.add(new Candidate<>(distSq(entry, p), null, entry));
+            }
+            if (c.node.children != null) {
+                for (var child : c.node.children) {
+                    if (child.count > 0)
+                        queue.add(new Candidate<>(child.regionDistSq(p.x, p.z), child, null));
+                }
+            }
+        }
+        return result;
+    }
+
+    static class Candidate<T> implements Comparable<Candidate<T>> {
+        double distSq;
+        Node<T> node;
+        Entry<T> entry;
+
+        Candidate(double distSq, Node<T> node, Entry<T> entry) {
+            this.distSq = distSq;
+            this.node = node;
+            this.entry = entry;
+        }
+
+        @Override
+        public int compareTo(Candidate<T> o) {
+            int c = Double.compare(distSq, o.distSq);
+            if (c != 0)
+                return c;
+            // at the same distance, items come before nodes:
+            return (entry != null ? 0 : 1) - (o.entry != null ? 0 : 1);
+        }
+    }
+
+    /**
+     * Return the items whose bounding boxes are hit by the line segment from
+     * "from" to "to", ordered by the distance from "from" to where the segment
+     * enters them.
+     */
+    public List<T> alongRay(Vec3 from, Vec3 to) {
+        return alongRay(from, to, null);
+    }
+
+    /**
+     * As {@link #alongRay(Vec3, Vec3)}, but only returning the items that satisfy
+     * the filter (if it is not null).
+     */
+    public List<T> alongRay(Vec3 from, Vec3 to, Predicate<T> filter) {
+        var hits = new ArrayList<Candidate<T>>();
+        if (root != null) {
+            float dx = to.x - from.x;
+            float dy = to.y - from.y;
+            float dz = to.z - from.z;
+            var stack = new ArrayDeque<Node<T>>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                var node = stack.pop();
+                if (node.count == 0)
+                    continue;
+                float lh = 2 * node.half;
+                // the segment, projected on the XZ-plane, against the loose bounds:
+                if (Float.isNaN(slab2(from.x, dx, node.cx - lh, node.cx + lh, from.z, dz, node.cz - lh, node.cz + lh)))
+                    continue;
+                for (var entry : node.items) {
+                    float t = slab3(from, dx, dy, dz, entry);
+                    if (!Float.isNaN(t) && (filter == null || filter.test(entry.item)))
+                        hits.add(new Candidate<>(t, null, entry));
+                }
+                if (node.children != null)
+                    for (var c : node.children)
+                        stack.push(c);
+            }
+        }
+        Collections.sort(hits);
+        var result = new ArrayList<T>(hits.size());
+        for (var h : hits)
+            result.add(h.entry.item);
+        return result;
+    }
 
-class QuadTreeBranch<T> extends QuadTree<T> {
+    /**
+     * The slab test of the segment p + t.d, 0 &le; t &le; 1, against the box
+     * [min,max], one dimension at a time. Returns the entry-t, or NaN if the
+     * segment misses the box.
+     */
+    private static float slab2(float px, float dx, float minX, float maxX, float pz, float dz, float minZ,
+            float maxZ) {
+        float[] t = { 0, 1 };
+        if (!clip(px, dx, minX, maxX, t) || !clip(pz, dz, minZ, maxZ, t))
+            return Float.NaN;
+        return t[0];
+    }
 
-    public Map<QuadTreeSections, QuadTree<T>> branches;
+    private static float slab3(Vec3 p, float dx, float dy, float dz, Entry<?> e) {
+        float[] t = { 0, 1 };
+        if (!clip(p.x, dx, e.x - e.ex, e.x + e.ex, t) || !clip(p.y, dy, e.y - e.ey, e.y + e.ey, t)
+                || !clip(p.z, dz, e.z - e.ez, e.z + e.ez, t))
+            return Float.NaN;
+        return t[0];
+    }
 
-    public QuadTreeBranch() {
-        this.isLeaf = false;
-        this.branches = new HashMap<QuadTreeSections, QuadTree<T>>(0);
+    /**
+     * Narrow the interval t = [t0,t1] to the part where p + t.d lies in
+     * [min,max]; returns false if that part is empty.
+     */
+    private static boolean clip(float p, float d, float min, float max, float[] t) {
+        if (d == 0)
+            return min <= p && p <= max;
+        float t0 = (min - p) / d;
+        float t1 = (max - p) / d;
+        if (t0 > t1) {
+            float tmp = t0;
+            t0 = t1;
+            t1 = tmp;
+        }
+        t[0] = Math.max(t[0], t0);
+        t[1] = Math.min(t[1], t1);
+        return t[0] <= t[1];
     }
 
-    public void put(QuadTreeSections key, QuadTree<T> tree) {
-        this.branches.put(key, tree);
+    /**
+     * The depth of the tree; for testing and tuning.
+     */
+    public int depth() {
+        return root == null ? 0 : depth(root);
     }
 
-    public void remove(QuadTreeSections key) {
-        this.branches.remove(key);
+    private int depth(Node<T> node) {
+        int d = 0;
+        if (node.children != null)
+            for (var c : node.children)
+                d = Math.max(d, depth(c));
+        return d + 1;
     }
+
 }
@@ -56,4 +56,9 @@ public class Sphere implements LineIntersectable {
             res.add(l.alongLine(d2));
         return res;
     }
-}
\ No newline at end of file
+
+    @Override
+    public Box boundingBox() {
+        return new Box(center, new Vec3(2 * radius, 2 * radius, 2 * radius));
+    }
+}
@@ -40,4 +40,13 @@ public class Triangle implements LineIntersectable {
         return result;
     }
 
-}
\ No newline at end of file
+    @Override
+    public Box boundingBox() {
+        var min = new Vec3(Math.min(A.x, Math.min(B.x, C.x)), Math.min(A.y, Math.min(B.y, C.y)),
+                Math.min(A.z, Math.min(B.z, C.z)));
+        var max = new Vec3(Math.max(A.x, Math.max(B.x, C.x)), Math.max(A.y, Math.max(B.y, C.y)),
+                Math.max(A.z, Math.max(B.z, C.z)));
+        return new Box(Vec3.mul(Vec3.add(min, max), 0.5f), Vec3.sub(max, min));
+    }
+
+}
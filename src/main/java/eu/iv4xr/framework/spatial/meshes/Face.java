@@ -2,6 +2,8 @@ package eu.iv4xr.framework.spatial.meshes;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -147,6 +149,52 @@ public class Face implements Iterable<Integer> {
         return common >= 2;
     }
 
+    /**
+     * A key identifying the unordered pair of vertices i and j.
+     */
+    public static long pairKey(int i, int j) {
+        if (i > j)
+            return ((long) j << 32) | i;
+        return ((long) i << 32) | j;
+    }
+
+    /**
+     * Return all pairs (i,j), with j &lt; i, such that the faces i and j in the
+     * given list are connected in the sense of {@link #isConnected(Face, Face)}.
+     * Rather than checking every pair of faces, this indexes the faces by the
+     * pairs of vertices they contain, so for faces with few corners it takes time
+     * linear in the number of faces.
+     */
+    public static List<int[]> connectedPairs(List<Face> faces) {
+        // two faces are connected iff they have a pair of vertices in common:
+        var facesOfPair = new HashMap<Long, List<Integer>>();
+        for (int f = 0; f < faces.size(); f++) {
+            int[] vs = faces.get(f).vertices;
+            for (int a = 0; a < vs.length; a++) {
+                for (int b = a + 1; b < vs.length; b++) {
+                    var list = facesOfPair.computeIfAbsent(pairKey(vs[a], vs[b]), k -> new ArrayList<>(2));
+                    // a face may contain the same pair more than once:
+                    if (list.isEmpty() || list.get(list.size() - 1) != f)
+                        list.add(f);
+                }
+            }
+        }
+        var pairs = new ArrayList<int[]>();
+        // faces that have more than one pair in common are found more than once:
+        var found = new HashSet<Long>();
+        for (var list : facesOfPair.values()) {
+            for (int x = 1; x < list.size(); x++) {
+                for (int y = 0; y < x; y++) {
+                    int i = list.get(x);
+                    int j = list.get(y);
+                    if (found.add(pairKey(i, j)))
+                        pairs.add(new int[] { i, j });
+                }
+            }
+        }
+        return pairs;
+    }
+
     @Override
     public String toString() {
         StringBuffer sb = new StringBuffer();
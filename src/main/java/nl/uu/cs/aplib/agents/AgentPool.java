@@ -0,0 +1,249 @@
+package nl.uu.cs.aplib.agents;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.uu.cs.aplib.Logging;
+
+/**
+ * A pool of {@link AutonomousBasicAgent}s, to start, stop, and join many agents
+ * at once. Every agent runs its {@link AutonomousBasicAgent#loop()} in its own
+ * thread, created by the pool's {@link ThreadFactory}. By default these are
+ * ordinary (platform) threads. With {@link #useVirtualThreads()} the pool
+ * creates virtual threads instead, if the JVM supports them (Java 21 or
+ * higher). Virtual threads are cheap, so several thousands of agents can then
+ * run in a single JVM without needing as many OS threads.
+ *
+ * <p>
+ * The agent loop itself waits through {@link java.util.concurrent.locks.Lock}s
+ * and their conditions (the agent's own lock and the lock of its
+ * {@link nl.uu.cs.aplib.mainConcepts.Environment}) rather than through
+ * monitors. A virtual thread running the loop may still pin its carrier thread
+ * when it enters {@code synchronized} code elsewhere, e.g. the handlers of
+ * java.util.logging, or an Environment implementation that blocks inside a
+ * {@code synchronized} block (e.g. on socket I/O).
+ *
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * var pool = new AgentPool().useVirtualThreads();
+ * for (var agent : agents)
+ *     pool.add(agent);
+ * pool.start();
+ * pool.waitUntilAllGoalsConcluded();
+ * pool.stop();
+ * pool.join(1000);
+ * </pre>
+ */
+public class AgentPool {
+
+    List<AutonomousBasicAgent> agents = new ArrayList<>();
+    // the same agents, to check for duplicates without scanning the list:
+    Set<AutonomousBasicAgent> members = Collections.newSetFromMap(new IdentityHashMap<>());
+    Map<AutonomousBasicAgent, Thread> threads = new IdentityHashMap<>();
+
+    ThreadFactory threadFactory = r -> new Thread(r);
+
+    protected Logger logger = Logging.getAPLIBlogger();
+
+    /**
+     * Create an empty pool, which will run its agents on platform threads.
+     */
+    public AgentPool() {
+    }
+
+    /**
+     * Return a factory that creates virtual threads, or null if the JVM does not
+     * support them. The factory is obtained via reflection, so that this library
+     * can still be compiled for and run on older versions of Java.
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class).invoke(builder, "agent-", 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            // e.g. NoSuchMethodException on Java < 19, or UnsupportedOperationException
+            // when virtual threads are a preview feature that is not enabled
+            return null;
+        }
+    }
+
+    /**
+     * True if the JVM supports virtual threads.
+     */
+    public static boolean virtualThreadsSupported() {
+        return virtualThreadFactory() != null;
+    }
+
+    /**
+     * Use the given factory to create the threads that run the agents. This only
+     * affects agents that are started afterwards. The method returns the pool
+     * itself so that it can be used in the Fluent Interface style.
+     */
+    public AgentPool withThreadFactory(ThreadFactory factory) {
+        if (factory == null)
+            throw new IllegalArgumentException();
+        threadFactory = factory;
+        return this;
+    }
+
+    /**
+     * Run the agents on virtual threads. If the JVM does not support virtual
+     * threads, a warning is logged and platform threads are used. The method
+     * returns the pool itself so that it can be used in the Fluent Interface
+     * style.
+     */
+    public AgentPool useVirtualThreads() {
+        var factory = virtualThreadFactory();
+        if (factory == null) {
+            logger.log(Level.WARNING, "Virtual threads are not supported by this JVM; using platform threads.");
+            return this;
+        }
+        threadFactory = factory;
+        return this;
+    }
+
+    /**
+     * Add an agent to this pool. The agent is not started yet; use
+     * {@link #start()} for that. The method returns the pool itself so that it can
+     * be used in the Fluent Interface style.
+     */
+    public AgentPool add(AutonomousBasicAgent agent) {
+        if (agent == null)
+            throw new IllegalArgumentException();
+        if (!members.add(agent))
+            throw new IllegalArgumentException("Agent " + agent.getId() + " is already in the pool.");
+        agents.add(agent);
+        return this;
+    }
+
+    /**
+     * Return the agents in this pool.
+     */
+    public List<AutonomousBasicAgent> getAgents() {
+        return new ArrayList<>(agents);
+    }
+
+    /**
+     * Start the loop of every agent in this pool that has not been started yet.
+     * The method returns the pool itself so that it can be used in the Fluent
+     * Interface style.
+     */
+    public AgentPool start() {
+        for (var agent : agents) {
+            var t = threads.get(agent);
+            if (t != null && t.isAlive())
+                continue;
+            t = threadFactory.newThread(() -> agent.loop());
+            threads.put(agent, t);
+            t.start();
+        }
+        logger.log(Level.INFO, "Agent pool started " + agents.size() + " agents.");
+        return this;
+    }
+
+    /**
+     * Command all agents in this pool to stop. This does not wait for them to
+     * actually stop; use {@link #join(long)} for that.
+     */
+    public void stop() {
+        for (var agent : agents)
+            agent.stop();
+    }
+
+    /**
+     * Wait until the threads of all agents in this pool have terminated, or until
+     * the given timeout (in ms) has passed. A timeout of 0 means waiting forever.
+     * The method returns true if all threads have terminated.
+     */
+    public boolean join(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        for (var agent : agents) {
+            var t = threads.get(agent);
+            if (t == null)
+                continue;
+            try {
+                if (timeout == 0) {
+                    t.join();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0)
+                        return !anyAlive();
+                    t.join(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return !anyAlive();
+            }
+        }
+        return !anyAlive();
+    }
+
+    private boolean anyAlive() {
+        for (var t : threads.values()) {
+            if (t.isAlive())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The number of agents in this pool whose thread is still alive.
+     */
+    public int numberOfRunningAgents() {
+        int n = 0;
+        for (var t : threads.values()) {
+            if (t.isAlive())
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Block until every agent in this pool has concluded its current goal (if it
+     * has one). {@see AutonomousBasicAgent#waitUntilTheGoalIsConcluded()}.
+     */
+    public void waitUntilAllGoalsConcluded() {
+        for (var agent : agents)
+            agent.waitUntilTheGoalIsConcluded();
+    }
+
+    /**
+     * Return a summary of the loop statistics of the agents in this pool: the
+     * total number of ticks, and the average and maximum tick latency and the
+     * average update time over all agents.
+     */
+    public String showLoopStatistics() {
+        long ticks = 0;
+        double totLatency = 0;
+        long maxLatency = 0;
+        double totUpdate = 0;
+        for (var agent : agents) {
+            ticks += agent.loopTicks;
+            totLatency += agent.totalTickLatency;
+            maxLatency = Math.max(maxLatency, agent.maxTickLatency);
+            totUpdate += agent.totalUpdateTime;
+        }
+        String s = "** Agent pool: " + agents.size() + " agents, " + numberOfRunningAgents() + " running";
+        s += "\n   tot. #ticks: " + ticks;
+        if (ticks > 0) {
+            s += "\n   avrg. tick latency: " + String.format("%.3f", totLatency / ticks / 1000000) + " (ms)";
+            s += "\n   max. tick latency: " + String.format("%.3f", maxLatency / 1000000.0) + " (ms)";
+            s += "\n   avrg. update time: " + String.format("%.3f", totUpdate / ticks / 1000000) + " (ms)";
+        }
+        return s;
+    }
+
+}
@@ -36,14 +36,62 @@ public class AutonomousBasicAgent extends BasicAgent {
         PAUSE, STOP
     }
 
-    protected Command cmd = null;
+    protected volatile Command cmd = null;
 
     protected ComNode comNode = null;
 
     protected final ReentrantLock lock = new ReentrantLock();
     protected final Condition triggerArrived = lock.newCondition();
     protected final Condition goalConcluded = lock.newCondition();
-    protected Thread thisAgentThread = null;
+    protected volatile Thread thisAgentThread = null;
+
+    /**
+     * Statistics on the ticks of the agent's loop. The latency of a tick is the
+     * time between the moment the tick is due and the moment it actually starts;
+     * this becomes non-zero when the agent's thread does not get to run on time,
+     * e.g. because there are many agents sharing few carrier threads. Times are in
+     * nano seconds. They are only written by the agent's own thread, and are
+     * volatile so that other threads (e.g. {@link AgentPool}) can read them.
+     */
+    volatile long loopTicks = 0;
+    volatile long totalTickLatency = 0;
+    volatile long maxTickLatency = 0;
+    volatile long totalUpdateTime = 0;
+
+    /**
+     * If true, the agent does not poll its environment while it has no enabled
+     * action; it sleeps instead until the environment notifies a change. {@see
+     * #useEventDrivenWakeUp(boolean)}.
+     */
+    protected boolean eventDriven = false;
+
+    /**
+     * In the event-driven mode, the maximum time in ms the agent sleeps while
+     * waiting for a change; 0 means no maximum. A negative value, the default,
+     * means the sampling interval, so that a change that is not notified is still
+     * noticed as soon as it would have been by polling.
+     */
+    protected long maxIdleTime = -1;
+
+    volatile boolean changeArrived = false;
+
+    /**
+     * Statistics on the event-driven mode. Like the loop statistics, these are
+     * only written by the agent's own thread, and are volatile so that other
+     * threads can read them.
+     */
+    volatile long idleWaits = 0;
+    volatile long avoidedUpdates = 0;
+
+    private final Runnable changeListener = () -> {
+        var t = thisAgentThread;
+        if (t == Thread.currentThread())
+            // a change caused by this agent itself
+            return;
+        changeArrived = true;
+        if (t != null)
+            LockSupport.unpark(t);
+    };
 
     /**
      * Create a plain instance of AutonomousBasicAgent. To be useful you will need
@@ -92,9 +140,11 @@ public class AutonomousBasicAgent extends BasicAgent {
 
     @Override
     public AutonomousBasicAgent setGoal(GoalStructure g) {
-        if (thisAgentThread != null) {
+        // read once; the agent's thread clears the field when it leaves its loop:
+        var t = thisAgentThread;
+        if (t != null) {
             // awaken the agent, if it is sleeping
-            thisAgentThread.interrupt();
+            t.interrupt();
         }
         lock.lock();
         try {
@@ -129,6 +179,53 @@ public class AutonomousBasicAgent extends BasicAgent {
         return this;
     }
 
+    /**
+     * If the flag is true, the agent will stop polling its environment when it
+     * finds no enabled action. It then sleeps until the environment signals a
+     * change (through {@link Environment#notifyChange()}), until it receives a
+     * message or a new goal, or until the maximum idle time has passed (see
+     * {@link #setMaxIdleTime(long)}; by default this is the sampling interval). An
+     * environment is notified of a change e.g. when another agent executes an
+     * action on it. If the actual environment can also change by itself, its
+     * Environment implementation should call notifyChange() when that happens;
+     * only then is it safe to lift the maximum idle time, by setting it to 0. This
+     * should be set before the agent's {@link #loop()} is started. The
+     * method returns this agent itself, so that it can be used in the Fluent
+     * Interface style.
+     */
+    public AutonomousBasicAgent useEventDrivenWakeUp(boolean flag) {
+        eventDriven = flag;
+        return this;
+    }
+
+    /**
+     * Set the maximum time in ms that the agent sleeps in the event-driven mode
+     * while waiting for a change of its environment; 0 means no maximum, and a
+     * negative value means the sampling interval (the default). The method returns
+     * this agent itself, so that it can be used in the Fluent Interface style.
+     */
+    public AutonomousBasicAgent setMaxIdleTime(long time) {
+        maxIdleTime = time;
+        return this;
+    }
+
+    /**
+     * The number of times the agent went to sleep in the event-driven mode because
+     * it had no enabled action.
+     */
+    public long getNumberOfIdleWaits() {
+        return idleWaits;
+    }
+
+    /**
+     * An estimate of the number of no-op updates that the agent avoided by sleeping
+     * in the event-driven mode, rather than polling its environment every
+     * sampling-interval.
+     */
+    public long getEstimatedAvoidedUpdates() {
+        return avoidedUpdates;
+    }
+
     /**
      * If the agent is already running autonomously, invoking this method will cause
      * it to pause. While it is paused, it will not trigger any tick. User
@@ -140,9 +237,11 @@ public class AutonomousBasicAgent extends BasicAgent {
     }
 
     private void awakeThisAgentFromSleep() {
-        if (thisAgentThread != null) {
+        // read once; the agent's thread clears the field when it leaves its loop:
+        var t = thisAgentThread;
+        if (t != null) {
             // awaken the agent, if it is sleeping
-            thisAgentThread.interrupt();
+            t.interrupt();
         }
     }
 
@@ -170,8 +269,48 @@ public class AutonomousBasicAgent extends BasicAgent {
      * causing it to exit its autonomous loop.
      */
     public void stop() {
-        awakeThisAgentFromSleep();
+        // set the command first, so that the agent sees it when it is awaken:
         cmd = Command.STOP;
+        awakeThisAgentFromSleep();
+    }
+
+    /**
+     * True if the agent is currently running its loop (in some thread).
+     */
+    public boolean isRunning() {
+        return thisAgentThread != null;
+    }
+
+    /**
+     * The number of ticks executed by this agent's loop so far.
+     */
+    public long getNumberOfLoopTicks() {
+        return loopTicks;
+    }
+
+    /**
+     * The average latency of the ticks of this agent's loop, in nano seconds. This
+     * is the average time between the moment a tick is due (according to the
+     * sampling interval) and the moment it actually starts.
+     */
+    public double getAverageTickLatency() {
+        return loopTicks == 0 ? 0 : (double) totalTickLatency / (double) loopTicks;
+    }
+
+    /**
+     * The maximum latency of the ticks of this agent's loop so far, in nano
+     * seconds. {@see #getAverageTickLatency()}.
+     */
+    public long getMaxTickLatency() {
+        return maxTickLatency;
+    }
+
+    /**
+     * The average time spent in {@link #update()} by this agent's loop, in nano
+     * seconds.
+     */
+    public double getAverageUpdateTime() {
+        return loopTicks == 0 ? 0 : (double) totalUpdateTime / (double) loopTicks;
     }
 
     /**
@@ -235,7 +374,8 @@ public class AutonomousBasicAgent extends BasicAgent {
      * new Thread(() -> agent.loop()).start();
      * </pre>
      * 
-     * The above code essentially cause the agent to run autonomously.
+     * The above code essentially cause the agent to run autonomously. To run many
+     * agents this way, possibly on virtual threads, see {@link AgentPool}.
      * 
      * If there is no goal however, this method will pause, until there is one.
      * Then, it will proceed by invoking update() periodically. The time between
@@ -258,15 +398,56 @@ public class AutonomousBasicAgent extends BasicAgent {
         } catch (Throwable t) {
             log(Level.WARNING, "Agent " + id + " aborts its loop due to exception " + t);
         } finally {
+            if (eventDriven && state != null && state.env() != null)
+                state.env().removeChangeListener(changeListener);
+            thisAgentThread = null;
+        }
+    }
+
+    /**
+     * Sleep until a change of the environment is signaled, the agent is
+     * interrupted (e.g. by a new goal, a message, or a command), or the maximum
+     * idle time passes. The agent's lock is released while sleeping.
+     */
+    private void waitForChange() {
+        long maxIdle = maxIdleTime >= 0 ? maxIdleTime : samplingInterval;
+        if (maxIdleTime < 0 && maxIdle <= 0)
+            // the agent polls without pausing; there is nothing to sleep for
+            return;
+        idleWaits++;
+        long t0 = System.nanoTime();
+        long deadline = t0 + maxIdle * 1000000;
+        // release the lock, so that e.g. setGoal() and sendMsgToThisAgent() can
+        // proceed; these interrupt this thread to wake it up:
+        lock.unlock();
+        try {
+            while (!changeArrived && cmd == null && !Thread.currentThread().isInterrupted()) {
+                if (maxIdle == 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    LockSupport.parkNanos(this, remaining);
+                }
+            }
+            Thread.interrupted();
+        } finally {
+            lock.lock();
         }
+        if (samplingInterval > 0)
+            avoidedUpdates += (System.nanoTime() - t0) / (samplingInterval * 1000000);
     }
 
     private void loopWorker() {
 
         thisAgentThread = Thread.currentThread();
         log(Level.INFO, "Agent " + id + " enters its loop on Thread " + thisAgentThread.getId());
+        if (eventDriven)
+            env().addChangeListener(changeListener);
 
         Time time = new Time();
+        long tickDue = 0;
 
         // repeat forever:
         while (cmd != Command.STOP) {
@@ -280,9 +461,11 @@ public class AutonomousBasicAgent extends BasicAgent {
                     } catch (InterruptedException e) {
                     }
                 }
-                if (goal != null)
+                if (goal != null) {
                     log(Level.INFO,
                             "Agent " + id + " identifies a goal and starts working on it. Budget: " + goal.getBudget());
+                    tickDue = System.nanoTime();
+                }
                 while (goal != null && cmd != Command.STOP) {
                     while (cmd == Command.PAUSE) {
                         log(Level.INFO, "Agent " + id + " is paused.");
@@ -291,15 +474,32 @@ public class AutonomousBasicAgent extends BasicAgent {
                             ;
                         } catch (InterruptedException e) {
                         }
+                        // time spent paused does not count as latency:
+                        tickDue = System.nanoTime();
                     }
                     time.sample();
+                    long tickStart = System.nanoTime();
+                    long latency = Math.max(0, tickStart - tickDue);
+                    changeArrived = false;
                     update();
+                    totalTickLatency += latency;
+                    if (latency > maxTickLatency)
+                        maxTickLatency = latency;
+                    totalUpdateTime += System.nanoTime() - tickStart;
+                    loopTicks++;
+                    tickDue = tickStart + samplingInterval * 1000000;
                     if (goal == null) {
                         log(Level.INFO, "Agent " + id + " closed the current goal: " + shadowg_.getStatus() + ".");
                         // the goal is solved then
                         goalConcluded.signalAll();
                         break;
                     }
+                    if (eventDriven && lastUpdateWasNoop() && !changeArrived && cmd == null) {
+                        // nothing to do; rather than polling, sleep until something changes:
+                        waitForChange();
+                        tickDue = System.nanoTime();
+                        continue;
+                    }
                     long sleeptime = samplingInterval - time.elapsedTimeSinceLastSample();
                     // if needed, just sleep until it is time to do the next sampling:
                     if (sleeptime > 100) {
@@ -308,6 +508,9 @@ public class AutonomousBasicAgent extends BasicAgent {
                             triggerArrived.await(sleeptime, TimeUnit.MILLISECONDS);
                         } catch (InterruptedException e) {
                         }
+                    } else {
+                        // no sleep, so the next tick is due right away:
+                        tickDue = Math.min(tickDue, System.nanoTime());
                     }
                     // System.err.println(">>> update time: " + time.elapsedTimeSinceLastSample()) ;
                 }
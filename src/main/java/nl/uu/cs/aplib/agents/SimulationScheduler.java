@@ -0,0 +1,285 @@
+package nl.uu.cs.aplib.agents;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.mainConcepts.BasicAgent;
+import nl.uu.cs.aplib.mainConcepts.Environment;
+
+/**
+ * A scheduler that runs a set of agents in a simulated, deterministic fashion.
+ * Rather than giving each agent its own thread that ticks the agent every
+ * sampling interval (as {@link AutonomousBasicAgent#loop()} does), the scheduler
+ * ticks the agents itself, in <b>rounds</b>. In every round, every agent that
+ * still has a goal gets exactly one {@link BasicAgent#update()}. There is no
+ * sleeping between rounds: the next round starts as soon as the previous one
+ * ends. This makes it possible to run many agents in a single JVM, and to
+ * reproduce their runs.
+ *
+ * <p>
+ * Within a round, agents are updated in a fixed order. With the
+ * {@link Policy#ROUND_ROBIN} policy this is the order in which the agents were
+ * added to the scheduler. With {@link Policy#PRIORITY} agents with a higher
+ * priority are updated first; agents with the same priority are updated in the
+ * order they were added.
+ *
+ * <p>
+ * By default all agents are updated on the thread that calls {@link #step()} or
+ * {@link #run(long)}. Optionally a fixed number of worker threads can be used
+ * (see {@link #withParallelism(int)}). The agents are then grouped by the
+ * {@link Environment} they use. Different groups are updated in parallel, but
+ * the agents within a group are still updated one after another, in the order
+ * described above. So, as long as agents that use different environments do
+ * not otherwise share state, a parallel run produces the same result as a
+ * sequential one.
+ *
+ * <p>
+ * The agents handed to a scheduler should not be run by other means at the
+ * same time, e.g. an {@link AutonomousBasicAgent} should not also be running its
+ * own {@link AutonomousBasicAgent#loop()}.
+ */
+public class SimulationScheduler {
+
+    /**
+     * Determines the order in which agents are updated within a round.
+     */
+    public static enum Policy {
+        ROUND_ROBIN, PRIORITY
+    }
+
+    static class Entry {
+        final BasicAgent agent;
+        final int priority;
+
+        Entry(BasicAgent agent, int priority) {
+            this.agent = agent;
+            this.priority = priority;
+        }
+    }
+
+    Policy policy = Policy.ROUND_ROBIN;
+
+    List<Entry> agents = new ArrayList<>();
+    // the same agents, to check for duplicates without scanning the list:
+    Set<BasicAgent> members = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * The agents in the order they are updated in a round, grouped per
+     * environment. This is recalculated when an agent is added or the policy
+     * changes.
+     */
+    List<List<BasicAgent>> schedule = null;
+
+    ForkJoinPool pool = null;
+
+    Runnable afterEachRound = null;
+
+    long round = 0;
+
+    protected Logger logger = Logging.getAPLIBlogger();
+
+    /**
+     * Create an empty scheduler, which will update its agents sequentially on
+     * the calling thread, in round-robin order.
+     */
+    public SimulationScheduler() {
+    }
+
+    /**
+     * Add an agent to this scheduler, with priority 0. The method returns the
+     * scheduler itself so that it can be used in the Fluent Interface style.
+     */
+    public SimulationScheduler add(BasicAgent agent) {
+        return add(agent, 0);
+    }
+
+    /**
+     * Add an agent to this scheduler, with the given priority. A higher value
+     * means a higher priority. Priorities only matter under the
+     * {@link Policy#PRIORITY} policy. The method returns the scheduler itself so
+     * that it can be used in the Fluent Interface style.
+     */
+    public SimulationScheduler add(BasicAgent agent, int priority) {
+        if (agent == null)
+            throw new IllegalArgumentException();
+        if (!members.add(agent))
+            throw new IllegalArgumentException("Agent " + agent.getId() + " is already scheduled.");
+        agents.add(new Entry(agent, priority));
+        schedule = null;
+        return this;
+    }
+
+    /**
+     * Set the policy that determines the order in which agents are updated within
+     * a round. The method returns the scheduler itself so that it can be used in
+     * the Fluent Interface style.
+     */
+    public SimulationScheduler withPolicy(Policy policy) {
+        this.policy = policy;
+        schedule = null;
+        return this;
+    }
+
+    /**
+     * Use the given number of worker threads to update agents that use different
+     * environments in parallel. A value of 1 means updating all agents on the
+     * calling thread, which is the default. The method returns the scheduler
+     * itself so that it can be used in the Fluent Interface style.
+     */
+    public SimulationScheduler withParallelism(int numberOfThreads) {
+        if (numberOfThreads < 1)
+            throw new IllegalArgumentException();
+        shutdown();
+        if (numberOfThreads > 1)
+            pool = new ForkJoinPool(numberOfThreads);
+        return this;
+    }
+
+    /**
+     * Register an action to be executed at the end of every round, e.g. to advance
+     * a simulated environment. The method returns the scheduler itself so that it
+     * can be used in the Fluent Interface style.
+     */
+    public SimulationScheduler afterEachRound(Runnable action) {
+        afterEachRound = action;
+        return this;
+    }
+
+    /**
+     * Return the agents of this scheduler, in the order in which they were added.
+     */
+    public List<BasicAgent> getAgents() {
+        var result = new ArrayList<BasicAgent>();
+        for (var e : agents)
+            result.add(e.agent);
+        return result;
+    }
+
+    /**
+     * Return the number of rounds executed so far.
+     */
+    public long getRound() {
+        return round;
+    }
+
+    /**
+     * True if at least one of the agents still has a goal to work on.
+     */
+    public boolean hasActiveAgents() {
+        for (var e : agents) {
+            if (e.agent.goal != null)
+                return true;
+        }
+        return false;
+    }
+
+    private List<List<BasicAgent>> schedule() {
+        if (schedule != null)
+            return schedule;
+        var ordered = new ArrayList<>(agents);
+        if (policy == Policy.PRIORITY) {
+            // stable sort, so agents with the same priority keep the order of addition:
+            ordered.sort(Comparator.comparingInt((Entry e) -> -e.priority));
+        }
+        schedule = new ArrayList<>();
+        if (pool == null) {
+            // sequential: a single group, in the agents' order
+            var all = new ArrayList<BasicAgent>();
+            for (var e : ordered)
+                all.add(e.agent);
+            schedule.add(all);
+            return schedule;
+        }
+        // parallel: group per environment, preserving the order within each group
+        Map<Environment, List<BasicAgent>> groups = new IdentityHashMap<>();
+        for (var e : ordered) {
+            var env = e.agent.state() == null ? null : e.agent.env();
+            var group = groups.get(env);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(env, group);
+                schedule.add(group);
+            }
+            group.add(e.agent);
+        }
+        return schedule;
+    }
+
+    private static void updateAll(List<BasicAgent> group) {
+        for (var agent : group) {
+            if (agent.goal != null)
+                agent.update();
+        }
+    }
+
+    /**
+     * Execute a single round: every agent that still has a goal is updated once.
+     * The method returns true if after the round there are still agents with a
+     * goal.
+     */
+    public boolean step() {
+        var groups = schedule();
+        if (pool == null) {
+            for (var group : groups)
+                updateAll(group);
+        } else {
+            var tasks = new ArrayList<RecursiveAction>();
+            for (var group : groups) {
+                tasks.add(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        updateAll(group);
+                    }
+                });
+            }
+            pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        }
+        round++;
+        if (afterEachRound != null)
+            afterEachRound.run();
+        return hasActiveAgents();
+    }
+
+    /**
+     * Execute rounds until no agent has a goal anymore, or until the given maximum
+     * number of rounds is reached. The method returns the number of rounds that
+     * were executed.
+     */
+    public long run(long maxRounds) {
+        long k = 0;
+        while (k < maxRounds && hasActiveAgents()) {
+            step();
+            k++;
+        }
+        logger.log(Level.INFO, "Scheduler ran " + k + " rounds; " + (hasActiveAgents() ? "some agents still have goals." : "all agents are done."));
+        return k;
+    }
+
+    /**
+     * Release the worker threads of this scheduler, if it has any. The scheduler
+     * can still be used afterwards, but will then update its agents sequentially.
+     */
+    public void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        schedule = null;
+    }
+
+}
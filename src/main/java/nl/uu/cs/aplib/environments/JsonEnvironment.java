@@ -1,8 +1,17 @@
 package nl.uu.cs.aplib.environments;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
 
+import eu.iv4xr.framework.environments.WorldModelJsonCodec;
 import nl.uu.cs.aplib.mainConcepts.Environment;
 
 /**
@@ -43,10 +52,11 @@ public class JsonEnvironment extends Environment {
 
     /**
      * A constructor that will initialize the internal Json builder/parser to some
-     * simple setup.
+     * simple setup. WorldModels, their entities, and meshes are encoded and
+     * decoded by the adapters of {@link WorldModelJsonCodec}.
      */
     public JsonEnvironment() {
-        gson = new GsonBuilder().serializeNulls().create();
+        gson = WorldModelJsonCodec.registerTypeAdapters(new GsonBuilder().serializeNulls()).create();
     }
 
     /**
@@ -69,13 +79,79 @@ public class JsonEnvironment extends Environment {
      */
     @Override
     public Object sendCommand(String invokerId, String targetId, String command, Object arg,
-            Class expectedTypeOfResult) {
+            Class<?> expectedTypeOfResult) {
         String result = (String) super.sendCommand(invokerId, targetId, command, arg, String.class);
         if (expectedTypeOfResult == null)
             return null;
         return gson.fromJson(result, expectedTypeOfResult);
     }
 
+    /**
+     * A function that decodes a value directly from a stream of Json tokens.
+     */
+    public static interface JsonDecoder<T> {
+        public T decode(JsonReader in) throws IOException;
+    }
+
+    /**
+     * As {@link #sendCommand(String, String, String, Object, Class)}, but the Json
+     * string replied by the real environment is decoded by the given decoder,
+     * rather than by the Gson of this environment. This allows e.g. an observation
+     * to be decoded and merged right away into an existing structure, without
+     * first constructing an object representing the whole observation.
+     */
+    public <T> T sendCommandAndDecode(String invokerId, String targetId, String command, Object arg,
+            JsonDecoder<T> decoder) {
+        String result = (String) super.sendCommand(invokerId, targetId, command, arg, String.class);
+        if (result == null)
+            return null;
+        try {
+            return decoder.decode(new JsonReader(new StringReader(result)));
+        } catch (IOException e) {
+            throw new JsonParseException(e);
+        }
+    }
+
+    /**
+     * The asynchronous version of
+     * {@link #sendCommand(String, String, String, Object, Class)}: the Json string
+     * replied by the real environment is parsed once it arrives.
+     */
+    @Override
+    public CompletableFuture<Object> sendCommandAsync(String invokerId, String targetId, String command, Object arg,
+            Class<?> expectedTypeOfResult) {
+        return super.sendCommandAsync(invokerId, targetId, command, arg, String.class)
+                .thenApply(result -> parse(result, expectedTypeOfResult));
+    }
+
+    /**
+     * Send the given commands, without waiting for their replies. The underlying
+     * sendCommand_ (or sendCommandAsync_) receives copies of the commands whose
+     * expected type of result is String; the Json replies are then parsed to the
+     * types expected by the given commands.
+     */
+    @Override
+    public CompletableFuture<List<Object>> sendCommandsAsync(List<EnvOperation> cmds) {
+        var jsonCmds = new ArrayList<EnvOperation>(cmds.size());
+        for (var cmd : cmds)
+            jsonCmds.add(new EnvOperation(cmd.invokerId, cmd.targetId, cmd.command, cmd.arg, String.class));
+        return super.sendCommandsAsync(jsonCmds).thenApply(results -> {
+            var parsed = new ArrayList<Object>(results.size());
+            for (int i = 0; i < results.size(); i++) {
+                var cmd = cmds.get(i);
+                cmd.result = parse(results.get(i), cmd.expectedTypeOfResult);
+                parsed.add(cmd.result);
+            }
+            return parsed;
+        });
+    }
+
+    private Object parse(Object json, Class<?> expectedTypeOfResult) {
+        if (expectedTypeOfResult == null)
+            return null;
+        return gson.fromJson((String) json, expectedTypeOfResult);
+    }
+
     /**
      * Override this method. The method should send the command to the real
      * environment in the Json format. If the command is supposed to return some
@@ -114,6 +114,37 @@ public class Action {
         return this;
     }
 
+    /**
+     * Set the given query function as the guard of this Action, where the query
+     * is memoized under the given name (see
+     * {@link SimpleState#memo(String, java.util.function.Function)}). Actions
+     * whose guards use the same query-name share a single evaluation of the query
+     * per agent update. The method returns the Action itself so that it can be
+     * used in the Fluent Interface style.
+     */
+    public <AgentSt extends SimpleState, QueryResult> Action onMemo(String queryName,
+            Function<AgentSt, QueryResult> myguard) {
+        this.guard = st -> st.memo(queryName, myguard);
+        return this;
+    }
+
+    /**
+     * Set the given predicate as the guard of this Action, where the predicate is
+     * memoized under the given name. {@see #onMemo(String, Function)}. The method
+     * returns the Action itself so that it can be used in the Fluent Interface
+     * style.
+     */
+    public <AgentSt extends SimpleState> Action onMemo_(String queryName, Predicate<AgentSt> guard) {
+        Function<AgentSt, Boolean> query = st -> guard.test(st);
+        this.guard = st -> {
+            if (st.memo(queryName, query))
+                return true_;
+            else
+                return null;
+        };
+        return this;
+    }
+
     /**
      * Set the given function as the effect-part of this Action. The method returns
      * the Action itself so that it can be used in the Fluent Interface style.
@@ -1,5 +1,8 @@
 package nl.uu.cs.aplib.mainConcepts;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -9,6 +12,7 @@ import nl.uu.cs.aplib.exception.AplibError;
 import nl.uu.cs.aplib.mainConcepts.Action.Abort;
 import nl.uu.cs.aplib.mainConcepts.GoalStructure.GoalsCombinator;
 import nl.uu.cs.aplib.mainConcepts.GoalStructure.PrimitiveGoal;
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
 import nl.uu.cs.aplib.utils.Time;
 
 /**
@@ -106,6 +110,36 @@ public class BasicAgent {
      */
     protected Tactic currentTactic;
 
+    /**
+     * If true (the default), the agent evaluates the tactic of its current goal
+     * through its compiled form, see {@link #useCompiledTactics(boolean)}.
+     */
+    protected boolean useCompiledTactics = true;
+
+    /**
+     * The compiled form of the root tactic of the current goal, or null if the
+     * tactic is interpreted instead.
+     */
+    CompiledTactic currentPlan;
+
+    /**
+     * The index of {@link #currentTactic} in {@link #currentPlan}.
+     */
+    int currentTacticNode;
+
+    /**
+     * Buffer to collect the enabled actions into at every tick, when the tactic is
+     * compiled. It is reused across ticks.
+     */
+    final CompiledTactic.Candidates candidateBuffer = new CompiledTactic.Candidates();
+
+    /**
+     * Whether the last update found no enabled action, and the number of such
+     * updates so far. {@see #lastUpdateWasNoop()}.
+     */
+    protected boolean lastUpdateWasNoop = false;
+    protected long noopUpdates = 0;
+
     protected Logger logger = Logging.getAPLIBlogger();
 
     /**
@@ -172,18 +206,24 @@ public class BasicAgent {
         currentTactic = currentGoal.goal.getTactic();
         if (currentTactic == null)
             throw new IllegalArgumentException("Agent " + id + ", goal " + currentGoal.goal.name + ": has NO tactic.");
+        adoptPlan();
         logger.info("Agent " + id + " is assigned a new goal structure.");
         return this;
     }
 
     private static boolean allGoalsHaveTactic(GoalStructure g) {
-        if (g instanceof PrimitiveGoal) {
-            var g_ = (PrimitiveGoal) g;
-            return g_.goal.getTactic() != null;
-        }
-        for (GoalStructure h : g.subgoals) {
-            if (!allGoalsHaveTactic(h))
-                return false;
+        // iterative, so that very deep goal structures do not overflow the stack:
+        Deque<GoalStructure> todo = new ArrayDeque<>();
+        todo.push(g);
+        while (!todo.isEmpty()) {
+            var h = todo.pop();
+            if (h instanceof PrimitiveGoal) {
+                if (((PrimitiveGoal) h).goal.getTactic() == null)
+                    return false;
+            } else {
+                for (GoalStructure h2 : h.subgoals)
+                    todo.push(h2);
+            }
         }
         return true;
     }
@@ -223,6 +263,41 @@ public class BasicAgent {
         return this;
     }
 
+    /**
+     * If set to true (the default), the agent flattens the tactic of every goal it
+     * adopts into an array-based plan, and evaluates that plan on every tick
+     * without allocating new lists of candidate actions. This does not change the
+     * agent's behavior: the same guards are evaluated, and the deliberation is
+     * offered the same candidates in the same order. Tactics that cannot be
+     * compiled are simply interpreted. Note that the list of candidates passed to
+     * the {@link Deliberation} is reused at the next tick. The method returns the
+     * agent itself so that this method can be used in the Fluent Interface style.
+     */
+    public BasicAgent useCompiledTactics(boolean flag) {
+        useCompiledTactics = flag;
+        adoptPlan();
+        return this;
+    }
+
+    /**
+     * Set {@link #currentPlan} to the compiled form of the root tactic of the
+     * current goal, if it can be compiled, and locate {@link #currentTactic} in it.
+     */
+    private void adoptPlan() {
+        currentPlan = null;
+        if (!useCompiledTactics || currentGoal == null)
+            return;
+        var plan = currentGoal.goal.getTactic().compile();
+        if (plan == null)
+            return;
+        // when a goal is just adopted, the current tactic is the root, at index 0:
+        int k = plan.indexOf(currentTactic);
+        if (k != CompiledTactic.NONE) {
+            currentPlan = plan;
+            currentTacticNode = k;
+        }
+    }
+
     /**
      * Return the agent's id, if it was set.
      */
@@ -358,8 +433,9 @@ public class BasicAgent {
             parent.subgoals.clear();
             parent.subgoals.add(H);
             H.parent = parent;
+            H.siblingIndex = 0;
         } else {
-            int k = currentGoal.parent.subgoals.indexOf(currentGoal);
+            int k = currentGoal.indexInParent();
             int N = currentGoal.parent.subgoals.size();
             if (k == N - 1) {
                 currentGoal.parent.subgoals.add(G);
@@ -367,6 +443,7 @@ public class BasicAgent {
                 currentGoal.parent.subgoals.add(k + 1, G);
             }
             G.parent = currentGoal.parent;
+            currentGoal.parent.reindexSubgoalsFrom(k + 1);
         }
         logger.info("Agent " + id + " inserts a new goal structure after goal " + currentGoal.goal.name + ".");
     }
@@ -399,7 +476,7 @@ public class BasicAgent {
 
         // currentGoal must therefore have a parent:
         var parent = currentGoal.parent;
-        int k = parent.subgoals.indexOf(currentGoal);
+        int k = currentGoal.indexInParent();
 
         // case (1), G was already added. This is the case if G occurs as a previous
         // sibling under a SEQ parent.
@@ -417,9 +494,9 @@ public class BasicAgent {
         repeatNode.budget = parent.budget;
         if (Double.isFinite(parent.budget))
             repeatNode.maxbudget(parent.budget);
-        parent.subgoals.remove(k);
-        parent.subgoals.add(k, repeatNode);
+        parent.subgoals.set(k, repeatNode);
         repeatNode.parent = parent;
+        repeatNode.siblingIndex = k;
         logger.info("Agent " + id + " inserts a new goal structure before goal " + currentGoal.goal.name + ".");
         // case-2 done
     }
@@ -431,29 +508,33 @@ public class BasicAgent {
     public void remove(GoalStructure G) {
         if (goal == null || currentGoal.isDescendantOf(G))
             throw new IllegalArgumentException();
-        removeGoalWorker(goal, G);
+        removeGoalWorker(G);
         logger.info("Agent " + id + " removes a sub-goal-structure.");
     }
 
-    private boolean removeGoalWorker(GoalStructure H, GoalStructure tobeRemoved) {
-        if (H.subgoals.contains(tobeRemoved)) {
-            H.subgoals.remove(tobeRemoved);
-            if (H.subgoals.isEmpty()) {
-                if (H.isTopGoal()) {
-                    throw new AplibError("Removal of a goal structure causes the topgoal to become childless.");
-                } else {
-                    removeGoalWorker(goal, H);
-                }
-            }
-            return true;
-        } else {
-            for (GoalStructure H2 : H.subgoals) {
-                var r = removeGoalWorker(H2, tobeRemoved);
-                if (r)
-                    return true;
-            }
+    /**
+     * Remove the goal-structure from its parent, if that parent is part of the
+     * agent's root goal-structure. If the parent becomes childless, it is removed
+     * as well. This only walks up the tree from the removed goal-structure, so it
+     * does not depend on the size of the whole goal-structure.
+     */
+    private boolean removeGoalWorker(GoalStructure tobeRemoved) {
+        var H = tobeRemoved.parent;
+        if (H == null || !H.isDescendantOf(goal))
+            return false;
+        int k = tobeRemoved.indexInParent();
+        if (k < 0)
             return false;
+        H.subgoals.remove(k);
+        H.reindexSubgoalsFrom(k);
+        if (H.subgoals.isEmpty()) {
+            if (H.isTopGoal()) {
+                throw new AplibError("Removal of a goal structure causes the topgoal to become childless.");
+            } else {
+                removeGoalWorker(H);
+            }
         }
+        return true;
     }
 
     /**
@@ -462,7 +543,7 @@ public class BasicAgent {
      * access to the Environment.
      */
     protected void lockEnvironment() {
-        state.env.lock.lock();
+        state.env.lock.writeLock().lock();
     }
 
     /**
@@ -471,7 +552,23 @@ public class BasicAgent {
      * access to the Environment.
      */
     protected void unlockEnvironment() {
-        state.env.lock.unlock();
+        state.env.lock.writeLock().unlock();
+    }
+
+    /**
+     * As {@link #lockEnvironment()}, but to acquire shared access to the
+     * Environment, used for observing it when the Environment is not in the
+     * {@link Environment.LockingMode#EXCLUSIVE} mode.
+     */
+    protected void lockEnvironmentShared() {
+        state.env.lock.readLock().lock();
+    }
+
+    /**
+     * Release the shared access obtained through {@link #lockEnvironmentShared()}.
+     */
+    protected void unlockEnvironmentShared() {
+        state.env.lock.readLock().unlock();
     }
 
     /**
@@ -501,33 +598,130 @@ public class BasicAgent {
         // the budget at the end of every update instead.
 
         mytime.sample();
+        var env = state.env;
+        if (env.lockingMode != Environment.LockingMode.EXCLUSIVE) {
+            phasedUpdate(env);
+            return;
+        }
         // We need to lock the environment since there may be multiple agents
         // sharing the same environment:
         lockEnvironment();
         // goal.redistributeRemainingBudget();
         try {
-            updateWorker();
+            observe();
+            var chosenAction = chooseAction();
+            registerNoop(chosenAction);
+            if (chosenAction != null)
+                executeAction(chosenAction);
         } finally {
             unlockEnvironment();
         }
     }
 
-    private void updateWorker() {
+    private void registerNoop(PrimitiveTactic chosenAction) {
+        lastUpdateWasNoop = chosenAction == null;
+        if (lastUpdateWasNoop)
+            noopUpdates++;
+    }
+
+    /**
+     * True if in the last call to {@link #update()} the agent had a goal, but no
+     * enabled action; so, nothing was done.
+     */
+    public boolean lastUpdateWasNoop() {
+        return lastUpdateWasNoop;
+    }
 
+    /**
+     * The number of calls to {@link #update()} so far in which the agent had a
+     * goal, but no enabled action.
+     */
+    public long getNumberOfNoopUpdates() {
+        return noopUpdates;
+    }
+
+    /**
+     * The update when the environment is in the SHARED_OBSERVATION or OPTIMISTIC
+     * mode: observe in the shared phase, deliberate without holding the lock, and
+     * only execute the chosen action in the exclusive phase.
+     */
+    private void phasedUpdate(Environment env) {
+        long observedVersion;
+        long ownModifications;
+        lockEnvironmentShared();
+        try {
+            observe();
+            observedVersion = env.modificationCount.get();
+            ownModifications = env.ownModificationCount();
+        } finally {
+            unlockEnvironmentShared();
+        }
+        var chosenAction = chooseAction();
+        if (chosenAction == null) {
+            registerNoop(null);
+            return;
+        }
+        lockEnvironment();
+        try {
+            // the commands this agent itself sent while deliberating (e.g. from its
+            // guards) are not conflicts:
+            long othersModifications = env.modificationCount.get() - observedVersion
+                    - (env.ownModificationCount() - ownModifications);
+            if (env.lockingMode == Environment.LockingMode.OPTIMISTIC && othersModifications != 0) {
+                // someone changed the environment after we observed it; redo the
+                // observation and deliberation, now with exclusive access:
+                env.optimisticConflicts.incrementAndGet();
+                // observing in a nested shared phase, so that it is not counted as
+                // a modification of the environment:
+                lockEnvironmentShared();
+                try {
+                    observe();
+                } finally {
+                    unlockEnvironmentShared();
+                }
+                chosenAction = chooseAction();
+            }
+            registerNoop(chosenAction);
+            if (chosenAction != null)
+                executeAction(chosenAction);
+        } finally {
+            unlockEnvironment();
+        }
+    }
+
+    private void observe() {
         // update the agent's state:
         state.updateState(id);
+        // this invalidates the memoized guard-queries of the previous update:
+        state.bumpStateVersion();
+    }
 
-        var candidates = currentTactic.getFirstEnabledActions(state);
+    /**
+     * Return the action to execute in this update, or null if no action is
+     * enabled.
+     */
+    private PrimitiveTactic chooseAction() {
+        List<PrimitiveTactic> candidates;
+        if (currentPlan != null) {
+            candidateBuffer.clear();
+            currentPlan.collectFirstEnabledActions(currentTacticNode, state, candidateBuffer);
+            candidates = candidateBuffer;
+        } else {
+            candidates = currentTactic.getFirstEnabledActions(state);
+        }
         if (candidates.isEmpty()) {
             // if no action is enabled, we wait until the next update, to see
             // if the environment changes its state.
 
             // we keep the goal.
-            return;
+            return null;
         }
         // we have at least one enabled actions to choose from; use deliberation
         // to decide:
-        var chosenAction = deliberation.deliberate(state, candidates);
+        return deliberation.deliberate(state, candidates);
+    }
+
+    private void executeAction(PrimitiveTactic chosenAction) {
 
         if (chosenAction.action instanceof Abort) {
             // if the action is ABORT:
@@ -536,6 +730,8 @@ public class BasicAgent {
         } else {
             // else execute the action:
             Object proposal = costFunction.executeAction_andInstrumentCost(state, chosenAction.action);
+            // the action may have changed the environment; let e.g. waiting agents know:
+            state.env.notifyChange();
             currentGoal.goal.propose_(proposal);
             if (currentGoal.goal.getStatus().success()) {
                 logger.info("Agent " + id + " SOLVEs the goal " + currentGoal.goal.name + ".");
@@ -576,6 +772,7 @@ public class BasicAgent {
                 if (currentTactic == null)
                     // should not happen...
                     throw new AplibError("Goal " + currentGoal.goal.name + " has no tactic.");
+                adoptPlan();
             } else {
                 // there is no more goal left!
                 detachgoal();
@@ -584,13 +781,31 @@ public class BasicAgent {
 
         } else {
             // else the currentgoal is still in-progress
-            if (chosenAction.action.isCompleted()) {
-                currentTactic = chosenAction.calcNextTactic();
-                // if no tactic can be found, reset it to the root tactic of the goal:
-                if (currentTactic == null)
-                    currentTactic = currentGoal.goal.getTactic();
+            int k = currentPlan == null ? CompiledTactic.NONE : candidateBuffer.planIndexOf(chosenAction);
+            if (k == CompiledTactic.NONE && currentPlan != null)
+                k = currentPlan.indexOf(chosenAction);
+            if (k == CompiledTactic.NONE) {
+                // the tactic is interpreted (or the deliberation chose an action outside
+                // the plan, in which case we fall back to interpreting):
+                currentPlan = null;
+                if (chosenAction.action.isCompleted()) {
+                    currentTactic = chosenAction.calcNextTactic();
+                    // if no tactic can be found, reset it to the root tactic of the goal:
+                    if (currentTactic == null)
+                        currentTactic = currentGoal.goal.getTactic();
+                } else {
+                    currentTactic = chosenAction;
+                }
             } else {
-                currentTactic = chosenAction;
+                if (chosenAction.action.isCompleted()) {
+                    currentTacticNode = currentPlan.calcNextNode(k);
+                    // if no tactic can be found, reset it to the root tactic of the goal:
+                    if (currentTacticNode == CompiledTactic.NONE)
+                        currentTacticNode = 0;
+                } else {
+                    currentTacticNode = k;
+                }
+                currentTactic = currentPlan.nodes[currentTacticNode];
             }
         }
     }
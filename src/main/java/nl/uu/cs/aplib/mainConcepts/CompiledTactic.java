@@ -0,0 +1,305 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import nl.uu.cs.aplib.mainConcepts.Tactic.PrimitiveTactic;
+import nl.uu.cs.aplib.mainConcepts.Tactic.TacticType;
+
+/**
+ * A flattened, array-backed form of a {@link Tactic} tree. The nodes of the
+ * tree are stored in pre-order, so the root is at index 0. For every node we
+ * precompute its parent, its first child, its next sibling, and the node that
+ * {@link Tactic#calcNextTactic()} would return for it once it is completed. A
+ * {@link BasicAgent} uses this to evaluate its current tactic every tick
+ * without allocating fresh lists, and to move to the next tactic by an index
+ * lookup rather than by {@code indexOf} over the children of a SEQ node.
+ *
+ * <p>
+ * The compiled plan produces exactly the same candidates, in the same order,
+ * and evaluates exactly the same guards as
+ * {@link Tactic#getFirstEnabledActions(SimpleState)}. This only holds if the
+ * tactic is a proper tree: every node occurs once, and its {@code parent} field
+ * points to the node that holds it as a subtactic. Since the interpreted
+ * semantics follows the {@code parent} fields, a tactic whose nodes are also
+ * used to construct another tactic behaves differently. Such a tactic is
+ * therefore not compiled (see {@link #compile(Tactic)}), and a plan that was
+ * compiled earlier can be re-checked with {@link #isValid()}.
+ */
+class CompiledTactic {
+
+    static final int NONE = -1;
+
+    final Tactic[] nodes;
+    final TacticType[] types;
+    final int[] parent;
+    final int[] firstChild;
+    final int[] nextSibling;
+
+    /**
+     * next[k] is the node to continue with after node k is completed, or
+     * {@link #NONE} if there is none.
+     */
+    final int[] next;
+
+    private CompiledTactic(int size) {
+        nodes = new Tactic[size];
+        types = new TacticType[size];
+        parent = new int[size];
+        firstChild = new int[size];
+        nextSibling = new int[size];
+        next = new int[size];
+    }
+
+    /**
+     * Flatten the given tactic. It returns null if the tactic is not a proper
+     * tree, in which case the tactic should be interpreted instead.
+     */
+    static CompiledTactic compile(Tactic root) {
+        if (root.parent != null)
+            return null;
+        Set<Tactic> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        if (!countNodes(root, seen))
+            return null;
+        var plan = new CompiledTactic(seen.size());
+        plan.flatten(root, NONE, 0);
+        // parents are placed before their children, so next[parent[k]] is already
+        // known when we get to k:
+        for (int k = 0; k < plan.size(); k++) {
+            int p = plan.parent[k];
+            if (p == NONE)
+                plan.next[k] = NONE;
+            else if (plan.types[p] == TacticType.SEQ && plan.nextSibling[k] != NONE)
+                plan.next[k] = plan.nextSibling[k];
+            else
+                plan.next[k] = plan.next[p];
+        }
+        return plan;
+    }
+
+    private static boolean countNodes(Tactic T, Set<Tactic> seen) {
+        if (!seen.add(T))
+            return false;
+        if (T.subtactics == null)
+            return false;
+        for (Tactic S : T.subtactics) {
+            if (S.parent != T || !countNodes(S, seen))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Put T at index k with the given parent; return the first free index after
+     * T's subtree.
+     */
+    private int flatten(Tactic T, int p, int k) {
+        nodes[k] = T;
+        types[k] = T.strTy;
+        parent[k] = p;
+        firstChild[k] = NONE;
+        nextSibling[k] = NONE;
+        int free = k + 1;
+        int previous = NONE;
+        for (Tactic S : T.subtactics) {
+            int c = free;
+            if (previous == NONE)
+                firstChild[k] = c;
+            else
+                nextSibling[previous] = c;
+            previous = c;
+            free = flatten(S, k, c);
+        }
+        return free;
+    }
+
+    /**
+     * The number of nodes in this plan.
+     */
+    int size() {
+        return nodes.length;
+    }
+
+    Tactic root() {
+        return nodes[0];
+    }
+
+    /**
+     * Check that the tactic from which this plan was compiled still has the same
+     * tree shape, so that the plan is still faithful to it.
+     */
+    boolean isValid() {
+        if (nodes[0].parent != null)
+            return false;
+        for (int k = 0; k < nodes.length; k++) {
+            var T = nodes[k];
+            if (k > 0 && T.parent != nodes[parent[k]])
+                return false;
+            int numOfChildren = 0;
+            for (int c = firstChild[k]; c != NONE; c = nextSibling[c])
+                numOfChildren++;
+            if (T.subtactics.size() != numOfChildren)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Return the index of the given tactic in this plan, or {@link #NONE} if it
+     * is not part of the plan.
+     */
+    int indexOf(Tactic T) {
+        for (int k = 0; k < nodes.length; k++) {
+            if (nodes[k] == T)
+                return k;
+        }
+        return NONE;
+    }
+
+    /**
+     * The counterpart of {@link Tactic#getFirstEnabledActions(SimpleState)} for
+     * the node at index k. The enabled primitive tactics are appended to the given
+     * buffer. The method returns true if at least one was added.
+     */
+    boolean collectFirstEnabledActions(int k, SimpleState agentstate, Candidates buffer) {
+        switch (types[k]) {
+        case FIRSTOF:
+            for (int c = firstChild[k]; c != NONE; c = nextSibling[c]) {
+                if (collectFirstEnabledActions(c, agentstate, buffer))
+                    return true;
+            }
+            return false;
+        case ANYOF:
+            boolean found = false;
+            for (int c = firstChild[k]; c != NONE; c = nextSibling[c]) {
+                // no short-cut here; all guards of an ANYOF must be evaluated:
+                if (collectFirstEnabledActions(c, agentstate, buffer))
+                    found = true;
+            }
+            return found;
+        case SEQ:
+            if (firstChild[k] == NONE)
+                // mimic the interpreted version, which calls get(0) on an empty list
+                throw new IndexOutOfBoundsException("SEQ tactic without subtactics");
+            return collectFirstEnabledActions(firstChild[k], agentstate, buffer);
+        case PRIMITIVE:
+            var this_ = (PrimitiveTactic) nodes[k];
+            if (this_.action.isEnabled(agentstate)) {
+                buffer.add(this_, k);
+                return true;
+            }
+            return false;
+        }
+        // should not happen:
+        return false;
+    }
+
+    /**
+     * The counterpart of {@link Tactic#calcNextTactic()} for the node at index k.
+     * It returns the index of the next node, or {@link #NONE}.
+     */
+    int calcNextNode(int k) {
+        if (parent[k] == NONE)
+            return NONE;
+        if (types[k] == TacticType.PRIMITIVE && !((PrimitiveTactic) nodes[k]).action.isCompleted())
+            return k;
+        return next[k];
+    }
+
+    /**
+     * A reusable list of candidate actions, to be owned by a single agent. Next to
+     * each {@link PrimitiveTactic} it remembers the index of that tactic in the
+     * plan that produced it, so that the agent can locate the chosen action in the
+     * plan without a search. The list can be modified (e.g. by a
+     * {@link Deliberation}), but it is cleared at the next tick, so it should not
+     * be retained.
+     */
+    static class Candidates extends AbstractList<PrimitiveTactic> {
+
+        private PrimitiveTactic[] tactics = new PrimitiveTactic[8];
+        private int[] indices = new int[8];
+        private int size = 0;
+
+        @Override
+        public PrimitiveTactic get(int i) {
+            checkIndex(i, size);
+            return tactics[i];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public void clear() {
+            Arrays.fill(tactics, 0, size, null);
+            size = 0;
+        }
+
+        void add(PrimitiveTactic T, int planIndex) {
+            add(size, T, planIndex);
+        }
+
+        @Override
+        public void add(int i, PrimitiveTactic T) {
+            add(i, T, NONE);
+        }
+
+        private void add(int i, PrimitiveTactic T, int planIndex) {
+            checkIndex(i, size + 1);
+            if (size == tactics.length) {
+                tactics = Arrays.copyOf(tactics, 2 * size);
+                indices = Arrays.copyOf(indices, 2 * size);
+            }
+            System.arraycopy(tactics, i, tactics, i + 1, size - i);
+            System.arraycopy(indices, i, indices, i + 1, size - i);
+            tactics[i] = T;
+            indices[i] = planIndex;
+            size++;
+            modCount++;
+        }
+
+        @Override
+        public PrimitiveTactic set(int i, PrimitiveTactic T) {
+            checkIndex(i, size);
+            var old = tactics[i];
+            tactics[i] = T;
+            indices[i] = NONE;
+            return old;
+        }
+
+        @Override
+        public PrimitiveTactic remove(int i) {
+            checkIndex(i, size);
+            var old = tactics[i];
+            System.arraycopy(tactics, i + 1, tactics, i, size - i - 1);
+            System.arraycopy(indices, i + 1, indices, i, size - i - 1);
+            size--;
+            tactics[size] = null;
+            modCount++;
+            return old;
+        }
+
+        /**
+         * Return the plan-index of the given tactic, if it is in this list and was
+         * put there by a plan. Else {@link CompiledTactic#NONE} is returned.
+         */
+        int planIndexOf(PrimitiveTactic T) {
+            for (int i = 0; i < size; i++) {
+                if (tactics[i] == T)
+                    return indices[i];
+            }
+            return NONE;
+        }
+
+        private static void checkIndex(int i, int bound) {
+            if (i < 0 || i >= bound)
+                throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + (bound));
+        }
+    }
+
+}
@@ -1,10 +1,15 @@
 package nl.uu.cs.aplib.mainConcepts;
 
 import java.util.*;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.exception.AplibError;
 
 /**
  * 
@@ -60,17 +65,104 @@ import nl.uu.cs.aplib.Logging;
  * the Environment state, e.g. for the purpose of checking some correctness
  * property.
  * 
+ * <p>
+ * Commands can also be sent asynchronously, through
+ * {@link #sendCommandAsync(String, String, String, Object, Class)}, or several
+ * at once, through {@link #sendCommandsAsync(List)}. This allows multiple
+ * independent commands to be in flight at the same time, rather than paying the
+ * full round-trip latency to the actual environment for each of them. By
+ * default these are still executed synchronously, one by one, through
+ * {@link #sendCommand_(EnvOperation)}. An implementation that can pipeline its
+ * requests should override {@link #sendCommandAsync_(EnvOperation)}, and
+ * possibly also {@link #sendCommandsAsync_(List)} if it can send a whole batch
+ * in one round trip.
+ * 
+ * <p>
+ * Agents that share an Environment synchronize their access to it through a
+ * read-write lock. How this lock is used is determined by the Environment's
+ * {@link LockingMode}, see {@link #setLockingMode(LockingMode)}. The default
+ * mode, {@link LockingMode#EXCLUSIVE}, gives an agent exclusive access to the
+ * Environment during its whole update.
+ * 
  * @author wish
  *
  */
 public class Environment {
 
+    /**
+     * Determines how agents that share this Environment synchronize their access
+     * to it.
+     * 
+     * <ol>
+     * <li>EXCLUSIVE: an agent holds the Environment's lock exclusively during its
+     * whole update: observation, guard evaluation, deliberation, and the execution
+     * of the chosen action.
+     * 
+     * <li>SHARED_OBSERVATION: agents observe the Environment in a shared phase, so
+     * multiple agents can observe at the same time. Guard evaluation and
+     * deliberation are done without holding the lock. Only the execution of the
+     * chosen action is done in an exclusive phase. Note that the action may then
+     * be executed on a state that is a bit stale, because other agents may have
+     * changed the Environment since it was observed.
+     * 
+     * <li>OPTIMISTIC: as SHARED_OBSERVATION, but before executing the chosen
+     * action the agent checks whether another party has sent a command to the
+     * Environment since the agent's observation. If so, the agent redoes its
+     * observation, guard evaluation, and deliberation in the exclusive phase.
+     * </ol>
+     * 
+     * In the last two modes, {@link #observe(String)} (and any command sent in the
+     * shared phase) may be invoked by multiple threads at the same time, so the
+     * implementation of this Environment should allow that. Also, a call to
+     * {@link #sendCommand(String, String, String, Object, Class)} outside the
+     * shared phase will then itself acquire the exclusive lock.
+     */
+    static public enum LockingMode {
+        EXCLUSIVE, SHARED_OBSERVATION, OPTIMISTIC
+    }
+
     /**
      * Providing a lock to the entire Environment. This is used by
-     * {@link BasicAgent} to make sure that agents get exclusive access to an
-     * Environment when they want to do something with it.
+     * {@link BasicAgent} to make sure that agents get shared or exclusive access
+     * to an Environment when they want to do something with it, depending on the
+     * {@link #lockingMode}.
      */
-    ReentrantLock lock = new ReentrantLock();
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    volatile LockingMode lockingMode = LockingMode.EXCLUSIVE;
+
+    /**
+     * The number of commands sent to this Environment outside the shared phase;
+     * these are assumed to change the state of the Environment. Used to detect
+     * conflicts in the OPTIMISTIC mode.
+     */
+    final AtomicLong modificationCount = new AtomicLong();
+
+    /**
+     * Per thread, the part of {@link #modificationCount} that is due to commands
+     * sent by that thread. An agent in the OPTIMISTIC mode uses this to ignore its
+     * own commands, e.g. those sent by its guards, when it checks for conflicts.
+     */
+    private final ThreadLocal<long[]> ownModificationCount = ThreadLocal.withInitial(() -> new long[1]);
+
+    /**
+     * The number of times an agent in the OPTIMISTIC mode had to redo its update
+     * because the Environment was changed after its observation.
+     */
+    final AtomicLong optimisticConflicts = new AtomicLong();
+
+    private void countModifications(int n) {
+        modificationCount.addAndGet(n);
+        ownModificationCount.get()[0] += n;
+    }
+
+    /**
+     * The number of modifications counted so far that were made by the calling
+     * thread.
+     */
+    long ownModificationCount() {
+        return ownModificationCount.get()[0];
+    }
 
     /**
      * Create an instance of this environment.
@@ -79,6 +171,32 @@ public class Environment {
     }
 
 
+    /**
+     * Set how agents sharing this Environment synchronize their access to it. The
+     * default is {@link LockingMode#EXCLUSIVE}. {@see LockingMode}. Only change
+     * this while no agent is updating. The method returns this Environment so
+     * that it can be used in the Fluent Interface style.
+     */
+    public Environment setLockingMode(LockingMode mode) {
+        if (mode == null)
+            throw new IllegalArgumentException();
+        lockingMode = mode;
+        return this;
+    }
+
+    public LockingMode getLockingMode() {
+        return lockingMode;
+    }
+
+    /**
+     * The number of times an agent using the {@link LockingMode#OPTIMISTIC} mode
+     * had to redo its update in the exclusive phase, because the Environment had
+     * changed after the agent observed it.
+     */
+    public long getOptimisticConflicts() {
+        return optimisticConflicts.get();
+    }
+
     /**
      * This will will call [@link #resetWorker()} and additionally reset this
      * Environment's active instrumenters.
@@ -129,14 +247,148 @@ public class Environment {
      *         The method may also throws a runtime exception.
      */
     public Object sendCommand(String invokerId, String targetId, String command, Object arg,
-            Class expectedTypeOfResult) {
+            Class<?> expectedTypeOfResult) {
         var cmd = new EnvOperation(invokerId, targetId, command, arg, expectedTypeOfResult);
+        if (lock.getReadHoldCount() > 0) {
+            // the calling thread is in the shared phase; the command is not supposed to
+            // change the environment:
+            return sendCommandWorker(cmd);
+        }
+        if (lockingMode == LockingMode.EXCLUSIVE) {
+            countModifications(1);
+            return sendCommandWorker(cmd);
+        }
+        lock.writeLock().lock();
+        try {
+            countModifications(1);
+            return sendCommandWorker(cmd);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private Object sendCommandWorker(EnvOperation cmd) {
         var response = sendCommand_(cmd);
         cmd.result = response;
         instrument(cmd);
         return response;
     }
 
+    /**
+     * The asynchronous version of
+     * {@link #sendCommand(String, String, String, Object, Class)}. The command is
+     * sent (or at least queued to be sent) when this method returns, but the
+     * method does not wait for the reply. The returned future completes with the
+     * reply, or exceptionally if the command fails. Registered instrumenters are
+     * invoked when the reply arrives, possibly by a different thread.
+     */
+    public CompletableFuture<Object> sendCommandAsync(String invokerId, String targetId, String command, Object arg,
+            Class<?> expectedTypeOfResult) {
+        var cmd = new EnvOperation(invokerId, targetId, command, arg, expectedTypeOfResult);
+        return sendCommandsAsyncWorker(List.of(cmd)).thenApply(results -> results.get(0));
+    }
+
+    /**
+     * Send the given commands to the real environment, without waiting for their
+     * replies. The commands are sent in the given order, and the real environment
+     * is expected to execute them in that order. The returned future completes
+     * with the list of replies, in the same order, or exceptionally if any of the
+     * commands fails. The reply of each command is also stored in its
+     * {@code result} field. Registered instrumenters are invoked for each command,
+     * in order, when all replies have arrived.
+     */
+    public CompletableFuture<List<Object>> sendCommandsAsync(List<EnvOperation> cmds) {
+        return sendCommandsAsyncWorker(cmds);
+    }
+
+    /**
+     * Send the given commands to the real environment, in one go, and wait for all
+     * their replies. {@see #sendCommandsAsync(List)}. If a command fails, the
+     * exception it throws is rethrown.
+     */
+    public List<Object> sendCommands(List<EnvOperation> cmds) {
+        return join(sendCommandsAsync(cmds));
+    }
+
+    /**
+     * Wait for the given future to complete, and return its value. If it completes
+     * exceptionally with a runtime exception or an error, this is rethrown as is.
+     */
+    public static <T> T join(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new AplibError("Command failed: " + cause);
+        }
+    }
+
+    private CompletableFuture<List<Object>> sendCommandsAsyncWorker(List<EnvOperation> cmds) {
+        CompletableFuture<List<Object>> pending;
+        // the same locking rules as in sendCommand():
+        if (lock.getReadHoldCount() > 0) {
+            pending = sendCommandsAsync_(cmds);
+        } else if (lockingMode == LockingMode.EXCLUSIVE) {
+            countModifications(cmds.size());
+            pending = sendCommandsAsync_(cmds);
+        } else {
+            lock.writeLock().lock();
+            try {
+                countModifications(cmds.size());
+                pending = sendCommandsAsync_(cmds);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        return pending.thenApply(results -> {
+            for (int i = 0; i < cmds.size(); i++) {
+                var cmd = cmds.get(i);
+                cmd.result = results.get(i);
+                instrument(cmd);
+            }
+            return results;
+        });
+    }
+
+    /**
+     * Override this method to send a command to the real environment without
+     * waiting for its reply, e.g. to pipeline multiple requests over a single
+     * connection. The returned future should complete with the reply, with the
+     * same contract as {@link #sendCommand_(EnvOperation)}. The default
+     * implementation simply calls {@link #sendCommand_(EnvOperation)}, and thus
+     * does wait for the reply.
+     */
+    protected CompletableFuture<Object> sendCommandAsync_(EnvOperation cmd) {
+        try {
+            return CompletableFuture.completedFuture(sendCommand_(cmd));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Override this method if the real environment can receive a batch of commands
+     * in a single message. The returned future should complete with the replies of
+     * the commands, in the same order. The default implementation sends each
+     * command through {@link #sendCommandAsync_(EnvOperation)}, in order, without
+     * waiting for the replies in between.
+     */
+    protected CompletableFuture<List<Object>> sendCommandsAsync_(List<EnvOperation> cmds) {
+        var replies = new ArrayList<CompletableFuture<Object>>(cmds.size());
+        for (var cmd : cmds)
+            replies.add(sendCommandAsync_(cmd));
+        return CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])).thenApply(dummy -> {
+            var results = new ArrayList<Object>(replies.size());
+            for (var r : replies)
+                results.add(r.join());
+            return results;
+        });
+    }
+
     /**
      * A simplified version of the other sendCommand where the expectedTypeOfResult
      * parameter is left unspecified (set to null). When using this method the agent
@@ -209,7 +461,7 @@ public class Environment {
         /**
          * If not null, thus specifies the expected type of result of this operation.
          */
-        public Class expectedTypeOfResult;
+        public Class<?> expectedTypeOfResult;
 
         /**
          * Used to store the result of the operation, if any. If the field
@@ -218,7 +470,7 @@ public class Environment {
          */
         public Object result = null;
 
-        public EnvOperation(String invokerId, String targetId, String command, Object arg, Class expectedTypeOfResult) {
+        public EnvOperation(String invokerId, String targetId, String command, Object arg, Class<?> expectedTypeOfResult) {
             this.invokerId = invokerId;
             this.targetId = targetId;
             this.command = command;
@@ -297,6 +549,40 @@ public class Environment {
         return this;
     }
 
+    List<Runnable> changeListeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Register a listener that will be invoked whenever this environment is
+     * notified of a change, through {@link #notifyChange()}. This is used e.g. by
+     * an {@link nl.uu.cs.aplib.agents.AutonomousBasicAgent} to sleep, rather than
+     * to poll, while it waits for the environment to change. A listener is invoked
+     * by whatever thread calls {@link #notifyChange()}, possibly while holding the
+     * lock of this environment, so it should return quickly and must not block.
+     */
+    public Environment addChangeListener(Runnable listener) {
+        if (listener == null)
+            throw new IllegalArgumentException();
+        changeListeners.add(listener);
+        return this;
+    }
+
+    public Environment removeChangeListener(Runnable listener) {
+        changeListeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * Signal that the state of the actual environment has changed, by invoking
+     * all registered change listeners. A {@link BasicAgent} calls this after it
+     * executes an action on this environment. An implementation of Environment
+     * should also call this when the actual environment changes by itself, e.g.
+     * when it pushes an event.
+     */
+    public void notifyChange() {
+        for (Runnable listener : changeListeners)
+            listener.run();
+    }
+
     /**
      * An interface for instrumenters that you can attach to an environment. You
      * attach an instrumenter to an environment through the method
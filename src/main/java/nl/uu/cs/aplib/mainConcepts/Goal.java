@@ -144,9 +144,15 @@ public class Goal {
      * Set the strategy to that a solving agent can use to solve this goal. The
      * method returns this Goal itself so that it can be used in the Fluent
      * Interface style.
+     * 
+     * <p>
+     * The tactic is also flattened into its compiled form here, so that agents
+     * adopting this goal do not have to do so.
      */
     public Goal withTactic(Tactic S) {
         tactic = S;
+        if (S != null)
+            S.compile();
         return this;
     }
 
@@ -177,7 +183,7 @@ public class Goal {
 
     /**
      * This is the version of {@link #propose(Object)} that will be called
-     * internally by {@link BasicAgent#updateWorker()}. Override this if its
+     * internally by {@link BasicAgent#update()}. Override this if its
      * behavior need to be extended.
      */
     protected void propose_(Object proposal) {
@@ -42,8 +42,17 @@ public class GoalStructure {
     }
 
     GoalStructure parent = null;
-    List<GoalStructure> subgoals = new LinkedList<GoalStructure>();
+    List<GoalStructure> subgoals = new ArrayList<GoalStructure>();
     GoalsCombinator combinator;
+
+    /**
+     * The position of this goal structure in the subgoals of its parent. This is
+     * a cached value, so that the next sibling of a goal can be found without
+     * searching the parent's subgoals. It is checked whenever it is used, and
+     * recomputed if the subgoals of the parent have been changed in the meantime.
+     * {@see #indexInParent()}.
+     */
+    int siblingIndex = -1;
     ProgressStatus status = new ProgressStatus();
 
     /**
@@ -78,6 +87,7 @@ public class GoalStructure {
                 var g = subgoals[k];
                 this.subgoals.add(g);
                 g.parent = this;
+                g.siblingIndex = k;
             }
         }
     }
@@ -106,11 +116,44 @@ public class GoalStructure {
     public boolean isTopGoal() {
         return parent == null;
     }
+    /**
+     * Check that this goal structure is a tree: it has no cycle, and no goal
+     * structure in it is shared by multiple parents. The check takes time linear
+     * in the size of the goal structure; it is iterative, so very deep goal
+     * structures are fine as well.
+     */
     public boolean checkIfWellformed() {
-    	return checkIfWellformedWorker(new LinkedList<GoalStructure>(), new LinkedList<GoalStructure>()) ;
+        Set<GoalStructure> ancestors = Collections.newSetFromMap(new IdentityHashMap<>());
+        Set<GoalStructure> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        // the path from this goal structure to the goal structure being checked,
+        // along with the iterators over their remaining subgoals:
+        Deque<GoalStructure> path = new ArrayDeque<>();
+        Deque<Iterator<GoalStructure>> todo = new ArrayDeque<>();
+        if (!checkIfWellformedWorker(ancestors, seen))
+            return false;
+        path.push(this);
+        todo.push(subgoals.iterator());
+        while (!todo.isEmpty()) {
+            var remaining = todo.peek();
+            if (remaining.hasNext()) {
+                var G = remaining.next();
+                if (!G.checkIfWellformedWorker(ancestors, seen))
+                    return false;
+                path.push(G);
+                todo.push(G.subgoals.iterator());
+            } else {
+                todo.pop();
+                ancestors.remove(path.pop());
+            }
+        }
+        return true;
     }
-    
-    private boolean checkIfWellformedWorker(List<GoalStructure>  ancestors, List<GoalStructure> seen) {
+
+    /**
+     * Check this goal structure, when entering it from its parent, and register it
+     * as seen and as an ancestor of its subgoals.
+     */
+    private boolean checkIfWellformedWorker(Set<GoalStructure> ancestors, Set<GoalStructure> seen) {
     	if(subgoals==null) {
     		Logging.getAPLIBlogger().info("A goal has null subgoals-field (use empty instead).");
     		return  false ;
@@ -125,15 +168,50 @@ public class GoalStructure {
 		}
     	ancestors.add(this) ;
     	seen.add(this) ;
-    	for(var G : subgoals) {
-    		if(! G.checkIfWellformedWorker(ancestors,seen)) {
-    			return false ;
-    		}
-    	}
-		ancestors.remove(this) ;
     	return true ;
     }
 
+    /**
+     * Return the position of this goal structure in the subgoals of its parent, or
+     * -1 if it is not (anymore) one of its parent's subgoals. This is O(1), unless
+     * the parent's subgoals were changed since the last call; then they are
+     * re-indexed.
+     */
+    int indexInParent() {
+        if (parent == null)
+            return -1;
+        var siblings = parent.subgoals;
+        if (siblingIndex >= 0 && siblingIndex < siblings.size() && siblings.get(siblingIndex) == this)
+            return siblingIndex;
+        // the cached index is stale:
+        siblingIndex = -1;
+        parent.reindexSubgoals();
+        return siblingIndex;
+    }
+
+    /**
+     * Recalculate the cached {@link #siblingIndex} of all subgoals of this goal
+     * structure.
+     */
+    void reindexSubgoals() {
+        int k = 0;
+        for (var G : subgoals) {
+            G.siblingIndex = k;
+            k++;
+        }
+    }
+
+    /**
+     * Set the cached {@link #siblingIndex} of the subgoals from position k on,
+     * after a subgoal was inserted at or removed from position k. This keeps the
+     * indices of the later siblings valid, so that looking them up does not
+     * trigger a re-indexing of all subgoals.
+     */
+    void reindexSubgoalsFrom(int k) {
+        for (int i = k; i < subgoals.size(); i++)
+            subgoals.get(i).siblingIndex = i;
+    }
+
     /**
      * Check if this goal structure is isomorphic with H. This is the case if they
      * have primitive goals with the same names, and they have the same tree-shapes.
@@ -174,7 +252,7 @@ public class GoalStructure {
                 parent.setStatusToSuccess(info);
                 break;
             case SEQ:
-                int i = parent.subgoals.indexOf(this);
+                int i = indexInParent();
                 if (i == parent.subgoals.size() - 1)
                     parent.setStatusToSuccess(info);
                 break;
@@ -201,7 +279,7 @@ public class GoalStructure {
                 parent.setStatusToFail(reason);
                 break;
             case FIRSTOF:
-                int i = parent.subgoals.indexOf(this);
+                int i = indexInParent();
                 if (i == parent.subgoals.size() - 1)
                     parent.setStatusToFail(reason);
                 break;
@@ -266,7 +344,7 @@ public class GoalStructure {
             // parent also failed
             // return parent.getNextPrimitiveGoal_andAllocateBudget() ;
             // else: so, this goal is solved:
-            int k = parent.subgoals.indexOf(this);
+            int k = indexInParent();
             // if (k == parent.subgoals.size() - 1 )
             // this case should have been caught by the if-parent case above; as it implies
             // that the parent succeeded
@@ -288,7 +366,7 @@ public class GoalStructure {
             // that the parent succeeded
             // return parent.getNextPrimitiveGoal_andAllocateBudget() ;
             // else: so, this goal failed:
-            k = parent.subgoals.indexOf(this);
+            k = indexInParent();
             // if (k == parent.subgoals.size() - 1 )
             // this case should have caught by the if-parent above; as it implies that the
             // patent failed
@@ -320,12 +398,15 @@ public class GoalStructure {
         } else {
             budget = Math.min(bmax, parent.budget);
         }
-        // find the first deepest primitive subgoal:
-        if (this instanceof PrimitiveGoal) {
-            return (PrimitiveGoal) this;
-        } else {
-            return subgoals.get(0).getDeepestFirstPrimGoal_andAllocateBudget();
+        // find the first deepest primitive subgoal, allocating budget along the way:
+        GoalStructure G = this;
+        while (!(G instanceof PrimitiveGoal)) {
+            var H = G.subgoals.get(0);
+            H.siblingIndex = 0;
+            H.budget = Math.min(H.bmax, G.budget);
+            G = H;
         }
+        return (PrimitiveGoal) G;
     }
 
     void makeInProgressAgain() {
@@ -339,11 +420,11 @@ public class GoalStructure {
      * if its parent is a descendant of G.
      */
     boolean isDescendantOf(GoalStructure G) {
-        if (this == G)
-            return true;
-        if (parent == null)
-            return false;
-        return parent.isDescendantOf(G);
+        for (var H = this; H != null; H = H.parent) {
+            if (H == G)
+                return true;
+        }
+        return false;
     }
 
     public GoalStructure maxbudget(double b) {
@@ -359,16 +440,15 @@ public class GoalStructure {
      * ancestors.
      */
     void registerConsumedBudget(double delta) {
-        consumedBudget += delta;
-        budget -= delta;
-        if (!isTopGoal())
-            parent.registerConsumedBudget(delta);
+        for (var G = this; G != null; G = G.parent) {
+            G.consumedBudget += delta;
+            G.budget -= delta;
+        }
     }
 
     void registerUsedTime(long duration) {
-        consumedTime += duration;
-        if (!isTopGoal())
-            parent.registerUsedTime(duration);
+        for (var G = this; G != null; G = G.parent)
+            G.consumedTime += duration;
     }
 
     /**
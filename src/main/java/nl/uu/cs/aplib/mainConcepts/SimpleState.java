@@ -1,5 +1,8 @@
 package nl.uu.cs.aplib.mainConcepts;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -37,6 +40,14 @@ import java.util.logging.Logger;
  * <li>A pointer to the {@link nl.uu.cs.aplib.mainConcepts.Environment} used by
  * the agent, thus allowing the agent to inspect the Environment, and to send
  * commands to it.
+ * 
+ * <li>A memo-table for guard queries. Guards of different actions often need
+ * the same, possibly expensive, information from the state (e.g. whether some
+ * location is reachable). With {@link #memo(String, Function)} such a query can
+ * be given a name; its result is then computed only once per state version,
+ * and shared by all guards that use the same name. The agent that owns the
+ * state increases the version every time it updates the state (see
+ * {@link #bumpStateVersion()}), which invalidates the memo-table.
  * </ol>
  * 
  * 
@@ -59,6 +70,25 @@ public class SimpleState {
      */
     Logger logger;
 
+    /**
+     * The version of this state; it is increased every time the state is updated.
+     */
+    long stateVersion = 0;
+
+    /**
+     * The results of named guard-queries, valid for the state version
+     * {@link #memoVersion}.
+     */
+    private final Map<String, Object> memoTable = new HashMap<>();
+    private long memoVersion = 0;
+    private long memoHits = 0;
+    private long memoMisses = 0;
+
+    /**
+     * Used to represent a query whose result was null in the memo-table.
+     */
+    private static final Object NULL_RESULT = new Object();
+
     public SimpleState() {
     }
 
@@ -91,6 +121,79 @@ public class SimpleState {
         env.observe(agentId);
     };
 
+    /**
+     * Increase the version of this state, thereby invalidating all memoized
+     * guard-queries (see {@link #memo(String, Function)}). A {@link BasicAgent}
+     * calls this right after every call to {@link #updateState(String)}, so
+     * implementations of updateState() do not need to call this themselves.
+     * Call this yourself if you change the state outside the agent's update
+     * cycle, and want guards to see the change.
+     */
+    public void bumpStateVersion() {
+        stateVersion++;
+    }
+
+    /**
+     * Return the current version of this state. {@see #bumpStateVersion()}.
+     */
+    public long stateVersion() {
+        return stateVersion;
+    }
+
+    /**
+     * Return the result of the query with the given name on this state. The
+     * query is only evaluated if there is no result for that name yet that was
+     * computed on the current version of the state; else the stored result is
+     * returned. So, guards of multiple actions that call this with the same name
+     * share a single evaluation of the query per agent update. Null results are
+     * memoized as well.
+     * 
+     * <p>
+     * Queries with the same name are assumed to compute the same thing; the
+     * memo-table is only keyed on the name, not on the query-function.
+     */
+    @SuppressWarnings("unchecked")
+    public <AgentSt extends SimpleState, T> T memo(String queryName, Function<AgentSt, T> query) {
+        if (memoVersion != stateVersion) {
+            memoTable.clear();
+            memoVersion = stateVersion;
+        }
+        Object result = memoTable.get(queryName);
+        if (result != null) {
+            memoHits++;
+            return result == NULL_RESULT ? null : (T) result;
+        }
+        memoMisses++;
+        T r = query.apply((AgentSt) this);
+        memoTable.put(queryName, r == null ? NULL_RESULT : r);
+        return r;
+    }
+
+    /**
+     * The number of calls to {@link #memo(String, Function)} that could be
+     * answered from the memo-table, so the number of query evaluations that were
+     * saved.
+     */
+    public long memoHits() {
+        return memoHits;
+    }
+
+    /**
+     * The number of calls to {@link #memo(String, Function)} that had to evaluate
+     * their query.
+     */
+    public long memoMisses() {
+        return memoMisses;
+    }
+
+    /**
+     * Reset the hit and miss counters of the memo-table to 0.
+     */
+    public void resetMemoStatistics() {
+        memoHits = 0;
+        memoMisses = 0;
+    }
+
     /**
      * Return the {@link Environment} associated with the state.
      */
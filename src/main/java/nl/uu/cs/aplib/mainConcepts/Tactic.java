@@ -51,6 +51,11 @@ public class Tactic {
     List<Tactic> subtactics;
     TacticType strTy;
 
+    /**
+     * The flattened form of this tactic, if it was compiled. {@see #compile()}.
+     */
+    CompiledTactic compiled = null;
+
     /**
      * Construct a new Tactic of the given type, with the given subtactics.
      */
@@ -133,6 +138,20 @@ public class Tactic {
         return null;
     }
 
+    /**
+     * Return the flattened form of this tactic, to be used as the root tactic of a
+     * goal. The result is cached, and only recompiled if the tactic's tree has
+     * changed since the last compilation. The method returns null if this tactic
+     * cannot be compiled (e.g. because it is itself a subtactic of another
+     * tactic); it should then be interpreted via
+     * {@link #getFirstEnabledActions(SimpleState)} and {@link #calcNextTactic()}.
+     */
+    CompiledTactic compile() {
+        if (compiled == null || !compiled.isValid())
+            compiled = CompiledTactic.compile(this);
+        return compiled;
+    }
+
     /**
      * Write some basic statistics of this Tactic (e.g. the number of times each
      * Action in this Tactic has been invoked, and its total running time) to a
@@ -218,6 +237,25 @@ public class Tactic {
             action.on(guard);
             return this;
         }
+
+        /**
+         * Set the given query as the memoized guard of the underlying Action.
+         * {@see Action#onMemo(String, Function)}.
+         */
+        public <AgentSt extends SimpleState, QueryResult> PrimitiveTactic onMemo(String queryName,
+                Function<AgentSt, QueryResult> guard) {
+            action.onMemo(queryName, guard);
+            return this;
+        }
+
+        /**
+         * Set the given predicate as the memoized guard of the underlying Action.
+         * {@see Action#onMemo_(String, Predicate)}.
+         */
+        public <AgentSt extends SimpleState> PrimitiveTactic onMemo_(String queryName, Predicate<AgentSt> guard) {
+            action.onMemo_(queryName, guard);
+            return this;
+        }
     }
 
 }
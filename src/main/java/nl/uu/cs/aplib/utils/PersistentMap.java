@@ -0,0 +1,336 @@
+package nl.uu.cs.aplib.utils;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+
+/**
+ * An immutable map, implemented as a hash array mapped trie (HAMT). Updating
+ * the map, with {@link #put(Object, Object)} or {@link #remove(Object)}, does
+ * not change it, but returns a new map. The new map shares all of its structure
+ * with the old one, except the O(log n) nodes on the path to the updated key
+ * (in practice at most 7 nodes, as every level of the trie consumes 5 bits of
+ * the key's hash). So keeping many versions of a large map costs memory in
+ * proportion to the changes between the versions.
+ *
+ * <p>
+ * Keys must be non-null and implement equals and hashCode.
+ */
+public class PersistentMap<K, V> {
+
+    private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+
+    final Node root;
+    final int size;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Return the empty map.
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> empty() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Return the value of the given key, or null if the map has no such key.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(K key) {
+        if (root == null)
+            return null;
+        return (V) root.get(key, hash(key), 0);
+    }
+
+    public boolean containsKey(K key) {
+        return root != null && root.find(key, hash(key), 0) != null;
+    }
+
+    /**
+     * Return a map that is the same as this one, except that the given key is
+     * mapped to the given value. If the key is already mapped to this value (the
+     * same object), this map itself is returned.
+     */
+    public PersistentMap<K, V> put(K key, V value) {
+        if (key == null)
+            throw new IllegalArgumentException("Null keys are not supported.");
+        int h = hash(key);
+        if (root == null)
+            return new PersistentMap<>(new Leaf(h, key, value), 1);
+        var added = new boolean[1];
+        var newRoot = root.put(h, key, value, 0, added);
+        if (newRoot == root)
+            return this;
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Return a map that is the same as this one, except that it does not contain
+     * the given key. If this map does not contain the key, it is returned itself.
+     */
+    public PersistentMap<K, V> remove(K key) {
+        if (root == null)
+            return this;
+        var newRoot = root.remove(key, hash(key), 0);
+        if (newRoot == root)
+            return this;
+        return new PersistentMap<>(newRoot, size - 1);
+    }
+
+    /**
+     * Apply the given action to every key and value in this map.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root != null)
+            root.forEach((BiConsumer<Object, Object>) action);
+    }
+
+    static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    static abstract class Node {
+        /**
+         * Return the leaf with the given key, or null.
+         */
+        abstract Leaf find(Object key, int hash, int shift);
+
+        Object get(Object key, int hash, int shift) {
+            var leaf = find(key, hash, shift);
+            return leaf == null ? null : leaf.value;
+        }
+
+        /**
+         * Return the node with the key added or updated; this node itself if
+         * nothing changes. added[0] is set if the key is new.
+         */
+        abstract Node put(int hash, Object key, Object value, int shift, boolean[] added);
+
+        /**
+         * Return the node without the given key (null if it becomes empty); this
+         * node itself if it does not contain the key.
+         */
+        abstract Node remove(Object key, int hash, int shift);
+
+        abstract void forEach(BiConsumer<Object, Object> action);
+    }
+
+    static class Leaf extends Node {
+        final int hash;
+        final Object key;
+        final Object value;
+
+        Leaf(int hash, Object key, Object value) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        Leaf find(Object key, int hash, int shift) {
+            return this.hash == hash && this.key.equals(key) ? this : null;
+        }
+
+        @Override
+        Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            if (this.hash == hash && this.key.equals(key))
+                return this.value == value ? this : new Leaf(hash, key, value);
+            added[0] = true;
+            var leaf = new Leaf(hash, key, value);
+            if (this.hash == hash)
+                return new Collision(hash, new Leaf[] { this, leaf });
+            return Bitmap.of(this, leaf, shift);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            return this.hash == hash && this.key.equals(key) ? null : this;
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            action.accept(key, value);
+        }
+    }
+
+    /**
+     * Leaves whose keys have the same hash.
+     */
+    static class Collision extends Node {
+        final int hash;
+        final Leaf[] leaves;
+
+        Collision(int hash, Leaf[] leaves) {
+            this.hash = hash;
+            this.leaves = leaves;
+        }
+
+        @Override
+        Leaf find(Object key, int hash, int shift) {
+            if (this.hash != hash)
+                return null;
+            for (var leaf : leaves) {
+                if (leaf.key.equals(key))
+                    return leaf;
+            }
+            return null;
+        }
+
+        @Override
+        Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            if (this.hash != hash) {
+                added[0] = true;
+                return Bitmap.of(this, new Leaf(hash, key, value), shift);
+            }
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(key)) {
+                    if (leaves[i].value == value)
+                        return this;
+                    var copy = leaves.clone();
+                    copy[i] = new Leaf(hash, key, value);
+                    return new Collision(hash, copy);
+                }
+            }
+            added[0] = true;
+            var copy = Arrays.copyOf(leaves, leaves.length + 1);
+            copy[leaves.length] = new Leaf(hash, key, value);
+            return new Collision(hash, copy);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            if (this.hash != hash)
+                return this;
+            for (int i = 0; i < leaves.length; i++) {
+                if (leaves[i].key.equals(key)) {
+                    if (leaves.length == 2)
+                        return leaves[1 - i];
+                    var copy = new Leaf[leaves.length - 1];
+                    System.arraycopy(leaves, 0, copy, 0, i);
+                    System.arraycopy(leaves, i + 1, copy, i, leaves.length - i - 1);
+                    return new Collision(hash, copy);
+                }
+            }
+            return this;
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (var leaf : leaves)
+                action.accept(leaf.key, leaf.value);
+        }
+    }
+
+    /**
+     * An inner node with up to 32 children, indexed by 5 bits of the hash. Only
+     * the present children are stored; the bitmap tells which ones these are.
+     */
+    static class Bitmap extends Node {
+        final int bitmap;
+        final Node[] children;
+
+        Bitmap(int bitmap, Node[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        static int hashOf(Node n) {
+            return n instanceof Leaf ? ((Leaf) n).hash : ((Collision) n).hash;
+        }
+
+        /**
+         * A node containing the two given leaves/collision-nodes, which have
+         * different hashes.
+         */
+        static Node of(Node a, Node b, int shift) {
+            int ia = (hashOf(a) >>> shift) & 31;
+            int ib = (hashOf(b) >>> shift) & 31;
+            if (ia == ib)
+                return new Bitmap(1 << ia, new Node[] { of(a, b, shift + 5) });
+            if (ia < ib)
+                return new Bitmap((1 << ia) | (1 << ib), new Node[] { a, b });
+            return new Bitmap((1 << ia) | (1 << ib), new Node[] { b, a });
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Leaf find(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0)
+                return null;
+            return children[index(bit)].find(key, hash, shift + 5);
+        }
+
+        @Override
+        Node put(int hash, Object key, Object value, int shift, boolean[] added) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            int i = index(bit);
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                var copy = new Node[children.length + 1];
+                System.arraycopy(children, 0, copy, 0, i);
+                copy[i] = new Leaf(hash, key, value);
+                System.arraycopy(children, i, copy, i + 1, children.length - i);
+                return new Bitmap(bitmap | bit, copy);
+            }
+            var child = children[i];
+            var newChild = child.put(hash, key, value, shift + 5, added);
+            if (newChild == child)
+                return this;
+            var copy = children.clone();
+            copy[i] = newChild;
+            return new Bitmap(bitmap, copy);
+        }
+
+        @Override
+        Node remove(Object key, int hash, int shift) {
+            int bit = 1 << ((hash >>> shift) & 31);
+            if ((bitmap & bit) == 0)
+                return this;
+            int i = index(bit);
+            var child = children[i];
+            var newChild = child.remove(key, hash, shift + 5);
+            if (newChild == child)
+                return this;
+            if (newChild != null) {
+                // a single leaf left in this node can take the place of the node:
+                if (children.length == 1 && !(newChild instanceof Bitmap))
+                    return newChild;
+                var copy = children.clone();
+                copy[i] = newChild;
+                return new Bitmap(bitmap, copy);
+            }
+            if (children.length == 1)
+                return null;
+            if (children.length == 2 && !(children[1 - i] instanceof Bitmap))
+                return children[1 - i];
+            var copy = new Node[children.length - 1];
+            System.arraycopy(children, 0, copy, 0, i);
+            System.arraycopy(children, i + 1, copy, i, children.length - i - 1);
+            return new Bitmap(bitmap & ~bit, copy);
+        }
+
+        @Override
+        void forEach(BiConsumer<Object, Object> action) {
+            for (var c : children)
+                c.forEach(action);
+        }
+    }
+
+}
@@ -0,0 +1,309 @@
+package eu.iv4xr.framework.environments;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonDeserializer;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+import eu.iv4xr.framework.mainConcepts.WorldEntity;
+import eu.iv4xr.framework.mainConcepts.WorldModel;
+import eu.iv4xr.framework.mainConcepts.WorldModelDelta;
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+import eu.iv4xr.framework.spatial.meshes.Face;
+import eu.iv4xr.framework.spatial.meshes.Mesh;
+import nl.uu.cs.aplib.environments.JsonEnvironment;
+
+public class Test_WorldModelJsonCodec {
+
+    static WorldEntity door(String id, long timestamp, boolean open) {
+        var e = new WorldEntity(id, "door", true);
+        e.position = new Vec3(1.5f, 0, -2.25f);
+        e.extent = new Vec3(0.5f, 1, 0.1f);
+        e.properties.put("isOpen", open);
+        e.properties.put("hp", 42);
+        e.properties.put("name", "door " + id);
+        e.properties.put("weight", 10.5);
+        var lock = new WorldEntity(id + ".lock", "lock", true);
+        lock.properties.put("locked", !open);
+        e.elements.put(lock.id, lock);
+        e.assignTimeStamp(timestamp);
+        return e;
+    }
+
+    static WorldModel world(int numberOfEntities, long timestamp, boolean open) {
+        var wom = new WorldModel();
+        wom.agentId = "agent";
+        wom.position = new Vec3(3, 0, 4);
+        wom.velocity = new Vec3(0.1f, 0, 0);
+        wom.timestamp = timestamp;
+        for (int i = 0; i < numberOfEntities; i++) {
+            var e = door("d" + i, timestamp, open && i % 2 == 0);
+            e.velocity = i % 3 == 0 ? new Vec3(i, 0, 0) : null;
+            wom.elements.put(e.id, e);
+        }
+        return wom;
+    }
+
+    static void assertSameEntity(WorldEntity e1, WorldEntity e2) {
+        assertEquals(e1.id, e2.id);
+        assertEquals(e1.type, e2.type);
+        assertEquals(e1.dynamic, e2.dynamic);
+        assertEquals(e1.timestamp, e2.timestamp);
+        assertEquals(e1.lastStutterTimestamp, e2.lastStutterTimestamp);
+        assertEquals(e1, e2);
+        for (var P : e1.properties.entrySet()) {
+            var v = e2.properties.get(P.getKey());
+            assertEquals(P.getValue(), v);
+            assertEquals(P.getValue().getClass(), v.getClass());
+        }
+        for (var c : e1.elements.values())
+            assertSameEntity(c, e2.elements.get(c.id));
+    }
+
+    @Test
+    public void test_roundTrip() {
+        var wom = world(10, 7, true);
+        var json = WorldModelJsonCodec.encode(wom);
+        var wom2 = WorldModelJsonCodec.decodeWorldModel(json);
+        assertEquals(wom, wom2);
+        assertEquals(wom.timestamp, wom2.timestamp);
+        for (var e : wom.elements.values())
+            assertSameEntity(e, wom2.getElement(e.id));
+        assertTrue(wom2.getElement("d0").getBooleanProperty("isOpen"));
+        assertEquals(42, wom2.getElement("d0").getIntProperty("hp"));
+        // the same, via a Gson with the adapters registered:
+        var gson = WorldModelJsonCodec.registerTypeAdapters(new GsonBuilder()).create();
+        assertEquals(wom, gson.fromJson(json, WorldModel.class));
+        assertEquals(wom, gson.fromJson(gson.toJson(wom), WorldModel.class));
+    }
+
+    @Test
+    public void test_readsReflectiveFormat() {
+        // Json produced by plain Gson, with reflection, can be decoded by the codec:
+        var wom = world(5, 3, false);
+        wom.getElement("d1").linkPreviousState(door("d1", 2, true));
+        var json = new Gson().toJson(wom);
+        var wom2 = WorldModelJsonCodec.decodeWorldModel(json);
+        assertEquals(wom, wom2);
+        for (var e : wom.elements.values())
+            assertSameEntity(e, wom2.getElement(e.id));
+        // previousState is not part of the decoded model:
+        assertFalse(wom2.getElement("d1").hasPreviousState());
+    }
+
+    @Test
+    public void test_mesh() {
+        var mesh = new Mesh();
+        for (int i = 0; i < 5; i++)
+            mesh.vertices.add(new Vec3(i, 0, i * i));
+        mesh.edges.add(new Edge(0, 1));
+        mesh.edges.add(new Edge(3, 2));
+        mesh.faces.add(new Face(new int[] { 0, 1, 2 }));
+        mesh.faces.add(new Face(new int[] { 1, 2, 3, 4, 0 }));
+        for (var json : List.of(WorldModelJsonCodec.encode(mesh), new Gson().toJson(mesh))) {
+            var mesh2 = WorldModelJsonCodec.decodeMesh(json);
+            assertEquals(mesh.vertices, mesh2.vertices);
+            assertEquals(mesh.edges, mesh2.edges);
+            assertEquals(2, mesh2.faces.size());
+            for (int i = 0; i < 2; i++)
+                assertArrayEquals(mesh.faces.get(i).vertices, mesh2.faces.get(i).vertices);
+        }
+    }
+
+    @Test
+    public void test_mergeInto() {
+        var wom1 = world(6, 0, false);
+        var wom2 = world(6, 0, false);
+        var history = wom2.trackHistory(10);
+        var obs = world(8, 1, true);
+        var json = WorldModelJsonCodec.encode(obs);
+        var changed1 = wom1.mergeNewObservation(WorldModelJsonCodec.decodeWorldModel(json));
+        var changed2 = WorldModelJsonCodec.mergeInto(wom2, json);
+        assertEquals(wom1, wom2);
+        assertEquals(wom1.timestamp, wom2.timestamp);
+        assertEquals(changed1.size(), changed2.size());
+        for (var e : wom1.elements.values()) {
+            var f = wom2.getElement(e.id);
+            assertSameEntity(e, f);
+            assertEquals(e.hasPreviousState(), f.hasPreviousState());
+        }
+        // the merge is recorded in the history of the target:
+        assertEquals(2, history.numberOfVersions());
+        for (var e : changed2)
+            assertSame(e, history.getEntity(e.id, 1));
+        // an older observation is rejected before any of its entities is merged:
+        var d0 = wom2.getElement("d0");
+        assertThrows(IllegalArgumentException.class,
+                () -> WorldModelJsonCodec.mergeInto(wom2, WorldModelJsonCodec.encode(world(1, 0, false))));
+        assertSame(d0, wom2.getElement("d0"));
+    }
+
+    @Test
+    public void test_mergeIntoTimestampAfterElements() {
+        // the elements come first, so they can only be merged at the end:
+        var obs = new JsonParser().parse(WorldModelJsonCodec.encode(world(8, 1, true))).getAsJsonObject();
+        var reordered = new JsonObject();
+        reordered.add("elements", obs.get("elements"));
+        for (var P : obs.entrySet())
+            if (!P.getKey().equals("elements"))
+                reordered.add(P.getKey(), P.getValue());
+        var wom1 = world(6, 0, false);
+        var wom2 = world(6, 0, false);
+        var changed1 = WorldModelJsonCodec.mergeInto(wom1, WorldModelJsonCodec.encode(world(8, 1, true)));
+        var changed2 = WorldModelJsonCodec.mergeInto(wom2, reordered.toString());
+        assertEquals(wom1, wom2);
+        assertEquals(1, wom2.timestamp);
+        assertEquals(wom1.position, wom2.position);
+        assertEquals(changed1.size(), changed2.size());
+        for (var e : wom1.elements.values())
+            assertSameEntity(e, wom2.getElement(e.id));
+        var d0 = wom2.getElement("d0");
+        reordered.addProperty("timestamp", 0);
+        assertThrows(IllegalArgumentException.class, () -> WorldModelJsonCodec.mergeInto(wom2, reordered.toString()));
+        assertSame(d0, wom2.getElement("d0"));
+    }
+
+    @Test
+    public void test_delta() {
+        var previous = world(4, 1, false);
+        var current = world(5, 2, true);
+        current.elements.remove("d3");
+        var delta = WorldModelDelta.between(previous, current);
+        var delta2 = WorldModelJsonCodec.decodeDelta(WorldModelJsonCodec.encode(delta));
+        assertEquals(1, delta2.sinceTimestamp);
+        assertEquals(2, delta2.timestamp);
+        assertEquals(delta.position, delta2.position);
+        assertEquals(delta.unchanged, delta2.unchanged);
+        assertEquals(delta.removed, delta2.removed);
+        assertEquals(delta.changed.keySet(), delta2.changed.keySet());
+        for (var e : delta.changed.values())
+            assertSameEntity(e, delta2.changed.get(e.id));
+    }
+
+    @Test
+    public void test_jsonEnvironment() {
+        var obs = world(3, 5, true);
+        // the default Gson of a JsonEnvironment uses the codec:
+        var env = new JsonEnvironment() {
+            @Override
+            protected Object sendCommand_(EnvOperation cmd) {
+                return WorldModelJsonCodec.encode(obs);
+            }
+        };
+        var decoded = (WorldModel) env.sendCommand("agent", null, "Observe", null, WorldModel.class);
+        assertEquals(obs, decoded);
+        for (var e : obs.elements.values())
+            assertSameEntity(e, decoded.getElement(e.id));
+        var wom = world(2, 0, false);
+        List<WorldEntity> changed = env.sendCommandAndDecode("agent", null, "Observe", null,
+                in -> WorldModelJsonCodec.mergeInto(wom, in));
+        assertEquals(3, wom.elements.size());
+        assertEquals(5, wom.timestamp);
+        // d1 is closed in both, so only d0 and the new d2 are changes:
+        assertEquals(2, changed.size());
+    }
+
+    @Test
+    public void test_w3dEnvironment() {
+        var obs = world(3, 5, true);
+        var mesh = new Mesh();
+        mesh.vertices.add(new Vec3(1, 2, 3));
+        // the real environment replies with Json strings:
+        var env = new W3DEnvironment() {
+            @Override
+            protected Object sendCommand_(EnvOperation cmd) {
+                if (cmd.command.equals(LOADWORLD_CMDNAME))
+                    return WorldModelJsonCodec.encode(mesh);
+                return WorldModelJsonCodec.encode(obs);
+            }
+        };
+        env.loadWorld();
+        assertEquals(mesh.vertices, env.worldNavigableMesh().vertices);
+        for (var wom : List.of(env.observe("agent"), env.interact("agent", "d0", "Open"),
+                env.moveToward("agent", new Vec3(0, 0, 0), new Vec3(1, 0, 0)), env.observeAsync("agent").join())) {
+            assertEquals(obs, wom);
+            assertSameEntity(obs.getElement("d0"), wom.getElement("d0"));
+        }
+        var wom = world(2, 0, false);
+        var changed = env.observeInto("agent", wom);
+        assertEquals(3, wom.elements.size());
+        assertEquals(5, wom.timestamp);
+        assertEquals(obs.position, wom.position);
+        assertEquals(2, changed.size());
+
+        // an override of observe is used by observeInto:
+        var env2 = new W3DEnvironment() {
+            @Override
+            public WorldModel observe(String agentId) {
+                return world(1, 6, false);
+            }
+        };
+        changed = env2.observeInto("agent", wom);
+        assertEquals(6, wom.timestamp);
+        assertEquals(1, changed.size());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        // The baseline is Gson's reflection-based decoding. It cannot decode the
+        // Serializable values of the entities' properties by itself, so it gets a
+        // (tree-based) deserializer for these.
+        JsonDeserializer<Serializable> valueDeserializer = (json, type, ctx) -> {
+            var p = (JsonPrimitive) json;
+            if (p.isBoolean())
+                return p.getAsBoolean();
+            if (p.isString())
+                return p.getAsString();
+            double d = p.getAsDouble();
+            return d == Math.rint(d) ? (Serializable) (int) d : (Serializable) d;
+        };
+        var reflective = new GsonBuilder().registerTypeAdapter(Serializable.class, valueDeserializer).create();
+
+        var json = WorldModelJsonCodec.encode(world(5000, 1, true));
+        var target = world(5000, 0, true);
+        // warm up, and check that both produce the same:
+        for (int k = 0; k < 5; k++) {
+            assertEquals(reflective.fromJson(json, WorldModel.class), WorldModelJsonCodec.decodeWorldModel(json));
+        }
+        int runs = 20;
+        long t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++)
+            reflective.fromJson(json, WorldModel.class);
+        long reflectiveTime = (System.nanoTime() - t0) / runs;
+        t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++)
+            WorldModelJsonCodec.decodeWorldModel(json);
+        long codecTime = (System.nanoTime() - t0) / runs;
+        var observations = new ArrayList<WorldModel>();
+        for (int k = 0; k < runs; k++)
+            observations.add(reflective.fromJson(json, WorldModel.class));
+        t0 = System.nanoTime();
+        for (var obs : observations)
+            target.mergeNewObservation(obs);
+        long mergeTime = (System.nanoTime() - t0) / runs;
+        target = world(5000, 0, true);
+        t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++)
+            WorldModelJsonCodec.mergeInto(target, json);
+        long decodeAndMergeTime = (System.nanoTime() - t0) / runs;
+        System.out.println("** decoding an observation of 5000 entities (" + json.length() / 1024 + " KB):");
+        System.out.println("   reflective Gson  : " + reflectiveTime / 1000 + " us");
+        System.out.println("   codec            : " + codecTime / 1000 + " us");
+        System.out.println("   merge only       : " + mergeTime / 1000 + " us");
+        System.out.println("   codec, mergeInto : " + decodeAndMergeTime / 1000 + " us");
+    }
+
+}
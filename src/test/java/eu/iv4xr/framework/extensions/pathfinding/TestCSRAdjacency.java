@@ -0,0 +1,166 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+
+public class TestCSRAdjacency {
+
+    static HashSet<Integer> toSet(Iterable<Integer> nodes) {
+        var set = new HashSet<Integer>();
+        for (var i : nodes)
+            set.add(i);
+        return set;
+    }
+
+    @Test
+    public void test_sameEdgesAsEdgeMap() {
+        var g = TestIntAStar.grid(20, new Random(3), 0);
+        g.freeze();
+        var csr = g.adjacency();
+        assertNotNull(csr);
+        assertEquals(400, csr.numberOfVertices());
+        int edges = 0;
+        for (int i = 0; i < csr.numberOfVertices(); i++) {
+            var expected = g.edges.neighbours(i);
+            assertEquals(expected.size(), csr.degree(i));
+            for (int k = csr.begin(i); k < csr.end(i); k++) {
+                assertTrue(expected.contains(csr.target(k)));
+                if (k > csr.begin(i))
+                    assertTrue(csr.target(k - 1) < csr.target(k));
+                assertEquals(Vec3.dist(g.vertices.get(i), g.vertices.get(csr.target(k))), csr.length(k), 0.0001);
+            }
+            assertEquals(expected, toSet(g.neighbours(i)));
+            edges += expected.size();
+        }
+        assertEquals(edges / 2, csr.numberOfEdges());
+
+        // adding a vertex discards the frozen edges:
+        g.vertices.add(new Vec3(-1, 0, -1));
+        assertNull(g.adjacency());
+        assertTrue(toSet(g.neighbours(0)).equals(g.edges.neighbours(0)));
+    }
+
+    @Test
+    public void test_frozenSamePaths() {
+        var rnd = new Random(18);
+        int w = 25;
+        var g = TestIntAStar.grid(w, rnd, 12);
+        var pf = new IntAStar();
+        for (int q = 0; q < 100; q++) {
+            int start = rnd.nextInt(w * w);
+            int goal = rnd.nextInt(w * w);
+            g.unfreeze();
+            var p1 = pf.findPath(g, start, goal);
+            g.freeze();
+            var p2 = pf.findPath(g, start, goal);
+            if (p1 == null) {
+                assertNull(p2);
+                continue;
+            }
+            TestIntAStar.checkPath(g, p2, start, goal);
+            assertEquals(TestIntAStar.cost(g, p1), TestIntAStar.cost(g, p2), 0.001);
+        }
+    }
+
+    @Test
+    public void test_surfaceNavGraphSeenFiltering() {
+        var mesh = new TestSimple_and_SurfaceNavGraph().mesh0();
+        var g = new SurfaceNavGraph(mesh, 0.5f);
+        assertNotNull(g.adjacency());
+        // nothing seen yet; only the node itself is reachable:
+        assertFalse(g.neighbours(0).iterator().hasNext());
+        assertNull(g.findPath(0, 1));
+        var seen = new ArrayList<Integer>();
+        for (int i = 0; i < g.vertices.size(); i++)
+            seen.add(i);
+        g.markAsSeen(seen);
+        var p1 = g.findPath(0, 1);
+        assertNotNull(p1);
+        for (int i = 0; i < g.vertices.size(); i++)
+            assertEquals(g.edges.neighbours(i), toSet(g.neighbours(i)));
+        g.unfreeze();
+        var p2 = g.findPath(0, 1);
+        assertEquals(TestIntAStar.cost(g, p2), TestIntAStar.cost(g, p1), 0.001);
+    }
+
+    @Test
+    public void test_redefinedDistance() {
+        var rnd = new Random(5);
+        // vertices with an odd id are expensive to travel to:
+        var g = new SurfaceNavGraph(TestFaceIndex.gridMesh(10, rnd), 0.1f) {
+            @Override
+            public float distance(Integer from, Integer to) {
+                return to % 2 == 1 ? 5 * super.distance(from, to) : super.distance(from, to);
+            }
+        };
+        g.perfect_memory_pathfinding = true;
+        // the frozen edges do not know the redefined distance, so they are not used:
+        assertNull(g.adjacency());
+        var astar = new AStar<Integer>();
+        int n = g.vertices.size();
+        for (int q = 0; q < 50; q++) {
+            int start = rnd.nextInt(n);
+            int goal = rnd.nextInt(n);
+            var p1 = astar.findPath(g, start, goal);
+            var p2 = g.findPath(start, goal);
+            assertEquals(TestIntAStar.cost(g, p1), TestIntAStar.cost(g, p2), 0.001);
+        }
+
+        // they are used if the distance on the frozen edges is redefined too:
+        var h = new SurfaceNavGraph(TestFaceIndex.gridMesh(10, rnd), 0.1f) {
+            @Override
+            public float distance(Integer from, Integer to) {
+                return to % 2 == 1 ? 5 * super.distance(from, to) : super.distance(from, to);
+            }
+
+            @Override
+            public float edgeDistance(int from, int edge) {
+                int to = adjacency().target(edge);
+                return to % 2 == 1 ? 5 * super.edgeDistance(from, edge) : super.edgeDistance(from, edge);
+            }
+        };
+        assertNotNull(h.adjacency());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** IntAStar on unfrozen vs frozen (CSR) graphs:");
+        for (int w : new int[] { 100, 300 }) {
+            var rnd = new Random(w);
+            var g = TestIntAStar.grid(w, rnd, 0);
+            int queries = 20;
+            var starts = new int[queries];
+            var goals = new int[queries];
+            for (int q = 0; q < queries; q++) {
+                starts[q] = rnd.nextInt(w * w);
+                goals[q] = rnd.nextInt(w * w);
+            }
+            var pf = new IntAStar();
+            long[] time = new long[2];
+            for (int frozen = 0; frozen < 2; frozen++) {
+                if (frozen == 1)
+                    g.freeze();
+                // warm-up:
+                for (int q = 0; q < queries; q++)
+                    pf.findPath(g, starts[q], goals[q]);
+                long t0 = System.nanoTime();
+                for (int q = 0; q < queries; q++)
+                    pf.findPath(g, starts[q], goals[q]);
+                time[frozen] = (System.nanoTime() - t0) / queries;
+            }
+            System.out.println(String.format("   %6d nodes: unfrozen %d us, frozen %d us", w * w, time[0] / 1000,
+                    time[1] / 1000));
+        }
+    }
+
+}
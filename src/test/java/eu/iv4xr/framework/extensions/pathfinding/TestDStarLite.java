@@ -0,0 +1,221 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.Vec3;
+
+public class TestDStarLite {
+
+    static Box randomDoor(Random rnd, int w) {
+        var center = new Vec3(rnd.nextFloat() * w, 0, rnd.nextFloat() * w);
+        return rnd.nextBoolean() ? new Box(center, new Vec3(1 + rnd.nextFloat() * 3, 1, 0.3f))
+                : new Box(center, new Vec3(0.3f, 1, 1 + rnd.nextFloat() * 3));
+    }
+
+    static void checkSameCost(SimpleNavGraph g, ArrayList<Integer> expected, ArrayList<Integer> path, int start,
+            int goal) {
+        if (expected == null) {
+            assertNull(path);
+            return;
+        }
+        assertNotNull(path);
+        assertEquals(start, path.get(0));
+        assertEquals(goal, path.get(path.size() - 1));
+        for (int k = 1; k < path.size(); k++) {
+            var next = path.get(k);
+            assertTrue(((Collection<?>) g.neighbours(path.get(k - 1))).contains(next));
+        }
+        float c = TestIntAStar.cost(g, expected);
+        assertEquals(c, TestIntAStar.cost(g, path), 1e-3f * Math.max(1, c));
+    }
+
+    /**
+     * An agent walking to a goal, while doors open and close and more of the
+     * world is seen; occasionally it changes its goal.
+     */
+    @Test
+    public void test_sameCostsAsAStar() {
+        var rnd = new Random(22);
+        int w = 20;
+        var g = new SurfaceNavGraph(TestFaceIndex.gridMesh(w, rnd), 0.1f);
+        int n = g.vertices.size();
+        for (int v = 0; v < n; v++) {
+            if (rnd.nextInt(4) > 0)
+                g.markAsSeen(v);
+        }
+        var doors = new ArrayList<Box>();
+        for (int k = 0; k < 15; k++) {
+            var door = randomDoor(rnd, w);
+            g.addObstacleInBlockingState(door);
+            doors.add(door);
+        }
+        var dstar = new DStarLite();
+        var astar = new IntAStar();
+        int start = rnd.nextInt(n);
+        int goal = rnd.nextInt(n);
+        int found = 0;
+        for (int step = 0; step < 300; step++) {
+            int action = rnd.nextInt(10);
+            if (action < 3) {
+                var door = doors.get(rnd.nextInt(doors.size()));
+                if (g.getBlockingStatus(door))
+                    g.toggleBlockingOff(door);
+                else
+                    g.toggleBlockingOn(door);
+            } else if (action == 3) {
+                var seen = new ArrayList<Integer>();
+                int v = rnd.nextInt(n);
+                for (int k = 0; k < 10; k++)
+                    seen.add((v + k) % n);
+                g.markAsSeen(seen);
+            } else if (action == 4) {
+                if (rnd.nextBoolean()) {
+                    var door = randomDoor(rnd, w);
+                    g.addObstacle(door);
+                    doors.add(door);
+                } else if (doors.size() > 1) {
+                    g.removeObstacle(doors.remove(rnd.nextInt(doors.size())));
+                }
+            } else if (action == 5) {
+                goal = rnd.nextInt(n);
+            }
+            var path = dstar.findPath(g, start, goal);
+            checkSameCost(g, astar.findPath(g, start, goal), path, start, goal);
+            if (path != null) {
+                found++;
+                // walk a few steps along the path:
+                start = path.get(Math.min(path.size() - 1, 1 + rnd.nextInt(3)));
+            } else {
+                start = rnd.nextInt(n);
+            }
+        }
+        assertTrue(found > 100);
+        assertTrue(dstar.getNumberOfRepairs() > dstar.getNumberOfFullSearches());
+
+        // forgetting everything, and then remembering everything:
+        g.wipeOutMemory();
+        checkSameCost(g, astar.findPath(g, start, goal), dstar.findPath(g, start, goal), start, goal);
+        g.perfect_memory_pathfinding = true;
+        dstar.reset();
+        checkSameCost(g, astar.findPath(g, start, goal), dstar.findPath(g, start, goal), start, goal);
+    }
+
+    @Test
+    public void test_withoutObstaclesAtFirst() {
+        var rnd = new Random(1);
+        var g = TestIntAStar.grid(10, rnd, 0);
+        g.freeze();
+        var dstar = new DStarLite();
+        int start = 0, goal = 99;
+        var path = dstar.findPath(g, start, goal);
+        TestIntAStar.checkPath(g, path, start, goal);
+        // blocking the way the path takes:
+        var a = g.vertices.get(path.get(3));
+        var b = g.vertices.get(path.get(4));
+        g.addObstacleInBlockingState(new Box(Vec3.mul(Vec3.add(a, b), 0.5f), new Vec3(0.2f, 1, 0.2f)));
+        checkSameCost(g, new IntAStar().findPath(g, start, goal), dstar.findPath(g, start, goal), start, goal);
+        // on an unfrozen graph too:
+        g.unfreeze();
+        g.toggleBlockingOff(g.obstacles.get(0).obstacle);
+        checkSameCost(g, new IntAStar().findPath(g, start, goal), dstar.findPath(g, start, goal), start, goal);
+    }
+
+    @Test
+    public void test_changeLog() {
+        var g = TestIntAStar.grid(5, new Random(1), 0);
+        g.freeze();
+        var box = new Box(new Vec3(1.5f, 0, 1), new Vec3(0.2f, 1, 0.2f));
+        g.addObstacle(box);
+        long t0 = g.numberOfChanges();
+        assertEquals(0, g.changesSince(t0).length);
+        // the edge from vertex 6 to 7 crosses the box:
+        assertEquals(1f, g.distance(6, 7), 1e-6f);
+        g.toggleBlockingOn(box);
+        var changes = g.changesSince(t0);
+        Arrays.sort(changes);
+        assertEquals(6, changes[0]);
+        assertEquals(7, changes[changes.length - 1]);
+        // toggling on again is not a change:
+        long t1 = g.numberOfChanges();
+        g.toggleBlockingOn(box);
+        assertEquals(0, g.changesSince(t1).length);
+        // unknown changes:
+        assertNull(g.changesSince(t1 + 1));
+        g.unfreeze();
+        g.freeze();
+        assertNull(g.changesSince(t1));
+
+        var s = new SurfaceNavGraph(TestFaceIndex.gridMesh(3, new Random(1)), 0.1f);
+        long t2 = s.numberOfChanges();
+        s.markAsSeen(2, 3);
+        // including the centers of the faces around them:
+        var seen = s.changesSince(t2);
+        assertEquals(s.numberOfSeen(), seen.length);
+        assertEquals(2, seen[0]);
+        long t3 = s.numberOfChanges();
+        s.markAsSeen(3);
+        assertEquals(0, s.changesSince(t3).length);
+        s.wipeOutMemory();
+        assertNull(s.changesSince(t2));
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** Replanning while walking and doors toggle, A* vs D* Lite:");
+        var rnd = new Random(2);
+        int w = 100;
+        var g = new SurfaceNavGraph(TestFaceIndex.gridMesh(w, rnd), 0.1f);
+        g.perfect_memory_pathfinding = true;
+        g.travelPreferrence = SurfaceNavGraph.NO_PREFERENCE;
+        var doors = new ArrayList<Box>();
+        for (int k = 0; k < 200; k++) {
+            var door = randomDoor(rnd, w);
+            g.addObstacleInBlockingState(door);
+            doors.add(door);
+        }
+        int n = g.vertices.size();
+        var dstar = new DStarLite();
+        var astar = new IntAStar();
+        long astarExpansions = 0, astarTime = 0, dstarTime = 0;
+        int start = 0, goal = n - 1 - (n - (w + 1) * (w + 1)) / 2;
+        int replans = 0;
+        long firstSearch = -1;
+        for (int step = 0; step < 150; step++) {
+            var door = doors.get(rnd.nextInt(doors.size()));
+            if (g.getBlockingStatus(door))
+                g.toggleBlockingOff(door);
+            else
+                g.toggleBlockingOn(door);
+            long t0 = System.nanoTime();
+            var expected = astar.findPath(g, start, goal);
+            astarTime += System.nanoTime() - t0;
+            astarExpansions += astar.getLastExpansions();
+            t0 = System.nanoTime();
+            var path = dstar.findPath(g, start, goal);
+            dstarTime += System.nanoTime() - t0;
+            if (firstSearch < 0)
+                firstSearch = dstar.getLastExpansions();
+            checkSameCost(g, expected, path, start, goal);
+            replans++;
+            if (path == null || path.size() < 3)
+                break;
+            start = path.get(1);
+        }
+        System.out.println(String.format("   %d replans over %d vertices: A* %d expansions (%d ms), "
+                + "D* Lite %d expansions (%d ms), of which %d in the first search", replans, n, astarExpansions,
+                astarTime / 1000000, dstar.getTotalExpansions(), dstarTime / 1000000,
+                firstSearch));
+        assertTrue(dstar.getTotalExpansions() < astarExpansions);
+    }
+
+}
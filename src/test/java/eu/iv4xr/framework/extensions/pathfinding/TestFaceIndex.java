@@ -0,0 +1,102 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+import eu.iv4xr.framework.spatial.meshes.Face;
+import eu.iv4xr.framework.spatial.meshes.Mesh;
+
+public class TestFaceIndex {
+
+    /**
+     * A mesh of w x w squares, each split in two triangles, with slightly
+     * varying heights.
+     */
+    static Mesh gridMesh(int w, Random rnd) {
+        var mesh = new Mesh();
+        for (int z = 0; z <= w; z++) {
+            for (int x = 0; x <= w; x++)
+                mesh.vertices.add(new Vec3(x, rnd.nextFloat() * 0.1f, z));
+        }
+        for (int z = 0; z <= w; z++) {
+            for (int x = 0; x <= w; x++) {
+                int i = z * (w + 1) + x;
+                if (x < w)
+                    mesh.edges.add(new Edge(i, i + 1));
+                if (z < w)
+                    mesh.edges.add(new Edge(i, i + w + 1));
+                if (x < w && z < w) {
+                    mesh.edges.add(new Edge(i, i + w + 2));
+                    mesh.faces.add(new Face(new int[] { i, i + 1, i + w + 2 }));
+                    mesh.faces.add(new Face(new int[] { i, i + w + 2, i + w + 1 }));
+                }
+            }
+        }
+        return mesh;
+    }
+
+    /**
+     * The face lookup as it was before faces were indexed.
+     */
+    static Face linearFindFace(SurfaceNavGraph g, Vec3 location, float faceDistThreshold) {
+        for (Face f : g.faces) {
+            if (f.distFromPoint(location, g.vertices) <= faceDistThreshold)
+                return f;
+        }
+        return null;
+    }
+
+    @Test
+    public void test_sameFaceAsLinearScan() {
+        var rnd = new Random(20);
+        var g = new SurfaceNavGraph(gridMesh(20, rnd), 0.1f);
+        int found = 0;
+        for (int q = 0; q < 500; q++) {
+            var location = new Vec3(rnd.nextFloat() * 24 - 2, rnd.nextFloat() - 0.5f, rnd.nextFloat() * 24 - 2);
+            float threshold = rnd.nextFloat() * 0.5f;
+            var expected = linearFindFace(g, location, threshold);
+            assertSame(expected, g.findFace(location, threshold));
+            if (expected != null) {
+                found++;
+                assertNotNull(g.getNearestUnblockedVertex(location, threshold));
+            }
+        }
+        assertTrue(found > 100);
+        // on a shared corner, the first face is chosen:
+        assertSame(g.faces.get(0), g.findFace(new Vec3(1, g.vertices.get(1).y, 0), 0.01f));
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** Face lookup, linear scan vs indexed:");
+        var rnd = new Random(1);
+        for (int w : new int[] { 50, 160 }) {
+            var g = new SurfaceNavGraph(gridMesh(w, rnd), 0.1f);
+            int queries = 200;
+            var locations = new Vec3[queries];
+            for (int q = 0; q < queries; q++)
+                locations[q] = new Vec3(rnd.nextFloat() * w, 0.05f, rnd.nextFloat() * w);
+            long t0 = System.nanoTime();
+            g.findFace(locations[0], 0.2f);
+            long build = System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            for (var p : locations)
+                linearFindFace(g, p, 0.2f);
+            long slow = (System.nanoTime() - t0) / queries;
+            t0 = System.nanoTime();
+            for (var p : locations)
+                assertNotNull(g.findFace(p, 0.2f));
+            long fast = (System.nanoTime() - t0) / queries;
+            System.out.println(String.format("   %6d faces: linear %d us, indexed %d us (building the index: %d ms)",
+                    g.faces.size(), slow / 1000, fast / 1000, build / 1000000));
+        }
+    }
+
+}
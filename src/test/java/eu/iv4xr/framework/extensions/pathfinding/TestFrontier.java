@@ -0,0 +1,256 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+import eu.iv4xr.framework.spatial.meshes.Face;
+import eu.iv4xr.framework.spatial.meshes.Mesh;
+import nl.uu.cs.aplib.utils.Pair;
+
+public class TestFrontier {
+
+    /**
+     * The frontier as it was calculated before it was maintained incrementally:
+     * from all vertices.
+     */
+    static List<Pair<Integer, Integer>> referenceFrontier(SurfaceNavGraph g) {
+        var frontiers = new LinkedList<Pair<Integer, Integer>>();
+        if (g.perfect_memory_pathfinding)
+            return frontiers;
+        for (int v = 0; v < g.vertices.size(); v++) {
+            Vec3 vloc = g.vertices.get(v);
+            if (g.seenVertices.get(v)) {
+                for (Integer z : g.edges.neighbours(v)) {
+                    if (!g.seenVertices.get(z) && !g.isBlocked(vloc, g.vertices.get(z))) {
+                        frontiers.add(new Pair<Integer, Integer>(v, z));
+                        break;
+                    }
+                }
+            }
+        }
+        return frontiers;
+    }
+
+    /**
+     * explore(int), as it was before: sorting the whole frontier by geometric
+     * distance, and searching a path to each frontier vertex in turn until one is
+     * found. The expansions of all these searches are added to the given counter.
+     */
+    static List<Integer> referenceExplore(SurfaceNavGraph g, int startVertex, long[] expansions) {
+        var frontiers = referenceFrontier(g);
+        Vec3 startLocation = g.vertices.get(startVertex);
+        frontiers.sort((p1, p2) -> Float.compare(Vec3.distSq(g.vertices.get(p1.fst), startLocation),
+                Vec3.distSq(g.vertices.get(p2.fst), startLocation)));
+        var astar = new IntAStar();
+        for (var front : frontiers) {
+            var path = astar.findPath(g, startVertex, front.fst);
+            expansions[0] += astar.getLastExpansions();
+            if (path != null) {
+                path.add(front.snd);
+                return path;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check that the path found by explore goes to a frontier vertex that is
+     * nearest along the graph, and then to its unseen neighbour.
+     */
+    static void checkExplorePath(SurfaceNavGraph g, int start, List<Integer> path) {
+        var frontier = referenceFrontier(g);
+        var dijkstra = new IntAStar();
+        dijkstra.searchMode = AStar.SearchMode.DIJKSTRA;
+        float nearest = Float.POSITIVE_INFINITY;
+        for (var front : frontier) {
+            var p = dijkstra.findPath(g, start, front.fst);
+            if (p != null)
+                nearest = Math.min(nearest, TestIntAStar.cost(g, p));
+        }
+        if (nearest == Float.POSITIVE_INFINITY) {
+            assertNull(path);
+            return;
+        }
+        int last = path.size() - 1;
+        assertEquals(start, path.get(0));
+        for (int k = 1; k < last; k++)
+            assertTrue(((Collection<?>) g.neighbours(path.get(k - 1))).contains(path.get(k)));
+        var toFrontier = new ArrayList<>(path.subList(0, last));
+        assertEquals(nearest, TestIntAStar.cost(g, toFrontier), 1e-3f * Math.max(1, nearest));
+        assertTrue(frontier.contains(new Pair<>(path.get(last - 1), path.get(last))));
+    }
+
+    /**
+     * Mark the vertices within the given distance of v as seen, like an agent
+     * standing at v would.
+     */
+    static void lookAround(SurfaceNavGraph g, int v, float distance) {
+        var seen = new ArrayList<Integer>();
+        var p = g.vertices.get(v);
+        for (int z = 0; z < g.numberOfBaseVertices; z++) {
+            if (Vec3.dist(p, g.vertices.get(z)) <= distance)
+                seen.add(z);
+        }
+        g.markAsSeen(seen);
+    }
+
+    @Test
+    public void test_sameFrontierAsRecalculating() {
+        var rnd = new Random(24);
+        int w = 20;
+        var g = new SurfaceNavGraph(TestSurfaceNavGraphConstruction.irregularMesh(w, rnd), 0.1f);
+        int n = g.vertices.size();
+        var doors = new ArrayList<Box>();
+        for (int k = 0; k < 20; k++) {
+            var door = TestDStarLite.randomDoor(rnd, w);
+            g.addObstacle(door);
+            doors.add(door);
+        }
+        assertEquals(0, g.getFrontierVertices().size());
+        int explored = 0;
+        for (int step = 0; step < 200; step++) {
+            int action = rnd.nextInt(12);
+            if (action < 4) {
+                lookAround(g, rnd.nextInt(g.numberOfBaseVertices), 1 + rnd.nextFloat() * 3);
+            } else if (action < 8) {
+                var door = doors.get(rnd.nextInt(doors.size()));
+                if (g.getBlockingStatus(door))
+                    g.toggleBlockingOff(door);
+                else
+                    g.toggleBlockingOn(door);
+            } else if (action == 8) {
+                var door = TestDStarLite.randomDoor(rnd, w);
+                g.addObstacleInBlockingState(door);
+                doors.add(door);
+            } else if (action == 9 && doors.size() > 1) {
+                g.removeObstacle(doors.remove(rnd.nextInt(doors.size())));
+            } else if (action == 10 && rnd.nextInt(4) == 0) {
+                g.wipeOutMemory();
+            }
+            assertEquals(referenceFrontier(g).toString(), g.getFrontierVertices().toString());
+            int start = rnd.nextInt(n);
+            var path = g.explore(start);
+            checkExplorePath(g, start, path);
+            if (path != null)
+                explored++;
+        }
+        assertTrue(explored > 50);
+        g.perfect_memory_pathfinding = true;
+        assertTrue(g.getFrontierVertices().isEmpty());
+        assertNull(g.explore(0));
+    }
+
+    @Test
+    public void test_vertices() {
+        var rnd = new Random(1);
+        var g = new SurfaceNavGraph(TestFaceIndex.gridMesh(30, rnd), 0.1f);
+        for (int k = 0; k < 30; k++) {
+            lookAround(g, rnd.nextInt(g.numberOfBaseVertices), 2);
+            g.frontier.sync();
+            var expected = new ArrayList<Integer>();
+            for (var front : referenceFrontier(g))
+                expected.add(front.fst);
+            assertEquals(expected, g.frontier.vertices());
+            assertEquals(expected.size(), g.frontier.size());
+        }
+        assertTrue(g.frontier.size() > 100);
+    }
+
+    /**
+     * A maze-like mesh: a grid with walls, one square thick, every fourth row of
+     * squares, leaving a gap of two squares at alternating ends. So the corridors
+     * zigzag through the whole mesh.
+     */
+    static Mesh mazeMesh(int w, Random rnd) {
+        var grid = TestFaceIndex.gridMesh(w, rnd);
+        var mesh = new Mesh();
+        mesh.vertices = grid.vertices;
+        var edges = new HashSet<Long>();
+        for (int z = 0; z < w; z++) {
+            for (int x = 0; x < w; x++) {
+                boolean gap = (z / 4) % 2 == 0 ? x < 2 : x >= w - 2;
+                if (z % 4 == 3 && !gap)
+                    continue;
+                for (int f = 2 * (z * w + x); f <= 2 * (z * w + x) + 1; f++) {
+                    var face = grid.faces.get(f);
+                    mesh.faces.add(face);
+                    for (int k = 0; k < 3; k++) {
+                        int i = face.vertices[k];
+                        int j = face.vertices[(k + 1) % 3];
+                        if (edges.add(Face.pairKey(i, j)))
+                            mesh.edges.add(new Edge(i, j));
+                    }
+                }
+            }
+        }
+        return mesh;
+    }
+
+    @Test
+    public void test_exploreInMaze() {
+        var rnd = new Random(25);
+        var g = new SurfaceNavGraph(mazeMesh(23, rnd), 0.1f);
+        int at = 0;
+        for (int step = 0; step < 60; step++) {
+            lookAround(g, at, 3);
+            var path = g.explore(at);
+            checkExplorePath(g, at, path);
+            if (path == null)
+                break;
+            at = path.get(path.size() - 1);
+        }
+        // the whole maze was explored, going through the corridors:
+        assertNull(g.explore(at));
+        assertEquals(g.numberOfBaseVertices, (int) g.seenVertices.subList(0, g.numberOfBaseVertices).stream()
+                .filter(b -> b).count());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** An agent exploring, before (a search per frontier vertex) vs now (one search):");
+        int w = 100;
+        var open = new SurfaceNavGraph(TestFaceIndex.gridMesh(w, new Random(1)), 0.1f);
+        var rnd = new Random(2);
+        for (int k = 0; k < 200; k++)
+            open.addObstacleInBlockingState(TestDStarLite.randomDoor(rnd, w));
+        var maze = new SurfaceNavGraph(mazeMesh(58, new Random(3)), 0.1f);
+        for (var g : List.of(open, maze)) {
+            int steps = 40;
+            for (int round = 0; round < 2; round++) {
+                g.wipeOutMemory();
+                int at = g == open ? (w / 2) * (w + 1) + w / 2 : 0;
+                lookAround(g, at, 3);
+                long time = 0;
+                var expansions = new long[1];
+                for (int step = 0; step < steps; step++) {
+                    long t0 = System.nanoTime();
+                    var path = round == 0 ? referenceExplore(g, at, expansions) : g.explore(at);
+                    time += System.nanoTime() - t0;
+                    if (round == 1)
+                        expansions[0] += g.explorer.getLastExpansions();
+                    if (path == null)
+                        break;
+                    at = path.get(path.size() - 1);
+                    lookAround(g, at, 3);
+                }
+                System.out.println(String.format("   %s, %s: %d expansions, %d us per explore step",
+                        g == open ? "open, with doors" : "maze", round == 0 ? "before" : "now",
+                        expansions[0] / steps, time / steps / 1000));
+            }
+        }
+    }
+
+}
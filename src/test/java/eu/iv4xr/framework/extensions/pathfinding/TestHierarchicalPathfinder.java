@@ -0,0 +1,169 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.Vec3;
+
+public class TestHierarchicalPathfinder {
+
+    static void checkPath(SimpleNavGraph g, ArrayList<Integer> path, int start, int goal) {
+        assertEquals(start, path.get(0));
+        assertEquals(goal, path.get(path.size() - 1));
+        for (int k = 1; k < path.size(); k++)
+            assertTrue(((Collection<?>) g.neighbours(path.get(k - 1))).contains(path.get(k)));
+        assertTrue(Float.isFinite(TestIntAStar.cost(g, path)));
+    }
+
+    @Test
+    public void test_nearlyShortestPaths() {
+        var rnd = new Random(23);
+        int w = 40;
+        var g = new SurfaceNavGraph(TestSurfaceNavGraphConstruction.irregularMesh(w, rnd), 0.1f);
+        int n = g.vertices.size();
+        for (int v = 0; v < n; v++) {
+            if (rnd.nextInt(5) > 0)
+                g.markAsSeen(v);
+        }
+        var doors = new ArrayList<Box>();
+        for (int k = 0; k < 40; k++) {
+            var door = TestDStarLite.randomDoor(rnd, w);
+            g.addObstacleInBlockingState(door);
+            doors.add(door);
+        }
+        var hpa = new HierarchicalPathfinder(8);
+        var astar = new IntAStar();
+        int found = 0;
+        float totalRatio = 0;
+        for (int q = 0; q < 300; q++) {
+            if (q % 3 == 0) {
+                var door = doors.get(rnd.nextInt(doors.size()));
+                if (g.getBlockingStatus(door))
+                    g.toggleBlockingOff(door);
+                else
+                    g.toggleBlockingOn(door);
+            }
+            if (q % 10 == 0) {
+                var seen = new ArrayList<Integer>();
+                for (int k = 0; k < 30; k++)
+                    seen.add(rnd.nextInt(n));
+                g.markAsSeen(seen);
+            }
+            int start = rnd.nextInt(n);
+            int goal = rnd.nextInt(n);
+            var expected = astar.findPath(g, start, goal);
+            var path = hpa.findPath(g, start, goal);
+            if (expected == null) {
+                assertNull(path);
+                continue;
+            }
+            checkPath(g, path, start, goal);
+            float ratio = TestIntAStar.cost(g, path) / Math.max(1e-6f, TestIntAStar.cost(g, expected));
+            assertTrue(ratio >= 0.999f);
+            assertTrue(ratio < 2f);
+            totalRatio += ratio;
+            found++;
+        }
+        assertTrue(found > 100);
+        assertTrue(totalRatio / found < 1.1f);
+        assertTrue(hpa.getNumberOfFallbacks() < found / 10);
+    }
+
+    @Test
+    public void test_clusterLocalInvalidation() {
+        var rnd = new Random(3);
+        int w = 40;
+        var g = new SurfaceNavGraph(TestFaceIndex.gridMesh(w, rnd), 0.1f);
+        g.perfect_memory_pathfinding = true;
+        var door = new Box(new Vec3(20.5f, 0, 20.5f), new Vec3(0.3f, 1, 3));
+        g.addObstacle(door);
+        var hpa = new HierarchicalPathfinder(8);
+        int start = 0;
+        int goal = (w + 1) * (w + 1) - 1;
+        checkPath(g, hpa.findPath(g, start, goal), start, goal);
+        // the vertices at x=40 or z=40 are in cells of their own:
+        assertEquals(36, hpa.getNumberOfClusters());
+        // the same query again needs no cluster to be recalculated:
+        int updates = hpa.getNumberOfClusterUpdates();
+        checkPath(g, hpa.findPath(g, start, goal), start, goal);
+        assertEquals(updates, hpa.getNumberOfClusterUpdates());
+        // a door in the middle only invalidates the cluster it is in:
+        var before = hpa.clusters.stream().map(c -> c.dist).toArray();
+        g.toggleBlockingOn(door);
+        checkPath(g, hpa.findPath(g, start, goal), start, goal);
+        int invalidated = 0;
+        for (int c = 0; c < before.length; c++) {
+            if (before[c] != null && before[c] != hpa.clusters.get(c).dist)
+                invalidated++;
+        }
+        assertEquals(1, invalidated);
+        // the vertex at (20,20):
+        int doorCluster = hpa.clusterOf[(w + 1) * 20 + 20];
+        assertNotSame(before[doorCluster], hpa.clusters.get(doorCluster).dist);
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** Long-distance pathfinding, IntAStar vs hierarchical:");
+        var rnd = new Random(4);
+        int w = 150;
+        var g = new SurfaceNavGraph(TestFaceIndex.gridMesh(w, rnd), 0.1f);
+        g.perfect_memory_pathfinding = true;
+        var doors = new ArrayList<Box>();
+        for (int k = 0; k < 300; k++) {
+            var door = TestDStarLite.randomDoor(rnd, w);
+            g.addObstacleInBlockingState(door);
+            doors.add(door);
+        }
+        int n = g.vertices.size();
+        int queries = 20;
+        var starts = new int[queries];
+        var goals = new int[queries];
+        for (int q = 0; q < queries; q++) {
+            starts[q] = rnd.nextInt(n);
+            goals[q] = rnd.nextInt(n);
+        }
+        var astar = new IntAStar();
+        var hpa = new HierarchicalPathfinder(10);
+        // the first round builds the clusters and calculates distances:
+        long t0 = System.nanoTime();
+        for (int q = 0; q < queries; q++)
+            hpa.findPath(g, starts[q], goals[q]);
+        long first = System.nanoTime() - t0;
+        long astarTime = 0, hpaTime = 0, astarExpansions = 0, hpaExpansions = 0;
+        float astarCost = 0, hpaCost = 0;
+        for (int q = 0; q < queries; q++) {
+            var door = doors.get(rnd.nextInt(doors.size()));
+            if (g.getBlockingStatus(door))
+                g.toggleBlockingOff(door);
+            else
+                g.toggleBlockingOn(door);
+            t0 = System.nanoTime();
+            var expected = astar.findPath(g, starts[q], goals[q]);
+            astarTime += System.nanoTime() - t0;
+            astarExpansions += astar.getLastExpansions();
+            t0 = System.nanoTime();
+            var path = hpa.findPath(g, starts[q], goals[q]);
+            hpaTime += System.nanoTime() - t0;
+            hpaExpansions += hpa.getLastExpansions();
+            assertEquals(expected == null, path == null);
+            if (path != null) {
+                astarCost += TestIntAStar.cost(g, expected);
+                hpaCost += TestIntAStar.cost(g, path);
+            }
+        }
+        System.out.println(String.format("   %d vertices, %d clusters (first round %d ms): IntAStar %d expansions "
+                + "(%d ms), hierarchical %d expansions (%d ms), paths %.1f%% longer", n, hpa.getNumberOfClusters(),
+                first / 1000000, astarExpansions / queries, astarTime / queries / 1000000, hpaExpansions / queries,
+                hpaTime / queries / 1000000, 100 * (hpaCost / astarCost - 1)));
+    }
+
+}
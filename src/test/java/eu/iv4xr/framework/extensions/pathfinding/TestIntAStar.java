@@ -0,0 +1,244 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+
+public class TestIntAStar {
+
+    /**
+     * A w x w grid of nodes with random gaps, some diagonals, and a few blocking
+     * boxes.
+     */
+    static SimpleNavGraph grid(int w, Random rnd, int boxes) {
+        var g = new SimpleNavGraph();
+        for (int z = 0; z < w; z++) {
+            for (int x = 0; x < w; x++)
+                g.vertices.add(new Vec3(x, 0, z));
+        }
+        for (int z = 0; z < w; z++) {
+            for (int x = 0; x < w; x++) {
+                int i = z * w + x;
+                if (x + 1 < w && rnd.nextInt(10) > 0)
+                    g.edges.put(new Edge(i, i + 1));
+                if (z + 1 < w && rnd.nextInt(10) > 0)
+                    g.edges.put(new Edge(i, i + w));
+                if (x + 1 < w && z + 1 < w && rnd.nextInt(4) == 0)
+                    g.edges.put(new Edge(i, i + w + 1));
+            }
+        }
+        for (int b = 0; b < boxes; b++) {
+            var center = new Vec3(rnd.nextFloat() * w, 0, rnd.nextFloat() * w);
+            g.addObstacleInBlockingState(new Box(center, new Vec3(1 + rnd.nextFloat() * 3, 1, 0.5f)));
+        }
+        return g;
+    }
+
+    static float cost(SimpleNavGraph g, ArrayList<Integer> path) {
+        float c = 0;
+        for (int k = 1; k < path.size(); k++)
+            c += g.distance(path.get(k - 1), path.get(k));
+        return c;
+    }
+
+    static void checkPath(SimpleNavGraph g, ArrayList<Integer> path, int start, int goal) {
+        assertEquals(start, path.get(0));
+        assertEquals(goal, path.get(path.size() - 1));
+        for (int k = 1; k < path.size(); k++)
+            assertTrue(g.edges.neighbours(path.get(k - 1)).contains(path.get(k)));
+        assertTrue(Float.isFinite(cost(g, path)));
+    }
+
+    @Test
+    public void test_sameCostsAsAStar() {
+        var rnd = new Random(17);
+        int w = 25;
+        var g = grid(w, rnd, 12);
+        var astar = new AStar<Integer>();
+        var intAstar = new IntAStar();
+        int unreachable = 0;
+        for (var mode : AStar.SearchMode.values()) {
+            astar.searchMode = mode;
+            intAstar.searchMode = mode;
+            for (int q = 0; q < 100; q++) {
+                int start = rnd.nextInt(w * w);
+                int goal = rnd.nextInt(w * w);
+                var p1 = astar.findPath(g, start, goal);
+                var p2 = intAstar.findPath(g, start, goal);
+                if (p1 == null) {
+                    assertNull(p2);
+                    unreachable++;
+                    continue;
+                }
+                checkPath(g, p2, start, goal);
+                if (mode != AStar.SearchMode.GREEDY)
+                    assertEquals(cost(g, p1), cost(g, p2), 0.001);
+            }
+        }
+        assertTrue(unreachable < 300);
+        assertEquals(1, intAstar.findPath(g, 5, 5).size());
+    }
+
+    @Test
+    public void test_growingGraphAndNesting() {
+        var g = new SimpleNavGraph();
+        var pf = new IntAStar();
+        for (int i = 0; i < 3; i++)
+            g.vertices.add(new Vec3(i, 0, 0));
+        g.edges.put(new Edge(0, 1));
+        g.edges.put(new Edge(1, 2));
+        assertEquals(3, pf.findPath(g, 0, 2).size());
+        // the arrays grow with the graph:
+        for (int i = 3; i < 1000; i++) {
+            g.vertices.add(new Vec3(i, 0, 0));
+            g.edges.put(new Edge(i - 1, i));
+        }
+        assertEquals(1000, pf.findPath(g, 0, 999).size());
+        assertEquals(3, pf.findPath(g, 0, 2).size());
+        // a heuristic that searches itself:
+        var outer = new IntAStar();
+        outer.dynamicHeuristicDistance = graph -> (a, b) -> pf.findPath(graph, a, b).size() - 1f;
+        assertEquals(11, outer.findPath(g, 10, 20).size());
+    }
+
+    @Test
+    public void test_sharedByThreads() throws InterruptedException {
+        // without obstacles, so searching the graph does not change it:
+        var g = grid(30, new Random(3), 0);
+        var pf = new IntAStar();
+        int[][] queries = { { 0, 899 }, { 31, 500 } };
+        // the expansions of each query, searched alone:
+        var expected = new int[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            pf.findPath(g, queries[q][0], queries[q][1]);
+            expected[q] = pf.getLastExpansions();
+        }
+        var failures = new int[queries.length];
+        var threads = new Thread[queries.length];
+        for (int q = 0; q < queries.length; q++) {
+            int q_ = q;
+            threads[q] = new Thread(() -> {
+                for (int r = 0; r < 200; r++) {
+                    pf.findPath(g, queries[q_][0], queries[q_][1]);
+                    if (pf.getLastExpansions() != expected[q_])
+                        failures[q_]++;
+                }
+            });
+            threads[q].start();
+        }
+        for (var t : threads)
+            t.join();
+        for (int q = 0; q < queries.length; q++)
+            assertEquals(0, failures[q]);
+    }
+
+    @Test
+    public void test_openSet() {
+        var rnd = new Random(17);
+        var open = new IndexMinFloatPQ(10);
+        var keys = new float[100];
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = rnd.nextFloat() * 10;
+                if (i >= open.capacity())
+                    open.grow(open.capacity() * 2);
+                open.insert(i, keys[i]);
+            }
+            for (int k = 0; k < 50; k++) {
+                int i = rnd.nextInt(keys.length);
+                keys[i] -= rnd.nextFloat();
+                open.decreaseKey(i, keys[i]);
+                assertEquals(keys[i], open.keyOf(i));
+            }
+            assertEquals(keys.length, open.size());
+            float last = Float.NEGATIVE_INFINITY;
+            for (int k = 0; k < keys.length / 2; k++) {
+                int i = open.delMin();
+                assertFalse(open.contains(i));
+                assertTrue(keys[i] >= last);
+                last = keys[i];
+            }
+            open.clear();
+            assertTrue(open.isEmpty());
+        }
+    }
+
+    @Test
+    public void test_findPathToNearest() {
+        var rnd = new Random(25);
+        int w = 20;
+        var g = grid(w, rnd, 8);
+        var pf = new IntAStar();
+        var dijkstra = new IntAStar();
+        dijkstra.searchMode = AStar.SearchMode.DIJKSTRA;
+        for (int q = 0; q < 50; q++) {
+            var goals = new HashSet<Integer>();
+            for (int k = 0; k < 5; k++)
+                goals.add(rnd.nextInt(w * w));
+            int start = rnd.nextInt(w * w);
+            float nearest = Float.POSITIVE_INFINITY;
+            for (int goal : goals) {
+                var p = dijkstra.findPath(g, start, goal);
+                if (p != null)
+                    nearest = Math.min(nearest, cost(g, p));
+            }
+            var path = pf.findPathToNearest(g, start, goals::contains);
+            if (nearest == Float.POSITIVE_INFINITY) {
+                assertNull(path);
+                continue;
+            }
+            int last = path.get(path.size() - 1);
+            assertTrue(goals.contains(last));
+            checkPath(g, path, start, last);
+            assertEquals(nearest, cost(g, path), 0.001);
+        }
+        assertEquals(1, pf.findPathToNearest(g, 7, v -> v == 7).size());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** A* vs IntAStar, random start/goal on grid graphs:");
+        for (int w : new int[] { 50, 100, 300 }) {
+            var rnd = new Random(w);
+            var g = grid(w, rnd, 0);
+            int queries = 20;
+            var starts = new int[queries];
+            var goals = new int[queries];
+            for (int q = 0; q < queries; q++) {
+                starts[q] = rnd.nextInt(w * w);
+                goals[q] = rnd.nextInt(w * w);
+            }
+            var intAstar = new IntAStar();
+            // warm-up:
+            for (int q = 0; q < queries; q++)
+                intAstar.findPath(g, starts[q], goals[q]);
+            long t0 = System.nanoTime();
+            for (int q = 0; q < queries; q++)
+                intAstar.findPath(g, starts[q], goals[q]);
+            long fast = (System.nanoTime() - t0) / queries;
+            String slow = "(skipped)";
+            if (w <= 100) {
+                var astar = new AStar<Integer>();
+                t0 = System.nanoTime();
+                for (int q = 0; q < queries; q++) {
+                    var p1 = astar.findPath(g, starts[q], goals[q]);
+                    var p2 = intAstar.findPath(g, starts[q], goals[q]);
+                    assertEquals(p1 == null, p2 == null);
+                }
+                slow = "" + ((System.nanoTime() - t0) / queries - fast) / 1000 + " us";
+            }
+            System.out.println(String.format("   %6d nodes: AStar %s, IntAStar %d us", w * w, slow, fast / 1000));
+        }
+    }
+
+}
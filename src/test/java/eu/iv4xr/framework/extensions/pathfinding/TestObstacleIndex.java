@@ -0,0 +1,260 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.spatial.Box;
+import eu.iv4xr.framework.spatial.Line;
+import eu.iv4xr.framework.spatial.LineIntersectable;
+import eu.iv4xr.framework.spatial.Obstacle;
+import eu.iv4xr.framework.spatial.Sphere;
+import eu.iv4xr.framework.spatial.Triangle;
+import eu.iv4xr.framework.spatial.Vec3;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+
+public class TestObstacleIndex {
+
+    /**
+     * The distance as it was calculated before obstacles were indexed: checking
+     * all obstacles.
+     */
+    static float bruteForceDistance(SimpleNavGraph g, int from, int to) {
+        Vec3 a = g.vertices.get(from);
+        Vec3 b = g.vertices.get(to);
+        Line l = new Line(a, b);
+        if (g.obstacles.stream().filter(o -> o.isBlocking).anyMatch(o -> o.obstacle.intersects(l)))
+            return Float.POSITIVE_INFINITY;
+        return Vec3.dist(a, b);
+    }
+
+    static LineIntersectable randomObstacle(Random rnd, int w) {
+        var center = new Vec3(rnd.nextFloat() * w, rnd.nextFloat() - 0.5f, rnd.nextFloat() * w);
+        switch (rnd.nextInt(4)) {
+        case 0:
+            return new Sphere(0.2f + rnd.nextFloat(), center);
+        case 1:
+            return new Triangle(center, Vec3.add(center, new Vec3(2, 0, 0)), Vec3.add(center, new Vec3(0, 1, 1)));
+        case 2:
+            // without a bounding box:
+            return l -> new Box(center, new Vec3(1, 1, 1)).intersect(l);
+        default:
+            return new Box(center, new Vec3(0.5f + rnd.nextFloat() * 2, 1, 0.5f + rnd.nextFloat() * 2));
+        }
+    }
+
+    static void checkAllEdges(SimpleNavGraph g) {
+        for (int i = 0; i < g.vertices.size(); i++) {
+            for (int j : g.edges.neighbours(i))
+                assertEquals(bruteForceDistance(g, i, j), g.distance(i, j));
+        }
+    }
+
+    @Test
+    public void test_sameAsBruteForce() {
+        var rnd = new Random(19);
+        int w = 20;
+        var g = TestIntAStar.grid(w, rnd, 0);
+        g.freeze();
+        var added = new ArrayList<LineIntersectable>();
+        for (int step = 0; step < 60; step++) {
+            int action = rnd.nextInt(5);
+            if (action <= 1 || added.isEmpty()) {
+                var o = randomObstacle(rnd, w);
+                if (rnd.nextBoolean())
+                    g.addObstacleInBlockingState(o);
+                else
+                    g.addObstacle(o);
+                added.add(o);
+            } else if (action == 2) {
+                g.removeObstacle(added.remove(rnd.nextInt(added.size())));
+            } else {
+                var o = added.get(rnd.nextInt(added.size()));
+                if (g.getBlockingStatus(o))
+                    g.toggleBlockingOff(o);
+                else
+                    g.toggleBlockingOn(o);
+            }
+            checkAllEdges(g);
+        }
+        assertTrue(Arrays.stream(g.obstacleIndex.crossing).anyMatch(obs -> obs != null));
+        // a path avoids the blocking obstacles:
+        var pf = new IntAStar();
+        for (int q = 0; q < 50; q++) {
+            var path = pf.findPath(g, rnd.nextInt(w * w), rnd.nextInt(w * w));
+            if (path != null) {
+                for (int k = 1; k < path.size(); k++)
+                    assertTrue(Float.isFinite(bruteForceDistance(g, path.get(k - 1), path.get(k))));
+            }
+        }
+    }
+
+    @Test
+    public void test_changesOutsideTheGraph() {
+        var g = TestIntAStar.grid(5, new Random(1), 0);
+        var box = new Box(new Vec3(1.5f, 0, 1), new Vec3(0.2f, 1, 0.2f));
+        // going through the list directly:
+        var o = new Obstacle<LineIntersectable>(box);
+        o.isBlocking = true;
+        g.obstacles.add(o);
+        assertTrue(g.isBlocked(new Vec3(1, 0, 1), new Vec3(2, 0, 1)));
+        assertEquals(true, g.getBlockingStatus(box));
+        o.isBlocking = false;
+        assertFalse(g.isBlocked(new Vec3(1, 0, 1), new Vec3(2, 0, 1)));
+        g.obstacles.clear();
+        assertNull(g.getBlockingStatus(box));
+
+        // moving an obstacle:
+        g.addObstacleInBlockingState(box);
+        assertTrue(g.isBlocked(new Vec3(1, 0, 1), new Vec3(2, 0, 1)));
+        box.center = new Vec3(1.5f, 0, 3);
+        g.updateObstacle(box);
+        assertFalse(g.isBlocked(new Vec3(1, 0, 1), new Vec3(2, 0, 1)));
+        assertTrue(g.isBlocked(new Vec3(1, 0, 3), new Vec3(2, 0, 3)));
+        assertEquals(true, g.getBlockingStatus(box));
+        assertEquals(1, g.obstacles.size());
+        checkAllEdges(g);
+    }
+
+    @Test
+    public void test_addedAcrossLongEdge() {
+        var g = TestIntAStar.grid(20, new Random(1), 0);
+        // a long edge, from (0,0,0) to (19,0,19):
+        g.edges.put(new Edge(0, 399));
+        g.freeze();
+        g.addObstacle(new Box(new Vec3(30, 0, 30), new Vec3(1, 1, 1)));
+        checkAllEdges(g);
+        // the box is far from both end points, but still crosses the edge:
+        long t0 = g.numberOfChanges();
+        var box = new Box(new Vec3(9.5f, 0, 9.5f), new Vec3(0.2f, 1, 0.2f));
+        g.addObstacleInBlockingState(box);
+        assertEquals(Float.POSITIVE_INFINITY, g.distance(0, 399));
+        assertEquals(Float.POSITIVE_INFINITY, g.distance(399, 0));
+        var changes = g.changesSince(t0);
+        assertTrue(Arrays.stream(changes).anyMatch(v -> v == 0));
+        assertTrue(Arrays.stream(changes).anyMatch(v -> v == 399));
+        checkAllEdges(g);
+        // the same without the cache:
+        g.unfreeze();
+        g.toggleBlockingOff(box);
+        assertEquals(Vec3.dist(g.vertices.get(0), g.vertices.get(399)), g.distance(0, 399));
+        checkAllEdges(g);
+    }
+
+    @Test
+    public void test_concurrentQueries() throws InterruptedException {
+        // threads searching the same graph fill in its edge cache at the same time:
+        var rnd = new Random(23);
+        int w = 40;
+        var g = TestIntAStar.grid(w, rnd, 0);
+        g.freeze();
+        for (int k = 0; k < 80; k++) {
+            var box = new Box(new Vec3(rnd.nextFloat() * w, 0, rnd.nextFloat() * w),
+                    new Vec3(1 + rnd.nextFloat() * 3, 1, 0.5f));
+            if (k % 2 == 0)
+                g.addObstacleInBlockingState(box);
+            else
+                g.addObstacle(box);
+        }
+        var bruteForce = new SimpleNavGraph(g.edges, g.vertices, g.obstacles) {
+            @Override
+            public float distance(Integer from, Integer to) {
+                return bruteForceDistance(this, from, to);
+            }
+        };
+        var pf = new IntAStar();
+        int queries = 20;
+        var starts = new int[queries];
+        var goals = new int[queries];
+        var expected = new float[queries];
+        for (int q = 0; q < queries; q++) {
+            starts[q] = rnd.nextInt(w * w);
+            goals[q] = rnd.nextInt(w * w);
+            var path = pf.findPath(bruteForce, starts[q], goals[q]);
+            expected[q] = path == null ? Float.NaN : TestIntAStar.cost(bruteForce, path);
+        }
+        var threads = new Thread[4];
+        var failures = new ArrayList<Throwable>();
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int r = 0; r < queries; r++) {
+                        int q = (r + offset * 5) % queries;
+                        var path = pf.findPath(g, starts[q], goals[q]);
+                        if (Float.isNaN(expected[q]))
+                            assertNull(path);
+                        else
+                            assertEquals(expected[q], TestIntAStar.cost(g, path), 0.001);
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (var t : threads)
+            t.join();
+        assertEquals(Collections.emptyList(), failures);
+        checkAllEdges(g);
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** Pathfinding with obstacles, checking all of them vs indexed:");
+        int w = 150;
+        for (int n : new int[] { 100, 500 }) {
+            var rnd = new Random(n);
+            var g = TestIntAStar.grid(w, rnd, 0);
+            g.freeze();
+            for (int k = 0; k < n; k++) {
+                var center = new Vec3(rnd.nextFloat() * w, 0, rnd.nextFloat() * w);
+                var box = new Box(center, new Vec3(1 + rnd.nextFloat() * 3, 1, 0.5f));
+                // like doors, half of them are open:
+                if (k % 2 == 0)
+                    g.addObstacleInBlockingState(box);
+                else
+                    g.addObstacle(box);
+            }
+            int queries = 10;
+            var starts = new int[queries];
+            var goals = new int[queries];
+            for (int q = 0; q < queries; q++) {
+                starts[q] = rnd.nextInt(w * w);
+                goals[q] = rnd.nextInt(w * w);
+            }
+            // the same graph, checking all obstacles per edge:
+            var bruteForce = new SimpleNavGraph(g.edges, g.vertices, g.obstacles) {
+                @Override
+                public float distance(Integer from, Integer to) {
+                    return bruteForceDistance(this, from, to);
+                }
+            };
+            var pf = new IntAStar();
+            long t0 = System.nanoTime();
+            for (int q = 0; q < queries; q++)
+                pf.findPath(bruteForce, starts[q], goals[q]);
+            long slow = (System.nanoTime() - t0) / queries;
+            // the first round fills the edge cache:
+            for (int q = 0; q < queries; q++)
+                assertEquals(pf.findPath(bruteForce, starts[q], goals[q]) == null,
+                        pf.findPath(g, starts[q], goals[q]) == null);
+            t0 = System.nanoTime();
+            for (int q = 0; q < queries; q++)
+                pf.findPath(g, starts[q], goals[q]);
+            long fast = (System.nanoTime() - t0) / queries;
+            System.out.println(String.format("   %d obstacles: all %d us, indexed %d us", n, slow / 1000,
+                    fast / 1000));
+        }
+    }
+
+}
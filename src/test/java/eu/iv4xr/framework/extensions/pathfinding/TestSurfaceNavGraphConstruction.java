@@ -0,0 +1,172 @@
+package eu.iv4xr.framework.extensions.pathfinding;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import eu.iv4xr.framework.extensions.pathfinding.SurfaceNavGraph.VertexType;
+import eu.iv4xr.framework.spatial.meshes.Edge;
+import eu.iv4xr.framework.spatial.meshes.EdgeMap;
+import eu.iv4xr.framework.spatial.meshes.Face;
+import eu.iv4xr.framework.spatial.meshes.Mesh;
+
+public class TestSurfaceNavGraphConstruction {
+
+    /**
+     * The vertex types and edges of a SurfaceNavGraph, as they were calculated
+     * before, by comparing every edge with every face, and every face with every
+     * other face.
+     */
+    static class Reference {
+        ArrayList<VertexType> verticesType = new ArrayList<>();
+        EdgeMap edges = new EdgeMap();
+        HashMap<Face, Integer> faceToCenterIdMap = new HashMap<>();
+
+        Reference(Mesh mesh, float faceAreaThresholdToAddCenterNode) {
+            for (Edge e : mesh.edges)
+                edges.put(e);
+            for (int k = 0; k < mesh.vertices.size(); k++)
+                verticesType.add(VertexType.OTHER);
+            for (Edge e : mesh.edges) {
+                int countMembership = 0;
+                for (Face face : mesh.faces) {
+                    if (face.containsEdge(e))
+                        countMembership++;
+                    if (countMembership >= 2)
+                        break;
+                }
+                if (countMembership == 1) {
+                    verticesType.set(e.i, VertexType.BORDER);
+                    verticesType.set(e.j, VertexType.BORDER);
+                }
+            }
+            int numberOfVertices = mesh.vertices.size();
+            for (Face face : mesh.faces) {
+                if (face.area(mesh.vertices) < faceAreaThresholdToAddCenterNode)
+                    continue;
+                int center_id = numberOfVertices++;
+                verticesType.add(VertexType.CENTRE);
+                faceToCenterIdMap.put(face, center_id);
+                for (Integer corner : face)
+                    edges.put(new Edge(corner, center_id));
+            }
+            for (int i = 0; i < mesh.faces.size(); i++) {
+                for (int j = 0; j < i; j++) {
+                    var face1 = mesh.faces.get(i);
+                    var face2 = mesh.faces.get(j);
+                    if (Face.isConnected(face1, face2)) {
+                        var center1 = faceToCenterIdMap.get(face1);
+                        var center2 = faceToCenterIdMap.get(face2);
+                        if (center1 != null && center2 != null)
+                            edges.put(new Edge(center1, center2));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A grid mesh, with some faces removed (leaving holes with borders), and some
+     * pairs of triangles merged into quads.
+     */
+    static Mesh irregularMesh(int w, Random rnd) {
+        var grid = TestFaceIndex.gridMesh(w, rnd);
+        var mesh = new Mesh();
+        mesh.vertices = grid.vertices;
+        mesh.edges = grid.edges;
+        for (int f = 0; f < grid.faces.size(); f += 2) {
+            int r = rnd.nextInt(10);
+            var lower = grid.faces.get(f).vertices;
+            var upper = grid.faces.get(f + 1).vertices;
+            if (r == 0)
+                continue;
+            if (r == 1) {
+                // the quad, with the corners in order:
+                mesh.faces.add(new Face(new int[] { lower[0], lower[1], lower[2], upper[2] }));
+                continue;
+            }
+            mesh.faces.add(grid.faces.get(f));
+            if (r != 2)
+                mesh.faces.add(grid.faces.get(f + 1));
+        }
+        return mesh;
+    }
+
+    @Test
+    public void test_sameGraphAsBefore() {
+        var rnd = new Random(21);
+        for (int trial = 0; trial < 5; trial++) {
+            var mesh = irregularMesh(15, rnd);
+            float threshold = trial == 0 ? 0f : 0.4f;
+            var g = new SurfaceNavGraph(mesh, threshold);
+            var expected = new Reference(mesh, threshold);
+            assertEquals(expected.verticesType, g.verticesType);
+            assertEquals(expected.faceToCenterIdMap, g.faceToCenterIdMap);
+            assertEquals(expected.verticesType.size(), g.vertices.size());
+            for (int i = 0; i < g.vertices.size(); i++)
+                assertEquals(expected.edges.neighbours(i), g.edges.neighbours(i));
+            assertTrue(g.verticesType.contains(VertexType.BORDER));
+            assertTrue(g.verticesType.contains(VertexType.OTHER));
+
+            var simple = SimpleNavGraph.fromMeshFaceAverage(mesh);
+            for (int i = 0; i < mesh.faces.size(); i++) {
+                for (int j = 0; j < i; j++) {
+                    boolean connected = Face.isConnected(mesh.faces.get(i), mesh.faces.get(j));
+                    assertEquals(connected, simple.edges.neighbours(i).contains(j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void test_connectedPairs() {
+        // sharing two corners, three corners, or one; and a face with a repeated
+        // corner:
+        var faces = new ArrayList<Face>();
+        faces.add(new Face(new int[] { 0, 1, 2, 3 }));
+        faces.add(new Face(new int[] { 0, 1, 2, 4 }));
+        faces.add(new Face(new int[] { 3, 5, 6 }));
+        faces.add(new Face(new int[] { 7, 7, 8 }));
+        faces.add(new Face(new int[] { 7, 9, 7 }));
+        var pairs = Face.connectedPairs(faces);
+        int count = 0;
+        for (int i = 0; i < faces.size(); i++) {
+            for (int j = 0; j < i; j++) {
+                if (Face.isConnected(faces.get(i), faces.get(j))) {
+                    count++;
+                    final int i_ = i, j_ = j;
+                    assertTrue(pairs.stream().anyMatch(p -> p[0] == i_ && p[1] == j_));
+                }
+            }
+        }
+        assertEquals(2, count);
+        assertEquals(count, pairs.size());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** SurfaceNavGraph construction, before vs now:");
+        var rnd = new Random(1);
+        for (int w : new int[] { 30, 60, 224 }) {
+            var mesh = TestFaceIndex.gridMesh(w, rnd);
+            String before = "(skipped)";
+            if (w <= 60) {
+                long t0 = System.nanoTime();
+                new Reference(mesh, 0.1f);
+                before = (System.nanoTime() - t0) / 1000000 + " ms";
+            }
+            long t0 = System.nanoTime();
+            var g = new SurfaceNavGraph(mesh, 0.1f);
+            long now = (System.nanoTime() - t0) / 1000000;
+            assertEquals(mesh.vertices.size() + mesh.faces.size(), g.vertices.size());
+            System.out.println(String.format("   %6d faces: before %s, now %d ms", mesh.faces.size(), before, now));
+        }
+    }
+
+}
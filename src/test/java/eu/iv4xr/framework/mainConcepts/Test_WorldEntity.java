@@ -1,12 +1,25 @@
 package eu.iv4xr.framework.mainConcepts;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import eu.iv4xr.framework.spatial.Vec3;
+
 public class Test_WorldEntity {
 
     WorldEntity door(String id) {
@@ -75,4 +88,509 @@ public class Test_WorldEntity {
 
     }
 
+    @Test
+    public void test_fingerprint() {
+        var door1 = door("d1");
+        var door2 = door("d1");
+        assertEquals(door1.fingerprint(), door2.fingerprint());
+        assertTrue(door1.hasExactFingerprint());
+
+        // the cached fingerprint follows changes of the properties:
+        long fp = door1.fingerprint();
+        door1.properties.put("isOpen", true);
+        assertNotEquals(fp, door1.fingerprint());
+        door1.properties.put("isOpen", false);
+        assertEquals(fp, door1.fingerprint());
+        door1.properties.put("hp", 10);
+        assertNotEquals(fp, door1.fingerprint());
+        door1.properties.remove("hp");
+        assertEquals(fp, door1.fingerprint());
+        // Strings with the same hashCode still get different fingerprints:
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        door1.properties.put("code", "Aa");
+        door2.properties.put("code", "BB");
+        assertFalse(door1.hasSameState(door2));
+        door2.properties.put("code", "Aa");
+        assertTrue(door1.hasSameState(door2));
+
+        // ... and of the vectors:
+        door1.setPosition(new Vec3(1, 2, 3));
+        assertNotEquals(door1.fingerprint(), door2.fingerprint());
+        door2.position = new Vec3(1, 2, 3);
+        assertEquals(door1.fingerprint(), door2.fingerprint());
+        // an in-place change needs an explicit invalidation:
+        door2.position.x = 0;
+        door2.invalidateFingerprint();
+        assertFalse(door1.hasSameState(door2));
+        door2.setPosition(new Vec3(1, 2, 3));
+        assertTrue(door1.hasSameState(door2));
+        // 0 and -0 are equal Vec3 components:
+        door1.setVelocity(new Vec3(0, 0, 0));
+        door2.setVelocity(new Vec3(-0f, 0, 0));
+        assertTrue(door1.hasSameState(door2));
+
+        // ... and of the sub-entities:
+        var bag1 = bag("bag1");
+        bag1.elements.put("d1", door1);
+        var bag2 = bag("bag1");
+        bag2.elements.put("d1", door2);
+        assertTrue(bag1.hasSameState(bag2));
+        door2.properties.put("isOpen", true);
+        assertFalse(bag1.hasSameState(bag2));
+
+        // equal exact fingerprints are trusted, without comparing the values:
+        door2.properties.put("isOpen", false);
+        var list1 = new CountingList(List.of(1, 2));
+        door1.properties.put("list", list1);
+        door2.properties.put("list", new CountingList(List.of(1, 2)));
+        assertTrue(bag1.hasExactFingerprint());
+        assertTrue(bag1.hasSameState(bag2));
+        assertEquals(0, list1.comparisons);
+
+        // other values, and NaNs, are compared in full:
+        door1.setPosition(new Vec3(Float.NaN, 2, 3));
+        door2.setPosition(new Vec3(Float.NaN, 2, 3));
+        assertEquals(door1.fingerprint(), door2.fingerprint());
+        assertFalse(door1.hasExactFingerprint());
+        assertFalse(door1.equals(door2));
+        assertFalse(door1.hasSameState(door2));
+        door1.setPosition(new Vec3(1, 2, 3));
+        door2.setPosition(new Vec3(1, 2, 3));
+        door1.invalidateFingerprint();
+        door2.invalidateFingerprint();
+        assertTrue(door1.hasExactFingerprint());
+        door1.properties.put("other", new Serializable() {
+            private static final long serialVersionUID = 1L;
+        });
+        assertFalse(door1.hasExactFingerprint());
+        assertFalse(bag1.hasExactFingerprint());
+        door2.properties.put("other", door1.properties.get("other"));
+        assertTrue(bag1.hasSameState(bag2));
+        assertTrue(list1.comparisons > 0);
+    }
+
+    /**
+     * A list that counts how often it is compared to another one.
+     */
+    static class CountingList extends ArrayList<Integer> {
+        private static final long serialVersionUID = 1L;
+        int comparisons = 0;
+
+        CountingList(List<Integer> elements) {
+            super(elements);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            comparisons++;
+            return super.equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return super.hashCode();
+        }
+    }
+
+    @Test
+    public void test_fingerprintSurvivesClone() throws Exception {
+        var door1 = door("d1");
+        door1.fingerprint();
+        var door2 = door1.deepclone();
+        assertEquals(door1.fingerprint(), door2.fingerprint());
+        door2.properties.put("isOpen", true);
+        assertFalse(door1.hasSameState(door2));
+    }
+
+    static class Inscription implements Serializable {
+        private static final long serialVersionUID = 1L;
+        String text;
+
+        Inscription(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Inscription && ((Inscription) o).text.equals(text);
+        }
+
+        @Override
+        public int hashCode() {
+            return text.hashCode();
+        }
+    }
+
+    static WorldEntity serializationClone(WorldEntity e) throws Exception {
+        var bos = new java.io.ByteArrayOutputStream();
+        new java.io.ObjectOutputStream(bos).writeObject(e);
+        return (WorldEntity) new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bos.toByteArray()))
+                .readObject();
+    }
+
+    static void assertSameCopy(WorldEntity expected, WorldEntity e) {
+        assertEquals(expected, e);
+        assertEquals(expected.id, e.id);
+        assertEquals(expected.type, e.type);
+        assertEquals(expected.dynamic, e.dynamic);
+        assertEquals(expected.timestamp, e.timestamp);
+        assertEquals(expected.lastStutterTimestamp, e.lastStutterTimestamp);
+        assertEquals(expected.fingerprint(), e.fingerprint());
+        for (var P : expected.properties.entrySet())
+            assertEquals(P.getValue().getClass(), e.properties.get(P.getKey()).getClass());
+        for (var c : expected.elements.values())
+            assertSameCopy(c, e.elements.get(c.id));
+        assertEquals(expected.hasPreviousState(), e.hasPreviousState());
+        if (expected.hasPreviousState())
+            assertSameCopy(expected.getPreviousState(), e.getPreviousState());
+    }
+
+    @Test
+    public void test_deepcopy() throws Exception {
+        var bag = bag("bag1");
+        bag.position = new Vec3(1, 2, 3);
+        bag.velocity = new Vec3(0, 1, 0);
+        bag.properties.put("weight", 2.5);
+        bag.properties.put("items", new ArrayList<>(List.of("apple", "pear")));
+        bag.properties.put("inscription", new Inscription("mine"));
+        bag.elements.put("d1", door("d1"));
+        bag.assignTimeStamp(10);
+        bag.lastStutterTimestamp = 4;
+        var old = bag("bag1");
+        old.assignTimeStamp(3);
+        bag.linkPreviousState(old);
+
+        var copy = bag.deepcopy();
+        assertSameCopy(serializationClone(bag), copy);
+        assertSameCopy(bag, copy);
+
+        // nothing is shared:
+        assertTrue(copy.position != bag.position);
+        assertTrue(copy.properties.get("items") != bag.properties.get("items"));
+        assertTrue(copy.properties.get("inscription") != bag.properties.get("inscription"));
+        assertTrue(copy.elements.get("d1") != bag.elements.get("d1"));
+        assertTrue(copy.getPreviousState() != bag.getPreviousState());
+        copy.elements.get("d1").properties.put("isOpen", true);
+        assertFalse(bag.elements.get("d1").getBooleanProperty("isOpen"));
+        assertFalse(copy.hasSameState(bag));
+    }
+
+    static WorldEntity observedEntity(int i, long t) {
+        var e = new WorldEntity("e" + i, "crate", true);
+        e.position = new Vec3(i, 0, i % 100);
+        e.extent = new Vec3(0.5f, 0.5f, 0.5f);
+        e.properties.put("hp", 100 - (int) ((t + i) / 50 % 100));
+        e.properties.put("name", "crate nr. " + i);
+        e.properties.put("isBroken", false);
+        var item = new WorldEntity("e" + i + ".item", "item", true);
+        item.properties.put("kind", "potion");
+        e.elements.put(item.id, item);
+        e.assignTimeStamp(t);
+        return e;
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_fingerprintBenchmark() {
+        // a stream of observations of 10k entities, where each tick about 2% of
+        // the entities change:
+        int n = 10000;
+        int ticks = 30;
+        var stream = new ArrayList<List<WorldEntity>>();
+        for (int t = 0; t <= ticks; t++) {
+            var obs = new ArrayList<WorldEntity>();
+            for (int i = 0; i < n; i++)
+                obs.add(observedEntity(i, t));
+            stream.add(obs);
+        }
+        // baseline: the hashCode-then-equals comparison:
+        long t0 = System.nanoTime();
+        int changed1 = 0;
+        var current = new ArrayList<>(stream.get(0));
+        for (int t = 1; t <= ticks; t++) {
+            var obs = stream.get(t);
+            for (int i = 0; i < n; i++) {
+                var e = obs.get(i);
+                var c = current.get(i);
+                if (e.hashCode() != c.hashCode() || !e.equals(c)) {
+                    changed1++;
+                    current.set(i, e);
+                }
+            }
+        }
+        long hashTime = System.nanoTime() - t0;
+        // fingerprints:
+        t0 = System.nanoTime();
+        int changed2 = 0;
+        current = new ArrayList<>(stream.get(0));
+        for (int t = 1; t <= ticks; t++) {
+            var obs = stream.get(t);
+            for (int i = 0; i < n; i++) {
+                var e = obs.get(i);
+                if (!e.hasSameState(current.get(i))) {
+                    changed2++;
+                    current.set(i, e);
+                }
+            }
+        }
+        long fingerprintTime = System.nanoTime() - t0;
+        assertEquals(changed1, changed2);
+        System.out.println("** change detection over " + ticks + " observations of " + n + " entities ("
+                + changed2 + " changes):");
+        System.out.println("   hashCode + equals : " + hashTime / ticks / 1000 + " us/observation");
+        System.out.println("   fingerprints      : " + fingerprintTime / ticks / 1000 + " us/observation");
+
+        // the same stream, where the entities stay unchanged; every entity carries a
+        // list that counts how often it is compared in full:
+        var unchanged = new ArrayList<List<WorldEntity>>();
+        var lists = new ArrayList<CountingList>();
+        for (int t = 0; t <= ticks; t++) {
+            var obs = new ArrayList<WorldEntity>();
+            for (int i = 0; i < n; i++) {
+                var e = observedEntity(i, 0);
+                var list = new CountingList(List.of(i, i + 1));
+                e.properties.put("list", list);
+                lists.add(list);
+                obs.add(e);
+            }
+            unchanged.add(obs);
+        }
+        t0 = System.nanoTime();
+        current = new ArrayList<>(unchanged.get(0));
+        for (int t = 1; t <= ticks; t++) {
+            var obs = unchanged.get(t);
+            for (int i = 0; i < n; i++)
+                assertTrue(obs.get(i).hasSameState(current.get(i)));
+        }
+        long exactTime = System.nanoTime() - t0;
+        int comparisons = 0;
+        for (var list : lists)
+            comparisons += list.comparisons;
+        assertEquals(0, comparisons);
+        t0 = System.nanoTime();
+        for (int t = 1; t <= ticks; t++) {
+            var obs = unchanged.get(t);
+            for (int i = 0; i < n; i++)
+                assertTrue(obs.get(i).equals(current.get(i)));
+        }
+        long deepTime = System.nanoTime() - t0;
+        System.out.println("** " + ticks + " observations of " + n + " unchanged entities:");
+        System.out.println("   deep comparison   : " + deepTime / ticks / 1000 + " us/observation");
+        System.out.println("   fingerprints      : " + exactTime / ticks / 1000 + " us/observation ("
+                + comparisons + " deep comparisons)");
+    }
+
+    @Test
+    public void test_compactProperties() throws Exception {
+        var e = new WorldEntity("m1", "monster", true);
+        var expected = new HashMap<String, Serializable>();
+        e.properties.put("hp", 100);
+        e.properties.put("speed", 1.5f);
+        e.properties.put("isAlive", true);
+        e.properties.put("name", "orc");
+        e.properties.put("weight", 80.5);
+        e.properties.put("nothing", null);
+        expected.putAll(e.properties);
+        assertEquals(6, e.properties.size());
+        assertEquals(expected, e.properties);
+        assertEquals(e.properties, expected);
+        assertEquals(expected.hashCode(), e.properties.hashCode());
+        assertEquals(100, e.getIntProperty("hp"));
+        assertEquals(1.5f, e.getFloatProperty("speed"));
+        assertTrue(e.getBooleanProperty("isAlive"));
+        assertFalse(e.getBooleanProperty("isFlying"));
+        assertEquals("orc", e.getStringProperty("name"));
+        assertEquals(80.5, e.getProperty("weight"));
+        assertTrue(e.properties.containsKey("nothing"));
+        assertNull(e.getProperty("nothing"));
+        assertThrows(IllegalArgumentException.class, () -> e.getIntProperty("speed"));
+        assertThrows(IllegalArgumentException.class, () -> e.getBooleanProperty("hp"));
+
+        // a value can change its kind:
+        e.properties.put("hp", "lots");
+        assertEquals("lots", e.getProperty("hp"));
+        e.properties.put("hp", 7);
+        assertEquals(7, e.getProperty("hp"));
+
+        // entities of the same type share their property names:
+        var e2 = new WorldEntity("m2", "monster", true);
+        e2.properties.put("isAlive", false);
+        assertSame(((PropertyMap) e.properties).schema, ((PropertyMap) e2.properties).schema);
+        assertEquals(List.of("isAlive"), new ArrayList<>(e2.properties.keySet()));
+
+        // changes through the views are tracked by the fingerprint:
+        e.properties.remove("nothing");
+        var copy = e.deepcopy();
+        long fp = e.fingerprint();
+        e.properties.keySet().remove("name");
+        assertNotEquals(fp, e.fingerprint());
+        assertFalse(e.hasSameState(copy));
+        e.properties.put("name", "orc");
+        assertEquals(fp, e.fingerprint());
+        for (var P : e.properties.entrySet()) {
+            if (P.getKey().equals("hp"))
+                P.setValue(8);
+        }
+        assertEquals(8, e.getIntProperty("hp"));
+        assertNotEquals(fp, e.fingerprint());
+        e.properties.replaceAll((k, v) -> k.equals("hp") ? 7 : v);
+        assertEquals(fp, e.fingerprint());
+        assertTrue(e.hasSameState(copy));
+        e.properties.clear();
+        assertTrue(e.properties.isEmpty());
+        assertFalse(e.hasSameState(copy));
+
+        // serialization:
+        var clone = serializationClone(copy);
+        assertSameCopy(copy, clone);
+        clone.properties.put("hp", 9);
+        assertFalse(copy.hasSameState(clone));
+    }
+
+    @Test
+    public void test_manyPropertyNames() throws Exception {
+        // names generated per entity do not all get a slot in the schema:
+        var schema = PropertyMap.Schema.of("crowd");
+        var entities = new ArrayList<WorldEntity>();
+        for (int i = 0; i < 1000; i++) {
+            var e = new WorldEntity("c" + i, "crowd", true);
+            e.properties.put("hp", i);
+            e.properties.put("tag" + i, i % 2 == 0);
+            e.properties.put("note" + i, "n" + i);
+            entities.add(e);
+        }
+        assertTrue(schema.size() <= PropertyMap.Schema.MAX_SLOTS);
+        for (int i = 0; i < 1000; i++) {
+            var e = entities.get(i);
+            var expected = new HashMap<String, Serializable>();
+            expected.put("hp", i);
+            expected.put("tag" + i, i % 2 == 0);
+            expected.put("note" + i, "n" + i);
+            assertEquals(3, e.properties.size());
+            assertEquals(expected, e.properties);
+            assertEquals(e.properties, expected);
+            assertEquals(expected.hashCode(), e.properties.hashCode());
+            assertEquals(i, e.getIntProperty("hp"));
+            assertEquals(i % 2 == 0, e.getBooleanProperty("tag" + i));
+            assertFalse(e.getBooleanProperty("tag" + (i + 1)));
+            assertFalse(e.properties.containsKey("note" + (i + 1)));
+        }
+
+        // overflowing properties are tracked, copied, and serialized like the others:
+        var e = entities.get(999);
+        var copy = e.deepcopy();
+        assertTrue(e.hasSameState(copy));
+        long fp = e.fingerprint();
+        e.properties.put("note999", "changed");
+        assertNotEquals(fp, e.fingerprint());
+        assertFalse(e.hasSameState(copy));
+        var it = e.properties.entrySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().getKey().equals("note999"))
+                it.remove();
+        }
+        assertEquals(2, e.properties.size());
+        assertNull(e.getProperty("note999"));
+        e.properties.put("note999", "n999");
+        assertEquals(fp, e.fingerprint());
+        assertTrue(e.hasSameState(copy));
+        assertSameCopy(copy, serializationClone(copy));
+    }
+
+    @Test
+    public void test_elementMap() throws Exception {
+        var bag = bag("bag");
+        var expected = new HashMap<String, WorldEntity>();
+        for (int i = 0; i < 20; i++) {
+            var d = door("d" + i);
+            bag.elements.put(d.id, d);
+            expected.put(d.id, d);
+            assertEquals(expected, bag.elements);
+            assertEquals(expected.hashCode(), bag.elements.hashCode());
+            if (i == 3) {
+                // removing from the inline arrays, also via an iterator:
+                assertSame(expected.remove("d1"), bag.elements.remove("d1"));
+                var it = bag.elements.entrySet().iterator();
+                while (it.hasNext()) {
+                    if (it.next().getKey().equals("d2"))
+                        it.remove();
+                }
+                expected.remove("d2");
+                assertEquals(List.of("d0", "d3"), new ArrayList<>(bag.elements.keySet()));
+                var bag2 = serializationClone(bag);
+                assertSameCopy(bag, bag2);
+            }
+        }
+        assertEquals(18, bag.elements.size());
+        assertTrue(bag.elements.containsKey("d19"));
+        assertNull(bag.elements.get("d2"));
+        assertSameCopy(bag, bag.deepcopy());
+        assertSameCopy(bag, serializationClone(bag));
+        bag.elements.clear();
+        assertTrue(bag.elements.isEmpty());
+    }
+
+    static long usedMemory() {
+        var rt = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+            }
+        }
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static List<WorldEntity> monsters(int n, boolean compact) {
+        var entities = new ArrayList<WorldEntity>(n);
+        for (int i = 0; i < n; i++) {
+            var e = new WorldEntity("e" + i, "monster", true);
+            if (!compact) {
+                e.properties = new HashMap<>();
+                e.elements = new HashMap<>();
+            }
+            e.properties.put("hp", 1000 + i);
+            e.properties.put("speed", 0.5f * i);
+            e.properties.put("isAlive", i % 2 == 0);
+            e.properties.put("name", "orc");
+            entities.add(e);
+        }
+        return entities;
+    }
+
+    static long sumProperties(List<WorldEntity> entities) {
+        long sum = 0;
+        for (var e : entities)
+            sum += e.getIntProperty("hp") + (e.getBooleanProperty("isAlive") ? 1 : 0);
+        return sum;
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_propertyMemoryBenchmark() {
+        // 100k entities with 4 properties each, with the compact maps vs. with
+        // HashMaps:
+        int n = 100000;
+        long before = usedMemory();
+        var compact = monsters(n, true);
+        long compactBytes = usedMemory() - before;
+        before = usedMemory();
+        var hashed = monsters(n, false);
+        long hashedBytes = usedMemory() - before;
+        long t0 = System.nanoTime();
+        long sum1 = sumProperties(compact);
+        long compactRead = (System.nanoTime() - t0) / n;
+        t0 = System.nanoTime();
+        long sum2 = sumProperties(hashed);
+        long hashedRead = (System.nanoTime() - t0) / n;
+        assertEquals(sum1, sum2);
+        assertEquals(compact.get(7), hashed.get(7));
+        System.out.println("** " + n + " entities with 4 properties each:");
+        System.out.println("   compact maps : ~" + compactBytes / n + " bytes/entity, typed getters " + compactRead
+                + " ns/entity");
+        System.out.println("   HashMaps     : ~" + hashedBytes / n + " bytes/entity, typed getters " + hashedRead
+                + " ns/entity");
+    }
+
 }
@@ -1,12 +1,27 @@
 package eu.iv4xr.framework.mainConcepts;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 
+import eu.iv4xr.framework.spatial.Vec3;
+
 public class Test_WorldModel {
 
     WorldEntity door(String id) {
@@ -124,4 +139,268 @@ public class Test_WorldModel {
 
     }
 
+    @Test
+    public void test_deepcopy() {
+        var wom = world(0);
+        wom.mergeNewObservation(world(5));
+        var copy = wom.deepcopy();
+        assertEquals(wom, copy);
+        assertEquals(wom.timestamp, copy.timestamp);
+        for (var e : wom.elements.values()) {
+            var f = copy.getElement(e.id);
+            assertTrue(e != f);
+            assertEquals(e.timestamp, f.timestamp);
+            assertEquals(e.lastStutterTimestamp, f.lastStutterTimestamp);
+        }
+        copy.getElement("d1").properties.put("isOpen", true);
+        assertFalse(wom.getElement("d1").getBooleanProperty("isOpen"));
+    }
+
+    @Test
+    public void test_copyOnWrite() {
+        var wom = world(0);
+        var copy = wom.copyOnWrite();
+        assertEquals(wom, copy);
+        // initially the entities are shared:
+        assertTrue(wom.getElement("d1") == copy.getElement("d1"));
+
+        // changing the copy does not affect the original:
+        var obs = world(10);
+        obs.getElement("d2").properties.put("isOpen", true);
+        var changed = copy.mergeNewObservation(obs);
+        assertEquals(1, changed.size());
+        assertTrue(copy.getElement("d2").getBooleanProperty("isOpen"));
+        assertFalse(wom.getElement("d2").getBooleanProperty("isOpen"));
+        // the shared entity itself is linked as the previous state, not a copy:
+        assertSame(wom.getElement("d2"), copy.getElement("d2").getPreviousState());
+        // the stuttering entity d1 got a new timestamp in the copy only:
+        assertEquals(10, copy.getElement("d1").timestamp);
+        assertEquals(0, wom.getElement("d1").timestamp);
+        assertEquals(-1, wom.getElement("d1").lastStutterTimestamp);
+
+        // ... nor the other way around:
+        wom.mergeNewObservation(world(20));
+        assertEquals(20, wom.getElement("d1").timestamp);
+        assertEquals(10, copy.getElement("d1").timestamp);
+        assertEquals(20, wom.getElement("excalibur").timestamp);
+        assertEquals(10, copy.getElement("excalibur").timestamp);
+
+        // getElementForUpdate gives an entity that can be changed freely:
+        var copy2 = copy.copyOnWrite();
+        copy2.getElementForUpdate("d1").properties.put("isOpen", true);
+        assertFalse(copy.getElement("d1").getBooleanProperty("isOpen"));
+        assertTrue(copy2.getElementForUpdate("d1") == copy2.getElement("d1"));
+
+        // a shared entity keeps its own previous state when it is superseded:
+        var copy3 = copy.copyOnWrite();
+        var d2 = copy.getElement("d2");
+        var d2prev = d2.getPreviousState();
+        var obs3 = world(30);
+        obs3.getElement("d2").properties.put("isOpen", false);
+        copy3.mergeNewObservation(obs3);
+        assertTrue(d2.getBooleanProperty("isOpen"));
+        assertSame(d2prev, d2.getPreviousState());
+        var prev = copy3.getElement("d2").getPreviousState();
+        assertEquals(d2, prev);
+        assertNull(prev.getPreviousState());
+        assertTrue(copy3.getElement("d2").hasChangedState());
+    }
+
+    static WorldEntity at(String id, String type, float x, float z, long t) {
+        var e = new WorldEntity(id, type, true);
+        e.position = new Vec3(x, 0, z);
+        e.extent = new Vec3(0.5f, 0.5f, 0.5f);
+        e.assignTimeStamp(t);
+        return e;
+    }
+
+    static Set<String> ids(List<WorldEntity> entities) {
+        var ids = new HashSet<String>();
+        for (var e : entities)
+            ids.add(e.id);
+        return ids;
+    }
+
+    @Test
+    public void test_spatialQueries() {
+        var origin = new Vec3(0, 0, 0);
+        var wom = new WorldModel();
+        wom.timestamp = 0;
+        wom.elements.put("d1", at("d1", "door", 1, 1, 0));
+        wom.elements.put("d2", at("d2", "door", 10, 0, 0));
+        wom.elements.put("k1", at("k1", "key", 2, 0, 0));
+        var noPosition = new WorldEntity("x", "door", true);
+        wom.elements.put("x", noPosition);
+
+        assertEquals(Set.of("d1", "k1"), ids(wom.getElementsWithin(origin, 3)));
+        assertEquals(Set.of("d1"), ids(wom.getElementsWithin(origin, 3, "door")));
+        assertEquals(Set.of("d1", "d2", "x"), ids(wom.getElementsOfType("door")));
+        assertEquals("d2", wom.getNearestElements(new Vec3(9, 0, 0), 1).get(0).id);
+        assertEquals("k1", wom.getNearestElements(new Vec3(9, 0, 0), 1, "key").get(0).id);
+        var ray = wom.getElementsAlongRay(origin, new Vec3(20, 0, 0));
+        assertEquals(2, ray.size());
+        assertEquals("k1", ray.get(0).id);
+        assertEquals("d2", ray.get(1).id);
+
+        // the index follows merges:
+        var obs = new WorldModel();
+        obs.timestamp = 1;
+        obs.elements.put("d2", at("d2", "door", 1, 0, 1));
+        obs.elements.put("k2", at("k2", "key", 0, 2, 1));
+        wom.mergeNewObservation(obs);
+        assertEquals(Set.of("d1", "d2", "k1", "k2"), ids(wom.getElementsWithin(origin, 3)));
+        var delta = new WorldModelDelta();
+        delta.sinceTimestamp = 1;
+        delta.timestamp = 2;
+        delta.removed.add("d1");
+        wom.mergeDelta(delta);
+        assertEquals(Set.of("d2", "k1", "k2"), ids(wom.getElementsWithin(origin, 3)));
+        assertEquals(Set.of("k1", "k2"), ids(wom.getElementsOfType("key")));
+
+        // ... and direct additions to the elements:
+        wom.elements.put("k3", at("k3", "key", 0, 0, 2));
+        assertEquals(Set.of("k1", "k2", "k3"), ids(wom.getElementsWithin(origin, 3, "key")));
+        // an in-place move needs an invalidation:
+        wom.getElement("k3").position = new Vec3(50, 0, 50);
+        wom.invalidateIndex();
+        assertEquals(Set.of("k1", "k2"), ids(wom.getElementsWithin(origin, 3, "key")));
+    }
+
+    static WorldModel bigWorld(int n) {
+        var wom = new WorldModel();
+        wom.agentId = "agent";
+        wom.timestamp = 1;
+        for (int i = 0; i < n; i++) {
+            var e = new WorldEntity("e" + i, "crate", true);
+            e.position = new Vec3(i, 0, i);
+            e.extent = new Vec3(1, 1, 1);
+            e.properties.put("hp", i);
+            e.properties.put("name", "crate " + i);
+            e.properties.put("isBroken", false);
+            e.assignTimeStamp(1);
+            wom.elements.put(e.id, e);
+        }
+        return wom;
+    }
+
+    static WorldModel serializationClone(WorldModel wom) throws Exception {
+        var bos = new ByteArrayOutputStream();
+        new ObjectOutputStream(bos).writeObject(wom);
+        return (WorldModel) new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray())).readObject();
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_cloneBenchmark() throws Exception {
+        var wom = bigWorld(2000);
+        assertEquals(serializationClone(wom), wom.deepcopy());
+        int runs = 20;
+        // warm up:
+        for (int k = 0; k < 5; k++) {
+            serializationClone(wom);
+            wom.deepcopy();
+            wom.copyOnWrite();
+        }
+        long t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++)
+            serializationClone(wom);
+        long serialization = (System.nanoTime() - t0) / runs;
+        t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++)
+            wom.deepcopy();
+        long deepcopy = (System.nanoTime() - t0) / runs;
+        t0 = System.nanoTime();
+        for (int k = 0; k < runs; k++)
+            wom.copyOnWrite();
+        long cow = (System.nanoTime() - t0) / runs;
+        System.out.println("** cloning a WorldModel with 2000 entities:");
+        System.out.println("   serialization : " + serialization / 1000 + " us");
+        System.out.println("   deepcopy      : " + deepcopy / 1000 + " us");
+        System.out.println("   copyOnWrite   : " + cow / 1000 + " us");
+    }
+
+    @Test
+    public void test_subscriptions() {
+        var wom = world(0);
+        var byId = new ArrayList<String>();
+        var byType = new ArrayList<String>();
+        var byProperty = new ArrayList<String>();
+        var byRegion = new ArrayList<String>();
+        var any = new ArrayList<String>();
+        var s1 = wom.onChangeOf("d1", c -> byId.add(c.toString()));
+        wom.onChangeOfType("sword", c -> byType.add(c.toString()));
+        wom.onChangeOfProperty("isOpen", c -> byProperty.add(c.toString()));
+        wom.onChangeWithin(new Vec3(10, 0, 10), 5, c -> byRegion.add(c.toString()));
+        wom.onAnyChange(c -> any.add(c.toString()));
+
+        // nothing changes:
+        wom.mergeNewObservation(world(1));
+        assertTrue(any.isEmpty());
+
+        var obs = world(2);
+        obs.elements.get("d1").properties.put("isOpen", true);
+        obs.elements.get("d2").properties.put("hp", 3);
+        var shield = new WorldEntity("shield", "shield", true);
+        shield.position = new Vec3(11, 0, 9);
+        shield.assignTimeStamp(2);
+        obs.elements.put(shield.id, shield);
+        wom.mergeNewObservation(obs);
+        assertEquals(List.of("CHANGED d1 at t=2"), byId);
+        assertTrue(byType.isEmpty());
+        assertEquals(List.of("CHANGED d1 at t=2"), byProperty);
+        assertEquals(List.of("ADDED shield at t=2"), byRegion);
+        assertEquals(Set.of("CHANGED d1 at t=2", "CHANGED d2 at t=2", "ADDED shield at t=2"), new HashSet<>(any));
+
+        // leaving the region, and removal:
+        s1.cancel();
+        assertFalse(s1.isActive());
+        var delta = new WorldModelDelta();
+        delta.sinceTimestamp = 2;
+        delta.timestamp = 3;
+        var shield2 = new WorldEntity("shield", "shield", true);
+        shield2.position = new Vec3(30, 0, 30);
+        shield2.assignTimeStamp(3);
+        delta.changed.put(shield2.id, shield2);
+        delta.removed.add("d1");
+        EntityChange[] removal = new EntityChange[1];
+        wom.onChangeOf("d1", c -> removal[0] = c);
+        wom.mergeDelta(delta);
+        assertEquals(1, byId.size());
+        assertEquals(List.of("ADDED shield at t=2", "CHANGED shield at t=3"), byRegion);
+        assertEquals(EntityChange.Kind.REMOVED, removal[0].kind);
+        assertTrue(removal[0].previous.getBooleanProperty("isOpen"));
+        assertEquals("door", removal[0].type());
+        // the removed door had the property:
+        assertEquals("REMOVED d1 at t=3", byProperty.get(1));
+        assertEquals(5, any.size());
+    }
+
+    @Test
+    public void test_subscriptionsCancelledWhileDispatching() {
+        var wom = world(0);
+        var seen = new ArrayList<String>();
+        // many regions and properties that are not involved:
+        for (int k = 0; k < 1000; k++) {
+            wom.onChangeWithin(new Vec3(1000 + k, 0, 1000), 1, c -> seen.add("far"));
+            wom.onChangeOfProperty("p" + k, c -> seen.add("other property"));
+        }
+        var second = new EntitySubscription[1];
+        wom.onChangeOfProperty("isOpen", c -> {
+            seen.add("first");
+            // cancelling the next one, and subscribing a new one, while dispatching:
+            second[0].cancel();
+            wom.onChangeOfProperty("isOpen", d -> seen.add("new"));
+        });
+        second[0] = wom.onChangeOfProperty("isOpen", c -> seen.add("second"));
+        var obs = world(1);
+        obs.elements.get("d1").properties.put("isOpen", true);
+        wom.mergeNewObservation(obs);
+        assertEquals(List.of("first"), seen);
+        seen.clear();
+        obs = world(2);
+        obs.elements.get("d1").properties.put("isOpen", false);
+        wom.mergeNewObservation(obs);
+        assertEquals(List.of("first", "new"), seen);
+    }
+
 }
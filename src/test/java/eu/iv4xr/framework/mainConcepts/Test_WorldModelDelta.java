@@ -0,0 +1,189 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class Test_WorldModelDelta {
+
+    /**
+     * Produce a fresh observation of n doors, where door i is open iff open[i].
+     */
+    static WorldModel snapshot(boolean[] open, long timestamp) {
+        var wom = new WorldModel();
+        wom.agentId = "agent";
+        wom.timestamp = timestamp;
+        for (int i = 0; i < open.length; i++) {
+            var e = new WorldEntity("d" + i, "door", true);
+            e.properties.put("isOpen", open[i]);
+            e.assignTimeStamp(timestamp);
+            wom.elements.put(e.id, e);
+        }
+        return wom;
+    }
+
+    static void assertSameWorldModel(WorldModel expected, WorldModel wom) {
+        assertEquals(expected, wom);
+        assertEquals(expected.timestamp, wom.timestamp);
+        for (var e : expected.elements.values()) {
+            var f = wom.getElement(e.id);
+            assertEquals(e.timestamp, f.timestamp);
+            assertEquals(e.lastStutterTimestamp, f.lastStutterTimestamp);
+            assertEquals(e.hasPreviousState(), f.hasPreviousState());
+            if (e.hasPreviousState()) {
+                assertEquals(e.getPreviousState(), f.getPreviousState());
+                assertEquals(e.getPreviousState().timestamp, f.getPreviousState().timestamp);
+            }
+        }
+    }
+
+    @Test
+    public void test_mergeDeltaSameAsFullMerge() {
+        var rnd = new Random(3);
+        var open = new boolean[50];
+        var full = snapshot(open, 0);
+        var delta = snapshot(open, 0);
+        var previous = snapshot(open, 0);
+        for (long t = 1; t <= 30; t++) {
+            for (int k = 0; k < 3; k++)
+                open[rnd.nextInt(open.length)] ^= true;
+            var changed1 = full.mergeNewObservation(snapshot(open, t));
+            var current = snapshot(open, t);
+            var d = WorldModelDelta.between(previous, current);
+            previous = snapshot(open, t);
+            assertEquals(t - 1, d.sinceTimestamp);
+            assertTrue(d.removed.isEmpty());
+            assertEquals(open.length, d.changed.size() + d.unchanged.size());
+            var changed2 = delta.mergeDelta(d);
+            assertEquals(changed1.size(), changed2.size());
+            assertSameWorldModel(full, delta);
+        }
+    }
+
+    @Test
+    public void test_createAndRemove() {
+        var wom = snapshot(new boolean[3], 0);
+        var d = new WorldModelDelta();
+        d.timestamp = 5;
+        d.sinceTimestamp = 0;
+        var e = new WorldEntity("d3", "door", true);
+        e.assignTimeStamp(5);
+        d.changed.put(e.id, e);
+        d.removed.add("d1");
+        d.unchanged.add("d0");
+        var changed = wom.mergeDelta(d);
+        assertEquals(1, changed.size());
+        assertSame(e, changed.get(0));
+        assertNull(wom.getElement("d1"));
+        assertEquals(5, wom.getElement("d0").timestamp);
+        assertEquals(0, wom.getElement("d0").lastStutterTimestamp);
+        // d2 is not mentioned, so it keeps its old timestamp:
+        assertEquals(0, wom.getElement("d2").timestamp);
+        assertEquals(5, wom.timestamp);
+
+        // a delta that is relative to a later state, or that is older, cannot be merged:
+        var d2 = new WorldModelDelta();
+        d2.sinceTimestamp = 7;
+        d2.timestamp = 8;
+        assertThrows(IllegalArgumentException.class, () -> wom.mergeDelta(d2));
+        d2.sinceTimestamp = 0;
+        d2.timestamp = 4;
+        assertThrows(IllegalArgumentException.class, () -> wom.mergeDelta(d2));
+        assertThrows(IllegalArgumentException.class, () -> wom.mergeDelta(null));
+    }
+
+    /**
+     * An environment with n doors that flips one door every observation, and that
+     * supports the delta protocol.
+     */
+    static class DeltaEnv extends Iv4xrEnvironment {
+        boolean[] open;
+        long time = 0;
+        int fullObservations = 0;
+        int deltaObservations = 0;
+
+        DeltaEnv(int n) {
+            open = new boolean[n];
+        }
+
+        @Override
+        public WorldModel observe(String agentId) {
+            fullObservations++;
+            time++;
+            open[(int) (time % open.length)] ^= true;
+            return snapshot(open, time);
+        }
+
+        @Override
+        public boolean supportsDeltaObservation() {
+            return true;
+        }
+
+        @Override
+        public WorldModelDelta observeDelta(String agentId, long sinceTimestamp) {
+            deltaObservations++;
+            var previous = snapshot(open, time);
+            time++;
+            open[(int) (time % open.length)] ^= true;
+            assertEquals(previous.timestamp, sinceTimestamp);
+            return WorldModelDelta.between(previous, snapshot(open, time));
+        }
+    }
+
+    @Test
+    public void test_agentStateUsesDelta() {
+        var env = new DeltaEnv(10);
+        var state = new Iv4xrAgentState<Integer>();
+        state.setEnvironment(env);
+        state.updateState("agent");
+        state.updateState("agent");
+        // without the flag, only full observations are used:
+        assertEquals(2, env.fullObservations);
+        state.setUseDeltaObservation(true);
+        for (int k = 0; k < 5; k++)
+            state.updateState("agent");
+        assertEquals(2, env.fullObservations);
+        assertEquals(5, env.deltaObservations);
+        assertEquals(snapshot(env.open, env.time), state.worldmodel);
+        assertEquals(env.time, state.worldmodel.timestamp);
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        int n = 10000;
+        var rnd = new Random(1);
+        var open = new boolean[n];
+        var full = snapshot(open, 0);
+        var delta = snapshot(open, 0);
+        var previous = snapshot(open, 0);
+        long fullTime = 0;
+        long deltaTime = 0;
+        int ticks = 50;
+        for (long t = 1; t <= ticks; t++) {
+            // 1% of the entities change:
+            for (int k = 0; k < n / 100; k++)
+                open[rnd.nextInt(n)] ^= true;
+            var obs = snapshot(open, t);
+            var current = snapshot(open, t);
+            var d = WorldModelDelta.between(previous, current);
+            // the environment does not report the unchanged entities:
+            d.unchanged.clear();
+            previous = snapshot(open, t);
+            long t0 = System.nanoTime();
+            full.mergeNewObservation(obs);
+            fullTime += System.nanoTime() - t0;
+            t0 = System.nanoTime();
+            delta.mergeDelta(d);
+            deltaTime += System.nanoTime() - t0;
+        }
+        assertEquals(full, delta);
+        System.out.println("** merging observations of " + n + " entities, 1% changing per tick:");
+        System.out.println("   mergeNewObservation : " + fullTime / ticks / 1000 + " us/tick");
+        System.out.println("   mergeDelta          : " + deltaTime / ticks / 1000 + " us/tick");
+    }
+
+}
@@ -0,0 +1,149 @@
+package eu.iv4xr.framework.mainConcepts;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class Test_WorldModelHistory {
+
+    static WorldModel snapshot(boolean[] open, long timestamp) {
+        return Test_WorldModelDelta.snapshot(open, timestamp);
+    }
+
+    @Test
+    public void test_lookupInThePast() {
+        var rnd = new Random(5);
+        int T = 40;
+        var open = new boolean[30];
+        var expected = new boolean[T + 1][];
+        expected[0] = open.clone();
+        var wom = snapshot(open, 0);
+        var history = wom.trackHistory(100);
+        assertSame(history, wom.getHistory());
+        assertEquals(1, history.numberOfVersions());
+        int changes = 0;
+        for (int t = 1; t <= T; t++) {
+            // sometimes nothing changes:
+            if (t % 4 != 0) {
+                for (int k = 0; k < 2; k++)
+                    open[rnd.nextInt(open.length)] ^= true;
+            }
+            expected[t] = open.clone();
+            if (wom.mergeNewObservation(snapshot(open, t)).size() > 0)
+                changes++;
+        }
+        assertEquals(changes + 1, history.numberOfVersions());
+        assertEquals(0, history.oldestTimestamp());
+        assertEquals(T, wom.timestamp);
+        for (int t = 0; t <= T; t++) {
+            for (int i = 0; i < open.length; i++) {
+                var e = history.getEntity("d" + i, t);
+                assertEquals(expected[t][i], e.getBooleanProperty("isOpen"));
+                assertTrue(e.timestamp <= t);
+            }
+        }
+        // the live WorldModel is not affected by the sharing:
+        for (int i = 0; i < open.length; i++) {
+            var e = wom.getElement("d" + i);
+            assertEquals(open[i], e.getBooleanProperty("isOpen"));
+            assertEquals(T, e.timestamp);
+        }
+        assertNull(history.getEntity("d0", -1));
+        assertNull(history.getEntity("d99", T));
+    }
+
+    @Test
+    public void test_removalsAndRetention() {
+        var open = new boolean[5];
+        var wom = snapshot(open, 0);
+        var history = wom.trackHistory(3);
+        for (int t = 1; t <= 4; t++) {
+            var delta = new WorldModelDelta();
+            delta.sinceTimestamp = t - 1;
+            delta.timestamp = t;
+            var e = new WorldEntity("d" + t, "door", true);
+            e.properties.put("isOpen", true);
+            e.assignTimeStamp(t);
+            delta.changed.put(e.id, e);
+            if (t == 3)
+                delta.removed.add("d0");
+            wom.mergeDelta(delta);
+        }
+        // versions 0 and 1 are discarded:
+        assertEquals(3, history.numberOfVersions());
+        assertEquals(2, history.oldestTimestamp());
+        assertEquals(4, history.latestTimestamp());
+        assertNull(history.getVersion(1));
+        assertNotNull(history.getEntity("d0", 2));
+        assertNull(history.getEntity("d0", 3));
+        assertTrue(history.getEntity("d1", 2).getBooleanProperty("isOpen"));
+        assertFalse(history.getEntity("d4", 3).getBooleanProperty("isOpen"));
+        assertTrue(history.getEntity("d4", 4).getBooleanProperty("isOpen"));
+        assertEquals(4, history.getVersion(4).size());
+
+        history.setMaxVersions(1);
+        assertEquals(1, history.numberOfVersions());
+        assertEquals(4, history.oldestTimestamp());
+        assertThrows(IllegalArgumentException.class, () -> history.setMaxVersions(0));
+
+        // a WorldModel built from the history can be changed without affecting it:
+        var past = history.getWorldModel(4);
+        assertEquals(4, past.elements.size());
+        past.getElementForUpdate("d1").properties.put("isOpen", false);
+        assertTrue(history.getEntity("d1", 4).getBooleanProperty("isOpen"));
+        assertTrue(wom.getElement("d1").getBooleanProperty("isOpen"));
+
+        wom.stopTrackingHistory();
+        assertNull(wom.getHistory());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_historyBenchmark() {
+        int n = 10000;
+        int T = 3000;
+        int changesPerStep = 5;
+        var rnd = new Random(11);
+        var open = new boolean[n];
+        var wom = snapshot(open, 0);
+        var history = wom.trackHistory(T + 1);
+        long t0 = System.nanoTime();
+        for (int t = 1; t <= T; t++) {
+            var delta = new WorldModelDelta();
+            delta.sinceTimestamp = t - 1;
+            delta.timestamp = t;
+            for (int k = 0; k < changesPerStep; k++) {
+                int i = rnd.nextInt(n);
+                open[i] ^= true;
+                var e = new WorldEntity("d" + i, "door", true);
+                e.properties.put("isOpen", open[i]);
+                e.assignTimeStamp(t);
+                delta.changed.put(e.id, e);
+            }
+            wom.mergeDelta(delta);
+        }
+        long merge = (System.nanoTime() - t0) / T;
+        assertEquals(T + 1, history.numberOfVersions());
+        t0 = System.nanoTime();
+        int lookups = 100000;
+        for (int q = 0; q < lookups; q++)
+            assertNotNull(history.getEntity("d" + rnd.nextInt(n), rnd.nextInt(T + 1)));
+        long lookup = (System.nanoTime() - t0) / lookups;
+        // count the distinct entity objects in the history, vs. what full copies
+        // of every version would hold:
+        var distinct = Collections.newSetFromMap(new IdentityHashMap<WorldEntity, Boolean>());
+        for (int t = 0; t <= T; t++)
+            history.getVersion(t).forEach((id, e) -> distinct.add(e));
+        assertTrue(distinct.size() <= n + T * changesPerStep);
+        System.out.println("** history of " + n + " entities, " + T + " versions of " + changesPerStep + " changes:");
+        System.out.println("   merge+record : " + merge / 1000 + " us/version");
+        System.out.println("   lookup       : " + lookup + " ns");
+        System.out.println("   entities kept: " + distinct.size() + " (full copies: " + (long) n * (T + 1) + ")");
+    }
+
+}
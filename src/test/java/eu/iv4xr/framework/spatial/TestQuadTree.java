@@ -0,0 +1,191 @@
+package eu.iv4xr.framework.spatial;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+public class TestQuadTree {
+
+    static class Item {
+        Vec3 position;
+        Vec3 extent;
+
+        Item(Vec3 position, Vec3 extent) {
+            this.position = position;
+            this.extent = extent;
+        }
+    }
+
+    static Vec3 randomVec(Random rnd, float size) {
+        return new Vec3(rnd.nextFloat() * size, rnd.nextFloat() * 4, rnd.nextFloat() * size);
+    }
+
+    static List<Integer> bruteWithin(Map<Integer, Item> items, Vec3 c, float r) {
+        var result = new ArrayList<Integer>();
+        for (var E : items.entrySet()) {
+            if (Vec3.distSq(E.getValue().position, c) <= r * r)
+                result.add(E.getKey());
+        }
+        return result;
+    }
+
+    static List<Integer> bruteOverlapping(Map<Integer, Item> items, Vec3 c, float r) {
+        var result = new ArrayList<Integer>();
+        for (var E : items.entrySet()) {
+            var item = E.getValue();
+            var ext = item.extent == null ? Vec3.zero() : item.extent;
+            float dx = Math.max(0, Math.abs(c.x - item.position.x) - ext.x);
+            float dy = Math.max(0, Math.abs(c.y - item.position.y) - ext.y);
+            float dz = Math.max(0, Math.abs(c.z - item.position.z) - ext.z);
+            if (dx * dx + dy * dy + dz * dz <= r * r)
+                result.add(E.getKey());
+        }
+        return result;
+    }
+
+    static List<Integer> bruteNearest(Map<Integer, Item> items, Vec3 p, int k) {
+        var ids = new ArrayList<>(items.keySet());
+        ids.sort(Comparator.comparingDouble(i -> Vec3.distSq(items.get(i).position, p)));
+        return ids.subList(0, Math.min(k, ids.size()));
+    }
+
+    static boolean hits(Item item, Vec3 from, Vec3 to) {
+        var ext = item.extent == null ? Vec3.zero() : item.extent;
+        var box = new Box(item.position, Vec3.mul(ext, 2));
+        // Box does not report a segment that lies completely inside:
+        var min = Vec3.sub(item.position, ext);
+        var max = Vec3.add(item.position, ext);
+        boolean inside = min.x <= from.x && from.x <= max.x && min.y <= from.y && from.y <= max.y
+                && min.z <= from.z && from.z <= max.z;
+        return inside || box.intersects(new Line(from, to));
+    }
+
+    @Test
+    public void test_queries() {
+        var rnd = new Random(7);
+        var tree = new QuadTree<Integer>();
+        var items = new HashMap<Integer, Item>();
+        for (int i = 0; i < 2000; i++) {
+            var ext = i % 5 == 0 ? new Vec3(rnd.nextFloat() * 20, 1, rnd.nextFloat() * 20) : new Vec3(0.5f);
+            var item = new Item(randomVec(rnd, 500), ext);
+            items.put(i, item);
+            tree.put(i, item.position, item.extent);
+        }
+        // move and remove some:
+        for (int i = 0; i < 500; i++) {
+            var item = items.get(i);
+            item.position = Vec3.add(item.position, new Vec3(rnd.nextFloat() * 50 - 25, 0, rnd.nextFloat() * 50 - 25));
+            tree.put(i, item.position, item.extent);
+        }
+        for (int i = 500; i < 700; i++) {
+            assertTrue(tree.remove(i));
+            items.remove(i);
+        }
+        assertFalse(tree.remove(600));
+        // some far away, to let the tree grow:
+        var far = new Item(new Vec3(-3000, 0, 8000), null);
+        items.put(9999, far);
+        tree.put(9999, far.position, null);
+        assertEquals(items.size(), tree.size());
+
+        for (int q = 0; q < 100; q++) {
+            var c = randomVec(rnd, 500);
+            float r = rnd.nextFloat() * 60;
+            assertEquals(new HashSet<>(bruteWithin(items, c, r)), new HashSet<>(tree.within(c, r)));
+            assertEquals(new HashSet<>(bruteOverlapping(items, c, r)), new HashSet<>(tree.overlapping(c, r)));
+            var nearest = tree.nearest(c, 7);
+            var expected = bruteNearest(items, c, 7);
+            assertEquals(7, nearest.size());
+            for (int i = 0; i < 7; i++)
+                assertEquals(Vec3.distSq(items.get(expected.get(i)).position, c),
+                        Vec3.distSq(items.get(nearest.get(i)).position, c), 0.001);
+            var to = randomVec(rnd, 500);
+            var hitSet = new HashSet<Integer>();
+            for (var E : items.entrySet()) {
+                if (hits(E.getValue(), c, to))
+                    hitSet.add(E.getKey());
+            }
+            var ray = tree.alongRay(c, to);
+            assertEquals(hitSet, new HashSet<>(ray));
+        }
+        assertEquals(List.of(9999), tree.nearest(new Vec3(-2000, 0, 7000), 1));
+        assertEquals(List.of(), tree.nearest(Vec3.zero(), 0));
+    }
+
+    @Test
+    public void test_rayOrderAndFilter() {
+        var tree = new QuadTree<String>();
+        tree.put("a", new Vec3(10, 0, 0), new Vec3(1));
+        tree.put("b", new Vec3(5, 0, 0), new Vec3(1));
+        tree.put("c", new Vec3(20, 0, 0), new Vec3(1));
+        tree.put("d", new Vec3(5, 0, 5), new Vec3(1));
+        assertEquals(List.of("b", "a"), tree.alongRay(new Vec3(0, 0, 0), new Vec3(15, 0, 0)));
+        assertEquals(List.of("a"), tree.alongRay(new Vec3(0, 0, 0), new Vec3(15, 0, 0), id -> !id.equals("b")));
+        assertEquals(new HashSet<>(List.of("a", "b", "c")),
+                new HashSet<>(tree.within(new Vec3(12, 0, 0), 10, id -> !id.equals("d"))));
+        assertEquals(List.of("a", "b"), tree.nearest(new Vec3(9, 0, 0), 2));
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertTrue(tree.within(Vec3.zero(), 100).isEmpty());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_scalingBenchmark() {
+        System.out.println("** QuadTree vs. linear scan; world of 1000x1000, radius 20, k=5:");
+        for (int n : new int[] { 1000, 10000, 100000 }) {
+            var rnd = new Random(n);
+            var items = new HashMap<Integer, Item>();
+            var tree = new QuadTree<Integer>();
+            long t0 = System.nanoTime();
+            for (int i = 0; i < n; i++) {
+                var item = new Item(randomVec(rnd, 1000), new Vec3(0.5f));
+                items.put(i, item);
+                tree.put(i, item.position, item.extent);
+            }
+            long build = System.nanoTime() - t0;
+            var queries = new ArrayList<Vec3>();
+            for (int q = 0; q < 200; q++)
+                queries.add(randomVec(rnd, 1000));
+            int found1 = 0, found2 = 0;
+            t0 = System.nanoTime();
+            for (var c : queries)
+                found1 += bruteWithin(items, c, 20).size();
+            long scan = (System.nanoTime() - t0) / queries.size();
+            t0 = System.nanoTime();
+            for (var c : queries)
+                found2 += tree.within(c, 20).size();
+            long range = (System.nanoTime() - t0) / queries.size();
+            assertEquals(found1, found2);
+            t0 = System.nanoTime();
+            for (var c : queries)
+                tree.nearest(c, 5);
+            long knn = (System.nanoTime() - t0) / queries.size();
+            t0 = System.nanoTime();
+            for (var c : queries)
+                tree.alongRay(c, Vec3.add(c, new Vec3(50, 0, 30)));
+            long ray = (System.nanoTime() - t0) / queries.size();
+            // moving 10% of the items:
+            t0 = System.nanoTime();
+            for (int i = 0; i < n / 10; i++) {
+                var item = items.get(i);
+                item.position = Vec3.add(item.position, new Vec3(1, 0, -1));
+                tree.put(i, item.position, item.extent);
+            }
+            long move = (System.nanoTime() - t0) / (n / 10);
+            System.out.println(String.format(
+                    "   n=%6d: build %6d us, scan %6d us, range %4d us, knn %4d us, ray %4d us, move %4d ns, depth %d",
+                    n, build / 1000, scan / 1000, range / 1000, knn / 1000, ray / 1000, move, tree.depth()));
+        }
+    }
+
+}
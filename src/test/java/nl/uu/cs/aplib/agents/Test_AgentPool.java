@@ -0,0 +1,92 @@
+package nl.uu.cs.aplib.agents;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static nl.uu.cs.aplib.AplibEDSL.*;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.environments.NullEnvironment;
+
+public class Test_AgentPool {
+
+    static final Logger aplibLogger = Logging.getAPLIBlogger();
+
+    static class MyState extends State {
+        int counter = 0;
+    }
+
+    static AutonomousBasicAgent mkAgent(String id, int n) {
+        var state = (MyState) (new MyState().setEnvironment(new NullEnvironment()));
+        // the constructor of BasicAgent resets the logging level:
+        var level = aplibLogger.getLevel();
+        var agent = new AutonomousBasicAgent(id, "worker").attachState(state).setSamplingInterval(0);
+        aplibLogger.setLevel(level);
+        var a = action("a").do1((MyState S) -> {
+            S.counter++;
+            return S.counter;
+        }).lift();
+        agent.setGoal(goal("g").toSolve((Integer x) -> x >= n).withTactic(a).lift());
+        return agent;
+    }
+
+    void runPool(AgentPool pool, int numberOfAgents) {
+        for (int i = 0; i < numberOfAgents; i++)
+            pool.add(mkAgent("agent" + i, 1 + i % 5));
+        pool.start();
+        pool.waitUntilAllGoalsConcluded();
+        for (var agent : pool.getAgents()) {
+            assertTrue(agent.getLastHandledGoal().getStatus().success());
+            assertEquals(1 + Integer.parseInt(agent.getId().substring(5)) % 5, agent.getNumberOfLoopTicks());
+            assertTrue(agent.getMaxTickLatency() >= 0);
+        }
+        pool.stop();
+        assertTrue(pool.join(10000));
+        assertEquals(0, pool.numberOfRunningAgents());
+        for (var agent : pool.getAgents())
+            assertFalse(agent.isRunning());
+        System.out.println(pool.showLoopStatistics());
+    }
+
+    /**
+     * Run the given test with the aplib logger turned down to WARNING; the
+     * logging level is restored afterwards.
+     */
+    static void quietly(Runnable test) {
+        var level = aplibLogger.getLevel();
+        aplibLogger.setLevel(Level.WARNING);
+        try {
+            test.run();
+        } finally {
+            aplibLogger.setLevel(level);
+        }
+    }
+
+    @Test
+    public void test_platformThreads() {
+        quietly(() -> runPool(new AgentPool(), 200));
+    }
+
+    @Test
+    public void test_virtualThreads() {
+        // falls back to platform threads if the JVM has no virtual threads
+        quietly(() -> runPool(new AgentPool().useVirtualThreads(), 1000));
+    }
+
+    @Test
+    public void test_stopIdleAgents() {
+        var pool = new AgentPool();
+        var level = aplibLogger.getLevel();
+        var agent = new AutonomousBasicAgent("idle", "worker").attachState(new MyState());
+        aplibLogger.setLevel(level);
+        pool.add(agent).start();
+        assertThrows(IllegalArgumentException.class, () -> pool.add(agent));
+        pool.stop();
+        assertTrue(pool.join(10000));
+    }
+
+}
@@ -0,0 +1,129 @@
+package nl.uu.cs.aplib.agents;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import static nl.uu.cs.aplib.AplibEDSL.*;
+
+import nl.uu.cs.aplib.environments.NullEnvironment;
+
+public class Test_EventDrivenWakeUp {
+
+    /**
+     * An environment with a flag that some outside party can raise.
+     */
+    static class FlagEnvironment extends NullEnvironment {
+        volatile boolean flag = false;
+
+        void raise() {
+            flag = true;
+            notifyChange();
+        }
+    }
+
+    static class MyState extends State {
+    }
+
+    /**
+     * An agent that can only act once the flag of its environment is raised.
+     */
+    static AutonomousBasicAgent mkAgent(FlagEnvironment env) {
+        var state = (MyState) (new MyState().setEnvironment(env));
+        var agent = new AutonomousBasicAgent("waiter", "worker").attachState(state).setSamplingInterval(150);
+        var a = action("a").do1((MyState S) -> true)
+                .on_((MyState S) -> ((FlagEnvironment) S.env()).flag).lift();
+        agent.setGoal(goal("g").toSolve((Boolean b) -> b).withTactic(a).lift());
+        return agent;
+    }
+
+    static void sleepx(long t) {
+        try {
+            Thread.sleep(t);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    @Test
+    public void test_wakeUpOnChange() throws InterruptedException {
+        var env = new FlagEnvironment();
+        // the environment notifies its changes, so the agent can sleep without limit:
+        var agent = mkAgent(env).useEventDrivenWakeUp(true).setMaxIdleTime(0);
+        var t = new Thread(() -> agent.loop());
+        t.start();
+        sleepx(1000);
+        // the agent should have found nothing to do, and gone to sleep:
+        assertTrue(agent.goal != null);
+        assertEquals(1, agent.getNumberOfNoopUpdates());
+        assertEquals(1, agent.getNumberOfIdleWaits());
+
+        long t0 = System.currentTimeMillis();
+        env.raise();
+        var g = agent.waitUntilTheGoalIsConcluded();
+        long reaction = System.currentTimeMillis() - t0;
+        assertTrue(g.getStatus().success());
+        assertEquals(1, agent.getNumberOfNoopUpdates());
+        assertTrue(agent.getEstimatedAvoidedUpdates() >= 5);
+        System.out.println("** event-driven: reaction time " + reaction + " ms, no-op updates: "
+                + agent.getNumberOfNoopUpdates() + ", avoided: " + agent.getEstimatedAvoidedUpdates());
+
+        agent.stop();
+        t.join(10000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    public void test_polling() throws InterruptedException {
+        // for comparison: without event-driven wake-up the agent keeps polling
+        var env = new FlagEnvironment();
+        var agent = mkAgent(env);
+        var t = new Thread(() -> agent.loop());
+        t.start();
+        sleepx(1000);
+        env.raise();
+        var g = agent.waitUntilTheGoalIsConcluded();
+        assertTrue(g.getStatus().success());
+        assertTrue(agent.getNumberOfNoopUpdates() >= 5);
+        assertEquals(0, agent.getNumberOfIdleWaits());
+        System.out.println("** polling: no-op updates: " + agent.getNumberOfNoopUpdates());
+        agent.stop();
+        t.join(10000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    public void test_maxIdleTime() throws InterruptedException {
+        // a change that is not notified is still noticed after the max idle time:
+        var env = new FlagEnvironment();
+        var agent = mkAgent(env).useEventDrivenWakeUp(true).setMaxIdleTime(300);
+        var t = new Thread(() -> agent.loop());
+        t.start();
+        sleepx(500);
+        env.flag = true;
+        var g = agent.waitUntilTheGoalIsConcluded();
+        assertTrue(g.getStatus().success());
+        assertTrue(agent.getNumberOfIdleWaits() >= 1);
+        agent.stop();
+        t.join(10000);
+        assertFalse(t.isAlive());
+    }
+
+    @Test
+    public void test_defaultMaxIdleTime() throws InterruptedException {
+        // by default the agent sleeps at most a sampling interval, so it still
+        // notices a change that is never notified:
+        var env = new FlagEnvironment();
+        var agent = mkAgent(env).useEventDrivenWakeUp(true);
+        var t = new Thread(() -> agent.loop());
+        t.start();
+        sleepx(500);
+        env.flag = true;
+        var g = agent.waitUntilTheGoalIsConcluded();
+        assertTrue(g.getStatus().success());
+        assertTrue(agent.getNumberOfIdleWaits() >= 2);
+        agent.stop();
+        t.join(10000);
+        assertFalse(t.isAlive());
+    }
+
+}
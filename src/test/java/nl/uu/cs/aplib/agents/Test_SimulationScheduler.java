@@ -0,0 +1,128 @@
+package nl.uu.cs.aplib.agents;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static nl.uu.cs.aplib.AplibEDSL.*;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.environments.NullEnvironment;
+import nl.uu.cs.aplib.mainConcepts.*;
+
+public class Test_SimulationScheduler {
+
+    static final Logger aplibLogger = Logging.getAPLIBlogger();
+
+    static class MyState extends State {
+        int counter = 0;
+    }
+
+    /**
+     * An environment that records which agent did what, in which order.
+     */
+    static class TraceEnvironment extends NullEnvironment {
+        List<String> trace = new ArrayList<>();
+    }
+
+    /**
+     * Create an agent that needs n ticks to solve its goal; every tick it writes
+     * its id and counter to the trace of its environment.
+     */
+    static BasicAgent mkAgent(String id, TraceEnvironment env, int n) {
+        var state = new MyState();
+        state.setEnvironment(env);
+        // the constructor of BasicAgent resets the logging level:
+        var level = aplibLogger.getLevel();
+        var agent = new BasicAgent(id, "worker").attachState(state);
+        aplibLogger.setLevel(level);
+        var a = action("a").do1((MyState S) -> {
+            S.counter++;
+            ((TraceEnvironment) S.env()).trace.add(id + ":" + S.counter);
+            return S.counter;
+        }).lift();
+        var g = goal("g").toSolve((Integer x) -> x >= n).withTactic(a).lift();
+        agent.setGoal(g);
+        return agent;
+    }
+
+    @Test
+    public void test_roundRobin() {
+        var env = new TraceEnvironment();
+        var A = mkAgent("A", env, 2);
+        var B = mkAgent("B", env, 3);
+        var C = mkAgent("C", env, 1);
+        var scheduler = new SimulationScheduler().add(A).add(B).add(C);
+        assertEquals(3, scheduler.run(100));
+        assertEquals(3, scheduler.getRound());
+        assertFalse(scheduler.hasActiveAgents());
+        assertEquals(List.of("A:1", "B:1", "C:1", "A:2", "B:2", "B:3"), env.trace);
+        assertTrue(A.getLastHandledGoal().getStatus().success());
+        assertTrue(B.getLastHandledGoal().getStatus().success());
+        assertTrue(C.getLastHandledGoal().getStatus().success());
+    }
+
+    @Test
+    public void test_priority() {
+        var env = new TraceEnvironment();
+        var scheduler = new SimulationScheduler().withPolicy(SimulationScheduler.Policy.PRIORITY)
+                .add(mkAgent("A", env, 2), 0).add(mkAgent("B", env, 2), 5).add(mkAgent("C", env, 2), 0)
+                .add(mkAgent("D", env, 1), 9);
+        var rounds = new ArrayList<Long>();
+        scheduler.afterEachRound(() -> rounds.add(scheduler.getRound()));
+        assertEquals(2, scheduler.run(100));
+        assertEquals(List.of(1L, 2L), rounds);
+        assertEquals(List.of("D:1", "B:1", "A:1", "C:1", "B:2", "A:2", "C:2"), env.trace);
+    }
+
+    @Test
+    public void test_maxRounds() {
+        var env = new TraceEnvironment();
+        var scheduler = new SimulationScheduler().add(mkAgent("A", env, 10));
+        assertEquals(4, scheduler.run(4));
+        assertTrue(scheduler.hasActiveAgents());
+        assertTrue(scheduler.step());
+        assertEquals(5, env.trace.size());
+        assertThrows(IllegalArgumentException.class, () -> scheduler.add(scheduler.getAgents().get(0)));
+    }
+
+    List<List<String>> runMany(int numberOfEnvs, int agentsPerEnv, int parallelism) {
+        var envs = new ArrayList<TraceEnvironment>();
+        var scheduler = new SimulationScheduler().withParallelism(parallelism);
+        for (int e = 0; e < numberOfEnvs; e++) {
+            var env = new TraceEnvironment();
+            envs.add(env);
+            for (int i = 0; i < agentsPerEnv; i++) {
+                scheduler.add(mkAgent("agent" + e + "_" + i, env, 1 + (e + 3 * i) % 7));
+            }
+        }
+        scheduler.run(1000);
+        scheduler.shutdown();
+        assertFalse(scheduler.hasActiveAgents());
+        var traces = new ArrayList<List<String>>();
+        for (var env : envs)
+            traces.add(env.trace);
+        return traces;
+    }
+
+    @Test
+    public void test_deterministic() {
+        var level = aplibLogger.getLevel();
+        aplibLogger.setLevel(Level.WARNING);
+        try {
+            var expected = runMany(20, 10, 1);
+            for (int k = 0; k < 3; k++) {
+                assertEquals(expected, runMany(20, 10, 1));
+                assertEquals(expected, runMany(20, 10, 4));
+            }
+        } finally {
+            aplibLogger.setLevel(level);
+        }
+    }
+
+}
@@ -490,4 +490,85 @@ public class Test_BasicAgent {
 
     }
 
+    String runWithTactics(boolean compiled) {
+        var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment()));
+        var agent = new BasicAgent().attachState(state).useCompiledTactics(compiled);
+        var trace = new StringBuilder();
+        var actions = new Action[5];
+        for (int i = 0; i < actions.length; i++) {
+            final int i_ = i;
+            actions[i] = action("a" + i).do1((MyState S) -> {
+                S.counter++;
+                trace.append("a" + i_ + " ");
+                return S.counter;
+            }).on_((MyState S) -> S.counter % (i_ + 1) != 1);
+        }
+        var persistent = action("p").do1((MyState S) -> {
+            S.counter++;
+            trace.append("p ");
+            return S.counter;
+        }).until((MyState S) -> S.counter % 3 == 0);
+
+        var tactic = SEQ(ANYof(actions[0].lift(), FIRSTof(actions[1].lift(), actions[2].lift())),
+                persistent.lift(),
+                ANYof(actions[3].lift(), actions[4].lift(), SEQ(actions[2].lift(), actions[0].lift())));
+        var topgoal = goal("g").toSolve((Integer k) -> k == 40).withTactic(tactic).lift();
+        agent.setGoal(topgoal);
+        while (topgoal.getStatus().inProgress())
+            agent.update();
+        assertTrue(topgoal.getStatus().success());
+        assertTrue((agent.currentPlan != null) == compiled);
+        return trace.toString();
+    }
+
+    @Test
+    public void test_compiledTactics_sameBehavior() {
+        assertEquals(runWithTactics(false), runWithTactics(true));
+    }
+
+    @Test
+    public void test_memoizedGuards() {
+        var state = (MyState) (new MyState().setEnvironment(new ConsoleEnvironment()));
+        var agent = new BasicAgent().attachState(state);
+        int[] evaluations = { 0 };
+        java.util.function.Function<MyState, Integer> expensiveQuery = S -> {
+            evaluations[0]++;
+            return S.counter % 3 == 2 ? null : S.counter;
+        };
+        var a0 = action("a0").do2((MyState S) -> (Integer x) -> {
+            S.counter = x + 1;
+            return S.counter;
+        }).onMemo("q", expensiveQuery).lift();
+        var a1 = action("a1").do1((MyState S) -> {
+            S.counter++;
+            return S.counter;
+        }).onMemo_("q2", (MyState S) -> S.memo("q", expensiveQuery) == null).lift();
+        var a2 = action("a2").do1((MyState S) -> S.counter).onMemo("q", expensiveQuery).lift();
+
+        var topgoal = goal("g").toSolve((Integer k) -> k == 6).withTactic(ANYof(a0, a1, a2)).lift();
+        agent.setGoal(topgoal);
+        int ticks = 0;
+        while (topgoal.getStatus().inProgress()) {
+            agent.update();
+            ticks++;
+            // the query is evaluated only once per tick:
+            assertEquals(ticks, evaluations[0]);
+        }
+        assertEquals(ticks, state.memoMisses() - ticks);
+        assertEquals(2 * ticks, state.memoHits());
+
+        // the memo is only invalidated when the state version changes:
+        state.bumpStateVersion();
+        long version = state.stateVersion();
+        assertEquals(state.counter, state.memo("q", expensiveQuery));
+        state.counter++;
+        assertEquals(state.counter - 1, state.memo("q", expensiveQuery));
+        state.bumpStateVersion();
+        assertEquals(version + 1, state.stateVersion());
+        assertEquals(state.counter, state.memo("q", expensiveQuery));
+        state.resetMemoStatistics();
+        assertEquals(0, state.memoHits());
+        assertEquals(0, state.memoMisses());
+    }
+
 }
@@ -1,10 +1,15 @@
 package nl.uu.cs.aplib.mainConcepts;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.jupiter.api.Test;
 
 import nl.uu.cs.aplib.mainConcepts.Environment;
+import nl.uu.cs.aplib.mainConcepts.Environment.EnvOperation;
 import nl.uu.cs.aplib.mainConcepts.Environment.EnvironmentInstrumenter;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -31,6 +36,8 @@ public class Test_Environment {
                 break ;
             case "observe" :
             	break ;
+            case "crash" :
+                throw new IllegalStateException("crash");
             }
             return this;
         }
@@ -120,4 +127,110 @@ public class Test_Environment {
 
     }
 
+    @Test
+    public void test_asyncCommands() {
+        var env = new MyEnv();
+        var instrumenter = new MyInstrumenter();
+        env.registerInstrumenter(instrumenter);
+        env.turnOnDebugInstrumentation();
+
+        var reply = env.sendCommandAsync("originId", "targetId", "incrx", null, null);
+        assertTrue(Environment.join(reply) == env);
+        assertTrue(env.getLastOperation().command.equals("incrx"));
+        assertTrue(instrumenter.history.size() == 1);
+
+        var batch = List.of(new EnvOperation("originId", null, "incrx", null, null),
+                new EnvOperation("originId", null, "incry", null, null),
+                new EnvOperation("originId", null, "incrx", null, null));
+        var results = env.sendCommands(batch);
+        assertTrue(results.size() == 3);
+        assertTrue(batch.get(2).result == env);
+        assertTrue(env.x == 3 && env.y == 1);
+        // every command in the batch is instrumented, in order:
+        assertTrue(instrumenter.history.size() == 4);
+        assertTrue(env.getLastOperation() == batch.get(2));
+
+        // failures are passed on:
+        var failing = List.of(new EnvOperation("originId", null, "incry", null, null),
+                new EnvOperation("originId", null, "crash", null, null));
+        assertThrows(IllegalStateException.class, () -> env.sendCommands(failing));
+        assertTrue(env.sendCommandAsync("originId", null, "crash", null, null).isCompletedExceptionally());
+    }
+
+    /**
+     * An environment where every command takes some time to reach the actual
+     * environment and for its reply to come back; commands can be pipelined.
+     */
+    static class SlowEnv extends Environment {
+        int x = 0;
+        long latency;
+        ExecutorService actualEnv = Executors.newSingleThreadExecutor();
+
+        SlowEnv(long latency) {
+            this.latency = latency;
+        }
+
+        @Override
+        protected Object sendCommand_(EnvOperation cmd) {
+            return Environment.join(sendCommandAsync_(cmd));
+        }
+
+        @Override
+        protected CompletableFuture<Object> sendCommandAsync_(EnvOperation cmd) {
+            // the actual environment executes the commands one at a time, in the
+            // order they arrive:
+            return CompletableFuture.supplyAsync(() -> ++x,
+                    CompletableFuture.delayedExecutor(latency, TimeUnit.MILLISECONDS, actualEnv));
+        }
+    }
+
+    @Test
+    public void test_pipelining() {
+        var env = new SlowEnv(20);
+        int n = 10;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            assertEquals(i + 1, env.sendCommand("agent", null, "incr", null));
+        long sequential = System.nanoTime() - t0;
+
+        var batch = new ArrayList<EnvOperation>();
+        for (int i = 0; i < n; i++)
+            batch.add(new EnvOperation("agent", null, "incr", null, null));
+        t0 = System.nanoTime();
+        var results = env.sendCommands(batch);
+        long pipelined = System.nanoTime() - t0;
+        for (int i = 0; i < n; i++)
+            assertEquals(n + i + 1, results.get(i));
+        System.out.println("** " + n + " commands with 20ms latency; sequential: " + sequential / 1000000
+                + " ms, pipelined: " + pipelined / 1000000 + " ms");
+        assertTrue(pipelined < sequential / 2);
+        env.actualEnv.shutdown();
+    }
+
+    static class Point {
+        int x, y;
+    }
+
+    @Test
+    public void test_asyncJsonCommands() {
+        var env = new nl.uu.cs.aplib.environments.JsonEnvironment() {
+            int counter = 0;
+
+            @Override
+            protected Object sendCommand_(EnvOperation cmd) {
+                assertTrue(cmd.expectedTypeOfResult == String.class);
+                counter++;
+                return "{\"x\":" + counter + ",\"y\":" + (10 * counter) + "}";
+            }
+        };
+        var p = (Point) Environment.join(env.sendCommandAsync("agent", null, "get", null, Point.class));
+        assertTrue(p.x == 1 && p.y == 10);
+        var batch = List.of(new EnvOperation("agent", null, "get", null, Point.class),
+                new EnvOperation("agent", null, "get", null, null));
+        var results = env.sendCommands(batch);
+        assertTrue(((Point) results.get(0)).x == 2);
+        assertTrue(batch.get(0).result == results.get(0));
+        assertTrue(results.get(1) == null);
+    }
+
 }
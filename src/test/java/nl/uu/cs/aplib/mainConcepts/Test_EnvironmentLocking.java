@@ -0,0 +1,245 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import static nl.uu.cs.aplib.AplibEDSL.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.mainConcepts.Environment.LockingMode;
+
+/**
+ * Checks the different locking modes of {@link Environment}, and compares the
+ * throughput of 1, 8, and 64 agents sharing a single Environment under each
+ * mode.
+ */
+public class Test_EnvironmentLocking {
+
+    static final Logger aplibLogger = Logging.getAPLIBlogger();
+
+    static void spin(long nanos) {
+        long t0 = System.nanoTime();
+        while (System.nanoTime() - t0 < nanos) {
+        }
+    }
+
+    /**
+     * An environment whose observation takes some time, and whose only command
+     * increments a counter, in a way that would lose increments if the command
+     * were not executed exclusively.
+     */
+    static class SharedEnv extends Environment {
+        int counter = 0;
+        long observeCost;
+
+        SharedEnv(long observeCost) {
+            this.observeCost = observeCost;
+        }
+
+        @Override
+        public Object observe(String agentId) {
+            return sendCommand(agentId, null, "observe", null);
+        }
+
+        @Override
+        protected Object sendCommand_(EnvOperation cmd) {
+            switch (cmd.command) {
+            case "observe":
+                spin(observeCost);
+                return counter;
+            case "incr":
+                int c = counter;
+                Thread.yield();
+                counter = c + 1;
+                return counter;
+            }
+            return null;
+        }
+    }
+
+    static class MyState extends SimpleState {
+        int myIncrements = 0;
+    }
+
+    static BasicAgent mkAgent(String id, Environment env, int ticks, long deliberationCost) {
+        return mkAgent(id, env, ticks, deliberationCost, false);
+    }
+
+    /**
+     * If guardPeeks is true, the guard of the agent's action itself sends a
+     * command to the environment.
+     */
+    static BasicAgent mkAgent(String id, Environment env, int ticks, long deliberationCost, boolean guardPeeks) {
+        var state = new MyState();
+        state.setEnvironment(env);
+        // the constructor of BasicAgent resets the logging level:
+        var level = aplibLogger.getLevel();
+        var agent = new BasicAgent(id, "worker").attachState(state);
+        aplibLogger.setLevel(level);
+        var a = action("incr").do1((MyState S) -> {
+            S.env().sendCommand(id, null, "incr", null);
+            return ++S.myIncrements;
+        }).on_((MyState S) -> {
+            spin(deliberationCost);
+            if (guardPeeks)
+                S.env().sendCommand(id, null, "observe", null);
+            return true;
+        }).lift();
+        agent.setGoal(goal("g").toSolve((Integer n) -> n >= ticks).withTactic(a).lift());
+        return agent;
+    }
+
+    /**
+     * Run the given number of agents, each in its own thread, until each has done
+     * the given number of ticks. Returns the elapsed time in ms.
+     */
+    static double run(LockingMode mode, int numberOfAgents, int ticks, SharedEnv env) {
+        env.setLockingMode(mode);
+        var agents = new ArrayList<BasicAgent>();
+        for (int i = 0; i < numberOfAgents; i++)
+            agents.add(mkAgent("agent" + i, env, ticks, 20000));
+        var threads = new ArrayList<Thread>();
+        for (var agent : agents) {
+            threads.add(new Thread(() -> {
+                while (agent.goal != null)
+                    agent.update();
+            }));
+        }
+        long t0 = System.nanoTime();
+        for (var t : threads)
+            t.start();
+        for (var t : threads) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+            }
+        }
+        double elapsed = (System.nanoTime() - t0) / 1000000.0;
+        for (var agent : agents)
+            assertTrue(agent.getLastHandledGoal().getStatus().success());
+        return elapsed;
+    }
+
+    @Test
+    public void test_noLostCommands() {
+        var level = aplibLogger.getLevel();
+        aplibLogger.setLevel(Level.WARNING);
+        try {
+            for (var mode : LockingMode.values()) {
+                var env = new SharedEnv(1000);
+                run(mode, 8, 20, env);
+                assertEquals(8 * 20, env.counter);
+                if (mode != LockingMode.EXCLUSIVE)
+                    // observations are not counted as modifications in the shared phase:
+                    assertEquals(8 * 20, env.modificationCount.get());
+                if (mode != LockingMode.OPTIMISTIC)
+                    assertEquals(0, env.getOptimisticConflicts());
+            }
+        } finally {
+            aplibLogger.setLevel(level);
+        }
+    }
+
+    @Test
+    public void test_ownCommandsAreNoConflicts() {
+        // the guard of the agent sends a command while it is deliberating, without
+        // holding the lock; this is not a change by another party:
+        var env = new SharedEnv(0);
+        env.setLockingMode(LockingMode.OPTIMISTIC);
+        var agent = mkAgent("A", env, 10, 0, true);
+        while (agent.goal != null)
+            agent.update();
+        assertTrue(agent.getLastHandledGoal().getStatus().success());
+        assertEquals(10, env.counter);
+        assertEquals(0, env.getOptimisticConflicts());
+
+        // but a command from another thread, while the agent deliberates, is:
+        var env2 = new SharedEnv(0);
+        env2.setLockingMode(LockingMode.OPTIMISTIC);
+        var state = new MyState();
+        state.setEnvironment(env2);
+        var level = aplibLogger.getLevel();
+        var agent2 = new BasicAgent("B", "worker").attachState(state);
+        aplibLogger.setLevel(level);
+        var interfered = new boolean[] { false };
+        var a = action("incr").do1((MyState S) -> {
+            S.env().sendCommand("B", null, "incr", null);
+            return ++S.myIncrements;
+        }).on_((MyState S) -> {
+            // only the first time; when the guard is re-evaluated in the exclusive
+            // phase, the other thread would have to wait for the lock:
+            if (!interfered[0]) {
+                interfered[0] = true;
+                var t = new Thread(() -> env2.sendCommand("other", null, "incr", null));
+                t.start();
+                try {
+                    t.join();
+                } catch (InterruptedException e) {
+                }
+            }
+            return true;
+        }).lift();
+        agent2.setGoal(goal("g").toSolve((Integer n) -> n >= 1).withTactic(a).lift());
+        agent2.update();
+        assertEquals(1, env2.getOptimisticConflicts());
+    }
+
+    @Test
+    public void test_sharedObservation() {
+        // in the shared modes observations do not require exclusive access; they
+        // can proceed while another thread holds the shared lock:
+        var env = new SharedEnv(0).setLockingMode(LockingMode.SHARED_OBSERVATION);
+        env.lock.readLock().lock();
+        try {
+            var t = new Thread(() -> {
+                env.lock.readLock().lock();
+                try {
+                    env.observe("other");
+                } finally {
+                    env.lock.readLock().unlock();
+                }
+            });
+            t.start();
+            t.join(10000);
+            assertFalse(t.isAlive());
+        } catch (InterruptedException e) {
+        } finally {
+            env.lock.readLock().unlock();
+        }
+        // observations in the shared phase do not count as modifications:
+        assertEquals(0, env.modificationCount.get());
+        env.sendCommand("x", null, "incr", null);
+        assertEquals(1, env.modificationCount.get());
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_contentionBenchmark() {
+        var level = aplibLogger.getLevel();
+        aplibLogger.setLevel(Level.WARNING);
+        try {
+            // warm-up:
+            run(LockingMode.EXCLUSIVE, 8, 10, new SharedEnv(20000));
+            int totalTicks = 640;
+            System.out.println("** Contention benchmark; observe = 20us, guard = 20us; " + totalTicks
+                    + " ticks in total");
+            for (int n : new int[] { 1, 8, 64 }) {
+                for (var mode : LockingMode.values()) {
+                    var env = new SharedEnv(20000);
+                    double time = run(mode, n, totalTicks / n, env);
+                    assertEquals(totalTicks, env.counter);
+                    System.out.println(String.format("   %2d agents, %-18s: %8.1f ms, %8.0f ticks/s, conflicts: %d", n,
+                            mode, time, totalTicks / time * 1000, env.getOptimisticConflicts()));
+                }
+            }
+        } finally {
+            aplibLogger.setLevel(level);
+        }
+    }
+
+}
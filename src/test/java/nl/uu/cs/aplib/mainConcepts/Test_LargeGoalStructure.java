@@ -0,0 +1,251 @@
+package nl.uu.cs.aplib.mainConcepts;
+
+import static nl.uu.cs.aplib.AplibEDSL.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import nl.uu.cs.aplib.Logging;
+import nl.uu.cs.aplib.environments.ConsoleEnvironment;
+
+/**
+ * Checks the agent's handling of large goal structures. The benchmark, which
+ * only runs with {@code mvn test -Pbenchmark}, goes up to 100k nodes and prints
+ * the running time per node; it should stay (roughly) the same as the number of
+ * nodes grows.
+ */
+public class Test_LargeGoalStructure {
+
+    static class MyState extends SimpleState {
+        int counter = 0;
+
+        @Override
+        public void updateState(String agentId) {
+            // do nothing since we dont have a real env
+        }
+    }
+
+    static Tactic incr() {
+        return action("incr").do1((MyState S) -> {
+            S.counter++;
+            return S.counter;
+        }).lift();
+    }
+
+    static GoalStructure solvedInOneTick(int k) {
+        return goal("g" + k).toSolve((Integer x) -> true).withTactic(incr()).lift();
+    }
+
+    static GoalStructure failedInOneTick(int k) {
+        return goal("g" + k).toSolve((Integer x) -> false).withTactic(ABORT()).lift();
+    }
+
+    /**
+     * A tree of SEQ nodes with FIRSTOF nodes just above the leaves, with the
+     * given fan-out, and N leaves.
+     */
+    static GoalStructure tree(int N, int fanout, int[] leafCount) {
+        if (N <= fanout) {
+            var leaves = new GoalStructure[N];
+            for (int i = 0; i < N; i++) {
+                int k = leafCount[0]++;
+                // the last leaf of the FIRSTOF must succeed, others may fail:
+                leaves[i] = i < N - 1 && (k % 2 == 1) ? failedInOneTick(k) : solvedInOneTick(k);
+            }
+            return FIRSTof(leaves);
+        }
+        var children = new GoalStructure[fanout];
+        for (int i = 0; i < fanout; i++)
+            children[i] = tree(N / fanout, fanout, leafCount);
+        return SEQ(children);
+    }
+
+    /**
+     * Loggers are only weakly referenced by the LogManager; this keeps the level
+     * set by {@link #quietly(Runnable)} from being lost.
+     */
+    static final Logger aplibLogger = Logging.getAPLIBlogger();
+
+    static BasicAgent mkAgent(MyState state) {
+        state.setEnvironment(new ConsoleEnvironment());
+        // the constructor of BasicAgent resets the logging level:
+        var level = aplibLogger.getLevel();
+        var agent = new BasicAgent().attachState(state);
+        aplibLogger.setLevel(level);
+        return agent;
+    }
+
+    /**
+     * Run the given test with the aplib logger turned down to WARNING, since
+     * per-goal logging of large goal structures would flood the output and
+     * dominate the measurements. The logging level is restored afterwards.
+     */
+    static void quietly(Runnable test) {
+        var level = aplibLogger.getLevel();
+        aplibLogger.setLevel(Level.WARNING);
+        try {
+            test.run();
+        } finally {
+            aplibLogger.setLevel(level);
+        }
+    }
+
+    static long solve(BasicAgent agent, GoalStructure G) {
+        long t0 = System.nanoTime();
+        agent.setGoal(G);
+        while (agent.goal != null)
+            agent.update();
+        return System.nanoTime() - t0;
+    }
+
+    static long wideSEQ(int N) {
+        var state = new MyState();
+        var agent = mkAgent(state);
+        var leaves = new GoalStructure[N];
+        for (int k = 0; k < N; k++)
+            leaves[k] = solvedInOneTick(k);
+        var G = SEQ(leaves);
+        long t = solve(agent, G);
+        assertTrue(G.getStatus().success());
+        assertEquals(N, state.counter);
+        return t;
+    }
+
+    static long wideFIRSTOF(int N) {
+        var state = new MyState();
+        var agent = mkAgent(state);
+        var leaves = new GoalStructure[N];
+        for (int k = 0; k < N - 1; k++)
+            leaves[k] = failedInOneTick(k);
+        leaves[N - 1] = solvedInOneTick(N - 1);
+        var G = FIRSTof(leaves);
+        long t = solve(agent, G);
+        assertTrue(G.getStatus().success());
+        assertEquals(1, state.counter);
+        return t;
+    }
+
+    static long tree(int N) {
+        var state = new MyState();
+        var agent = mkAgent(state);
+        int[] leafCount = { 0 };
+        var G = tree(N, 10, leafCount);
+        assertTrue(G.checkIfWellformed());
+        long t = solve(agent, G);
+        assertTrue(G.getStatus().success());
+        return t;
+    }
+
+    /**
+     * A goal that, when solved, inserts a new such goal after itself, until N
+     * goals have been deployed.
+     */
+    static GoalStructure deployingGoal(BasicAgent agent, int N) {
+        return goal("deploying").toSolve((Integer x) -> true).withTactic(action("deploy").do1((MyState S) -> {
+            S.counter++;
+            if (S.counter < N)
+                agent.addAfter(deployingGoal(agent, N));
+            return S.counter;
+        }).lift()).lift();
+    }
+
+    static long dynamicallyGrowingSEQ(int N) {
+        var state = new MyState();
+        var agent = mkAgent(state);
+        var G = SEQ(deployingGoal(agent, N), solvedInOneTick(N));
+        long t = solve(agent, G);
+        assertTrue(G.getStatus().success());
+        assertEquals(N + 1, state.counter);
+        assertEquals(N + 1, G.subgoals.size());
+        return t;
+    }
+
+    @Test
+    public void test_wideSEQ() {
+        quietly(() -> wideSEQ(1000));
+    }
+
+    @Test
+    public void test_wideFIRSTOF() {
+        quietly(() -> wideFIRSTOF(1000));
+    }
+
+    @Test
+    public void test_tree() {
+        quietly(() -> tree(1000));
+    }
+
+    @Test
+    public void test_deepStructure() {
+        // a chain of 100k nested REPEAT nodes should not overflow the stack:
+        GoalStructure G = solvedInOneTick(0);
+        for (int k = 0; k < 100000; k++)
+            G = REPEAT(G);
+        assertTrue(G.checkIfWellformed());
+        var agent = mkAgent(new MyState());
+        agent.setGoal(G);
+        assertEquals("g0", agent.currentGoal.goal.getName());
+    }
+
+    @Test
+    public void test_dynamicallyGrowingSEQ() {
+        quietly(() -> dynamicallyGrowingSEQ(1000));
+    }
+
+    @Test
+    public void test_insertingInTheMiddleOfWideSEQ() {
+        quietly(() -> {
+            int W = 100;
+            int N = 1000;
+            var state = new MyState();
+            var agent = mkAgent(state);
+            var subgoals = new GoalStructure[2 * W + 1];
+            for (int k = 0; k < W; k++)
+                subgoals[k] = solvedInOneTick(k);
+            subgoals[W] = deployingGoal(agent, N);
+            for (int k = W + 1; k <= 2 * W; k++)
+                subgoals[k] = solvedInOneTick(k);
+            var G = SEQ(subgoals);
+            // removing a goal in the middle shifts the cached positions of the later
+            // siblings:
+            agent.setGoal(G);
+            agent.remove(subgoals[W + 1]);
+            for (int k = 0; k < G.subgoals.size(); k++)
+                assertEquals(k, G.subgoals.get(k).siblingIndex);
+            while (agent.goal != null)
+                agent.update();
+            assertTrue(G.getStatus().success());
+            // the deploying goals stop when the counter, which also counts the goals
+            // before them, reaches N:
+            assertEquals(N + W - 1, state.counter);
+            assertEquals(N + W - 1, G.subgoals.size());
+            // and so does inserting a goal in the middle:
+            for (int k = 0; k < G.subgoals.size(); k++)
+                assertEquals(k, G.subgoals.get(k).siblingIndex);
+            assertSame(subgoals[W + 2], G.subgoals.get(N));
+        });
+    }
+
+    static void report(String what, int N, long nanos) {
+        System.out.println("   " + what + ", N=" + N + ": " + (nanos / 1000000) + " ms, " + (nanos / N) + " ns/goal");
+    }
+
+    @Test
+    @Tag("benchmark")
+    public void test_benchmark() {
+        System.out.println("** Agents solving large goal structures:");
+        quietly(() -> {
+            for (int N : new int[] { 1000, 10000, 100000 }) {
+                report("wide SEQ", N, wideSEQ(N));
+                report("wide FIRSTOF", N, wideFIRSTOF(N));
+                report("tree", N, tree(N));
+                report("dynamically growing SEQ", N, dynamicallyGrowingSEQ(N));
+            }
+        });
+    }
+
+}
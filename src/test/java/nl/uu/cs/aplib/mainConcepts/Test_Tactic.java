@@ -87,4 +87,74 @@ public class Test_Tactic {
 
     }
 
+    @Test
+    public void test_compiledTactic() {
+        var a0 = lift(action("a0").on_(s -> ((IntState) s).i == 0));
+        var a1 = lift(action("a1").on_(s -> ((IntState) s).i <= 1));
+        var a2 = lift(action("a2").on_(s -> ((IntState) s).i == 1));
+        var a3 = lift(action("a3").on_(s -> ((IntState) s).i >= 1));
+        var a4 = lift(action("a4").on_(s -> ((IntState) s).i == 4));
+        var a5 = lift(action("a5"));
+
+        var tactic = SEQ(ANYof(FIRSTof(a0, a1), a2), SEQ(ANYof(a3, a4), a5));
+        var plan = tactic.compile();
+        assertTrue(plan != null);
+        assertTrue(plan.size() == 11);
+        assertTrue(plan.root() == tactic);
+
+        // the compiled plan should produce the same candidates, in the same order:
+        var buffer = new CompiledTactic.Candidates();
+        for (int k = 0; k < plan.size(); k++) {
+            for (int i = 0; i < 5; i++) {
+                buffer.clear();
+                boolean found = plan.collectFirstEnabledActions(k, Int(i), buffer);
+                var expected = plan.nodes[k].getFirstEnabledActions(Int(i));
+                assertEquals(expected, buffer);
+                assertTrue(found == !expected.isEmpty());
+                for (var T : buffer)
+                    assertTrue(plan.nodes[buffer.planIndexOf(T)] == T);
+            }
+        }
+
+        // and the same next-tactics:
+        for (var T : java.util.List.of(a0, a1, a2, a3, a4, a5)) {
+            T.action.completed = false;
+            assertTrue(plan.nodes[plan.calcNextNode(plan.indexOf(T))] == T);
+            T.action.completed = true;
+        }
+        for (int k = 0; k < plan.size(); k++) {
+            int next = plan.calcNextNode(k);
+            assertTrue(plan.nodes[k].calcNextTactic() == (next == CompiledTactic.NONE ? null : plan.nodes[next]));
+        }
+        assertTrue(plan.nodes[plan.calcNextNode(plan.indexOf(a1))] == tactic.subtactics.get(1));
+        assertTrue(plan.nodes[plan.calcNextNode(plan.indexOf(a3))] == a5);
+        assertTrue(plan.calcNextNode(plan.indexOf(a5)) == CompiledTactic.NONE);
+        assertTrue(tactic.compile() == plan);
+    }
+
+    @Test
+    public void test_compiledTactic_notAProperTree() {
+        var a0 = lift(action("a0"));
+        var a1 = lift(action("a1"));
+
+        // a tactic with a shared subtactic cannot be compiled:
+        assertTrue(SEQ(a0, a0).compile() == null);
+
+        // a tactic that is re-used inside another tactic cannot be compiled anymore:
+        var s1 = FIRSTof(a0, a1);
+        var plan = s1.compile();
+        assertTrue(plan != null && plan.isValid());
+        var s2 = SEQ(s1, lift(action("a2")));
+        assertFalse(plan.isValid());
+        assertTrue(s1.compile() == null);
+        assertTrue(s2.compile() != null);
+
+        // same if only one of its nodes is re-used:
+        plan = s2.compile();
+        var s3 = ANYof(a1, lift(action("a3")));
+        assertFalse(plan.isValid());
+        assertTrue(s2.compile() == null);
+        assertTrue(s3.compile() != null);
+    }
+
 }
@@ -0,0 +1,107 @@
+package nl.uu.cs.aplib.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class Test_PersistentMap {
+
+    /**
+     * A key with a poor hash, to get collisions.
+     */
+    static class Key {
+        int k;
+
+        Key(int k) {
+            this.k = k;
+        }
+
+        @Override
+        public int hashCode() {
+            return k / 4;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).k == k;
+        }
+    }
+
+    static <K, V> Map<K, V> toMap(PersistentMap<K, V> m) {
+        var result = new HashMap<K, V>();
+        m.forEach(result::put);
+        return result;
+    }
+
+    void randomOps(boolean collisions) {
+        var rnd = new Random(collisions ? 1 : 2);
+        var versions = new ArrayList<PersistentMap<Object, Integer>>();
+        var expected = new ArrayList<Map<Object, Integer>>();
+        PersistentMap<Object, Integer> m = PersistentMap.empty();
+        var ref = new HashMap<Object, Integer>();
+        for (int step = 0; step < 5000; step++) {
+            int k = rnd.nextInt(800);
+            Object key = collisions ? new Key(k) : (Object) ("e" + k);
+            if (rnd.nextInt(3) == 0) {
+                m = m.remove(key);
+                ref.remove(key);
+            } else {
+                m = m.put(key, step);
+                ref.put(key, step);
+            }
+            assertEquals(ref.size(), m.size());
+            if (step % 250 == 0) {
+                versions.add(m);
+                expected.add(new HashMap<>(ref));
+            }
+        }
+        // the old versions are not affected by the later updates:
+        for (int i = 0; i < versions.size(); i++) {
+            var v = versions.get(i);
+            assertEquals(expected.get(i), toMap(v));
+            for (var E : expected.get(i).entrySet()) {
+                assertTrue(v.containsKey(E.getKey()));
+                assertEquals(E.getValue(), v.get(E.getKey()));
+            }
+        }
+        // remove everything:
+        for (var key : ref.keySet())
+            m = m.remove(key);
+        assertEquals(0, m.size());
+        assertTrue(m.isEmpty());
+        assertNull(m.root);
+    }
+
+    @Test
+    public void test_randomOps() {
+        randomOps(false);
+    }
+
+    @Test
+    public void test_randomOpsWithCollisions() {
+        randomOps(true);
+    }
+
+    @Test
+    public void test_sharing() {
+        PersistentMap<String, List<Integer>> m = PersistentMap.empty();
+        var v = List.of(1);
+        m = m.put("a", v).put("b", List.of(2));
+        assertSame(m, m.put("a", v));
+        assertSame(m, m.remove("c"));
+        var m2 = m.put("a", List.of(3));
+        assertNotSame(m, m2);
+        assertEquals(v, m.get("a"));
+        assertEquals(List.of(3), m2.get("a"));
+        assertSame(m.get("b"), m2.get("b"));
+        assertNull(m2.get("c"));
+        assertThrows(IllegalArgumentException.class, () -> PersistentMap.empty().put(null, 1));
+    }
+
+}